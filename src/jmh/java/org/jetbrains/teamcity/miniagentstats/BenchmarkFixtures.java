@@ -0,0 +1,66 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates REST responses for the benchmarks
+ *
+ * The generator is seeded with a constant, so a given fleet size always produces the same bytes
+ * and results stay comparable between commits.
+ */
+final class BenchmarkFixtures {
+    static final long SEED = 20240101L;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * An agents response as requested by TeamCityClientImpl: roughly 90% enabled, 95% connected
+     * and 60% running a build
+     */
+    static byte[] agentsXml(int agents) {
+        Random random = new Random(SEED);
+        StringBuilder xml = new StringBuilder(64 + agents * 160);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+        xml.append("<agents count=\"").append(agents).append("\">");
+        for (int id = 1; id <= agents; id++) {
+            boolean enabled = random.nextInt(10) != 0;
+            boolean connected = random.nextInt(20) != 0;
+            xml.append("<agent id=\"").append(id)
+                    .append("\" enabled=\"").append(enabled)
+                    .append("\" connected=\"").append(connected).append('"');
+            if (random.nextInt(10) < 6) {
+                int buildId = 1_000_000 + random.nextInt(1_000_000);
+                xml.append("><build id=\"").append(buildId)
+                        .append("\" buildTypeId=\"Project_Build").append(random.nextInt(50))
+                        .append("\" state=\"running\" href=\"/app/rest/builds/id:").append(buildId)
+                        .append("\"/></agent>");
+            } else {
+                xml.append("/>");
+            }
+        }
+        xml.append("</agents>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A build queue response with one queued build for every ten agents
+     */
+    static byte[] buildQueueXml(int agents) {
+        Random random = new Random(SEED);
+        int builds = Math.max(1, agents / 10);
+        StringBuilder xml = new StringBuilder(64 + builds * 120);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>");
+        xml.append("<builds count=\"").append(builds).append("\" href=\"/app/rest/buildQueue\">");
+        for (int i = 0; i < builds; i++) {
+            int buildId = 2_000_000 + i;
+            xml.append("<build id=\"").append(buildId)
+                    .append("\" buildTypeId=\"Project_Build").append(random.nextInt(50))
+                    .append("\" state=\"queued\" href=\"/app/rest/buildQueue/id:").append(buildId)
+                    .append("\"/>");
+        }
+        xml.append("</builds>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
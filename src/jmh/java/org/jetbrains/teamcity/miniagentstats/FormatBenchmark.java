@@ -0,0 +1,55 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.JAXBException;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of one output line
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    private AgentStats agentStats;
+    private SampleLineFormatter formatter;
+    private Sample sample;
+
+    @Setup
+    public void setUp() throws JAXBException {
+        agentStats = new AgentStats(line -> {}, new TeamCityClientImpl());
+        formatter = new SampleLineFormatter(ZoneId.systemDefault(), SampleLineFormatter.TimestampFormat.ISO);
+        sample = new Sample();
+        sample.setTimestampMillis(1_700_000_000_123L);
+        sample.setQueuedBuilds(1234);
+        sample.setTotalAgents(10_000);
+        sample.setBusyAgents(6021);
+    }
+
+    @Benchmark
+    public String formatSample() {
+        return agentStats.formatSample(sample);
+    }
+
+    /**
+     * The same line written into the formatter's reused buffer, as monitoring does
+     */
+    @Benchmark
+    public int formatSampleBytes() {
+        sample.setTimestampMillis(sample.getTimestampMillis() + 1000);
+        return formatter.format(sample, false);
+    }
+}
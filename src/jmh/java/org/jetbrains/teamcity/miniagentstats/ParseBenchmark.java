@@ -0,0 +1,89 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the REST responses of one tick at different fleet sizes
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int agents;
+
+    private TeamCityClientImpl client;
+    private AgentsStreamParser streamParser;
+    private BuildQueueStreamParser buildQueueStreamParser;
+    private byte[] agentsXml;
+    private byte[] buildQueueXml;
+    private Agents unmarshalledAgents;
+
+    @Setup
+    public void setUp() throws Exception {
+        client = new TeamCityClientImpl();
+        client.setStreamingParser(false);
+        streamParser = new AgentsStreamParser();
+        buildQueueStreamParser = new BuildQueueStreamParser();
+        agentsXml = BenchmarkFixtures.agentsXml(agents);
+        buildQueueXml = BenchmarkFixtures.buildQueueXml(agents);
+        unmarshalledAgents = client.readAgents(new ByteArrayInputStream(agentsXml));
+    }
+
+    @Benchmark
+    public Agents unmarshalAgents() throws Exception {
+        return client.readAgents(new ByteArrayInputStream(agentsXml));
+    }
+
+    @Benchmark
+    public int unmarshalBuildQueue() throws Exception {
+        return client.readBuildQueue(new ByteArrayInputStream(buildQueueXml));
+    }
+
+    @Benchmark
+    public int streamBuildQueue() throws IOException {
+        return buildQueueStreamParser.parse(new ByteArrayInputStream(buildQueueXml), null);
+    }
+
+    /**
+     * Counting busy agents in an already unmarshalled agent list
+     */
+    @Benchmark
+    public AgentCounts countBusyAgents() {
+        return AgentCounts.fromAgents(unmarshalledAgents);
+    }
+
+    /**
+     * Unmarshalling and counting together, as done with --parser=jaxb
+     */
+    @Benchmark
+    public AgentCounts unmarshalAndCountAgents() throws Exception {
+        return AgentCounts.fromAgents(client.readAgents(new ByteArrayInputStream(agentsXml)));
+    }
+
+    /**
+     * The StAX parser used by default, which counts while reading
+     */
+    @Benchmark
+    public AgentCounts streamAgents() throws IOException {
+        return streamParser.parse(new ByteArrayInputStream(agentsXml));
+    }
+}
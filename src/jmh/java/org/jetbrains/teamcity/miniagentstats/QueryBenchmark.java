@@ -0,0 +1,110 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.query.Aggregation;
+import org.jetbrains.teamcity.miniagentstats.query.QueryResult;
+import org.jetbrains.teamcity.miniagentstats.query.SampleQuery;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleFormat;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daily max, avg and p99 over a year of samples taken every 10 seconds, scanned with 1 to 8 threads
+ *
+ * The files are written once per trial and stay in the page cache, so the results show how the
+ * parallel scan scales with cores rather than disk throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+    private static final int SAMPLES = 365 * 24 * 360;
+    // 2024-01-01T00:00Z
+    private static final long START = 1_704_067_200_000L;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private Path directory;
+    private List<Path> csv;
+    private List<Path> binary;
+    private SampleQuery query;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("query-benchmark");
+        Path csvFile = directory.resolve("samples.csv");
+        Path binaryFile = directory.resolve("samples.bin");
+        SampleLineFormatter formatter = new SampleLineFormatter(ZoneOffset.UTC, SampleLineFormatter.TimestampFormat.ISO);
+        Random random = new Random(BenchmarkFixtures.SEED);
+        Sample sample = new Sample();
+        sample.setTotalAgents(1000);
+        try (BufferedWriter writer = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8);
+             BinarySampleWriter binaryWriter = new BinarySampleWriter(binaryFile, false)) {
+            for (int i = 0; i < SAMPLES; i++) {
+                sample.setTimestampMillis(START + i * 10_000L);
+                sample.setQueuedBuilds(random.nextInt(200));
+                sample.setBusyAgents(random.nextInt(1000));
+                formatter.format(sample, false);
+                writer.write(formatter.toString());
+                writer.write('\n');
+                binaryWriter.append(sample);
+            }
+        }
+        csv = Collections.singletonList(csvFile);
+        binary = Collections.singletonList(binaryFile);
+
+        query = new SampleQuery();
+        query.setZone(ZoneOffset.UTC);
+        query.setBucketMillis(TimeUnit.DAYS.toMillis(1));
+        query.setAggregations(Arrays.asList(Aggregation.MAX, Aggregation.AVG, Aggregation.percentile(99)));
+        query.setParallelism(threads);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Path file : csv) {
+            Files.deleteIfExists(file);
+        }
+        for (Path file : binary) {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(BinarySampleFormat.indexFile(file));
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public QueryResult queryCsv() throws IOException {
+        return query.run(csv);
+    }
+
+    @Benchmark
+    public QueryResult queryBinary() throws IOException {
+        return query.run(binary);
+    }
+}
@@ -0,0 +1,150 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from JVM launch to the first sample printed by AgentStats.jar
+ *
+ * Serves the benchmark fixtures from a local HTTP server and launches the application jar with
+ * --ticks=1 for every run, once without and once with the AppCDS archive if it exists. JMH is
+ * not involved: each run is a fresh JVM, which is the point. With --train, the archive is
+ * created first from one run of the same workload.
+ *
+ * java -cp target/benchmarks.jar org.jetbrains.teamcity.miniagentstats.StartupBenchmark [--train]
+ *     [--runs=10] [--agents=1000] [--jar=target/AgentStats.jar] [--archive=target/AgentStats.jsa]
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        boolean train = false;
+        int runs = 10;
+        int agents = 1000;
+        String jar = "target/AgentStats.jar";
+        String archive = "target/AgentStats.jsa";
+        for (String arg : args) {
+            if (arg.equals("--train")) {
+                train = true;
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.startsWith("--agents=")) {
+                agents = Integer.parseInt(arg.substring("--agents=".length()));
+            } else if (arg.startsWith("--jar=")) {
+                jar = arg.substring("--jar=".length());
+            } else if (arg.startsWith("--archive=")) {
+                archive = arg.substring("--archive=".length());
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (!new File(jar).isFile()) {
+            throw new IllegalArgumentException(jar + " not found, build it with mvn package first");
+        }
+
+        byte[] agentsXml = BenchmarkFixtures.agentsXml(agents);
+        byte[] buildQueueXml = BenchmarkFixtures.buildQueueXml(agents);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/app/rest/agents", exchange -> respond(exchange, agentsXml));
+        server.createContext("/app/rest/buildQueue", exchange -> respond(exchange, buildQueueXml));
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        try {
+            if (train) {
+                train(jar, archive, url);
+            }
+            report("default", jar, url, runs);
+            if (new File(archive).isFile()) {
+                report("appcds", jar, url, runs, "-XX:SharedArchiveFile=" + archive);
+            } else {
+                System.out.println(archive + " not found, run with --train to measure the AppCDS archive");
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * Creates the AppCDS archive from the classes loaded by one run: dynamically on JDK 13 and
+     * later, from a dumped class list on JDK 11 and 12
+     */
+    private static void train(String jar, String archive, String url) throws Exception {
+        if (Runtime.version().feature() >= 13) {
+            timeToFirstSample(jar, url, "-XX:ArchiveClassesAtExit=" + archive);
+        } else {
+            String classList = archive + ".classlist";
+            timeToFirstSample(jar, url, "-Xshare:off", "-XX:DumpLoadedClassList=" + classList);
+            List<String> command = Arrays.asList(javaExecutable(), "-Xshare:dump",
+                    "-XX:SharedClassListFile=" + classList, "-XX:SharedArchiveFile=" + archive, "-cp", jar);
+            Process process = new ProcessBuilder(command).inheritIO().start();
+            if (process.waitFor() != 0) {
+                throw new IOException("Dumping the archive failed: " + command);
+            }
+        }
+        System.out.println("Created " + archive);
+    }
+
+    private static void report(String name, String jar, String url, int runs, String... jvmOptions) throws Exception {
+        long[] millis = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            millis[i] = TimeUnit.NANOSECONDS.toMillis(timeToFirstSample(jar, url, jvmOptions));
+        }
+        Arrays.sort(millis);
+        System.out.printf("%-8s runs=%d min=%dms median=%dms max=%dms%n",
+                name, runs, millis[0], millis[runs / 2], millis[runs - 1]);
+    }
+
+    /**
+     * Launches the jar for one tick and returns the nanoseconds until it printed its first sample
+     */
+    private static long timeToFirstSample(String jar, String url, String... jvmOptions) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        command.addAll(Arrays.asList(jvmOptions));
+        command.addAll(Arrays.asList("-jar", jar, "--ticks=1", "1", url, "benchmark-token"));
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        long elapsed = -1;
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                // Sample lines start with the timestamp; the banner lines do not
+                if (elapsed < 0 && !line.isEmpty() && Character.isDigit(line.charAt(0)) && line.indexOf(',') > 0) {
+                    elapsed = System.nanoTime() - start;
+                }
+            }
+        }
+        if (!process.waitFor(1, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+        }
+        if (elapsed < 0) {
+            throw new IOException("No sample was printed by " + command);
+        }
+        return elapsed;
+    }
+
+    private static String javaExecutable() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+}
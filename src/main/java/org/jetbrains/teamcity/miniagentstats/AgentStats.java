@@ -1,21 +1,56 @@
 package org.jetbrains.teamcity.miniagentstats;
 
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.jetbrains.teamcity.miniagentstats.model.Agent;
-import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionBreakdown;
+import org.jetbrains.teamcity.miniagentstats.events.AgentTransitionDetector;
+import org.jetbrains.teamcity.miniagentstats.history.SampleHistory;
+import org.jetbrains.teamcity.miniagentstats.metrics.CollectorMetrics;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentObserver;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+import org.jetbrains.teamcity.miniagentstats.queue.QueueWaitTracker;
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseRecorder;
+import org.jetbrains.teamcity.miniagentstats.sink.BinaryFileSink;
+import org.jetbrains.teamcity.miniagentstats.sink.ConsoleSink;
+import org.jetbrains.teamcity.miniagentstats.sink.CsvFileSink;
+import org.jetbrains.teamcity.miniagentstats.sink.EventsSink;
+import org.jetbrains.teamcity.miniagentstats.sink.FileSink;
+import org.jetbrains.teamcity.miniagentstats.sink.MetricsSink;
+import org.jetbrains.teamcity.miniagentstats.sink.RotatingFileSink;
+import org.jetbrains.teamcity.miniagentstats.sink.RotationSettings;
+import org.jetbrains.teamcity.miniagentstats.sink.SampleSink;
+import org.jetbrains.teamcity.miniagentstats.sink.SegmentArchiver;
+import org.jetbrains.teamcity.miniagentstats.sink.SinkPipeline;
+import org.jetbrains.teamcity.miniagentstats.sink.SinkPipelineSettings;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleWriter;
+import org.jetbrains.teamcity.miniagentstats.utilization.AgentUtilizationTracker;
 
 import javax.xml.bind.JAXBException;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * TeamCity Agent Statistics Monitor
@@ -26,10 +61,84 @@ import java.util.function.Consumer;
  * - Number of agents currently running builds
  */
 public class AgentStats {
+    /** Enough for one hour of samples at a 1-second interval */
+    public static final int DEFAULT_HISTORY_CAPACITY = 4096;
+    
     // TeamCity client instance
     private final TeamCityClient teamCity;
+    // True when the client was created here and is closed in stopMonitoring()
+    private final boolean ownsTeamCity;
     private ScheduledExecutorService scheduler;
     protected final Consumer<String> print;
+    // Long-lived pooled HTTP client, created on first use and closed in stopMonitoring()
+    private HttpClientSettings httpClientSettings = new HttpClientSettings();
+    private CloseableHttpClient httpClient;
+    // False when the client is shared with other monitors and closed by its owner
+    private boolean ownsHttpClient = true;
+    // Runs the REST requests of one tick in parallel; null when a shared executor is used
+    private ExecutorService requestExecutor;
+    private AsyncTeamCityClient asyncTeamCity;
+    private volatile Sample lastSample;
+    // Whether each output line carries the bytes received during the tick as an extra column
+    private boolean reportBytes;
+    private SampleLineFormatter.TimestampFormat timestampFormat = SampleLineFormatter.TimestampFormat.ISO;
+    // Formats the lines returned by formatSample; the sinks have formatters of their own
+    private SampleLineFormatter lineFormatter = new SampleLineFormatter(ZoneId.systemDefault(), timestampFormat);
+    // Receives sample lines as bytes instead of print; null to print them as strings
+    private ByteSink lineSink;
+    private PollingScheduler.Handle pollingHandle;
+    private PollingSettings pollingSettings = new PollingSettings();
+    private CsvSinkSettings csvSinkSettings = new CsvSinkSettings();
+    private OutputFormat outputFormat = OutputFormat.CSV;
+    // Console, output file and metrics; opened by initializeOutputFile or on first write, kept open between ticks
+    private SampleSink[] sinks;
+    // Output file path the sinks were opened with
+    private String outputPath;
+    // Runs the sinks on their own threads; null to write samples on the polling thread
+    private SinkPipelineSettings sinkPipelineSettings;
+    private SinkPipeline sinkPipeline;
+    private RotationSettings rotationSettings = new RotationSettings();
+    // Compresses and expires the segments of the output file; null unless it rolls over
+    private SegmentArchiver segmentArchiver;
+    // Executors shared with other monitors; null gives the sinks, the file writer and the archiver threads of their own
+    private Executor sinkExecutor;
+    private ScheduledExecutorService outputExecutor;
+    // Recent samples with rolling rollups, readable from other threads; null unless enabled
+    private SampleHistory history;
+    // Published by the metrics endpoint; null when no endpoint is configured
+    private CollectorMetrics metrics;
+    private StageMetrics stageMetrics = StageMetrics.DISABLED;
+    // Per-agent busy and idle accounting; null unless enabled
+    private AgentUtilizationTracker utilization;
+    // Agent state transitions written instead of samples; null unless the output format is EVENTS
+    private AgentTransitionDetector transitions;
+    // Counters per pool, OS and build type attached to every sample; null unless enabled
+    private DimensionBreakdown breakdown;
+    // Wait times of builds leaving the queue; null unless enabled
+    private QueueWaitTracker queueWait;
+    // Visits of the last completed tick, reused by the next one; a tick that did not complete may still be recording into its own
+    private final AtomicReference<VisitRecording> spareVisits = new AtomicReference<>();
+    // Marks the start of every tick in the archive the client records responses to; null unless recording
+    private ResponseRecorder recorder;
+    // Time of ticks and samples; the recorded time while replaying
+    private volatile LongSupplier clock = System::currentTimeMillis;
+    // Ticks after which startMonitoring returns, e.g. for runs from cron; 0 to run until a key is pressed
+    private long tickLimit;
+    private final AtomicLong ticks = new AtomicLong();
+    // Released when startMonitoring should stop waiting
+    private final CountDownLatch finished = new CountDownLatch(1);
+    
+    /**
+     * Format of the output file
+     */
+    public enum OutputFormat {
+        /** One text line per sample, as printed to the console */
+        CSV,
+        /** Fixed-width records of the binary sample store */
+        BINARY,
+        /** One text line per agent state transition instead of one line per sample */
+        EVENTS
+    }
     
     /**
      * Constructor initializes the TeamCity client and print consumer
@@ -38,6 +147,7 @@ public class AgentStats {
      */
     public AgentStats(Consumer<String> print) throws JAXBException {
         this.teamCity = createTeamCityClient();
+        this.ownsTeamCity = true;
         this.print = print;
     }
     
@@ -49,6 +159,7 @@ public class AgentStats {
      */
     public AgentStats(Consumer<String> print, TeamCityClient teamCity) {
         this.teamCity = teamCity;
+        this.ownsTeamCity = false;
         this.print = print;
     }
     
@@ -60,6 +171,293 @@ public class AgentStats {
         return new TeamCityClientImpl();
     }
     
+    /**
+     * Sets the HTTP client settings; must be called before monitoring starts
+     */
+    public void setHttpClientSettings(HttpClientSettings httpClientSettings) {
+        this.httpClientSettings = httpClientSettings;
+    }
+    
+    /**
+     * Sets the deadline, backoff and adaptive interval settings; must be called before monitoring starts
+     */
+    public void setPollingSettings(PollingSettings pollingSettings) {
+        this.pollingSettings = pollingSettings;
+    }
+    
+    /**
+     * Sets the batching and fsync settings of the CSV output; must be called before monitoring starts
+     */
+    public void setCsvSinkSettings(CsvSinkSettings csvSinkSettings) {
+        this.csvSinkSettings = csvSinkSettings;
+    }
+    
+    /**
+     * Rolls the output file over into compressed segments by size or time; must be called before monitoring starts.
+     * With rollover enabled an existing output file is appended to instead of truncated.
+     */
+    public void setRotationSettings(RotationSettings rotationSettings) {
+        this.rotationSettings = rotationSettings;
+    }
+    
+    /**
+     * Keeps recent samples with rolling rollups in the given history; must be called before monitoring starts
+     */
+    public void setHistory(SampleHistory history) {
+        this.history = history;
+    }
+    
+    /**
+     * Returns the history of recent samples, or null if no history is kept; safe to read from any thread
+     */
+    public SampleHistory getHistory() {
+        return history;
+    }
+    
+    /**
+     * Records every tick in the given metrics, e.g. to serve them from an OpenMetricsEndpoint;
+     * must be called before monitoring starts
+     */
+    public void setMetrics(CollectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Records format and sink write times of every sample and reports a summary of all stages
+     * after ticks; the REST client is instrumented separately
+     */
+    public void setStageMetrics(StageMetrics stageMetrics) {
+        this.stageMetrics = stageMetrics;
+    }
+    
+    /**
+     * Tracks the busy and idle time of every agent; must be called before monitoring starts.
+     * Has no effect in counts request mode, which does not fetch individual agents.
+     */
+    public void setUtilizationTracker(AgentUtilizationTracker utilization) {
+        this.utilization = utilization;
+    }
+    
+    /**
+     * Returns the per-agent utilization tracker, or null if utilization is not tracked
+     */
+    public AgentUtilizationTracker getUtilizationTracker() {
+        return utilization;
+    }
+    
+    /**
+     * Counts agents per pool and OS and queued builds per build type in every tick and attaches the counters
+     * to the sample; must be called before monitoring starts. The client must request the dimensions,
+     * e.g. with {@link TeamCityClientImpl#setRequestDimensions}.
+     */
+    public void setDimensionBreakdown(DimensionBreakdown breakdown) {
+        this.breakdown = breakdown;
+    }
+    
+    public DimensionBreakdown getDimensionBreakdown() {
+        return breakdown;
+    }
+    
+    /**
+     * Measures how long builds wait in the queue and attaches the wait percentiles to every sample;
+     * must be called before monitoring starts. The client must request queued dates,
+     * e.g. with {@link TeamCityClientImpl#setRequestQueuedDates}.
+     */
+    public void setQueueWaitTracker(QueueWaitTracker queueWait) {
+        this.queueWait = queueWait;
+    }
+    
+    public QueueWaitTracker getQueueWaitTracker() {
+        return queueWait;
+    }
+    
+    /**
+     * Sets the format of the output file; must be called before monitoring starts
+     */
+    public void setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+        if (outputFormat == OutputFormat.EVENTS && transitions == null) {
+            transitions = new AgentTransitionDetector();
+        }
+    }
+    
+    /**
+     * Appends the number of response bytes received in the tick to every output line
+     */
+    public void setReportBytes(boolean reportBytes) {
+        this.reportBytes = reportBytes;
+    }
+    
+    /**
+     * Sets how the timestamp column of sample lines is written; must be called before monitoring starts
+     */
+    public void setTimestampFormat(SampleLineFormatter.TimestampFormat timestampFormat) {
+        this.timestampFormat = timestampFormat;
+        this.lineFormatter = new SampleLineFormatter(ZoneId.systemDefault(), timestampFormat);
+    }
+    
+    /**
+     * Replaces the clock that stamps ticks and samples, fresh and stale, e.g. with a fixed time in tests
+     */
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+    
+    /**
+     * Stops monitoring after the given number of ticks, whether they produced a sample or failed;
+     * 0 monitors until a key is pressed. Must be called before monitoring starts.
+     */
+    public void setTickLimit(long tickLimit) {
+        this.tickLimit = tickLimit;
+    }
+    
+    /**
+     * Waits until polling started with {@link #startPolling} has run the ticks of the tick limit
+     */
+    public void awaitTickLimit() throws InterruptedException {
+        finished.await();
+    }
+    
+    /**
+     * Hands samples to the sinks through a ring buffer, each sink on its own thread, so that a slow
+     * output does not delay polling; must be called before monitoring starts.
+     * Without settings the sinks are written one after another on the polling thread.
+     */
+    public void setSinkPipelineSettings(SinkPipelineSettings sinkPipelineSettings) {
+        this.sinkPipelineSettings = sinkPipelineSettings;
+    }
+    
+    /**
+     * Runs the sinks of the pipeline as tasks on a shared executor instead of a thread per sink;
+     * it is not shut down by stopMonitoring(). Must be called before monitoring starts.
+     */
+    public void setSinkExecutor(Executor sinkExecutor) {
+        this.sinkExecutor = sinkExecutor;
+    }
+    
+    /**
+     * Writes the CSV output file and archives its segments on a shared executor instead of threads
+     * of their own; it is not shut down by stopMonitoring(). Must be called before monitoring starts.
+     */
+    public void setOutputExecutor(ScheduledExecutorService outputExecutor) {
+        this.outputExecutor = outputExecutor;
+    }
+    
+    /**
+     * Sends sample lines to the sink as bytes instead of passing strings to print, so that a tick
+     * formats and writes its line without allocating; messages and events still go to print
+     */
+    public void setLineSink(ByteSink lineSink) {
+        this.lineSink = lineSink;
+    }
+    
+    /**
+     * Uses an HTTP client shared with other monitors; it is not closed by stopMonitoring()
+     */
+    public synchronized void setHttpClient(CloseableHttpClient httpClient) {
+        this.httpClient = httpClient;
+        this.ownsHttpClient = false;
+    }
+    
+    /**
+     * Sends the requests of a tick on a shared executor instead of a private pool
+     */
+    public synchronized void setRequestExecutor(Executor executor) {
+        this.asyncTeamCity = new ExecutorAsyncTeamCityClient(teamCity, executor);
+    }
+    
+    /**
+     * Returns the shared HTTP client, creating it on first use
+     */
+    protected synchronized CloseableHttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = httpClientSettings.createHttpClient();
+        }
+        return httpClient;
+    }
+    
+    /**
+     * Returns the async client used to send the requests of a tick concurrently, creating it on first use
+     */
+    protected synchronized AsyncTeamCityClient getAsyncTeamCityClient() {
+        if (asyncTeamCity == null) {
+            if (teamCity instanceof AsyncTeamCityClient) {
+                asyncTeamCity = (AsyncTeamCityClient) teamCity;
+            } else {
+                requestExecutor = Executors.newFixedThreadPool(2, runnable -> {
+                    Thread thread = new Thread(runnable, "teamcity-request");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                asyncTeamCity = new ExecutorAsyncTeamCityClient(teamCity, requestExecutor);
+            }
+        }
+        return asyncTeamCity;
+    }
+    
+    /**
+     * Marks the start of every tick in the recorder's archive; the client must record its responses to the same recorder
+     */
+    public synchronized void setResponseRecorder(ResponseRecorder recorder) {
+        this.recorder = recorder;
+    }
+    
+    /**
+     * Runs one tick for every tick recorded in the archive of a {@link ReplayTeamCityClient}, with the recorded
+     * times as tick and sample times, and writes the samples like monitoring does.
+     * Ticks without a recorded response, e.g. because the request failed while recording, are reported and skipped.
+     * 
+     * @param outputFilePath optional path to a file where statistics will be written
+     * @param speed multiple of the recorded pace to replay at, or 0 to replay as fast as possible
+     * @return the number of samples written
+     */
+    public long replay(String outputFilePath, double speed) throws IOException, JAXBException {
+        if (!(teamCity instanceof ReplayTeamCityClient)) {
+            throw new IllegalStateException("Replaying needs a ReplayTeamCityClient");
+        }
+        ReplayTeamCityClient replay = (ReplayTeamCityClient) teamCity;
+        if (outputFilePath != null) {
+            initializeOutputFile(outputFilePath);
+        }
+        clock = replay::getTickMillis;
+        long samples = 0;
+        long firstTickMillis = Long.MIN_VALUE;
+        long startNanos = System.nanoTime();
+        try {
+            while (replay.nextTick()) {
+                if (firstTickMillis == Long.MIN_VALUE) {
+                    firstTickMillis = replay.getTickMillis();
+                }
+                if (speed > 0) {
+                    long dueNanos = startNanos + (long) ((replay.getTickMillis() - firstTickMillis) * 1e6 / speed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                }
+                try {
+                    fetchAndDisplayStats(null, null, outputFilePath);
+                    samples++;
+                } catch (IOException | JAXBException e) {
+                    System.err.println("Skipping tick at " + Instant.ofEpochMilli(replay.getTickMillis()) + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            clock = System::currentTimeMillis;
+            closeOutput();
+        }
+        return samples;
+    }
+    
+    /**
+     * Returns the most recent sample, or null if no tick has completed yet
+     */
+    public Sample getLastSample() {
+        return lastSample;
+    }
+    
     /**
      * Starts monitoring TeamCity statistics
      * 
@@ -90,32 +488,37 @@ public class AgentStats {
                 System.exit(1);
             }
         }
-        print.accept("Press any key to exit");
+        if (tickLimit > 0) {
+            print.accept("Stopping after " + tickLimit + " ticks, or when any key is pressed");
+        } else {
+            print.accept("Press any key to exit");
+        }
         print.accept("----------------------------------------");
         
-        // Schedule periodic execution
+        // Schedule periodic execution; with a single server the timer thread also runs the ticks
         scheduler = Executors.newScheduledThreadPool(1);
+        PollingScheduler pollingScheduler = new PollingScheduler(scheduler, scheduler);
+        PollingPolicy policy = new PollingPolicy(TimeUnit.SECONDS.toMillis(intervalSeconds), pollingSettings);
         final String finalTeamCityUrl = teamCityUrl;
         final String finalOutputFilePath = outputFilePath;
         
-        scheduler.scheduleAtFixedRate(() -> {
-            try {
-                fetchAndDisplayStats(finalTeamCityUrl, authHeader, finalOutputFilePath);
-            } catch (Exception e) {
-                System.err.println("Error fetching statistics: " + e.getMessage());
-            }
-        }, 0, intervalSeconds, TimeUnit.SECONDS);
+        synchronized (this) {
+            pollingHandle = pollingScheduler.schedule(
+                    deadlineNanos -> runTick(finalTeamCityUrl, authHeader, finalOutputFilePath, deadlineNanos, policy),
+                    policy);
+        }
         print.accept("Started monitoring");
         
         // Start a thread to listen for keyboard input
         Thread keyboardListener = new Thread(() -> {
             try {
-                // Wait for any key press
-                new InputStreamReader(System.in).read();
-                // Stop monitoring when any key is pressed
-                stopMonitoring();
+                // Wait for any key press; without a tick limit a closed input stops monitoring too
+                if (new InputStreamReader(System.in).read() >= 0 || tickLimit == 0) {
+                    finished.countDown();
+                }
             } catch (IOException e) {
                 System.err.println("Error reading keyboard input: " + e.getMessage());
+                finished.countDown();
             }
         });
         keyboardListener.setDaemon(true);
@@ -123,88 +526,448 @@ public class AgentStats {
         
         // Keep the application running
         try {
-            keyboardListener.join();
+            finished.await();
         } catch (InterruptedException e) {
             print.accept("Application terminated");
         }
+        stopMonitoring();
         print.accept("Finished monitoring");
 
     }
     
+    /**
+     * Starts polling on a shared scheduler without printing a banner or waiting for input
+     * 
+     * @return the handle that stops further ticks
+     */
+    public synchronized PollingScheduler.Handle startPolling(int intervalSeconds, String teamCityUrl, String teamCityToken,
+                                                             String outputFilePath, PollingScheduler pollingScheduler) throws IOException {
+        PollingPolicy policy = new PollingPolicy(TimeUnit.SECONDS.toMillis(intervalSeconds), pollingSettings);
+        return startPolling(policy, teamCityUrl, teamCityToken, outputFilePath, pollingScheduler);
+    }
+    
+    /**
+     * Starts polling with the given policy, e.g. with an interval below one second
+     */
+    synchronized PollingScheduler.Handle startPolling(PollingPolicy policy, String teamCityUrl, String teamCityToken,
+                                                      String outputFilePath, PollingScheduler pollingScheduler) throws IOException {
+        if (outputFilePath != null) {
+            initializeOutputFile(outputFilePath);
+        }
+        String authHeader = "Bearer " + teamCityToken;
+        pollingHandle = pollingScheduler.schedule(
+                deadlineNanos -> runTick(teamCityUrl, authHeader, outputFilePath, deadlineNanos, policy),
+                policy);
+        return pollingHandle;
+    }
+    
+    /**
+     * Runs one scheduled tick and reports how it went so the scheduler can pick the next start.
+     * A tick that misses its deadline emits the previous values as a stale sample instead of waiting longer.
+     */
+    PollingPolicy.Outcome runTick(String teamCityUrl, String authHeader, String outputFilePath,
+                                  long deadlineNanos, PollingPolicy policy) {
+        try {
+            return runTickOnce(teamCityUrl, authHeader, outputFilePath, deadlineNanos, policy);
+        } finally {
+            if (tickLimit > 0 && ticks.incrementAndGet() >= tickLimit) {
+                synchronized (this) {
+                    if (pollingHandle != null) {
+                        pollingHandle.cancel();
+                    }
+                }
+                finished.countDown();
+            }
+        }
+    }
+    
+    private PollingPolicy.Outcome runTickOnce(String teamCityUrl, String authHeader, String outputFilePath,
+                                              long deadlineNanos, PollingPolicy policy) {
+        // Summarizes the stages of the ticks since the last report, if one is due
+        stageMetrics.reportIfDue(System.err::println);
+        Sample previous = lastSample;
+        try {
+            Sample sample = collectSample(teamCityUrl, authHeader, deadlineNanos);
+            writeSample(sample, outputFilePath);
+            
+            if (sample.getTickLatencyNanos() > policy.getSlowTickNanos()) {
+                return PollingPolicy.Outcome.SLOW;
+            }
+            if (previous != null && previous.getQueuedBuilds() == sample.getQueuedBuilds()) {
+                return PollingPolicy.Outcome.UNCHANGED;
+            }
+            return PollingPolicy.Outcome.CHANGED;
+        } catch (DeadlineExceededException e) {
+            System.err.println("Statistics from " + teamCityUrl + " not received in time: " + e.getMessage());
+            if (metrics != null) {
+                metrics.recordError(CollectorMetrics.ErrorKind.DEADLINE);
+            }
+            if (previous != null) {
+                Sample stale = previous.copy();
+                stale.setTimestampMillis(clock.getAsLong());
+                stale.setStale(true);
+                writeStaleSample(stale, outputFilePath);
+            }
+            return PollingPolicy.Outcome.SLOW;
+        } catch (Exception e) {
+            System.err.println("Error fetching statistics from " + teamCityUrl + ": " + e.getMessage());
+            if (metrics != null) {
+                metrics.recordError(CollectorMetrics.ErrorKind.ERROR);
+            }
+            return PollingPolicy.Outcome.FAILED;
+        }
+    }
+    
+    private void writeStaleSample(Sample stale, String outputFilePath) {
+        try {
+            writeSample(stale, outputFilePath);
+        } catch (IOException e) {
+            System.err.println("Error writing statistics: " + e.getMessage());
+        }
+    }
+    
     /**
      * Fetches statistics from TeamCity server and displays them
      * If outputFilePath is provided, also writes statistics to that file
      */
     protected void fetchAndDisplayStats(String teamCityUrl, String authHeader, String outputFilePath) throws IOException, JAXBException {
-        try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-            // Get build queue information
-            int queuedBuildsCount = teamCity.getQueuedBuildsCount(httpClient, teamCityUrl, authHeader);
-            
-            // Get agent information
-            Agents agentStats = teamCity.getAgentStats(httpClient, teamCityUrl, authHeader);
-            int totalAgents = agentStats.getCount();
-            int busyAgents = countBusyAgents(agentStats);
-            
-            // Format statistics
-            String stats = String.format("%s,%d,%d,%d",
-                    java.time.LocalDateTime.now().toString(),
-                    queuedBuildsCount, 
-                    totalAgents, 
-                    busyAgents);
-            
-            // Display statistics to stdout
-            print.accept(stats);
-            
-            // Write statistics to file if path is provided
-            if (outputFilePath != null) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFilePath, true))) {
-                    writer.write(stats);
-                    writer.newLine();
+        Sample sample = collectSample(teamCityUrl, authHeader);
+        writeSample(sample, outputFilePath);
+    }
+    
+    /**
+     * Hands a sample to the sinks: the console, the output file if one is configured, and the metrics.
+     * Stale samples carry an extra "stale" column.
+     * In EVENTS format the agent transitions of the tick are printed and written instead of the sample.
+     */
+    protected void writeSample(Sample sample, String outputFilePath) throws IOException {
+        SampleSink[] current = getSinks(outputFilePath);
+        SinkPipeline pipeline = sinkPipeline;
+        if (pipeline != null) {
+            pipeline.publish(sample);
+            return;
+        }
+        IOException error = null;
+        for (SampleSink sink : current) {
+            try {
+                sink.write(sample);
+            } catch (IOException e) {
+                // The other sinks still get the sample
+                if (error == null) {
+                    error = e;
                 }
             }
         }
+        if (error != null) {
+            throw error;
+        }
     }
     
     /**
-     * Counts the number of busy agents (agents that are enabled, connected, and running a build)
+     * Formats a sample as one output line
      */
-    private int countBusyAgents(Agents agentStats) {
-        int busyCount = 0;
-        List<Agent> agents = agentStats.getAgents();
-        
-        if (agents != null) {
-            for (Agent agent : agents) {
-                if (agent.isEnabled() && agent.isConnected() && agent.hasBuild()) {
-                    busyCount++;
+    String formatSample(Sample sample) {
+        SampleLineFormatter formatter = lineFormatter;
+        synchronized (formatter) {
+            formatter.format(sample, reportBytes);
+            return formatter.toString();
+        }
+    }
+    
+    /**
+     * Returns the open sinks for the output path, opening them and the file for appending if they are not open yet
+     */
+    private synchronized SampleSink[] getSinks(String outputFilePath) throws IOException {
+        // Compares the path as given, so the usual call with the same path does not resolve it again
+        if (sinks == null || !Objects.equals(outputFilePath, outputPath)) {
+            closeOutput();
+            openOutput(outputFilePath, true);
+        }
+        return sinks;
+    }
+    
+    /**
+     * Opens the sinks, and the output file unless the path is null; with pipeline settings every sink
+     * gets its own thread, or its own task on the sink executor
+     */
+    private void openOutput(String outputFilePath, boolean append) throws IOException {
+        List<SampleSink> opened = new ArrayList<>();
+        opened.add(new ConsoleSink(newLineFormatter(), reportBytes, lineSink, print, stageMetrics));
+        Path path = outputFilePath != null ? Paths.get(outputFilePath) : null;
+        if (path == null) {
+            if (outputFormat == OutputFormat.EVENTS) {
+                opened.add(new EventsSink(transitions, print, null, stageMetrics));
+            }
+        } else if (rotationSettings.isEnabled()) {
+            segmentArchiver = new SegmentArchiver(path, rotationSettings, ZoneId.systemDefault(), outputExecutor);
+            segmentArchiver.resume();
+            opened.add(new RotatingFileSink(path, appendFile -> openFileSink(path, appendFile),
+                    rotationSettings, segmentArchiver, ZoneId.systemDefault()));
+        } else {
+            opened.add(openFileSink(path, append));
+        }
+        if (metrics != null) {
+            opened.add(new MetricsSink(metrics));
+        }
+        sinks = opened.toArray(new SampleSink[0]);
+        outputPath = outputFilePath;
+        if (sinkPipelineSettings != null) {
+            sinkPipeline = new SinkPipeline(sinkPipelineSettings.getRingCapacity(), sinkExecutor);
+            for (SampleSink sink : sinks) {
+                sinkPipeline.add(sink, sinkPipelineSettings.getPolicy(sink.getName()));
+            }
+        }
+    }
+    
+    /**
+     * Opens the sink of the output file in the output format; it creates parent directories and
+     * truncates the file to zero length unless appending
+     */
+    private FileSink openFileSink(Path path, boolean append) throws IOException {
+        switch (outputFormat) {
+            case EVENTS:
+                return new EventsSink(transitions, print, new BufferedCsvSink(path, append, csvSinkSettings, outputExecutor), stageMetrics);
+            case BINARY:
+                return new BinaryFileSink(new BinarySampleWriter(path, append), stageMetrics);
+            default:
+                return new CsvFileSink(new BufferedCsvSink(path, append, csvSinkSettings, outputExecutor), newLineFormatter(), reportBytes, stageMetrics);
+        }
+    }
+    
+    private SampleLineFormatter newLineFormatter() {
+        return new SampleLineFormatter(ZoneId.systemDefault(), timestampFormat);
+    }
+    
+    /**
+     * Closes the sinks and the output file, writing samples and lines that are still queued
+     */
+    private synchronized void closeOutput() {
+        if (sinkPipeline != null) {
+            try {
+                sinkPipeline.close();
+            } catch (IOException e) {
+                System.err.println("Error closing output file: " + e.getMessage());
+            }
+            sinkPipeline.reportSkipped(System.err::println);
+            sinkPipeline = null;
+        } else if (sinks != null) {
+            for (SampleSink sink : sinks) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing output file: " + e.getMessage());
                 }
             }
         }
-        
-        return busyCount;
+        if (segmentArchiver != null) {
+            try {
+                segmentArchiver.close();
+            } catch (IOException e) {
+                System.err.println("Error archiving output segments: " + e.getMessage());
+            }
+            segmentArchiver = null;
+        }
+        sinks = null;
+        outputPath = null;
     }
     
     /**
-     * Initializes the output file by cleaning it if it exists
+     * Fetches the build queue and the agents concurrently and combines them into one sample
      */
-    private void initializeOutputFile(String filePath) throws IOException {
-        File file = new File(filePath);
+    protected Sample collectSample(String teamCityUrl, String authHeader) throws IOException, JAXBException {
+        return collectSample(teamCityUrl, authHeader, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Fetches one sample, giving up once deadlineNanos have passed.
+     * Requests still in flight when the tick misses its deadline or fails are aborted, so that they
+     * release their request threads and connections instead of holding them up for later ticks.
+     * The agents and queued builds the responses report are recorded and only passed to the observers
+     * and the queue wait tracker once the whole tick has succeeded, on this thread; the parser of an
+     * abandoned tick may still be visiting when the next tick begins, and its visits go nowhere.
+     */
+    protected Sample collectSample(String teamCityUrl, String authHeader, long deadlineNanos) throws IOException, JAXBException {
+        TickHttpClient httpClient = new TickHttpClient(getHttpClient());
+        AsyncTeamCityClient client = getAsyncTeamCityClient();
+        Sample sample = new Sample();
         
-        // Create parent directories if they don't exist
-        File parentDir = file.getParentFile();
-        if (parentDir != null && !parentDir.exists()) {
-            parentDir.mkdirs();
+        long bytesBefore = teamCity.getBytesReceived();
+        long decodedBefore = teamCity.getBytesDecoded();
+        long responsesBefore = teamCity.getResponses();
+        long unchangedBefore = teamCity.getUnchangedResponses();
+        long start = System.nanoTime();
+        long tickMillis = clock.getAsLong();
+        if (recorder != null) {
+            recorder.beginTick(tickMillis);
+        }
+        AgentObserver observer = AgentObserver.combine(utilization, transitions, breakdown);
+        QueuedBuildVisitor queueVisitor = QueuedBuildVisitor.combine(breakdown, queueWait);
+        VisitRecording visits = null;
+        if (observer != null || queueVisitor != null) {
+            visits = spareVisits.getAndSet(null);
+            if (visits == null) {
+                visits = new VisitRecording(null, null);
+            } else {
+                visits.reset();
+            }
+        }
+        CompletableFuture<Integer> queuedFuture = queueVisitor != null
+                ? client.getQueuedBuildsCountAsync(httpClient, teamCityUrl, authHeader, visits)
+                : client.getQueuedBuildsCountAsync(httpClient, teamCityUrl, authHeader);
+        queuedFuture = queuedFuture.whenComplete((result, error) -> sample.setQueueLatencyNanos(System.nanoTime() - start));
+        CompletableFuture<AgentCounts> agentsFuture;
+        if (observer != null) {
+            agentsFuture = client.getAgentCountsAsync(httpClient, teamCityUrl, authHeader, visits);
+        } else {
+            agentsFuture = client.getAgentCountsAsync(httpClient, teamCityUrl, authHeader);
+        }
+        agentsFuture = agentsFuture.whenComplete((result, error) -> sample.setAgentsLatencyNanos(System.nanoTime() - start));
+        
+        boolean completed = false;
+        try {
+            // Get build queue information
+            int queuedBuildsCount = awaitResult(queuedFuture, start, deadlineNanos);
+            
+            // Get agent information
+            AgentCounts agentCounts = awaitResult(agentsFuture, start, deadlineNanos);
+            if (visits != null) {
+                if (observer != null) {
+                    observer.beginTick(tickMillis);
+                }
+                if (queueWait != null) {
+                    queueWait.beginTick(tickMillis);
+                }
+                visits.replayTo(observer, queueVisitor);
+                if (observer != null) {
+                    observer.endTick();
+                }
+                if (queueWait != null) {
+                    queueWait.endTick();
+                }
+                spareVisits.set(visits);
+            }
+            sample.setQueuedBuilds(queuedBuildsCount);
+            sample.setTotalAgents(agentCounts.getTotal());
+            sample.setBusyAgents(agentCounts.getBusy());
+            if (breakdown != null) {
+                sample.setBreakdown(breakdown.snapshot());
+            }
+            if (queueWait != null) {
+                sample.setQueueWait(queueWait.getStats());
+            }
+            completed = true;
+        } catch (ExecutionException | CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JAXBException) {
+                throw (JAXBException) cause;
+            }
+            throw new IOException("Failed to fetch statistics: " + cause, cause);
+        } finally {
+            if (!completed) {
+                httpClient.abort();
+                queuedFuture.cancel(false);
+                agentsFuture.cancel(false);
+            }
         }
         
-        // Clean the file by truncating it to zero length or creating a new empty file
-        new FileWriter(file).close();
+        sample.setTimestampMillis(clock.getAsLong());
+        sample.setTickLatencyNanos(System.nanoTime() - start);
+        sample.setBytesReceived(teamCity.getBytesReceived() - bytesBefore);
+        sample.setBytesDecoded(teamCity.getBytesDecoded() - decodedBefore);
+        sample.setResponses((int) (teamCity.getResponses() - responsesBefore));
+        sample.setUnchangedResponses((int) (teamCity.getUnchangedResponses() - unchangedBefore));
+        if (history != null) {
+            history.add(sample.getTimestampMillis(), sample.getQueuedBuilds(), sample.getTotalAgents(), sample.getBusyAgents());
+        }
+        lastSample = sample;
+        return sample;
+    }
+    
+    /**
+     * Waits for a request started at startNanos, but not past the tick deadline
+     */
+    private static <T> T awaitResult(CompletableFuture<T> future, long startNanos, long deadlineNanos)
+            throws ExecutionException, DeadlineExceededException {
+        if (deadlineNanos == Long.MAX_VALUE) {
+            return future.join();
+        }
+        long remaining = deadlineNanos - (System.nanoTime() - startNanos);
+        try {
+            return future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException(TimeUnit.NANOSECONDS.toMillis(deadlineNanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException(TimeUnit.NANOSECONDS.toMillis(deadlineNanos));
+        }
     }
     
     /**
-     * Stops the monitoring scheduler
+     * Thrown when a tick does not get its responses before the deadline
+     */
+    public static class DeadlineExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public DeadlineExceededException(long deadlineMillis) {
+            super("deadline of " + deadlineMillis + " ms exceeded");
+        }
+    }
+    
+    /**
+     * Initializes the output file by cleaning it if it exists, and keeps it open for the following ticks;
+     * a rolling output file is appended to instead
+     */
+    private synchronized void initializeOutputFile(String filePath) throws IOException {
+        closeOutput();
+        openOutput(filePath, false);
+    }
+    
+    /**
+     * Stops the monitoring scheduler and closes the HTTP client
      */
     public void stopMonitoring() {
+        synchronized (this) {
+            if (pollingHandle != null) {
+                pollingHandle.cancel();
+                pollingHandle = null;
+            }
+        }
         if (scheduler != null && !scheduler.isShutdown()) {
             scheduler.shutdown();
+            try {
+                // Let an in-flight tick finish before its connections are closed
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        synchronized (this) {
+            // Drain queued lines only after the last tick has finished
+            closeOutput();
+            if (requestExecutor != null) {
+                requestExecutor.shutdown();
+                requestExecutor = null;
+                asyncTeamCity = null;
+            }
+            if (httpClient != null && ownsHttpClient) {
+                try {
+                    httpClient.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing HTTP client: " + e.getMessage());
+                }
+                httpClient = null;
+            }
+            if (ownsTeamCity && teamCity instanceof Closeable) {
+                try {
+                    ((Closeable) teamCity).close();
+                } catch (IOException e) {
+                    System.err.println("Error closing TeamCity client: " + e.getMessage());
+                }
+            }
         }
     }
 }
\ No newline at end of file
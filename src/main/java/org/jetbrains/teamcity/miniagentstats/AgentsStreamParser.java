@@ -0,0 +1,121 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Single-pass StAX parser for /app/rest/agents responses
+ *
+ * Counts total, enabled, connected and busy agents straight from the response stream
+ * without building an Agents/Agent object model.
+ */
+public class AgentsStreamParser {
+    // Shared with the build queue and count parsers; factories are thread-safe once configured
+    static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Responses never contain DTDs; refuse them rather than resolving external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /**
+     * Parses an agents document and returns its counters
+     */
+    public AgentCounts parse(InputStream input) throws IOException {
+        return parse(input, null);
+    }
+
+    /**
+     * Parses an agents document, reporting every agent to the visitor if one is given, and returns its counters
+     */
+    public AgentCounts parse(InputStream input, AgentVisitor visitor) throws IOException {
+        int countAttribute = -1;
+        int agentElements = 0;
+        int enabledCount = 0;
+        int connectedCount = 0;
+        int busyCount = 0;
+
+        // State of the <agent> element currently being read
+        boolean enabled = false;
+        boolean connected = false;
+        boolean hasBuild = false;
+        int id = 0;
+        String pool = null;
+        String os = null;
+        int depth = 0;
+
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(input);
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String name = reader.getLocalName();
+                        if (depth == 1 && "agents".equals(name)) {
+                            String count = reader.getAttributeValue(null, "count");
+                            if (count != null) {
+                                countAttribute = Integer.parseInt(count);
+                            }
+                        } else if (depth == 2 && "agent".equals(name)) {
+                            enabled = "true".equals(reader.getAttributeValue(null, "enabled"));
+                            connected = "true".equals(reader.getAttributeValue(null, "connected"));
+                            hasBuild = false;
+                            pool = null;
+                            os = null;
+                            if (visitor != null) {
+                                String idValue = reader.getAttributeValue(null, "id");
+                                id = idValue != null ? Integer.parseInt(idValue) : AgentVisitor.NO_ID;
+                            }
+                        } else if (depth == 3 && "build".equals(name)) {
+                            hasBuild = true;
+                        } else if (depth == 3 && visitor != null && "pool".equals(name)) {
+                            pool = reader.getAttributeValue(null, "name");
+                        } else if (depth == 3 && visitor != null && "environment".equals(name)) {
+                            os = reader.getAttributeValue(null, "osType");
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (depth == 2) {
+                            agentElements++;
+                            if (enabled) {
+                                enabledCount++;
+                            }
+                            if (connected) {
+                                connectedCount++;
+                            }
+                            boolean busy = enabled && connected && hasBuild;
+                            if (busy) {
+                                busyCount++;
+                            }
+                            if (visitor != null) {
+                                if (pool != null || os != null) {
+                                    visitor.visitDimensions(pool, os);
+                                }
+                                visitor.visit(id, enabled, connected, busy);
+                            }
+                        }
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new IOException("Failed to parse agents response: " + e.getMessage(), e);
+        }
+
+        int total = countAttribute >= 0 ? countAttribute : agentElements;
+        return new AgentCounts(total, enabledCount, connectedCount, busyCount);
+    }
+}
@@ -0,0 +1,42 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of {@link TeamCityClient}: requests are sent without waiting
+ * for each other so that one tick costs the slowest request rather than their sum
+ */
+public interface AsyncTeamCityClient {
+    /**
+     * Gets the number of builds in the queue
+     */
+    CompletableFuture<Integer> getQueuedBuildsCountAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader);
+
+    /**
+     * Gets the number of builds in the queue, reporting every queued build to the visitor on the thread that reads the response
+     */
+    CompletableFuture<Integer> getQueuedBuildsCountAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                                         QueuedBuildVisitor visitor);
+
+    /**
+     * Gets agent statistics
+     */
+    CompletableFuture<Agents> getAgentStatsAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader);
+
+    /**
+     * Gets fleet-wide agent counters
+     */
+    CompletableFuture<AgentCounts> getAgentCountsAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader);
+
+    /**
+     * Gets fleet-wide agent counters, reporting every agent to the visitor on the thread that reads the response
+     */
+    CompletableFuture<AgentCounts> getAgentCountsAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                                       AgentVisitor visitor);
+}
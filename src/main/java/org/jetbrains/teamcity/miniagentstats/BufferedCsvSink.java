@@ -0,0 +1,467 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * CSV output that keeps its file open and writes lines in batches on a background thread
+ *
+ * Lines are queued by the polling thread and written by a writer thread of the sink's own, or by
+ * tasks on a scheduled executor shared by many sinks. A batch is flushed when it reaches the
+ * configured size or age, and forced to disk according to the fsync policy; on a shared executor
+ * the ages are kept by timers, so an idle sink holds no thread. Closing the sink drains every queued line.
+ *
+ * A batch that fails to write is lost; the next write still queues its line and reports the error once.
+ *
+ * Lines are copied into pooled byte buffers that return to the pool once written, so queueing a
+ * line with {@link #write(byte[], int, int)} allocates nothing in steady state on a writer thread of
+ * the sink's own. On a shared executor, a write that finds the writer idle submits a task to wake it.
+ */
+public class BufferedCsvSink implements ByteSink, Closeable {
+    // Queued after the last line to tell the writer to finish
+    private static final Line END_OF_STREAM = new Line();
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * One queued line; the bytes are reused once the line is written
+     */
+    private static final class Line {
+        byte[] bytes = new byte[128];
+        int length;
+    }
+
+    private final Path file;
+    private final CsvSinkSettings settings;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final BlockingQueue<Line> queue;
+    // Written lines, ready to be filled again
+    private final BlockingQueue<Line> free;
+    // The shared executor, or null for a sink with a writer thread of its own
+    private final ScheduledExecutorService executor;
+    // Set while a task that takes the queued lines is queued or running
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // Counted down once the last line is written
+    private final CountDownLatch finished = new CountDownLatch(1);
+    // Failed write not reported to the caller yet
+    private final AtomicReference<IOException> writeError = new AtomicReference<>();
+    private volatile boolean closed;
+    // Size of the file once every queued line is written
+    private volatile long size;
+
+    // State of the writer, used by one task or the writer thread at a time while holding this lock
+    private final Object writerLock = new Object();
+    private final long flushIntervalNanos;
+    private final long fsyncIntervalNanos;
+    private int batchLines;
+    private long batchStart;
+    private long lastFsync;
+    // Flushed data that was not forced to disk yet
+    private boolean unsynced;
+    private boolean done;
+    private ScheduledFuture<?> flushTimer;
+    private ScheduledFuture<?> fsyncTimer;
+
+    /**
+     * Opens the file for appending, or truncates it first if append is false
+     */
+    public BufferedCsvSink(Path file, boolean append, CsvSinkSettings settings) throws IOException {
+        this(file, open(file, append), settings, null);
+    }
+
+    /**
+     * Opens the file like {@link #BufferedCsvSink(Path, boolean, CsvSinkSettings)} and writes it on the
+     * given executor, which is not shut down by close, instead of a thread of its own
+     */
+    public BufferedCsvSink(Path file, boolean append, CsvSinkSettings settings, ScheduledExecutorService executor) throws IOException {
+        this(file, open(file, append), settings, executor);
+    }
+
+    BufferedCsvSink(Path file, FileChannel channel, CsvSinkSettings settings) throws IOException {
+        this(file, channel, settings, null);
+    }
+
+    BufferedCsvSink(Path file, FileChannel channel, CsvSinkSettings settings, ScheduledExecutorService executor) throws IOException {
+        this.file = file;
+        this.settings = settings;
+        this.channel = channel;
+        this.size = channel.size();
+        // One spare slot for the end of stream marker
+        this.queue = new ArrayBlockingQueue<>(settings.getQueueCapacity() + 1);
+        this.free = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        int preallocated = Math.min(settings.getQueueCapacity(), Math.max(16, settings.getBatchLines()));
+        for (int i = 0; i < preallocated; i++) {
+            free.add(new Line());
+        }
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.getFlushIntervalMillis());
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.getFsyncIntervalMillis());
+        this.lastFsync = System.nanoTime();
+        this.executor = executor;
+        if (executor == null) {
+            Thread writerThread = new Thread(this::writeLoop, "csv-writer-" + file.getFileName());
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    private static FileChannel open(Path file, boolean append) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the size the file will have once every line queued so far is written
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Queues a line for writing; blocks only if the writer is a whole queue behind
+     */
+    public void write(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Queues a line given as bytes, without a line separator; the bytes are copied before this returns
+     *
+     * @throws IOException if an earlier batch failed to write; the line is queued nonetheless
+     */
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("CSV output " + file + " is closed");
+        }
+        try {
+            Line line = free.poll();
+            if (line == null) {
+                // Lines are only created until the pool covers the queue, then writes wait for the writer
+                line = queue.remainingCapacity() > 1 ? new Line() : free.take();
+            }
+            if (line.bytes.length < length) {
+                line.bytes = new byte[Math.max(length, line.bytes.length * 2)];
+            }
+            System.arraycopy(bytes, offset, line.bytes, 0, length);
+            line.length = length;
+            queue.put(line);
+            size += length + LINE_SEPARATOR.length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing a line for " + file, e);
+        }
+        startDraining();
+        IOException error = writeError.getAndSet(null);
+        if (error != null) {
+            throw new IOException("Writing " + file + " failed: " + error.getMessage(), error);
+        }
+    }
+
+    private void startDraining() {
+        // A writer thread of the sink's own is woken by the queue
+        if (executor != null && draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Appends the queued lines to the batch, flushing every full batch, and starts the timer of a partial one
+     */
+    private void drain() {
+        synchronized (writerLock) {
+            while (true) {
+                Line line;
+                while ((line = queue.poll()) != null) {
+                    if (!add(line)) {
+                        // Stays draining, so nothing is scheduled for a closed sink
+                        return;
+                    }
+                }
+                if (batchLines > 0 && flushTimer == null) {
+                    flushTimer = schedule(this::flushDue, flushIntervalNanos - (System.nanoTime() - batchStart));
+                }
+                draining.set(false);
+                // A line queued after the last look gets this task again
+                if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the writer thread of a sink without an executor: waits for a line, or for the batch
+     * or the unsynced data to become due, then writes like the executor's tasks do
+     */
+    private void writeLoop() {
+        while (true) {
+            try {
+                long wait;
+                synchronized (writerLock) {
+                    wait = nextDueNanos();
+                }
+                Line line = wait == Long.MAX_VALUE ? queue.take() : queue.poll(wait, TimeUnit.NANOSECONDS);
+                synchronized (writerLock) {
+                    while (line != null) {
+                        if (!add(line)) {
+                            return;
+                        }
+                        line = queue.poll();
+                    }
+                    flushDue();
+                    fsyncDue();
+                }
+            } catch (InterruptedException e) {
+                // Only close() stops the writer; keep draining
+            }
+        }
+    }
+
+    /**
+     * Returns how long the writer thread may wait for a line before the batch or the unsynced data is due
+     */
+    private long nextDueNanos() {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        if (batchLines > 0) {
+            wait = flushIntervalNanos - (now - batchStart);
+        }
+        if (unsynced && settings.getFsyncPolicy() == CsvSinkSettings.FsyncPolicy.PER_INTERVAL) {
+            wait = Math.min(wait, fsyncIntervalNanos - (now - lastFsync));
+        }
+        return Math.max(0, wait);
+    }
+
+    /**
+     * Appends a queued line to the batch, flushing it once full; returns false at the end of the stream
+     */
+    private boolean add(Line line) {
+        if (line == END_OF_STREAM) {
+            finish();
+            return false;
+        }
+        try {
+            if (batchLines == 0) {
+                batchStart = System.nanoTime();
+            }
+            append(line);
+            batchLines++;
+            if (batchLines >= settings.getBatchLines()) {
+                flushBatch();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return true;
+    }
+
+    /**
+     * Flushes the batch once it is as old as the flush interval
+     */
+    private void flushDue() {
+        synchronized (writerLock) {
+            flushTimer = null;
+            if (done || batchLines == 0) {
+                return;
+            }
+            try {
+                long wait = flushIntervalNanos - (System.nanoTime() - batchStart);
+                if (wait > 0) {
+                    // The batch the timer was started for was flushed when full; this one is younger
+                    flushTimer = schedule(this::flushDue, wait);
+                } else {
+                    flushBatch();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Forces flushed data to disk once the fsync interval has passed, even if no further line comes
+     */
+    private void fsyncDue() {
+        synchronized (writerLock) {
+            fsyncTimer = null;
+            if (done || !unsynced) {
+                return;
+            }
+            try {
+                syncIfDue();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        flushBuffer();
+        batchLines = 0;
+        unsynced = true;
+        syncIfDue();
+    }
+
+    private void syncIfDue() throws IOException {
+        switch (settings.getFsyncPolicy()) {
+            case PER_BATCH:
+                force();
+                break;
+            case PER_INTERVAL:
+                long wait = fsyncIntervalNanos - (System.nanoTime() - lastFsync);
+                if (wait <= 0) {
+                    force();
+                } else if (fsyncTimer == null) {
+                    fsyncTimer = schedule(this::fsyncDue, wait);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        lastFsync = System.nanoTime();
+        unsynced = false;
+    }
+
+    /**
+     * Writes the last batch, forces it to disk unless the policy never does, and stops the timers
+     */
+    private void finish() {
+        done = true;
+        try {
+            if (batchLines > 0) {
+                flushBuffer();
+                batchLines = 0;
+                unsynced = true;
+            }
+            if (unsynced && settings.getFsyncPolicy() != CsvSinkSettings.FsyncPolicy.NONE) {
+                force();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        if (flushTimer != null) {
+            flushTimer.cancel(false);
+        }
+        if (fsyncTimer != null) {
+            fsyncTimer.cancel(false);
+        }
+        finished.countDown();
+    }
+
+    private void fail(IOException e) {
+        writeError.set(e);
+        System.err.println("Error writing " + file + ": " + e.getMessage());
+        buffer.clear();
+        batchLines = 0;
+    }
+
+    /**
+     * Starts a timer on the shared executor; the writer thread of a sink without one keeps its own time
+     */
+    private ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        if (executor == null) {
+            return null;
+        }
+        return executor.schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Copies a line and a separator into the write buffer and returns the line to the pool
+     */
+    private void append(Line line) throws IOException {
+        try {
+            put(line.bytes, line.length);
+            put(LINE_SEPARATOR, LINE_SEPARATOR.length);
+        } finally {
+            free.offer(line);
+        }
+    }
+
+    private void put(byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int chunk = Math.min(buffer.remaining(), length - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes every queued line, flushes and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean interrupted = false;
+        boolean queued = false;
+        while (!queued) {
+            try {
+                queue.put(END_OF_STREAM);
+                queued = true;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        startDraining();
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        IOException error = writeError.getAndSet(null);
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Single-pass StAX parser for /app/rest/buildQueue responses
+ *
+ * Reads the queue size and the queued builds straight from the response stream, so the default
+ * path needs no JAXB context, whose creation dominates the startup of short runs.
+ */
+public class BuildQueueStreamParser {
+
+    /**
+     * Parses a build queue document, reporting every queued build to the visitor if one is given,
+     * and returns the count attribute, or the number of builds if it is missing
+     */
+    public int parse(InputStream input, QueuedBuildVisitor visitor) throws IOException {
+        int countAttribute = -1;
+        int builds = 0;
+
+        // State of the <build> element currently being read
+        long id = QueuedBuildVisitor.NO_ID;
+        String buildTypeId = null;
+        String queuedDate = null;
+        int depth = 0;
+
+        try {
+            XMLStreamReader reader = AgentsStreamParser.INPUT_FACTORY.createXMLStreamReader(input);
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String name = reader.getLocalName();
+                        if (depth == 1) {
+                            String count = reader.getAttributeValue(null, "count");
+                            if (count != null) {
+                                countAttribute = Integer.parseInt(count);
+                            }
+                        } else if (depth == 2 && "build".equals(name) && visitor != null) {
+                            String idValue = reader.getAttributeValue(null, "id");
+                            id = idValue != null ? Long.parseLong(idValue) : QueuedBuildVisitor.NO_ID;
+                            buildTypeId = reader.getAttributeValue(null, "buildTypeId");
+                            queuedDate = null;
+                        } else if (depth == 3 && visitor != null && "queuedDate".equals(name)) {
+                            queuedDate = reader.getElementText();
+                            // getElementText leaves the reader on the end tag
+                            depth--;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (depth == 2 && "build".equals(reader.getLocalName())) {
+                            builds++;
+                            if (visitor != null) {
+                                visitor.visitQueuedBuild(id, buildTypeId, queuedDate);
+                            }
+                        }
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new IOException("Failed to parse build queue response: " + e.getMessage(), e);
+        }
+
+        return countAttribute >= 0 ? countAttribute : builds;
+    }
+}
@@ -0,0 +1,28 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Receives output lines as bytes, the allocation-free counterpart of the {@code Consumer<String>} used for messages
+ *
+ * A line is passed without a line separator. The bytes are only valid during the call;
+ * implementations copy what they keep.
+ */
+public interface ByteSink {
+    void write(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Returns a sink that writes every line to the stream followed by the platform line separator
+     */
+    static ByteSink lines(PrintStream stream) {
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        return (bytes, offset, length) -> {
+            synchronized (stream) {
+                stream.write(bytes, offset, length);
+                stream.write(separator, 0, separator.length);
+            }
+        };
+    }
+}
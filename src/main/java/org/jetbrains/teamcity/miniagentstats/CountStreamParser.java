@@ -0,0 +1,38 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * StAX parser for fields=count responses of any collection, such as /app/rest/agents or /app/rest/buildQueue
+ */
+public class CountStreamParser {
+
+    /**
+     * Reads the count attribute of the root element of a collection response
+     */
+    public int parse(InputStream input) throws IOException {
+        try {
+            XMLStreamReader reader = AgentsStreamParser.INPUT_FACTORY.createXMLStreamReader(input);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String count = reader.getAttributeValue(null, "count");
+                        if (count == null) {
+                            throw new IOException("Response has no count attribute: <" + reader.getLocalName() + ">");
+                        }
+                        return Integer.parseInt(count);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            throw new IOException("Failed to parse count response: " + e.getMessage(), e);
+        }
+        throw new IOException("Empty count response");
+    }
+}
@@ -0,0 +1,74 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+/**
+ * Settings of the buffered CSV output: when batched lines are flushed and fsynced
+ */
+public class CsvSinkSettings {
+
+    /**
+     * When written data is forced to the storage device
+     */
+    public enum FsyncPolicy {
+        /** Never; the operating system decides */
+        NONE,
+        /** After every flushed batch */
+        PER_BATCH,
+        /** At most once per fsync interval */
+        PER_INTERVAL
+    }
+
+    private int batchLines = 64;
+    private long flushIntervalMillis = 1000;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+    private long fsyncIntervalMillis = 10_000;
+    private int queueCapacity = 4096;
+
+    /**
+     * A batch is flushed once it has this many lines
+     */
+    public int getBatchLines() {
+        return batchLines;
+    }
+
+    public void setBatchLines(int batchLines) {
+        this.batchLines = batchLines;
+    }
+
+    /**
+     * A non-empty batch is flushed at the latest this long after its first line
+     */
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    public void setFsyncIntervalMillis(long fsyncIntervalMillis) {
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    /**
+     * Lines waiting to be written; writers block when the queue is full
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+}
@@ -0,0 +1,83 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the calls of a blocking {@link TeamCityClient} on an executor.
+ * The pooled HTTP client allows several connections per route, so both requests
+ * of a tick are in flight at the same time.
+ */
+public class ExecutorAsyncTeamCityClient implements AsyncTeamCityClient {
+    private final TeamCityClient delegate;
+    private final Executor executor;
+
+    public ExecutorAsyncTeamCityClient(TeamCityClient delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Integer> getQueuedBuildsCountAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return delegate.getQueuedBuildsCount(httpClient, teamCityUrl, authHeader);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<Integer> getQueuedBuildsCountAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                                                QueuedBuildVisitor visitor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return delegate.getQueuedBuildsCount(httpClient, teamCityUrl, authHeader, visitor);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<Agents> getAgentStatsAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return delegate.getAgentStats(httpClient, teamCityUrl, authHeader);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<AgentCounts> getAgentCountsAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return delegate.getAgentCounts(httpClient, teamCityUrl, authHeader);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<AgentCounts> getAgentCountsAsync(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                                              AgentVisitor visitor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return delegate.getAgentCounts(httpClient, teamCityUrl, authHeader, visitor);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
@@ -1,50 +1,928 @@
 package org.jetbrains.teamcity.miniagentstats;
 
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionBreakdown;
+import org.jetbrains.teamcity.miniagentstats.history.SampleHistory;
+import org.jetbrains.teamcity.miniagentstats.metrics.CollectorMetrics;
+import org.jetbrains.teamcity.miniagentstats.metrics.OpenMetricsEndpoint;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+import org.jetbrains.teamcity.miniagentstats.query.Aggregation;
+import org.jetbrains.teamcity.miniagentstats.query.QueryResult;
+import org.jetbrains.teamcity.miniagentstats.query.SampleColumn;
+import org.jetbrains.teamcity.miniagentstats.query.SampleQuery;
+import org.jetbrains.teamcity.miniagentstats.queue.QueueWaitTracker;
+import org.jetbrains.teamcity.miniagentstats.queue.WaitTimeStats;
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseRecorder;
+import org.jetbrains.teamcity.miniagentstats.sink.LagPolicy;
+import org.jetbrains.teamcity.miniagentstats.sink.RotationSettings;
+import org.jetbrains.teamcity.miniagentstats.sink.SinkPipelineSettings;
+import org.jetbrains.teamcity.miniagentstats.store.CsvToBinaryConverter;
+import org.jetbrains.teamcity.miniagentstats.utilization.AgentUtilization;
+import org.jetbrains.teamcity.miniagentstats.utilization.AgentUtilizationTracker;
+
 import javax.xml.bind.JAXBException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * TeamCity Agent Statistics Monitor
- * 
+ *
  * This application periodically retrieves and displays statistics from a TeamCity server:
  * - Number of builds in the build queue
  * - Total number of live agents
  * - Number of agents currently running builds
  */
 public class Main {
-    
+
+    private static final String USAGE =
+            "Usage: java -jar AgentStats.jar [options] <interval_seconds> <teamcity_url> <teamcity_token> [output_file_path]\n"
+            + "       java -jar AgentStats.jar [options] --config=<servers.properties>\n"
+            + "       java -jar AgentStats.jar convert <input.csv> <output.bin>\n"
+            + "       java -jar AgentStats.jar [options] replay <archive> [output_file_path]\n"
+            + "       java -jar AgentStats.jar [query options] query <file>...\n"
+            + "Options:\n"
+            + "  --config=<file>             Monitor every server listed in a properties file\n"
+            + "  --connect-timeout=<ms>      TCP connect timeout (default 10000)\n"
+            + "  --socket-timeout=<ms>       Socket read timeout (default 30000)\n"
+            + "  --max-connections=<n>       Maximum pooled connections per server (default 10)\n"
+            + "  --keep-alive=<ms>           Keep-alive for idle pooled connections (default 60000)\n"
+            + "  --parser=stax|jaxb          Agents and build queue response parser (default stax)\n"
+            + "  --request-mode=full|counts  Request whole collections or only their counts (default full)\n"
+            + "  --page-size=<n>             Fetch agents in pages of n agents with parallel requests (default off)\n"
+            + "  --page-concurrency=<n>      Pages requested at the same time with --page-size (default 4)\n"
+            + "  --report-bytes              Append response bytes received per tick as an extra column\n"
+            + "  --no-gzip                   Do not request gzip-compressed responses\n"
+            + "  --record=<archive>          Save every agents and build queue response to an archive (gzip if it ends with .gz)\n"
+            + "  --speed=<x>                 Replay at x times the recorded pace (default as fast as possible)\n"
+            + "  --skip-unchanged            Reuse the last result instead of parsing responses that did not change (ETag or checksum)\n"
+            + "  --ticks=<n>                 Stop after n ticks instead of when a key is pressed, e.g. when run from cron\n"
+            + "  --deadline=<ms>             Longest a tick waits for the server (default one interval)\n"
+            + "  --max-backoff=<ms>          Longest delay after slow or failed ticks (default 300000)\n"
+            + "  --adaptive                  Poll faster while the queue changes and slower while it is idle\n"
+            + "  --flush-lines=<n>           Flush the output file every n lines (default 64)\n"
+            + "  --flush-interval=<ms>       Flush buffered output lines at least this often (default 1000)\n"
+            + "  --fsync=none|batch|interval Force output to disk never, per flush or per interval (default none)\n"
+            + "  --fsync-interval=<ms>       Interval of --fsync=interval (default 10000)\n"
+            + "  --format=csv|binary|events  Format of the output file (default csv)\n"
+            + "  --rotate-size=<size>        Roll the output file over into a new segment at this size, e.g. 100m or 1g\n"
+            + "  --rotate=hourly|daily       Roll the output file over when a sample falls into a new local hour or day\n"
+            + "  --compress=gzip|none        Compress finished segments in the background (default gzip)\n"
+            + "  --retain-segments=<n>       Keep only the n newest finished segments (default all)\n"
+            + "  --retain=<duration>         Delete finished segments last written longer ago, e.g. 30d (default never)\n"
+            + "  --sink-ring=<n>             Samples buffered between polling and the sinks, each on its own thread; 0 writes on the polling thread (default 1024)\n"
+            + "  --sink-policy=<policies>    What a sink a whole ring behind does: block, drop or sample, for all sinks or per sink as console:sample,csv:drop (default block for output files, drop for console and metrics)\n"
+            + "  --timestamps=iso|epoch      Write sample timestamps as local date-times or epoch milliseconds (default iso)\n"
+            + "  --history[=<samples>]       Keep recent samples for rolling 1/5/60-minute rollups, printed on exit (default 4096 samples)\n"
+            + "  --breakdown                 Publish agents per pool and OS and queued builds per build type as metric labels\n"
+            + "  --queue-wait                Measure how long builds wait in the queue (p50/p90/p99 per window)\n"
+            + "  --metrics-port=<port>       Serve the latest samples in OpenMetrics format on http://<host>:<port>/metrics\n"
+            + "  --stage-stats=<seconds>     Print p50, p99 and max of every collector stage to stderr this often\n"
+            + "  --utilization=<n>           Track busy and idle time per agent and print the n most and least utilized agents on exit\n"
+            + "Query options:\n"
+            + "  --from=<time>               First sample time, as a local date, date-time or epoch millis (default the first sample)\n"
+            + "  --to=<time>                 End of the range, exclusive (default after the last sample)\n"
+            + "  --bucket=<duration>         Bucket length such as 30s, 15m, 1h, 1d or 1w (default one bucket for the whole range)\n"
+            + "  --agg=<aggregations>        Aggregations per column: min, max, avg, p50, p99.9, ... (default min,max,avg)\n"
+            + "  --columns=<columns>         Columns to aggregate: queued, total, busy (default all)\n"
+            + "  --threads=<n>               Threads scanning file chunks (default one per core)\n"
+            + "  --include-stale             Also aggregate stale samples, which repeat the previous sample after a missed tick";
+
     public static void main(String[] args) {
+        // Split command-line arguments into --options and positional arguments
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.put(arg.substring(2), "true");
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (!positional.isEmpty() && "convert".equals(positional.get(0))) {
+            runConvert(positional);
+            return;
+        }
+
+        if (!positional.isEmpty() && "query".equals(positional.get(0))) {
+            runQuery(positional, options);
+            return;
+        }
+
+        if (!positional.isEmpty() && "replay".equals(positional.get(0))) {
+            runReplay(positional, options);
+            return;
+        }
+
+        if (options.containsKey("config")) {
+            runMultiServer(options);
+            return;
+        }
+
         // Validate command-line arguments
-        if (args.length < 3 || args.length > 4) {
-            System.err.println("Usage: java -jar AgentStats.jar <interval_seconds> <teamcity_url> <teamcity_token> [output_file_path]");
+        if (positional.size() < 3 || positional.size() > 4) {
+            System.err.println(USAGE);
             System.exit(1);
         }
-        
+
+        OpenMetricsEndpoint metricsEndpoint = null;
+        ResponseRecorder recorder = null;
         try {
             // Parse command-line arguments
-            int intervalSeconds = Integer.parseInt(args[0]);
-            String teamCityUrl = args[1];
-            String teamCityToken = args[2];
-            String outputFilePath = args.length == 4 ? args[3] : null;
-            
+            int intervalSeconds = Integer.parseInt(positional.get(0));
+            String teamCityUrl = positional.get(1);
+            String teamCityToken = positional.get(2);
+            String outputFilePath = positional.size() == 4 ? positional.get(3) : null;
+
             if (intervalSeconds <= 0) {
                 System.err.println("Interval must be a positive number of seconds");
                 System.exit(1);
             }
-            
+
             // Remove trailing slash from URL if present
             if (teamCityUrl.endsWith("/")) {
                 teamCityUrl = teamCityUrl.substring(0, teamCityUrl.length() - 1);
             }
-            
+
+            HttpClientSettings httpClientSettings = parseHttpClientSettings(options);
+            StageMetrics stageMetrics = parseStageMetrics(options);
+            TeamCityClientImpl teamCityClient = createTeamCityClient(options, stageMetrics);
+
             // Create and start the AgentStats instance
-            AgentStats agentStats = new AgentStats(System.out::println);
+            AgentStats agentStats = new AgentStats(System.out::println, teamCityClient);
+            agentStats.setHttpClientSettings(httpClientSettings);
+            agentStats.setReportBytes(options.containsKey("report-bytes"));
+            agentStats.setTimestampFormat(parseTimestampFormat(options));
+            agentStats.setLineSink(ByteSink.lines(System.out));
+            if (options.containsKey("ticks")) {
+                agentStats.setTickLimit(Long.parseLong(options.get("ticks")));
+            }
+            agentStats.setPollingSettings(parsePollingSettings(options));
+            agentStats.setCsvSinkSettings(parseCsvSinkSettings(options));
+            agentStats.setSinkPipelineSettings(parseSinkPipelineSettings(options));
+            agentStats.setOutputFormat(parseOutputFormat(options));
+            agentStats.setRotationSettings(parseRotationSettings(options));
+            agentStats.setStageMetrics(stageMetrics);
+            if (options.containsKey("history")) {
+                agentStats.setHistory(new SampleHistory(parseHistoryCapacity(options)));
+            }
+            if (options.containsKey("breakdown")) {
+                agentStats.setDimensionBreakdown(new DimensionBreakdown());
+            }
+            if (options.containsKey("queue-wait")) {
+                agentStats.setQueueWaitTracker(new QueueWaitTracker());
+            }
+            try {
+                metricsEndpoint = startMetricsEndpoint(options);
+            } catch (IOException e) {
+                System.err.println("Error starting metrics endpoint on " + formatAddress(metricsAddress(options)) + ": " + e.getMessage());
+                System.exit(1);
+            }
+            if (metricsEndpoint != null) {
+                CollectorMetrics metrics = new CollectorMetrics(teamCityUrl);
+                metricsEndpoint.register(metrics);
+                agentStats.setMetrics(metrics);
+            }
+            int utilizationTopN = 0;
+            if (options.containsKey("utilization")) {
+                utilizationTopN = Integer.parseInt(options.get("utilization"));
+                agentStats.setUtilizationTracker(new AgentUtilizationTracker(1024));
+            }
+            if (options.containsKey("record")) {
+                recorder = new ResponseRecorder(Paths.get(options.get("record")));
+                teamCityClient.setRecorder(recorder);
+                agentStats.setResponseRecorder(recorder);
+            }
             agentStats.startMonitoring(intervalSeconds, teamCityUrl, teamCityToken, outputFilePath);
+            if (utilizationTopN > 0) {
+                printUtilization(agentStats.getUtilizationTracker(), utilizationTopN);
+            }
+            if (options.containsKey("report-bytes") || options.containsKey("skip-unchanged")) {
+                printTransfer(teamCityClient);
+            }
+            printQueueWait(agentStats);
+            printHistory(agentStats);
+            if (recorder != null) {
+                System.out.println("Recorded " + recorder.getResponses() + " responses of " + recorder.getTicks()
+                        + " ticks to " + recorder.getFile());
+            }
+            teamCityClient.close();
+        } catch (IOException e) {
+            System.err.println("Error starting recording: " + e.getMessage());
+            System.exit(1);
         } catch (NumberFormatException e) {
-            System.err.println("Interval must be a valid integer");
+            System.err.println("Interval and numeric options must be valid integers");
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+            if (recorder != null) {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing " + recorder.getFile() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the analytics over a recorded response archive and reports the throughput
+     */
+    private static void runReplay(List<String> positional, Map<String, String> options) {
+        if (positional.size() < 2 || positional.size() > 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        String outputFilePath = positional.size() == 3 ? positional.get(2) : null;
+        try (ReplayTeamCityClient replay = new ReplayTeamCityClient(Paths.get(positional.get(1)))) {
+            replay.setStreamingParser(!"jaxb".equals(options.get("parser")));
+            double speed = Double.parseDouble(options.getOrDefault("speed", "0"));
+            // Printing every line would dominate the replay time when the samples go to a file anyway
+            AgentStats agentStats = new AgentStats(outputFilePath == null ? System.out::println : line -> { }, replay);
+            agentStats.setLineSink(outputFilePath == null ? ByteSink.lines(System.out) : (bytes, offset, length) -> { });
+            agentStats.setTimestampFormat(parseTimestampFormat(options));
+            agentStats.setCsvSinkSettings(parseCsvSinkSettings(options));
+            agentStats.setSinkPipelineSettings(parseSinkPipelineSettings(options));
+            agentStats.setOutputFormat(parseOutputFormat(options));
+            agentStats.setRotationSettings(parseRotationSettings(options));
+            if (options.containsKey("history")) {
+                agentStats.setHistory(new SampleHistory(parseHistoryCapacity(options)));
+            }
+            if (options.containsKey("breakdown")) {
+                agentStats.setDimensionBreakdown(new DimensionBreakdown());
+            }
+            if (options.containsKey("queue-wait")) {
+                agentStats.setQueueWaitTracker(new QueueWaitTracker());
+            }
+            int utilizationTopN = 0;
+            if (options.containsKey("utilization")) {
+                utilizationTopN = Integer.parseInt(options.get("utilization"));
+                agentStats.setUtilizationTracker(new AgentUtilizationTracker(1024));
+            }
+
+            long start = System.nanoTime();
+            long samples = agentStats.replay(outputFilePath, speed);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            agentStats.stopMonitoring();
+            System.out.println(String.format("Replayed %d samples in %.3f s (%.0f samples/s)", samples, seconds,
+                    seconds > 0 ? samples / seconds : 0.0));
+            if (utilizationTopN > 0) {
+                printUtilization(agentStats.getUtilizationTracker(), utilizationTopN);
+            }
+            printQueueWait(agentStats);
+            printHistory(agentStats);
+        } catch (IOException e) {
+            System.err.println("Error replaying " + positional.get(1) + ": " + e.getMessage());
+            System.exit(1);
+        } catch (NumberFormatException e) {
+            System.err.println("Numeric options must be valid numbers");
             System.exit(1);
         } catch (JAXBException e) {
             System.err.println("Error initializing TeamCity client: " + e.getMessage());
             System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints the queue wait percentiles, if queue waits were tracked
+     */
+    private static void printQueueWait(AgentStats agentStats) {
+        QueueWaitTracker tracker = agentStats.getQueueWaitTracker();
+        if (tracker == null) {
+            return;
+        }
+        System.out.println("Queue wait (" + tracker.getDepartures() + " builds left the queue)");
+        for (WaitTimeStats stats : tracker.getStats()) {
+            System.out.println("  " + stats);
+        }
+    }
+
+    /**
+     * Prints the rollups of every metric over every window of the history, if one was kept
+     */
+    private static void printHistory(AgentStats agentStats) {
+        SampleHistory history = agentStats.getHistory();
+        if (history == null) {
+            return;
+        }
+        System.out.println("History (" + history.size() + " recent samples)");
+        long[] windowsMillis = history.getWindowsMillis();
+        for (SampleHistory.Metric metric : SampleHistory.Metric.values()) {
+            for (int window = 0; window < windowsMillis.length; window++) {
+                System.out.println("  " + metric.name().toLowerCase(Locale.ROOT) + " over " + formatWindow(windowsMillis[window])
+                        + ": " + history.getWindowStats(metric, window));
+            }
+        }
+    }
+
+    private static String formatWindow(long millis) {
+        if (millis % TimeUnit.HOURS.toMillis(1) == 0) {
+            return TimeUnit.MILLISECONDS.toHours(millis) + "h";
+        }
+        if (millis % TimeUnit.MINUTES.toMillis(1) == 0) {
+            return TimeUnit.MILLISECONDS.toMinutes(millis) + "m";
+        }
+        return millis + "ms";
+    }
+
+    /**
+     * Prints how much compression and skipping unchanged responses saved
+     */
+    private static void printTransfer(TeamCityClient client) {
+        long received = client.getBytesReceived();
+        long decoded = client.getBytesDecoded();
+        long responses = client.getResponses();
+        long unchanged = client.getUnchangedResponses();
+        System.out.println(String.format("Received %d bytes for %d bytes of responses (%.1f%%)",
+                received, decoded, decoded == 0 ? 100.0 : 100.0 * received / decoded));
+        System.out.println(String.format("Skipped parsing %d of %d responses that had not changed (%.1f%%)",
+                unchanged, responses, responses == 0 ? 0.0 : 100.0 * unchanged / responses));
+    }
+
+    /**
+     * Prints the most and least utilized agents
+     */
+    private static void printUtilization(AgentUtilizationTracker tracker, int topN) {
+        System.out.println("Agent utilization (" + tracker.size() + " agents seen)");
+        System.out.println("Most utilized:");
+        for (AgentUtilization agent : tracker.mostUtilized(topN)) {
+            System.out.println("  " + agent);
+        }
+        System.out.println("Least utilized:");
+        for (AgentUtilization agent : tracker.leastUtilized(topN)) {
+            System.out.println("  " + agent);
+        }
+    }
+
+    /**
+     * Converts a CSV output file into the binary sample format
+     */
+    private static void runConvert(List<String> positional) {
+        if (positional.size() != 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            long records = new CsvToBinaryConverter(ZoneId.systemDefault())
+                    .convert(Paths.get(positional.get(1)), Paths.get(positional.get(2)));
+            System.out.println("Converted " + records + " samples to " + positional.get(2));
+        } catch (IOException e) {
+            System.err.println("Error converting " + positional.get(1) + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Aggregates the samples of CSV and binary output files per time bucket and prints one CSV line per bucket
+     */
+    private static void runQuery(List<String> positional, Map<String, String> options) {
+        if (positional.size() < 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            SampleQuery query = new SampleQuery();
+            ZoneId zone = query.getZone();
+            if (options.containsKey("from")) {
+                query.setFromMillis(parseTime(options.get("from"), zone));
+            }
+            if (options.containsKey("to")) {
+                query.setToMillis(parseTime(options.get("to"), zone));
+            }
+            if (options.containsKey("bucket")) {
+                query.setBucketMillis(parseDuration(options.get("bucket")));
+            }
+            if (options.containsKey("agg")) {
+                List<Aggregation> aggregations = new ArrayList<>();
+                for (String name : options.get("agg").split(",")) {
+                    aggregations.add(Aggregation.parse(name));
+                }
+                query.setAggregations(aggregations);
+            }
+            if (options.containsKey("columns")) {
+                List<SampleColumn> columns = new ArrayList<>();
+                for (String name : options.get("columns").split(",")) {
+                    columns.add(SampleColumn.parse(name));
+                }
+                query.setColumns(columns);
+            }
+            if (options.containsKey("threads")) {
+                query.setParallelism(Integer.parseInt(options.get("threads")));
+            }
+            query.setIncludeStale(options.containsKey("include-stale"));
+
+            List<Path> files = new ArrayList<>();
+            for (String file : positional.subList(1, positional.size())) {
+                files.add(Paths.get(file));
+            }
+            long start = System.nanoTime();
+            QueryResult result = query.run(files);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            result.write(query.getColumns(), query.getAggregations(), System.out::println);
+            System.err.println(String.format("Scanned %d samples, %.1f MB in %.3f s (%.0f MB/s, %d threads)",
+                    result.getSamples(), result.getBytesScanned() / 1e6, seconds,
+                    seconds > 0 ? result.getBytesScanned() / 1e6 / seconds : 0.0, query.getParallelism()));
+        } catch (IOException e) {
+            System.err.println("Error querying " + String.join(", ", positional.subList(1, positional.size())) + ": " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses a local date, a local date-time or epoch millis
+     */
+    static long parseTime(String text, ZoneId zone) {
+        if (!text.isEmpty() && text.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(text);
+        }
+        try {
+            if (text.indexOf('T') < 0) {
+                return LocalDate.parse(text).atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            return LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + text + " (expected e.g. 2024-03-01, 2024-03-01T12:00 or epoch millis)");
+        }
+    }
+
+    /**
+     * Parses a duration with a unit of ms, s, m, h, d or w into millis; a number without a unit is in seconds
+     */
+    static long parseDuration(String text) {
+        String value = text.trim();
+        int digits = 0;
+        while (digits < value.length() && Character.isDigit(value.charAt(digits))) {
+            digits++;
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException("Invalid duration: " + text + " (expected e.g. 30s, 15m, 1h, 1d or 1w)");
+        }
+        long amount = Long.parseLong(value.substring(0, digits));
+        switch (value.substring(digits)) {
+            case "ms":
+                return amount;
+            case "":
+            case "s":
+                return TimeUnit.SECONDS.toMillis(amount);
+            case "m":
+                return TimeUnit.MINUTES.toMillis(amount);
+            case "h":
+                return TimeUnit.HOURS.toMillis(amount);
+            case "d":
+                return TimeUnit.DAYS.toMillis(amount);
+            case "w":
+                return TimeUnit.DAYS.toMillis(7 * amount);
+            default:
+                throw new IllegalArgumentException("Invalid duration: " + text + " (expected e.g. 30s, 15m, 1h, 1d or 1w)");
+        }
+    }
+
+    /**
+     * Monitors all servers of a configuration file until a key is pressed
+     */
+    private static void runMultiServer(Map<String, String> options) {
+        MultiServerMonitor monitor = null;
+        OpenMetricsEndpoint metricsEndpoint = null;
+        try {
+            if (options.containsKey("record")) {
+                throw new IllegalArgumentException("--record is only supported when monitoring a single server");
+            }
+            List<ServerConfig> servers = ServerConfig.load(Paths.get(options.get("config")));
+            StageMetrics stageMetrics = parseStageMetrics(options);
+            monitor = new MultiServerMonitor(servers, System.out::println, server -> createTeamCityClient(options, stageMetrics));
+            monitor.setStageMetrics(stageMetrics);
+            monitor.setHttpClientSettings(parseHttpClientSettings(options));
+            monitor.setPollingSettings(parsePollingSettings(options));
+            monitor.setCsvSinkSettings(parseCsvSinkSettings(options));
+            monitor.setSinkPipelineSettings(parseSinkPipelineSettings(options));
+            monitor.setOutputFormat(parseOutputFormat(options));
+            monitor.setRotationSettings(parseRotationSettings(options));
+            monitor.setDimensionBreakdown(options.containsKey("breakdown"));
+            monitor.setQueueWait(options.containsKey("queue-wait"));
+            monitor.setReportBytes(options.containsKey("report-bytes"));
+            monitor.setTimestampFormat(parseTimestampFormat(options));
+            int utilizationTopN = 0;
+            if (options.containsKey("utilization")) {
+                utilizationTopN = Integer.parseInt(options.get("utilization"));
+                monitor.setUtilization(true);
+            }
+            if (options.containsKey("history")) {
+                monitor.setHistoryCapacity(parseHistoryCapacity(options));
+            }
+            long tickLimit = options.containsKey("ticks") ? Long.parseLong(options.get("ticks")) : 0;
+            monitor.setTickLimit(tickLimit);
+            try {
+                metricsEndpoint = startMetricsEndpoint(options);
+            } catch (IOException e) {
+                System.err.println("Error starting metrics endpoint on " + formatAddress(metricsAddress(options)) + ": " + e.getMessage());
+                System.exit(1);
+            }
+            monitor.setMetricsEndpoint(metricsEndpoint);
+
+            System.out.println("TeamCity Agent Statistics Monitor");
+            for (ServerConfig server : servers) {
+                System.out.println("Monitoring server: " + server.getName() + " (" + server.getUrl() + ") every "
+                        + server.getIntervalSeconds() + " seconds"
+                        + (server.getOutputFilePath() != null ? ", writing to " + server.getOutputFilePath() : ""));
+            }
+            if (tickLimit > 0) {
+                System.out.println("Stopping after " + tickLimit + " ticks of every server, or when any key is pressed");
+            } else {
+                System.out.println("Press any key to exit");
+            }
+            System.out.println("----------------------------------------");
+            monitor.start();
+
+            if (tickLimit > 0) {
+                awaitTickLimitOrKey(monitor);
+            } else {
+                // Wait for any key press
+                System.in.read();
+            }
+            monitor.stop();
+            for (int i = 0; i < servers.size(); i++) {
+                AgentStats agentStats = monitor.getMonitors().get(i);
+                System.out.println("Server " + servers.get(i).getName() + ":");
+                if (utilizationTopN > 0) {
+                    printUtilization(agentStats.getUtilizationTracker(), utilizationTopN);
+                }
+                if (options.containsKey("report-bytes") || options.containsKey("skip-unchanged")) {
+                    printTransfer(monitor.getClients().get(i));
+                }
+                printQueueWait(agentStats);
+                printHistory(agentStats);
+            }
+            monitor = null;
+        } catch (NumberFormatException e) {
+            System.err.println("Numeric options must be valid integers");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error reading configuration: " + e.getMessage());
+            System.exit(1);
+        } catch (JAXBException e) {
+            System.err.println("Error initializing TeamCity client: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            if (monitor != null) {
+                monitor.stop();
+            }
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+        }
+        System.out.println("Finished monitoring");
+    }
+
+    /**
+     * Waits until every server has run its ticks, or until a key is pressed; a closed input does not stop monitoring
+     */
+    private static void awaitTickLimitOrKey(MultiServerMonitor monitor) {
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread keyboardListener = new Thread(() -> {
+            try {
+                if (System.in.read() >= 0) {
+                    finished.countDown();
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading keyboard input: " + e.getMessage());
+                finished.countDown();
+            }
+        });
+        keyboardListener.setDaemon(true);
+        keyboardListener.start();
+        Thread tickListener = new Thread(() -> {
+            try {
+                monitor.awaitTickLimit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        });
+        tickListener.setDaemon(true);
+        tickListener.start();
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the metrics endpoint if --metrics-port is given, otherwise returns null
+     */
+    static OpenMetricsEndpoint startMetricsEndpoint(Map<String, String> options) throws IOException {
+        if (!options.containsKey("metrics-port")) {
+            return null;
+        }
+        OpenMetricsEndpoint endpoint = new OpenMetricsEndpoint(metricsAddress(options));
+        endpoint.start();
+        return endpoint;
+    }
+
+    /**
+     * The address the metrics endpoint listens on: every interface, on the port of --metrics-port
+     */
+    static InetSocketAddress metricsAddress(Map<String, String> options) {
+        return new InetSocketAddress(Integer.parseInt(options.get("metrics-port")));
+    }
+
+    static String formatAddress(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * Creates the TeamCity REST client configured from the command-line options
+     */
+    static TeamCityClientImpl createTeamCityClient(Map<String, String> options, StageMetrics stageMetrics) {
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        client.setStageMetrics(stageMetrics);
+        String parser = options.getOrDefault("parser", "stax");
+        if ("jaxb".equals(parser)) {
+            client.setStreamingParser(false);
+        } else if (!"stax".equals(parser)) {
+            throw new IllegalArgumentException("Unknown parser: " + parser + " (expected stax or jaxb)");
+        }
+        String requestMode = options.getOrDefault("request-mode", "full");
+        if ("counts".equals(requestMode)) {
+            client.setRequestMode(TeamCityClientImpl.RequestMode.COUNTS);
+        } else if (!"full".equals(requestMode)) {
+            throw new IllegalArgumentException("Unknown request mode: " + requestMode + " (expected full or counts)");
+        }
+        client.setRequestDimensions(options.containsKey("breakdown"));
+        client.setRequestQueuedDates(options.containsKey("queue-wait"));
+        client.setCompression(!options.containsKey("no-gzip"));
+        client.setSkipUnchanged(options.containsKey("skip-unchanged"));
+        if (options.containsKey("page-size")) {
+            client.setPageSize(Integer.parseInt(options.get("page-size")));
+        }
+        if (options.containsKey("page-concurrency")) {
+            client.setPageConcurrency(Integer.parseInt(options.get("page-concurrency")));
+        }
+        return client;
+    }
+
+    /**
+     * Returns the capacity given with --history, or the default capacity if the option has no value
+     */
+    static int parseHistoryCapacity(Map<String, String> options) {
+        String capacity = options.get("history");
+        return "true".equals(capacity) ? AgentStats.DEFAULT_HISTORY_CAPACITY : Integer.parseInt(capacity);
+    }
+
+    /**
+     * Builds HTTP client settings from the command-line options, keeping defaults for missing ones
+     */
+    static HttpClientSettings parseHttpClientSettings(Map<String, String> options) {
+        HttpClientSettings settings = new HttpClientSettings();
+        if (options.containsKey("connect-timeout")) {
+            settings.setConnectTimeoutMillis(Integer.parseInt(options.get("connect-timeout")));
+        }
+        if (options.containsKey("socket-timeout")) {
+            settings.setSocketTimeoutMillis(Integer.parseInt(options.get("socket-timeout")));
+        }
+        if (options.containsKey("max-connections")) {
+            int maxConnections = Integer.parseInt(options.get("max-connections"));
+            settings.setMaxConnectionsPerRoute(maxConnections);
+            // The pool would otherwise cap a raised per-server limit at its default total
+            settings.setMaxConnectionsTotal(Math.max(settings.getMaxConnectionsTotal(), maxConnections));
+        }
+        if (options.containsKey("keep-alive")) {
+            settings.setKeepAliveMillis(Long.parseLong(options.get("keep-alive")));
+        }
+        return settings;
+    }
+
+    /**
+     * Builds polling settings from the command-line options, keeping defaults for missing ones
+     */
+    static PollingSettings parsePollingSettings(Map<String, String> options) {
+        PollingSettings settings = new PollingSettings();
+        if (options.containsKey("deadline")) {
+            settings.setDeadlineMillis(Long.parseLong(options.get("deadline")));
+        }
+        if (options.containsKey("max-backoff")) {
+            settings.setMaxBackoffMillis(Long.parseLong(options.get("max-backoff")));
+        }
+        settings.setAdaptive(options.containsKey("adaptive"));
+        return settings;
+    }
+
+    /**
+     * Builds CSV output settings from the command-line options, keeping defaults for missing ones
+     */
+    static CsvSinkSettings parseCsvSinkSettings(Map<String, String> options) {
+        CsvSinkSettings settings = new CsvSinkSettings();
+        if (options.containsKey("flush-lines")) {
+            settings.setBatchLines(Integer.parseInt(options.get("flush-lines")));
+        }
+        if (options.containsKey("flush-interval")) {
+            settings.setFlushIntervalMillis(Long.parseLong(options.get("flush-interval")));
+        }
+        if (options.containsKey("fsync-interval")) {
+            settings.setFsyncIntervalMillis(Long.parseLong(options.get("fsync-interval")));
+        }
+        String fsync = options.getOrDefault("fsync", "none");
+        switch (fsync) {
+            case "none":
+                settings.setFsyncPolicy(CsvSinkSettings.FsyncPolicy.NONE);
+                break;
+            case "batch":
+                settings.setFsyncPolicy(CsvSinkSettings.FsyncPolicy.PER_BATCH);
+                break;
+            case "interval":
+                settings.setFsyncPolicy(CsvSinkSettings.FsyncPolicy.PER_INTERVAL);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown fsync policy: " + fsync + " (expected none, batch or interval)");
+        }
+        return settings;
+    }
+
+    /**
+     * Creates enabled stage instrumentation if --stage-stats is given, otherwise returns the disabled one
+     */
+    static StageMetrics parseStageMetrics(Map<String, String> options) {
+        if (!options.containsKey("stage-stats")) {
+            return StageMetrics.DISABLED;
+        }
+        int seconds = Integer.parseInt(options.get("stage-stats"));
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Stage statistics interval must be a positive number of seconds");
+        }
+        return new StageMetrics(TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    static AgentStats.OutputFormat parseOutputFormat(Map<String, String> options) {
+        String format = options.getOrDefault("format", "csv");
+        switch (format) {
+            case "csv":
+                return AgentStats.OutputFormat.CSV;
+            case "binary":
+                return AgentStats.OutputFormat.BINARY;
+            case "events":
+                return AgentStats.OutputFormat.EVENTS;
+            default:
+                throw new IllegalArgumentException("Unknown output format: " + format + " (expected csv, binary or events)");
+        }
+    }
+
+    /**
+     * Parses --rotate-size, --rotate, --compress, --retain-segments and --retain; the output file does not roll over without the first two
+     */
+    static RotationSettings parseRotationSettings(Map<String, String> options) {
+        RotationSettings settings = new RotationSettings();
+        if (options.containsKey("rotate-size")) {
+            settings.setMaxBytes(parseSize(options.get("rotate-size")));
+        }
+        String period = options.getOrDefault("rotate", "none");
+        switch (period) {
+            case "none":
+                settings.setPeriod(RotationSettings.Period.NONE);
+                break;
+            case "hourly":
+                settings.setPeriod(RotationSettings.Period.HOURLY);
+                break;
+            case "daily":
+                settings.setPeriod(RotationSettings.Period.DAILY);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown rotation period: " + period + " (expected hourly or daily)");
+        }
+        String compression = options.getOrDefault("compress", "gzip");
+        switch (compression) {
+            case "gzip":
+                settings.setCompression(RotationSettings.Compression.GZIP);
+                break;
+            case "none":
+                settings.setCompression(RotationSettings.Compression.NONE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + compression + " (expected gzip or none)");
+        }
+        if (options.containsKey("retain-segments")) {
+            int segments = Integer.parseInt(options.get("retain-segments"));
+            if (segments < 0) {
+                throw new IllegalArgumentException("Retained segments must not be negative");
+            }
+            settings.setRetainSegments(segments);
+        }
+        if (options.containsKey("retain")) {
+            settings.setRetainMillis(parseDuration(options.get("retain")));
+        }
+        return settings;
+    }
+
+    /**
+     * Parses a size in bytes with an optional unit of k, m or g (powers of 1024)
+     */
+    static long parseSize(String text) {
+        String value = text.trim().toLowerCase(Locale.ROOT);
+        int digits = 0;
+        while (digits < value.length() && Character.isDigit(value.charAt(digits))) {
+            digits++;
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException("Invalid size: " + text + " (expected e.g. 1048576, 512k, 100m or 1g)");
+        }
+        long amount = Long.parseLong(value.substring(0, digits));
+        switch (value.substring(digits)) {
+            case "":
+                return amount;
+            case "k":
+                return amount << 10;
+            case "m":
+                return amount << 20;
+            case "g":
+                return amount << 30;
+            default:
+                throw new IllegalArgumentException("Invalid size: " + text + " (expected e.g. 1048576, 512k, 100m or 1g)");
+        }
+    }
+
+    /**
+     * Parses --timestamps into the format of the timestamp column
+     */
+    static SampleLineFormatter.TimestampFormat parseTimestampFormat(Map<String, String> options) {
+        String format = options.getOrDefault("timestamps", "iso");
+        switch (format) {
+            case "iso":
+                return SampleLineFormatter.TimestampFormat.ISO;
+            case "epoch":
+                return SampleLineFormatter.TimestampFormat.EPOCH_MILLIS;
+            default:
+                throw new IllegalArgumentException("Unknown timestamp format: " + format + " (expected iso or epoch)");
+        }
+    }
+
+    /**
+     * Parses --sink-ring and --sink-policy; returns null when the sinks run on the polling thread
+     */
+    static SinkPipelineSettings parseSinkPipelineSettings(Map<String, String> options) {
+        SinkPipelineSettings settings = new SinkPipelineSettings();
+        if (options.containsKey("sink-ring")) {
+            int ring = Integer.parseInt(options.get("sink-ring"));
+            if (ring < 0) {
+                throw new IllegalArgumentException("Sink ring size must not be negative");
+            }
+            if (ring == 0) {
+                return null;
+            }
+            settings.setRingCapacity(ring);
+        }
+        if (options.containsKey("sink-policy")) {
+            for (String entry : options.get("sink-policy").split(",")) {
+                int colon = entry.indexOf(':');
+                if (colon < 0) {
+                    settings.setDefaultPolicy(parseLagPolicy(entry));
+                } else {
+                    settings.setPolicy(entry.substring(0, colon).trim(), parseLagPolicy(entry.substring(colon + 1)));
+                }
+            }
+        }
+        return settings;
+    }
+
+    private static LagPolicy parseLagPolicy(String policy) {
+        switch (policy.trim()) {
+            case "block":
+                return LagPolicy.BLOCK;
+            case "drop":
+                return LagPolicy.DROP;
+            case "sample":
+                return LagPolicy.SAMPLE;
+            default:
+                throw new IllegalArgumentException("Unknown sink policy: " + policy + " (expected block, drop or sample)");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,332 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionBreakdown;
+import org.jetbrains.teamcity.miniagentstats.history.SampleHistory;
+import org.jetbrains.teamcity.miniagentstats.metrics.CollectorMetrics;
+import org.jetbrains.teamcity.miniagentstats.metrics.OpenMetricsEndpoint;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+import org.jetbrains.teamcity.miniagentstats.queue.QueueWaitTracker;
+import org.jetbrains.teamcity.miniagentstats.sink.RotationSettings;
+import org.jetbrains.teamcity.miniagentstats.sink.SinkPipelineSettings;
+import org.jetbrains.teamcity.miniagentstats.utilization.AgentUtilizationTracker;
+
+import javax.xml.bind.JAXBException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Monitors many TeamCity servers from one process
+ *
+ * All servers share one timer thread, one pooled HTTP client and the worker executors for ticks,
+ * requests, agent pages and sinks: virtual threads when the JVM provides them (JDK 21+), otherwise
+ * bounded pools. Output files are written and archived on one bounded scheduled pool.
+ * The thread count therefore does not grow with the number of servers beyond these bounds.
+ * Every output line is prefixed with the name of its server.
+ */
+public class MultiServerMonitor {
+    // Upper bound of platform worker threads used when virtual threads are not available
+    static final int MAX_PLATFORM_WORKERS = 32;
+
+    private final List<ServerConfig> servers;
+    private final Consumer<String> print;
+    private final TeamCityClientFactory clientFactory;
+    private final List<AgentStats> monitors = new ArrayList<>();
+    // Clients created by the factory, closed when monitoring stops
+    private final List<TeamCityClient> clients = new ArrayList<>();
+    private final List<PollingScheduler.Handle> handles = new ArrayList<>();
+    private HttpClientSettings httpClientSettings = new HttpClientSettings();
+    private PollingSettings pollingSettings = new PollingSettings();
+    private CsvSinkSettings csvSinkSettings = new CsvSinkSettings();
+    private SinkPipelineSettings sinkPipelineSettings;
+    private AgentStats.OutputFormat outputFormat = AgentStats.OutputFormat.CSV;
+    private RotationSettings rotationSettings = new RotationSettings();
+    private ScheduledExecutorService timer;
+    private ExecutorService tickExecutor;
+    private ExecutorService requestExecutor;
+    private ExecutorService pageExecutor;
+    private ExecutorService sinkExecutor;
+    private ScheduledExecutorService outputExecutor;
+    private CloseableHttpClient httpClient;
+    private OpenMetricsEndpoint metricsEndpoint;
+    private StageMetrics stageMetrics = StageMetrics.DISABLED;
+    private boolean dimensionBreakdown;
+    private boolean queueWait;
+    private boolean utilization;
+    private boolean reportBytes;
+    private SampleLineFormatter.TimestampFormat timestampFormat = SampleLineFormatter.TimestampFormat.ISO;
+    // Capacity of the sample history of every server; 0 keeps the default
+    private int historyCapacity;
+    private long tickLimit;
+
+    /**
+     * Creates the REST client of one server
+     */
+    public interface TeamCityClientFactory {
+        TeamCityClient create(ServerConfig server) throws JAXBException;
+    }
+
+    public MultiServerMonitor(List<ServerConfig> servers, Consumer<String> print, TeamCityClientFactory clientFactory) {
+        this.servers = servers;
+        this.print = print;
+        this.clientFactory = clientFactory;
+    }
+
+    public void setHttpClientSettings(HttpClientSettings httpClientSettings) {
+        this.httpClientSettings = httpClientSettings;
+    }
+
+    public void setPollingSettings(PollingSettings pollingSettings) {
+        this.pollingSettings = pollingSettings;
+    }
+
+    public void setCsvSinkSettings(CsvSinkSettings csvSinkSettings) {
+        this.csvSinkSettings = csvSinkSettings;
+    }
+
+    /**
+     * Runs the console, output file and metrics of every server as tasks on a shared executor; null writes them on the polling threads
+     */
+    public void setSinkPipelineSettings(SinkPipelineSettings sinkPipelineSettings) {
+        this.sinkPipelineSettings = sinkPipelineSettings;
+    }
+
+    public void setOutputFormat(AgentStats.OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * Rolls the output file of every server over into segments
+     */
+    public void setRotationSettings(RotationSettings rotationSettings) {
+        this.rotationSettings = rotationSettings;
+    }
+
+    /**
+     * Publishes the samples of every server, labelled with the server name, on the given endpoint
+     */
+    public void setMetricsEndpoint(OpenMetricsEndpoint metricsEndpoint) {
+        this.metricsEndpoint = metricsEndpoint;
+    }
+
+    /**
+     * Records the output stages of every server into shared stage histograms
+     */
+    public void setStageMetrics(StageMetrics stageMetrics) {
+        this.stageMetrics = stageMetrics;
+    }
+
+    /**
+     * Counts agents per pool and OS and queued builds per build type for every server;
+     * the client factory must create clients that request the dimensions
+     */
+    public void setDimensionBreakdown(boolean dimensionBreakdown) {
+        this.dimensionBreakdown = dimensionBreakdown;
+    }
+
+    /**
+     * Measures queue wait times of every server; the client factory must create clients that request queued dates
+     */
+    public void setQueueWait(boolean queueWait) {
+        this.queueWait = queueWait;
+    }
+
+    /**
+     * Tracks the busy and idle time of every agent of every server
+     */
+    public void setUtilization(boolean utilization) {
+        this.utilization = utilization;
+    }
+
+    /**
+     * Appends the response bytes received in the tick to the output lines of every server
+     */
+    public void setReportBytes(boolean reportBytes) {
+        this.reportBytes = reportBytes;
+    }
+
+    public void setTimestampFormat(SampleLineFormatter.TimestampFormat timestampFormat) {
+        this.timestampFormat = timestampFormat;
+    }
+
+    /**
+     * Keeps the given number of recent samples of every server in its history
+     */
+    public void setHistoryCapacity(int historyCapacity) {
+        this.historyCapacity = historyCapacity;
+    }
+
+    /**
+     * Stops polling each server after the given number of ticks; 0 polls until stopped
+     */
+    public void setTickLimit(long tickLimit) {
+        this.tickLimit = tickLimit;
+    }
+
+    /**
+     * Waits until every server has run the ticks of the tick limit
+     */
+    public void awaitTickLimit() throws InterruptedException {
+        for (AgentStats monitor : monitors) {
+            monitor.awaitTickLimit();
+        }
+    }
+
+    /**
+     * Returns the monitor of every server in the order of the configuration, e.g. to print summaries once stopped
+     */
+    public List<AgentStats> getMonitors() {
+        return Collections.unmodifiableList(monitors);
+    }
+
+    /**
+     * Returns the client of every server in the order of the configuration
+     */
+    public List<TeamCityClient> getClients() {
+        return Collections.unmodifiableList(clients);
+    }
+
+    /**
+     * Starts polling every configured server; returns immediately
+     */
+    public void start() throws JAXBException, IOException {
+        // Each server keeps up to two requests in flight; size the shared pool accordingly
+        httpClientSettings.setMaxConnectionsTotal(Math.max(httpClientSettings.getMaxConnectionsTotal(), servers.size() * 2));
+        httpClient = httpClientSettings.createHttpClient();
+
+        timer = Executors.newSingleThreadScheduledExecutor(namedDaemonThreads("poll-timer"));
+        // Ticks block on their requests, so ticks and requests use separate executors to avoid starving each other
+        tickExecutor = createWorkerExecutor("poll-tick", Math.min(servers.size(), MAX_PLATFORM_WORKERS));
+        requestExecutor = createWorkerExecutor("poll-request", Math.min(servers.size() * 2, MAX_PLATFORM_WORKERS * 2));
+        // Requests wait for their pages, and sinks for the output writers, so each gets an executor of its own
+        pageExecutor = createWorkerExecutor("poll-page", Math.min(servers.size() * 2, MAX_PLATFORM_WORKERS * 2));
+        sinkExecutor = createWorkerExecutor("poll-sink", Math.min(servers.size(), MAX_PLATFORM_WORKERS));
+        outputExecutor = Executors.newScheduledThreadPool(Math.min(servers.size(), MAX_PLATFORM_WORKERS), namedDaemonThreads("poll-output"));
+        PollingScheduler scheduler = new PollingScheduler(timer, tickExecutor);
+
+        for (ServerConfig server : servers) {
+            String prefix = server.getName() + ",";
+            TeamCityClient client = clientFactory.create(server);
+            clients.add(client);
+            if (client instanceof TeamCityClientImpl) {
+                ((TeamCityClientImpl) client).setPageExecutor(pageExecutor);
+            }
+            AgentStats monitor = new AgentStats(line -> print.accept(prefix + line), client);
+            monitor.setHttpClient(httpClient);
+            monitor.setRequestExecutor(requestExecutor);
+            monitor.setSinkExecutor(sinkExecutor);
+            monitor.setOutputExecutor(outputExecutor);
+            monitor.setPollingSettings(pollingSettings);
+            monitor.setCsvSinkSettings(csvSinkSettings);
+            monitor.setSinkPipelineSettings(sinkPipelineSettings);
+            monitor.setOutputFormat(outputFormat);
+            monitor.setRotationSettings(rotationSettings);
+            monitor.setStageMetrics(stageMetrics);
+            monitor.setReportBytes(reportBytes);
+            monitor.setTimestampFormat(timestampFormat);
+            monitor.setTickLimit(tickLimit);
+            if (historyCapacity > 0) {
+                monitor.setHistory(new SampleHistory(historyCapacity));
+            }
+            if (utilization) {
+                monitor.setUtilizationTracker(new AgentUtilizationTracker(1024));
+            }
+            if (dimensionBreakdown) {
+                monitor.setDimensionBreakdown(new DimensionBreakdown());
+            }
+            if (queueWait) {
+                monitor.setQueueWaitTracker(new QueueWaitTracker());
+            }
+            if (metricsEndpoint != null) {
+                CollectorMetrics metrics = new CollectorMetrics(server.getName());
+                metricsEndpoint.register(metrics);
+                monitor.setMetrics(metrics);
+            }
+            monitors.add(monitor);
+            handles.add(monitor.startPolling(server.getIntervalSeconds(), server.getUrl(), server.getToken(),
+                    server.getOutputFilePath(), scheduler));
+        }
+    }
+
+    /**
+     * Stops polling and releases the shared threads and connections
+     */
+    public void stop() {
+        for (PollingScheduler.Handle handle : handles) {
+            handle.cancel();
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        shutdownAndWait(tickExecutor);
+        shutdownAndWait(requestExecutor);
+        for (AgentStats monitor : monitors) {
+            monitor.stopMonitoring();
+        }
+        for (TeamCityClient client : clients) {
+            if (client instanceof Closeable) {
+                try {
+                    ((Closeable) client).close();
+                } catch (IOException e) {
+                    System.err.println("Error closing TeamCity client: " + e.getMessage());
+                }
+            }
+        }
+        // Closing the monitors wrote their output, so nothing is left for these
+        shutdownAndWait(pageExecutor);
+        shutdownAndWait(sinkExecutor);
+        shutdownAndWait(outputExecutor);
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                System.err.println("Error closing HTTP client: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void shutdownAndWait(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Virtual-thread-per-task executor on JDK 21+, otherwise a fixed pool of daemon threads
+     */
+    static ExecutorService createWorkerExecutor(String name, int platformThreads) {
+        try {
+            // Looked up reflectively so that the tool still compiles and runs on JDK 11
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(1, platformThreads), namedDaemonThreads(name));
+        }
+    }
+
+    private static ThreadFactory namedDaemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,135 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the next tick of a polling task starts
+ *
+ * The policy holds no clock of its own: every decision takes the current time as an
+ * argument, so it can be driven by a controllable clock in tests.
+ * <ul>
+ * <li>Successful ticks stay on the fixed-rate grid; ticks missed meanwhile are skipped, not caught up.</li>
+ * <li>Slow and failed ticks back off exponentially with jitter, up to the configured maximum.</li>
+ * <li>In adaptive mode the interval halves while the queue changes and grows while it is idle,
+ *     within a quarter and four times the configured interval.</li>
+ * </ul>
+ */
+public class PollingPolicy {
+
+    /**
+     * Result of one tick, as reported by the polling task
+     */
+    public enum Outcome {
+        /** The sample differs from the previous one */
+        CHANGED,
+        /** The sample is the same as the previous one */
+        UNCHANGED,
+        /** The server answered too slowly or missed the deadline */
+        SLOW,
+        /** The tick failed */
+        FAILED
+    }
+
+    private final long baseIntervalNanos;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final long maxBackoffNanos;
+    private final long deadlineNanos;
+    private final long slowTickNanos;
+    private final double jitterFraction;
+    private final boolean adaptive;
+    private final Random random;
+
+    private long intervalNanos;
+    private int consecutiveFailures;
+
+    public PollingPolicy(long intervalMillis, PollingSettings settings) {
+        this(intervalMillis, settings, new Random());
+    }
+
+    public PollingPolicy(long intervalMillis, PollingSettings settings, Random random) {
+        this.baseIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.minIntervalNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(100), baseIntervalNanos / 4);
+        this.maxIntervalNanos = baseIntervalNanos * 4;
+        this.maxBackoffNanos = Math.max(baseIntervalNanos, TimeUnit.MILLISECONDS.toNanos(settings.getMaxBackoffMillis()));
+        long deadlineMillis = settings.getDeadlineMillis();
+        this.deadlineNanos = deadlineMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : baseIntervalNanos;
+        this.slowTickNanos = (long) (baseIntervalNanos * settings.getSlowTickFraction());
+        this.jitterFraction = settings.getJitterFraction();
+        this.adaptive = settings.isAdaptive();
+        this.random = random;
+        this.intervalNanos = baseIntervalNanos;
+    }
+
+    /**
+     * Time a tick may spend waiting for the server
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * A successful tick that took longer than this is reported as slow
+     */
+    public long getSlowTickNanos() {
+        return slowTickNanos;
+    }
+
+    /**
+     * Current interval between ticks, which differs from the configured one only in adaptive mode
+     */
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Returns when the next tick should start
+     *
+     * @param tickStartNanos when the finished tick was scheduled to start
+     * @param nowNanos the current time, on the same clock
+     * @param outcome how the tick went
+     */
+    public long nextTickStart(long tickStartNanos, long nowNanos, Outcome outcome) {
+        if (outcome == Outcome.SLOW || outcome == Outcome.FAILED) {
+            consecutiveFailures++;
+            return nowNanos + jitter(backoffNanos());
+        }
+
+        consecutiveFailures = 0;
+        if (adaptive) {
+            if (outcome == Outcome.CHANGED) {
+                intervalNanos = Math.max(minIntervalNanos, intervalNanos / 2);
+            } else {
+                intervalNanos = Math.min(maxIntervalNanos, intervalNanos + intervalNanos / 2);
+            }
+        }
+
+        long next = tickStartNanos + intervalNanos;
+        if (next < nowNanos) {
+            // Skip the ticks that were missed instead of running them back to back
+            long missed = (nowNanos - next) / intervalNanos + 1;
+            next += missed * intervalNanos;
+        }
+        return next;
+    }
+
+    private long backoffNanos() {
+        // Doubling from the configured interval: 2x, 4x, 8x ... capped at the maximum backoff
+        int shift = Math.min(consecutiveFailures, 30);
+        long backoff = baseIntervalNanos << shift;
+        if (backoff <= 0 || backoff > maxBackoffNanos) {
+            return maxBackoffNanos;
+        }
+        return backoff;
+    }
+
+    private long jitter(long delayNanos) {
+        double factor = 1 + jitterFraction * (random.nextDouble() * 2 - 1);
+        return (long) (delayNanos * factor);
+    }
+}
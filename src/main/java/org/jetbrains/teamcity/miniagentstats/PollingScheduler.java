@@ -0,0 +1,112 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs periodic polling tasks of many servers on a shared timer and worker executor
+ *
+ * The timer thread only dispatches ticks; the work runs on the executor, so a slow
+ * server never delays the ticks of the others. The next tick of a task is scheduled
+ * only after the previous one finished, at the time chosen by its {@link PollingPolicy},
+ * so ticks never overlap and missed ticks are not run back to back.
+ */
+public class PollingScheduler {
+    private final ScheduledExecutorService timer;
+    private final Executor executor;
+
+    public PollingScheduler(ScheduledExecutorService timer, Executor executor) {
+        this.timer = timer;
+        this.executor = executor;
+    }
+
+    /**
+     * One tick of a polling task
+     */
+    public interface Task {
+        /**
+         * Runs the tick
+         *
+         * @param deadlineNanos how long the tick may wait for the server
+         * @return how the tick went, which decides when the next one starts
+         */
+        PollingPolicy.Outcome run(long deadlineNanos);
+    }
+
+    /**
+     * Starts running the task on the schedule chosen by the policy, first tick immediately
+     */
+    public Handle schedule(Task task, PollingPolicy policy) {
+        Handle handle = new Handle(task, policy);
+        handle.scheduleAt(System.nanoTime());
+        return handle;
+    }
+
+    /**
+     * A scheduled periodic task
+     */
+    public class Handle {
+        private final Task task;
+        private final PollingPolicy policy;
+        private volatile boolean cancelled;
+        private volatile ScheduledFuture<?> pending;
+
+        private Handle(Task task, PollingPolicy policy) {
+            this.task = task;
+            this.policy = policy;
+        }
+
+        private void scheduleAt(long tickStartNanos) {
+            if (cancelled) {
+                return;
+            }
+            long delay = Math.max(0, tickStartNanos - System.nanoTime());
+            try {
+                pending = timer.schedule(() -> dispatch(tickStartNanos), delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // The timer was shut down
+                cancelled = true;
+            }
+        }
+
+        private void dispatch(long tickStartNanos) {
+            try {
+                executor.execute(() -> runTick(tickStartNanos));
+            } catch (RejectedExecutionException e) {
+                cancelled = true;
+            }
+        }
+
+        private void runTick(long tickStartNanos) {
+            PollingPolicy.Outcome outcome = PollingPolicy.Outcome.FAILED;
+            try {
+                if (!cancelled) {
+                    outcome = task.run(policy.getDeadlineNanos());
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Error in polling task: " + e.getMessage());
+            } finally {
+                // The policy is only touched by the task's own ticks, which never overlap
+                scheduleAt(policy.nextTickStart(tickStartNanos, System.nanoTime(), outcome));
+            }
+        }
+
+        /**
+         * Stops scheduling further ticks; a tick that is already running completes
+         */
+        public void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> future = pending;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+/**
+ * Settings of the polling loop of one server: tick deadline, backoff and adaptive interval
+ */
+public class PollingSettings {
+    private long deadlineMillis = 0;
+    private long maxBackoffMillis = 300_000;
+    private double jitterFraction = 0.2;
+    private double slowTickFraction = 0.5;
+    private boolean adaptive = false;
+
+    /**
+     * Longest time a tick may wait for the server; 0 means one interval
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Upper bound of the delay after consecutive slow or failed ticks
+     */
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Backoff delays are randomized by up to this fraction so that servers are not hit in lockstep
+     */
+    public double getJitterFraction() {
+        return jitterFraction;
+    }
+
+    public void setJitterFraction(double jitterFraction) {
+        this.jitterFraction = jitterFraction;
+    }
+
+    /**
+     * A successful tick that took longer than this fraction of the interval counts as slow
+     */
+    public double getSlowTickFraction() {
+        return slowTickFraction;
+    }
+
+    public void setSlowTickFraction(double slowTickFraction) {
+        this.slowTickFraction = slowTickFraction;
+    }
+
+    /**
+     * When set, the interval shrinks while the queue is changing and grows while it is idle
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+}
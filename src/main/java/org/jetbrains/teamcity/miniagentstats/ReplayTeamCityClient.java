@@ -0,0 +1,174 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseArchive;
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseArchiveReader;
+
+import javax.xml.bind.JAXBException;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Serves the responses of a recorded {@link ResponseArchive} instead of requesting them from a server
+ *
+ * {@link #nextTick()} moves to the next recorded tick; until the next call every request returns the
+ * response recorded for that tick, parsed the same way as {@link TeamCityClientImpl} parses live ones.
+ * The bodies are read in place, so the next tick must not be started while requests of the current one run.
+ * The URL, token and HTTP client passed to the requests are ignored.
+ */
+public class ReplayTeamCityClient implements TeamCityClient, Closeable {
+    private final ResponseArchiveReader reader;
+    // Parses the recorded bodies
+    private final TeamCityClientImpl parser;
+    private final AgentsStreamParser agentsStreamParser = new AgentsStreamParser();
+    private volatile boolean streamingParser = true;
+
+    // Guarded by this; the bodies are kept across ticks for records of unchanged responses
+    private byte[] agents = new byte[0];
+    private int agentsLength = -1;
+    private byte[] buildQueue = new byte[0];
+    private int buildQueueLength = -1;
+    private boolean agentsInTick;
+    private boolean buildQueueInTick;
+    private long tickMillis;
+    // Time of a TICK record that was read but whose responses were not yet, or -1
+    private long nextTickMillis = -1;
+    private long bytesReplayed;
+
+    public ReplayTeamCityClient(Path archive) throws IOException {
+        this.reader = new ResponseArchiveReader(archive);
+        this.parser = new TeamCityClientImpl();
+    }
+
+    /**
+     * Reads agents and the build queue through the JAXB model instead of the StAX stream, like {@link TeamCityClientImpl#setStreamingParser}
+     */
+    public void setStreamingParser(boolean streamingParser) {
+        this.streamingParser = streamingParser;
+        parser.setStreamingParser(streamingParser);
+    }
+
+    /**
+     * Moves to the next recorded tick and reads its responses; returns false at the end of the archive
+     */
+    public synchronized boolean nextTick() throws IOException {
+        if (nextTickMillis < 0) {
+            // Only at the start of the archive: skip to the first tick
+            int type;
+            while ((type = reader.next()) != ResponseArchive.TICK) {
+                if (type == ResponseArchiveReader.END) {
+                    return false;
+                }
+            }
+            nextTickMillis = reader.getTickMillis();
+        }
+        tickMillis = nextTickMillis;
+        nextTickMillis = -1;
+        agentsInTick = false;
+        buildQueueInTick = false;
+        for (int type = reader.next(); type != ResponseArchiveReader.END; type = reader.next()) {
+            if (type == ResponseArchive.TICK) {
+                nextTickMillis = reader.getTickMillis();
+                break;
+            }
+            boolean unchanged = (type & ResponseArchive.UNCHANGED) != 0;
+            if ((type & ~ResponseArchive.UNCHANGED) == ResponseArchive.AGENTS) {
+                if (!unchanged) {
+                    agents = copy(agents);
+                    agentsLength = reader.getLength();
+                }
+                agentsInTick = agentsLength >= 0;
+            } else {
+                if (!unchanged) {
+                    buildQueue = copy(buildQueue);
+                    buildQueueLength = reader.getLength();
+                }
+                buildQueueInTick = buildQueueLength >= 0;
+            }
+        }
+        return true;
+    }
+
+    private byte[] copy(byte[] target) {
+        int length = reader.getLength();
+        byte[] result = target.length >= length ? target : new byte[Math.max(length, target.length * 2)];
+        System.arraycopy(reader.getBody(), 0, result, 0, length);
+        bytesReplayed += length;
+        return result;
+    }
+
+    /**
+     * Time of the current tick as recorded
+     */
+    public synchronized long getTickMillis() {
+        return tickMillis;
+    }
+
+    @Override
+    public int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException {
+        return getQueuedBuildsCount(httpClient, teamCityUrl, authHeader, null);
+    }
+
+    @Override
+    public int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                    QueuedBuildVisitor visitor) throws IOException, JAXBException {
+        return parser.readBuildQueue(buildQueueBody(), visitor);
+    }
+
+    @Override
+    public Agents getAgentStats(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException {
+        return parser.readAgents(agentsBody());
+    }
+
+    @Override
+    public AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException {
+        return getAgentCounts(httpClient, teamCityUrl, authHeader, null);
+    }
+
+    @Override
+    public AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                      AgentVisitor visitor) throws IOException, JAXBException {
+        if (!streamingParser) {
+            return AgentCounts.fromAgents(getAgentStats(httpClient, teamCityUrl, authHeader), visitor);
+        }
+        return agentsStreamParser.parse(agentsBody(), visitor);
+    }
+
+    /**
+     * Bytes of the recorded response bodies read so far
+     */
+    @Override
+    public synchronized long getBytesReceived() {
+        return bytesReplayed;
+    }
+
+    /**
+     * Returns the current tick's body, or fails if the tick has none, e.g. because its request failed while recording
+     */
+    private synchronized InputStream agentsBody() throws IOException {
+        if (!agentsInTick) {
+            throw new IOException("No agents response recorded at " + Instant.ofEpochMilli(tickMillis));
+        }
+        return new ByteArrayInputStream(agents, 0, agentsLength);
+    }
+
+    private synchronized InputStream buildQueueBody() throws IOException {
+        if (!buildQueueInTick) {
+            throw new IOException("No build queue response recorded at " + Instant.ofEpochMilli(tickMillis));
+        }
+        return new ByteArrayInputStream(buildQueue, 0, buildQueueLength);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
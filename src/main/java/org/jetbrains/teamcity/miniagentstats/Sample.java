@@ -0,0 +1,173 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionBreakdown;
+import org.jetbrains.teamcity.miniagentstats.queue.WaitTimeStats;
+
+import java.util.List;
+
+/**
+ * One statistics reading taken from a TeamCity server in a single tick
+ */
+public class Sample {
+    private long timestampMillis;
+    private int queuedBuilds;
+    private int totalAgents;
+    private int busyAgents;
+    // Round-trip time of each REST request and of the whole tick
+    private long queueLatencyNanos;
+    private long agentsLatencyNanos;
+    private long tickLatencyNanos;
+    // Response body bytes received during the tick, and their size after decompression
+    private long bytesReceived;
+    private long bytesDecoded;
+    // Responses received during the tick, and those of them that were unchanged and not parsed
+    private int responses;
+    private int unchangedResponses;
+    // Set when the tick missed its deadline and the values were carried over from the previous sample
+    private boolean stale;
+    // Per pool, OS and build type counters; null unless the breakdown is enabled
+    private DimensionBreakdown.Snapshot breakdown;
+    // Queue wait percentiles per window; null unless queue waits are tracked
+    private List<WaitTimeStats> queueWait;
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public void setTimestampMillis(long timestampMillis) {
+        this.timestampMillis = timestampMillis;
+    }
+
+    public int getQueuedBuilds() {
+        return queuedBuilds;
+    }
+
+    public void setQueuedBuilds(int queuedBuilds) {
+        this.queuedBuilds = queuedBuilds;
+    }
+
+    public int getTotalAgents() {
+        return totalAgents;
+    }
+
+    public void setTotalAgents(int totalAgents) {
+        this.totalAgents = totalAgents;
+    }
+
+    public int getBusyAgents() {
+        return busyAgents;
+    }
+
+    public void setBusyAgents(int busyAgents) {
+        this.busyAgents = busyAgents;
+    }
+
+    public long getQueueLatencyNanos() {
+        return queueLatencyNanos;
+    }
+
+    public void setQueueLatencyNanos(long queueLatencyNanos) {
+        this.queueLatencyNanos = queueLatencyNanos;
+    }
+
+    public long getAgentsLatencyNanos() {
+        return agentsLatencyNanos;
+    }
+
+    public void setAgentsLatencyNanos(long agentsLatencyNanos) {
+        this.agentsLatencyNanos = agentsLatencyNanos;
+    }
+
+    public long getTickLatencyNanos() {
+        return tickLatencyNanos;
+    }
+
+    public void setTickLatencyNanos(long tickLatencyNanos) {
+        this.tickLatencyNanos = tickLatencyNanos;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    public long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    public void setBytesDecoded(long bytesDecoded) {
+        this.bytesDecoded = bytesDecoded;
+    }
+
+    public int getResponses() {
+        return responses;
+    }
+
+    public void setResponses(int responses) {
+        this.responses = responses;
+    }
+
+    public int getUnchangedResponses() {
+        return unchangedResponses;
+    }
+
+    public void setUnchangedResponses(int unchangedResponses) {
+        this.unchangedResponses = unchangedResponses;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void setStale(boolean stale) {
+        this.stale = stale;
+    }
+
+    public DimensionBreakdown.Snapshot getBreakdown() {
+        return breakdown;
+    }
+
+    public void setBreakdown(DimensionBreakdown.Snapshot breakdown) {
+        this.breakdown = breakdown;
+    }
+
+    public List<WaitTimeStats> getQueueWait() {
+        return queueWait;
+    }
+
+    public void setQueueWait(List<WaitTimeStats> queueWait) {
+        this.queueWait = queueWait;
+    }
+
+    /**
+     * Returns a copy of this sample
+     */
+    public Sample copy() {
+        Sample copy = new Sample();
+        copy.set(this);
+        return copy;
+    }
+
+    /**
+     * Overwrites every field with those of another sample, so that samples can be reused
+     */
+    public void set(Sample other) {
+        timestampMillis = other.timestampMillis;
+        queuedBuilds = other.queuedBuilds;
+        totalAgents = other.totalAgents;
+        busyAgents = other.busyAgents;
+        queueLatencyNanos = other.queueLatencyNanos;
+        agentsLatencyNanos = other.agentsLatencyNanos;
+        tickLatencyNanos = other.tickLatencyNanos;
+        bytesReceived = other.bytesReceived;
+        bytesDecoded = other.bytesDecoded;
+        responses = other.responses;
+        unchangedResponses = other.unchangedResponses;
+        stale = other.stale;
+        breakdown = other.breakdown;
+        queueWait = other.queueWait;
+    }
+}
@@ -0,0 +1,213 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Formats samples as output lines into a reused byte array
+ *
+ * Produces the same text as {@code LocalDateTime.toString()} and decimal counters, but writes the digits
+ * straight into the buffer, so formatting a sample allocates nothing. The zone offset is looked up only
+ * when a timestamp falls outside the span between the transitions around the last one.
+ * Not thread-safe; every writer uses its own formatter.
+ */
+public class SampleLineFormatter {
+    /**
+     * How the timestamp column is written
+     */
+    public enum TimestampFormat {
+        /** Local date and time as printed by LocalDateTime, e.g. 2024-01-15T10:15:30.250 */
+        ISO,
+        /** Milliseconds since the epoch */
+        EPOCH_MILLIS
+    }
+
+    private static final byte[] STALE = ",stale".getBytes(StandardCharsets.US_ASCII);
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private final ZoneRules rules;
+    private final TimestampFormat timestampFormat;
+    private byte[] buffer = new byte[128];
+    private int length;
+    // Offset valid for timestamps in [offsetFromMillis, offsetUntilMillis)
+    private long offsetFromMillis = Long.MAX_VALUE;
+    private long offsetUntilMillis = Long.MIN_VALUE;
+    private long offsetMillis;
+
+    public SampleLineFormatter(ZoneId zone, TimestampFormat timestampFormat) {
+        this.rules = zone.getRules();
+        this.timestampFormat = timestampFormat;
+    }
+
+    public TimestampFormat getTimestampFormat() {
+        return timestampFormat;
+    }
+
+    /**
+     * Formats a sample as timestamp, queued builds, total and busy agents, optionally the bytes received,
+     * and "stale" for stale samples; returns the length of the line in {@link #getBuffer()}
+     */
+    public int format(Sample sample, boolean reportBytes) {
+        length = 0;
+        if (timestampFormat == TimestampFormat.EPOCH_MILLIS) {
+            appendLong(sample.getTimestampMillis());
+        } else {
+            appendIsoTimestamp(sample.getTimestampMillis());
+        }
+        appendByte(',');
+        appendLong(sample.getQueuedBuilds());
+        appendByte(',');
+        appendLong(sample.getTotalAgents());
+        appendByte(',');
+        appendLong(sample.getBusyAgents());
+        if (reportBytes) {
+            appendByte(',');
+            appendLong(sample.getBytesReceived());
+        }
+        if (sample.isStale()) {
+            ensureCapacity(STALE.length);
+            System.arraycopy(STALE, 0, buffer, length, STALE.length);
+            length += STALE.length;
+        }
+        return length;
+    }
+
+    /**
+     * The last formatted line, valid until the next call of {@link #format}
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the last formatted line as a string
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private void appendIsoTimestamp(long epochMillis) {
+        if (epochMillis < offsetFromMillis || epochMillis >= offsetUntilMillis) {
+            updateOffset(epochMillis);
+        }
+        long localMillis = epochMillis + offsetMillis;
+        long epochDay = Math.floorDiv(localMillis, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(localMillis, MILLIS_PER_DAY);
+
+        // Civil date from days since 1970-01-01 in the proleptic Gregorian calendar (H. Hinnant)
+        long shifted = epochDay + 719_468;
+        long era = Math.floorDiv(shifted, 146_097);
+        int dayOfEra = (int) (shifted - era * 146_097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year < 0 || year > 9999) {
+            // Outside the four-digit years LocalDateTime prints without a sign; rare enough to allocate
+            byte[] text = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), rules.getOffset(Instant.ofEpochMilli(epochMillis)))
+                    .toString().getBytes(StandardCharsets.US_ASCII);
+            ensureCapacity(text.length);
+            System.arraycopy(text, 0, buffer, length, text.length);
+            length += text.length;
+            return;
+        }
+        ensureCapacity(23);
+        appendDigits((int) year, 4);
+        buffer[length++] = '-';
+        appendDigits(month, 2);
+        buffer[length++] = '-';
+        appendDigits(day, 2);
+        buffer[length++] = 'T';
+        int seconds = millisOfDay / 1000;
+        int millis = millisOfDay % 1000;
+        appendDigits(seconds / 3600, 2);
+        buffer[length++] = ':';
+        appendDigits(seconds / 60 % 60, 2);
+        // Like LocalTime.toString: seconds only if they or the fraction are set, the fraction only if set
+        if (seconds % 60 != 0 || millis != 0) {
+            buffer[length++] = ':';
+            appendDigits(seconds % 60, 2);
+            if (millis != 0) {
+                buffer[length++] = '.';
+                appendDigits(millis, 3);
+            }
+        }
+    }
+
+    /**
+     * Looks up the zone offset at the given time and the span it is valid for
+     */
+    private void updateOffset(long epochMillis) {
+        Instant instant = Instant.ofEpochMilli(epochMillis);
+        offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+        if (rules.isFixedOffset()) {
+            offsetFromMillis = Long.MIN_VALUE;
+            offsetUntilMillis = Long.MAX_VALUE;
+            return;
+        }
+        ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        offsetFromMillis = previous != null ? previous.toEpochSecond() * 1000 : Long.MIN_VALUE;
+        offsetUntilMillis = next != null ? next.toEpochSecond() * 1000 : Long.MAX_VALUE;
+    }
+
+    private void appendDigits(int value, int digits) {
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void appendLong(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            if (value == Long.MIN_VALUE) {
+                // Not representable as a positive long; write its digits from the negative value
+                appendDigitsOfNegative(value);
+                return;
+            }
+            value = -value;
+        }
+        appendDigitsOfNegative(-value);
+    }
+
+    /**
+     * Writes the digits of -value; negative values cover the whole long range
+     */
+    private void appendDigitsOfNegative(long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' - value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void appendByte(char c) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensureCapacity(int more) {
+        if (length + more > buffer.length) {
+            buffer = java.util.Arrays.copyOf(buffer, Math.max(length + more, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Monitoring settings of one TeamCity server in a multi-server configuration file
+ *
+ * The file is a Java properties file:
+ * <pre>
+ * servers=main,linux
+ * interval=30
+ * server.main.url=https://teamcity.example.com
+ * server.main.token=abc123
+ * server.main.output=./main.csv
+ * server.linux.url=https://linux-ci.example.com
+ * server.linux.tokenEnv=LINUX_CI_TOKEN
+ * server.linux.interval=10
+ * </pre>
+ * The top-level interval is the default for servers that do not set their own.
+ */
+public class ServerConfig {
+    private final String name;
+    private final String url;
+    private final String token;
+    private final int intervalSeconds;
+    private final String outputFilePath;
+
+    public ServerConfig(String name, String url, String token, int intervalSeconds, String outputFilePath) {
+        this.name = name;
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.token = token;
+        this.intervalSeconds = intervalSeconds;
+        this.outputFilePath = outputFilePath;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    public String getOutputFilePath() {
+        return outputFilePath;
+    }
+
+    /**
+     * Loads the server list from a configuration file
+     */
+    public static List<ServerConfig> load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return parse(properties);
+    }
+
+    /**
+     * Reads the server list from already loaded properties
+     */
+    static List<ServerConfig> parse(Properties properties) {
+        String servers = properties.getProperty("servers");
+        if (servers == null || servers.trim().isEmpty()) {
+            throw new IllegalArgumentException("Configuration must list servers, e.g. servers=main,linux");
+        }
+        int defaultInterval = parseInterval(properties.getProperty("interval", "30"), "interval");
+
+        List<ServerConfig> result = new ArrayList<>();
+        Set<String> outputs = new HashSet<>();
+        for (String rawName : servers.split(",")) {
+            String name = rawName.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String prefix = "server." + name + ".";
+
+            String url = properties.getProperty(prefix + "url");
+            if (url == null) {
+                throw new IllegalArgumentException("Missing " + prefix + "url");
+            }
+
+            String token = properties.getProperty(prefix + "token");
+            String tokenEnv = properties.getProperty(prefix + "tokenEnv");
+            if (token == null && tokenEnv != null) {
+                token = System.getenv(tokenEnv);
+                if (token == null) {
+                    throw new IllegalArgumentException("Environment variable " + tokenEnv + " for " + prefix + "tokenEnv is not set");
+                }
+            }
+            if (token == null) {
+                throw new IllegalArgumentException("Missing " + prefix + "token or " + prefix + "tokenEnv");
+            }
+
+            String intervalValue = properties.getProperty(prefix + "interval");
+            int interval = intervalValue == null ? defaultInterval : parseInterval(intervalValue, prefix + "interval");
+
+            String output = properties.getProperty(prefix + "output");
+            if (output != null && !outputs.add(output)) {
+                throw new IllegalArgumentException("Output file " + output + " is used by more than one server");
+            }
+
+            result.add(new ServerConfig(name, url, token, interval, output));
+        }
+        return result;
+    }
+
+    private static int parseInterval(String value, String key) {
+        try {
+            int interval = Integer.parseInt(value.trim());
+            if (interval <= 0) {
+                throw new IllegalArgumentException(key + " must be a positive number of seconds");
+            }
+            return interval;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a valid integer");
+        }
+    }
+}
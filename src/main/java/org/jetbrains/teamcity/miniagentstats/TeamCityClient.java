@@ -1,7 +1,10 @@
 package org.jetbrains.teamcity.miniagentstats;
 
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
 import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
 
 import javax.xml.bind.JAXBException;
 import java.io.IOException;
@@ -12,8 +15,62 @@ public interface TeamCityClient {
      */
     int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException;
     
+    /**
+     * Gets the number of builds in the queue and reports every queued build to the visitor.
+     * By default the visitor is not called; clients that only request counts do not call it either.
+     */
+    default int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                     QueuedBuildVisitor visitor) throws IOException, JAXBException {
+        return getQueuedBuildsCount(httpClient, teamCityUrl, authHeader);
+    }
+    
     /**
      * Gets agent statistics
      */
     Agents getAgentStats(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException;
-}
\ No newline at end of file
+    
+    /**
+     * Gets fleet-wide agent counters.
+     * By default they are computed from {@link #getAgentStats}; implementations may count without building the model.
+     */
+    default AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException {
+        return AgentCounts.fromAgents(getAgentStats(httpClient, teamCityUrl, authHeader));
+    }
+    
+    /**
+     * Gets fleet-wide agent counters and reports the state of every agent to the visitor.
+     * Clients that only request counts from the server do not call the visitor.
+     */
+    default AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                       AgentVisitor visitor) throws IOException, JAXBException {
+        return AgentCounts.fromAgents(getAgentStats(httpClient, teamCityUrl, authHeader), visitor);
+    }
+    
+    /**
+     * Gets the total number of response body bytes received so far, or 0 if the client does not track it
+     */
+    default long getBytesReceived() {
+        return 0;
+    }
+    
+    /**
+     * Gets the total number of response body bytes after decompression, or the bytes received if the client does not track it
+     */
+    default long getBytesDecoded() {
+        return getBytesReceived();
+    }
+    
+    /**
+     * Gets the number of successful responses so far, or 0 if the client does not track it
+     */
+    default long getResponses() {
+        return 0;
+    }
+    
+    /**
+     * Gets the number of successful responses that had not changed since the previous request and were not parsed
+     */
+    default long getUnchangedResponses() {
+        return 0;
+    }
+}
@@ -1,26 +1,241 @@
 package org.jetbrains.teamcity.miniagentstats;
 
+import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtils;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
 import org.jetbrains.teamcity.miniagentstats.model.Agents;
 import org.jetbrains.teamcity.miniagentstats.model.BuildQueue;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseArchive;
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseRecorder;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
 
-public class TeamCityClientImpl implements TeamCityClient {
-    private final JAXBContext buildQueueContext;
-    private final JAXBContext agentsContext;
+public class TeamCityClientImpl implements TeamCityClient, Closeable {
+    // Agents that are enabled, connected and running a build, i.e. busy agents
+    static final String BUSY_AGENTS_LOCATOR = "connected:true,enabled:true,running:true";
+    // Extra agents requested past the end of every page, so that agents removed while the pages
+    // are fetched shift others into the overlap instead of between two pages
+    static final int PAGE_OVERLAP = 64;
+    // Response type of requests whose responses are not recorded
+    private static final int NOT_RECORDED = -1;
 
-    public TeamCityClientImpl() throws JAXBException {
-        this.buildQueueContext = JAXBContext.newInstance(BuildQueue.class);
-        this.agentsContext = JAXBContext.newInstance(Agents.class);
+    /**
+     * How much data is requested from the server
+     */
+    public enum RequestMode {
+        /** Full collections; per-agent details are available */
+        FULL,
+        /** Only the count attribute of each collection (fields=count) */
+        COUNTS
+    }
+
+    // Created on first use: building a context takes hundreds of milliseconds and only the JAXB parser needs them
+    private volatile JAXBContext buildQueueContext;
+    private volatile JAXBContext agentsContext;
+    private final AgentsStreamParser agentsStreamParser = new AgentsStreamParser();
+    private final BuildQueueStreamParser buildQueueStreamParser = new BuildQueueStreamParser();
+    private final CountStreamParser countStreamParser = new CountStreamParser();
+    // When false, agents and the build queue are read through the JAXB model instead of the StAX stream
+    private volatile boolean streamingParser = true;
+    private volatile RequestMode requestMode = RequestMode.FULL;
+    // Whether agent pools, operating systems and queued build types are requested
+    private volatile boolean requestDimensions;
+    // Whether the id and queued date of every queued build are requested
+    private volatile boolean requestQueuedDates;
+    // Whether responses are requested gzip-compressed; they are decompressed while they are parsed
+    private volatile boolean compression = true;
+    // Whether a response that did not change since the previous request of its URL is left unparsed
+    private volatile boolean skipUnchanged;
+    // Response body bytes received since the client was created, as sent by the server and after decompression
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesDecoded = new LongAdder();
+    // Successful responses, and those of them that were unchanged and not parsed
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder unchangedResponses = new LongAdder();
+    // Saves full agents and build queue responses; null unless recording
+    private volatile ResponseRecorder recorder;
+    // Last parsed response of every URL requested with skipUnchanged
+    private final Map<String, CachedResponse> cachedResponses = new ConcurrentHashMap<>();
+    private volatile StageMetrics stageMetrics = StageMetrics.DISABLED;
+    // Agents per page of a paged agents request; 0 fetches all agents in one response
+    private volatile int pageSize;
+    private volatile int pageConcurrency = 4;
+    // Fetches pages in parallel; given, or created on the first paged request
+    private Executor pageExecutor;
+    // The page executor created here, shut down by close
+    private ExecutorService ownPageExecutor;
+
+    public TeamCityClientImpl() {
+    }
+
+    public boolean isStreamingParser() {
+        return streamingParser;
+    }
+
+    public void setStreamingParser(boolean streamingParser) {
+        this.streamingParser = streamingParser;
+    }
+
+    public RequestMode getRequestMode() {
+        return requestMode;
+    }
+
+    public void setRequestMode(RequestMode requestMode) {
+        this.requestMode = requestMode;
+    }
+
+    public boolean isRequestDimensions() {
+        return requestDimensions;
+    }
+
+    /**
+     * Also requests the pool and OS of every agent and the build type of every queued build,
+     * which are passed to the visitors. Only applies to FULL mode.
+     */
+    public void setRequestDimensions(boolean requestDimensions) {
+        this.requestDimensions = requestDimensions;
+    }
+
+    public boolean isRequestQueuedDates() {
+        return requestQueuedDates;
+    }
+
+    /**
+     * Also requests when every queued build was queued, which is passed to the queue visitor. Only applies to FULL mode.
+     */
+    public void setRequestQueuedDates(boolean requestQueuedDates) {
+        this.requestQueuedDates = requestQueuedDates;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Sends Accept-Encoding: gzip and decompresses compressed responses on the fly while they are parsed
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    /**
+     * Skips parsing full responses that did not change since the previous request of the same URL, returning the
+     * previous result and replaying its agents and queued builds to the visitors instead.
+     * A response is unchanged if the server answers the previous ETag with 304 Not Modified, or, when the server sends
+     * no ETag, if the body has the same length and checksum; such bodies are buffered before they are parsed.
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+        if (!skipUnchanged) {
+            cachedResponses.clear();
+        }
+    }
+
+    public ResponseRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Saves every full agents and build queue response to the recorder, or stops recording with null.
+     * Paged agents and COUNTS mode responses cannot be replayed and are rejected.
+     */
+    public void setRecorder(ResponseRecorder recorder) {
+        if (recorder != null && (pageSize > 0 || requestMode == RequestMode.COUNTS)) {
+            throw new IllegalArgumentException("Responses can only be recorded in full request mode without paging");
+        }
+        this.recorder = recorder;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Fetches the agents in pages of this many agents with locator=start:X,count:N; 0 disables paging.
+     * Only applies to the streaming parser in FULL mode.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException("Page size must not be negative: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getPageConcurrency() {
+        return pageConcurrency;
+    }
+
+    /**
+     * Sets how many pages are requested at the same time; must be called before the first paged request.
+     * Together with the build queue request this should stay below the connection pool's per-route limit.
+     */
+    public void setPageConcurrency(int pageConcurrency) {
+        if (pageConcurrency < 1) {
+            throw new IllegalArgumentException("Page concurrency must be positive: " + pageConcurrency);
+        }
+        this.pageConcurrency = pageConcurrency;
+    }
+
+    /**
+     * Records connect, first byte, body read, parse and count times of every request
+     */
+    public void setStageMetrics(StageMetrics stageMetrics) {
+        this.stageMetrics = stageMetrics;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesDecoded() {
+        return bytesDecoded.sum();
+    }
+
+    @Override
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    @Override
+    public long getUnchangedResponses() {
+        return unchangedResponses.sum();
     }
 
     /**
@@ -28,39 +243,646 @@ public class TeamCityClientImpl implements TeamCityClient {
      */
     @Override
     public int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException {
-        HttpGet request = new HttpGet(teamCityUrl + "/app/rest/buildQueue");
-        request.setHeader(HttpHeaders.ACCEPT, "application/xml");
-        request.setHeader(HttpHeaders.AUTHORIZATION, authHeader);
-        
-        try (CloseableHttpResponse response = httpClient.execute(request)) {
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new IOException("Failed to get build queue: HTTP " + response.getStatusLine().getStatusCode());
-            }
-            
-            String responseBody = EntityUtils.toString(response.getEntity());
-            Unmarshaller unmarshaller = buildQueueContext.createUnmarshaller();
-            BuildQueue buildQueue = (BuildQueue) unmarshaller.unmarshal(new StringReader(responseBody));
-            return buildQueue.getCount();
+        return getQueuedBuildsCount(httpClient, teamCityUrl, authHeader, null);
+    }
+
+    /**
+     * Gets the number of builds in the queue and reports the build type of every queued build to the visitor,
+     * except in COUNTS mode where no builds are requested
+     */
+    @Override
+    public int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                    QueuedBuildVisitor visitor) throws IOException, JAXBException {
+        if (requestMode == RequestMode.COUNTS) {
+            return get(httpClient, teamCityUrl + "/app/rest/buildQueue?fields=count", authHeader, "build queue",
+                    countStreamParser::parse);
         }
+
+        String url = teamCityUrl + "/app/rest/buildQueue" + queuedBuildFields();
+        VisitRecording visits = skipUnchanged ? new VisitRecording(null, visitor) : null;
+        return get(httpClient, url, authHeader, "build queue", ResponseArchive.BUILD_QUEUE, visits,
+                body -> readBuildQueue(body, visits != null ? visits : visitor));
     }
-    
+
     /**
      * Gets agent statistics
      */
     @Override
     public Agents getAgentStats(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException {
-        HttpGet request = new HttpGet(teamCityUrl + "/app/rest/agents?fields=count,agent(id,enabled,connected,build)");
+        VisitRecording visits = skipUnchanged ? new VisitRecording(null, null) : null;
+        return get(httpClient, agentsUrl(teamCityUrl), authHeader, "agents", ResponseArchive.AGENTS, visits, this::readAgents);
+    }
+
+    /**
+     * Gets agent counters.
+     * In COUNTS mode only the total and busy agent counts are requested; enabled and connected are reported as unknown.
+     * Otherwise the response is streamed through the StAX parser unless the JAXB fallback is selected.
+     */
+    @Override
+    public AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException, JAXBException {
+        return getAgentCounts(httpClient, teamCityUrl, authHeader, null);
+    }
+
+    /**
+     * Gets agent counters and reports every agent to the visitor, except in COUNTS mode where no per-agent data is requested
+     */
+    @Override
+    public AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                      AgentVisitor visitor) throws IOException, JAXBException {
+        if (requestMode == RequestMode.COUNTS) {
+            int total = get(httpClient, teamCityUrl + "/app/rest/agents?fields=count", authHeader, "agents",
+                    countStreamParser::parse);
+            int busy = get(httpClient, teamCityUrl + "/app/rest/agents?locator=" + BUSY_AGENTS_LOCATOR + "&fields=count",
+                    authHeader, "busy agents", countStreamParser::parse);
+            return new AgentCounts(total, AgentCounts.UNKNOWN, AgentCounts.UNKNOWN, busy);
+        }
+
+        if (!streamingParser) {
+            Agents agents = getAgentStats(httpClient, teamCityUrl, authHeader);
+            long countStart = stageMetrics.start();
+            AgentCounts counts = AgentCounts.fromAgents(agents, visitor);
+            stageMetrics.recordSince(StageMetrics.Stage.COUNT, countStart);
+            return counts;
+        }
+
+        if (pageSize > 0) {
+            return getPagedAgentCounts(httpClient, teamCityUrl, authHeader, visitor);
+        }
+
+        VisitRecording visits = skipUnchanged ? new VisitRecording(visitor, null) : null;
+        return get(httpClient, agentsUrl(teamCityUrl), authHeader, "agents", ResponseArchive.AGENTS, visits,
+                body -> agentsStreamParser.parse(body, visits != null ? visits : visitor));
+    }
+
+    /**
+     * Fetches the agents page by page, pageConcurrency pages at a time, and counts them as the pages are parsed.
+     *
+     * Pages overlap by {@link #PAGE_OVERLAP} agents and every agent id is counted once, so agents that move
+     * between pages because others were added or removed in the meantime are neither counted twice nor,
+     * up to the overlap, missed. Agents without an id cannot be told apart and are only counted on the page
+     * they fall on without the overlap. Fetching stops after the first page that is not full.
+     */
+    private AgentCounts getPagedAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                            AgentVisitor visitor) throws IOException, JAXBException {
+        int size = pageSize;
+        int concurrency = pageConcurrency;
+        Executor executor = getPageExecutor();
+        UniqueAgentCounter counter = new UniqueAgentCounter(visitor);
+        int start = 0;
+        boolean more = true;
+        while (more) {
+            List<CompletableFuture<AgentCounts>> pages = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                String url = pagedAgentsUrl(teamCityUrl, start, size + PAGE_OVERLAP);
+                PageVisitor page = new PageVisitor(counter, size);
+                VisitRecording visits = skipUnchanged ? new VisitRecording(page, null) : null;
+                pages.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return get(httpClient, url, authHeader, "agents", NOT_RECORDED, visits,
+                                body -> agentsStreamParser.parse(body, visits != null ? visits : page));
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+                start += size;
+            }
+            for (CompletableFuture<AgentCounts> page : pages) {
+                // A short page is the last one; the pages after it come back empty
+                more &= awaitPage(page).getTotal() == size + PAGE_OVERLAP;
+            }
+        }
+        return counter.toCounts();
+    }
+
+    private static AgentCounts awaitPage(CompletableFuture<AgentCounts> page) throws IOException, JAXBException {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching agents");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JAXBException) {
+                throw (JAXBException) cause;
+            }
+            throw new IOException("Failed to get agents: " + cause, cause);
+        }
+    }
+
+    private synchronized Executor getPageExecutor() {
+        if (pageExecutor == null) {
+            ownPageExecutor = Executors.newFixedThreadPool(pageConcurrency, runnable -> {
+                Thread thread = new Thread(runnable, "teamcity-page");
+                thread.setDaemon(true);
+                return thread;
+            });
+            pageExecutor = ownPageExecutor;
+        }
+        return pageExecutor;
+    }
+
+    /**
+     * Fetches pages on a shared executor instead of a pool of this client; it is not shut down by close.
+     * Must be called before the first paged request, and must not run the requests that wait for the pages.
+     */
+    public synchronized void setPageExecutor(Executor pageExecutor) {
+        this.pageExecutor = pageExecutor;
+    }
+
+    /**
+     * Stops the threads that fetch pages, if this client created them; a later paged request starts them again
+     */
+    @Override
+    public synchronized void close() {
+        if (ownPageExecutor != null) {
+            ownPageExecutor.shutdown();
+            ownPageExecutor = null;
+            pageExecutor = null;
+        }
+    }
+
+    /**
+     * Reads a build queue response and returns its size
+     */
+    int readBuildQueue(InputStream body) throws IOException, JAXBException {
+        return readBuildQueue(body, null);
+    }
+
+    /**
+     * Reads a build queue response, reports its builds to the visitor if one is given, and returns its size.
+     * The response is streamed through the StAX parser unless the JAXB fallback is selected.
+     */
+    int readBuildQueue(InputStream body, QueuedBuildVisitor visitor) throws IOException, JAXBException {
+        if (streamingParser) {
+            return buildQueueStreamParser.parse(body, visitor);
+        }
+        Unmarshaller unmarshaller = buildQueueContext().createUnmarshaller();
+        BuildQueue buildQueue = (BuildQueue) unmarshaller.unmarshal(body);
+        if (visitor != null && buildQueue.getBuilds() != null) {
+            for (BuildQueue.QueuedBuild build : buildQueue.getBuilds()) {
+                visitor.visitQueuedBuild(build.getId(), build.getBuildTypeId(), build.getQueuedDate());
+            }
+        }
+        return buildQueue.getCount();
+    }
+
+    /**
+     * Unmarshals an agents response into the full agent list
+     */
+    Agents readAgents(InputStream body) throws JAXBException {
+        Unmarshaller unmarshaller = agentsContext().createUnmarshaller();
+        return (Agents) unmarshaller.unmarshal(body);
+    }
+
+    private JAXBContext buildQueueContext() throws JAXBException {
+        JAXBContext context = buildQueueContext;
+        if (context == null) {
+            synchronized (this) {
+                context = buildQueueContext;
+                if (context == null) {
+                    context = JAXBContext.newInstance(BuildQueue.class);
+                    buildQueueContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    private JAXBContext agentsContext() throws JAXBException {
+        JAXBContext context = agentsContext;
+        if (context == null) {
+            synchronized (this) {
+                context = agentsContext;
+                if (context == null) {
+                    context = JAXBContext.newInstance(Agents.class);
+                    agentsContext = context;
+                }
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Whether a JAXB context was created, which the streaming parsers avoid
+     */
+    boolean hasJaxbContext() {
+        return buildQueueContext != null || agentsContext != null;
+    }
+
+    private String agentsUrl(String teamCityUrl) {
+        return teamCityUrl + "/app/rest/agents?fields=" + agentFields();
+    }
+
+    private String pagedAgentsUrl(String teamCityUrl, int start, int count) {
+        return teamCityUrl + "/app/rest/agents?locator=start:" + start + ",count:" + count + "&fields=" + agentFields();
+    }
+
+    private String queuedBuildFields() {
+        if (requestQueuedDates) {
+            return requestDimensions ? "?fields=count,build(id,buildTypeId,queuedDate)" : "?fields=count,build(id,queuedDate)";
+        }
+        return requestDimensions ? "?fields=count,build(id,buildTypeId)" : "";
+    }
+
+    private String agentFields() {
+        return requestDimensions
+                ? "count,agent(id,enabled,connected,build,pool(name),environment(osType))"
+                : "count,agent(id,enabled,connected,build)";
+    }
+
+    /**
+     * Sends a GET request and hands the response body to the reader, counting the bytes received
+     */
+    private <T> T get(CloseableHttpClient httpClient, String url, String authHeader, String what, BodyReader<T> reader)
+            throws IOException, JAXBException {
+        return get(httpClient, url, authHeader, what, NOT_RECORDED, null, reader);
+    }
+
+    /**
+     * Sends a GET request and hands the response body to the reader, counting the bytes received.
+     * If visits is given, the reader must report its visits to it, and a response that did not change since
+     * the previous request of the URL is not read: the previous result is returned and its visits are replayed.
+     * Responses of a {@link ResponseArchive} type are also saved to the recorder, if one is set.
+     */
+    private <T> T get(CloseableHttpClient httpClient, String url, String authHeader, String what, int recordType,
+                      VisitRecording visits, BodyReader<T> reader) throws IOException, JAXBException {
+        ResponseRecorder currentRecorder = recordType != NOT_RECORDED ? recorder : null;
+        HttpGet request = new HttpGet(url);
         request.setHeader(HttpHeaders.ACCEPT, "application/xml");
         request.setHeader(HttpHeaders.AUTHORIZATION, authHeader);
-        
-        try (CloseableHttpResponse response = httpClient.execute(request)) {
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new IOException("Failed to get agents: HTTP " + response.getStatusLine().getStatusCode());
+        if (compression) {
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        }
+        CachedResponse cached = visits != null ? cachedResponses.get(url) : null;
+        if (cached != null && cached.etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, cached.etag);
+        }
+
+        StageMetrics stages = stageMetrics;
+        HttpClientContext context = null;
+        TimingRequestExecutor.Timing timing = null;
+        if (stages.isEnabled()) {
+            context = HttpClientContext.create();
+            timing = new TimingRequestExecutor.Timing();
+            context.setAttribute(TimingRequestExecutor.TIMING_ATTRIBUTE, timing);
+        }
+        long start = stages.start();
+
+        try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+            // Only known when the client was created by HttpClientSettings with its TimingRequestExecutor
+            if (timing != null && timing.headersReceivedNanos != 0) {
+                stages.record(StageMetrics.Stage.CONNECT, timing.sendStartNanos - start);
+                stages.record(StageMetrics.Stage.FIRST_BYTE, timing.headersReceivedNanos - timing.sendStartNanos);
+            }
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 304 && cached != null && cached.etag != null) {
+                responses.increment();
+                if (currentRecorder != null) {
+                    currentRecorder.recordUnchanged((byte) recordType);
+                }
+                return reuse(cached, visits);
+            }
+            if (status != 200) {
+                throw new IOException("Failed to get " + what + ": HTTP " + status);
+            }
+            responses.increment();
+
+            CountingInputStream wire = new CountingInputStream(response.getEntity().getContent(), stages.isEnabled());
+            try (InputStream decoded = decode(response, wire)) {
+                RecordingInputStream recording = currentRecorder != null ? new RecordingInputStream(decoded) : null;
+                InputStream in = recording != null ? recording : decoded;
+                long readStart = stages.start();
+                T result = visits != null ? readUnlessUnchanged(url, cached, response, in, visits, reader) : reader.read(in);
+                if (recording != null) {
+                    if (cached != null && result == cached.result) {
+                        currentRecorder.recordUnchanged((byte) recordType);
+                    } else {
+                        recording.drain();
+                        currentRecorder.record((byte) recordType, recording.buffer, recording.length);
+                    }
+                }
+                if (stages.isEnabled()) {
+                    long readerNanos = System.nanoTime() - readStart;
+                    stages.record(StageMetrics.Stage.BODY_READ, wire.readNanos);
+                    stages.record(StageMetrics.Stage.PARSE, readerNanos - wire.readNanos);
+                }
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Wraps a gzip-encoded body in a decompressor; every body is counted again after decoding.
+     * A client with transparent decompression has already removed the Content-Encoding header.
+     */
+    private InputStream decode(HttpResponse response, CountingInputStream wire) throws IOException {
+        Header encoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        if (encoding == null || "identity".equalsIgnoreCase(encoding.getValue())) {
+            wire.decoded = true;
+            return wire;
+        }
+        if (!"gzip".equalsIgnoreCase(encoding.getValue())) {
+            wire.close();
+            throw new IOException("Unsupported response encoding: " + encoding.getValue());
+        }
+        CountingInputStream decoded = new CountingInputStream(new GZIPInputStream(wire, 8192), false);
+        decoded.wire = false;
+        decoded.decoded = true;
+        return decoded;
+    }
+
+    /**
+     * Parses a response and remembers its result and visits for the next request of the URL.
+     * Without an ETag the body is buffered and compared with the previous one first, and not parsed if it is the same.
+     */
+    private <T> T readUnlessUnchanged(String url, CachedResponse cached, HttpResponse response, InputStream body,
+                                      VisitRecording visits, BodyReader<T> reader) throws IOException, JAXBException {
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null) {
+            T result = reader.read(body);
+            cachedResponses.put(url, new CachedResponse(etag.getValue(), -1, 0, result, visits, null));
+            return result;
+        }
+
+        // Reuse the previous body's buffer; taken so that an overlapping request of the same URL cannot share it
+        byte[] buffer = cached != null ? cached.takeBuffer() : null;
+        if (buffer == null) {
+            buffer = new byte[8192];
+        }
+        int length = 0;
+        for (int n; (n = body.read(buffer, length, buffer.length - length)) > 0; ) {
+            length += n;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        long checksum = checksum(buffer, length);
+        if (cached != null && cached.length == length && cached.checksum == checksum) {
+            cached.returnBuffer(buffer);
+            return reuse(cached, visits);
+        }
+        T result = reader.read(new ByteArrayInputStream(buffer, 0, length));
+        cachedResponses.put(url, new CachedResponse(null, length, checksum, result, visits, buffer));
+        return result;
+    }
+
+    /**
+     * Returns the result of an unchanged response and replays its visits
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T reuse(CachedResponse cached, VisitRecording visits) {
+        unchangedResponses.increment();
+        cached.visits.replayTo(visits);
+        return (T) cached.result;
+    }
+
+    /**
+     * Two 32-bit CRCs with different polynomials, both computed by hardware instructions where available
+     */
+    private static long checksum(byte[] buffer, int length) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(buffer, 0, length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer, 0, length);
+        return crc32c.getValue() << 32 | crc32.getValue();
+    }
+
+    /**
+     * The last parsed response of one URL: its ETag, or the length and checksum of its body, and what parsing it produced
+     */
+    private static class CachedResponse {
+        final String etag;
+        // -1 when the response had an ETag
+        final int length;
+        final long checksum;
+        final Object result;
+        final VisitRecording visits;
+        private byte[] buffer;
+
+        CachedResponse(String etag, int length, long checksum, Object result, VisitRecording visits, byte[] buffer) {
+            this.etag = etag;
+            this.length = length;
+            this.checksum = checksum;
+            this.result = result;
+            this.visits = visits;
+            this.buffer = buffer;
+        }
+
+        synchronized byte[] takeBuffer() {
+            byte[] taken = buffer;
+            buffer = null;
+            return taken;
+        }
+
+        synchronized void returnBuffer(byte[] returned) {
+            buffer = returned;
+        }
+    }
+
+    /**
+     * Counts the agents of all pages of one paged request, skipping ids that were already counted,
+     * and passes each agent on to the visitor once. Pages are parsed concurrently, so visits are serialized here.
+     */
+    private static class UniqueAgentCounter {
+        private final AgentVisitor visitor;
+        private long[] seen = new long[16];
+        private int total;
+        private int enabled;
+        private int connected;
+        private int busy;
+
+        UniqueAgentCounter(AgentVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        synchronized void add(int id, boolean agentEnabled, boolean agentConnected, boolean agentBusy, String pool, String os) {
+            if (id >= 0) {
+                int word = id >>> 6;
+                if (word >= seen.length) {
+                    seen = Arrays.copyOf(seen, Math.max(word + 1, seen.length * 2));
+                }
+                long bit = 1L << id;
+                if ((seen[word] & bit) != 0) {
+                    return;
+                }
+                seen[word] |= bit;
+            }
+            total++;
+            if (agentEnabled) {
+                enabled++;
+            }
+            if (agentConnected) {
+                connected++;
+            }
+            if (agentBusy) {
+                busy++;
+            }
+            if (visitor != null) {
+                if (pool != null || os != null) {
+                    visitor.visitDimensions(pool, os);
+                }
+                visitor.visit(id, agentEnabled, agentConnected, agentBusy);
+            }
+        }
+
+        synchronized AgentCounts toCounts() {
+            return new AgentCounts(total, enabled, connected, busy);
+        }
+    }
+
+    /**
+     * Passes the agents of one page on to the counter; agents without an id are dropped from the overlap,
+     * where the next page counts them, as they cannot be recognized there
+     */
+    private static class PageVisitor implements AgentVisitor {
+        private final UniqueAgentCounter counter;
+        private final int size;
+        // Agents visited so far; from size on they are in the overlap
+        private int position;
+        // Dimensions of the agent whose visit follows
+        private String pendingPool;
+        private String pendingOs;
+
+        PageVisitor(UniqueAgentCounter counter, int size) {
+            this.counter = counter;
+            this.size = size;
+        }
+
+        @Override
+        public void visitDimensions(String pool, String os) {
+            pendingPool = pool;
+            pendingOs = os;
+        }
+
+        @Override
+        public void visit(int id, boolean agentEnabled, boolean agentConnected, boolean agentBusy) {
+            String pool = pendingPool;
+            String os = pendingOs;
+            pendingPool = null;
+            pendingOs = null;
+            boolean overlap = position++ >= size;
+            if (id >= 0 || !overlap) {
+                counter.add(id, agentEnabled, agentConnected, agentBusy, pool, os);
+            }
+        }
+    }
+
+    /**
+     * Reads a value from a response body
+     */
+    private interface BodyReader<T> {
+        T read(InputStream body) throws IOException, JAXBException;
+    }
+
+    /**
+     * Keeps a copy of every byte read from a response body
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+        byte[] buffer = new byte[8192];
+        int length;
+
+        RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                ensureCapacity(1);
+                buffer[length++] = (byte) b;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int count) throws IOException {
+            int n = super.read(target, offset, count);
+            if (n > 0) {
+                ensureCapacity(n);
+                System.arraycopy(target, offset, buffer, length, n);
+                length += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Read instead of skipping, so that skipped bytes are kept too
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(read, 0);
+        }
+
+        /**
+         * Reads what the parser left unread, e.g. whitespace after the root element
+         */
+        void drain() throws IOException {
+            byte[] rest = new byte[8192];
+            while (read(rest, 0, rest.length) >= 0) {
+                // Kept by read
+            }
+        }
+
+        private void ensureCapacity(int more) {
+            if (length + more > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(length + more, buffer.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Adds every byte read from the response body to the client's byte counters,
+     * and optionally the time spent waiting for them to readNanos
+     */
+    private class CountingInputStream extends FilterInputStream {
+        private final boolean timed;
+        // Whether the bytes are counted as received from the server, and as decoded response bytes
+        boolean wire = true;
+        boolean decoded;
+        long readNanos;
+
+        CountingInputStream(InputStream in, boolean timed) {
+            super(in);
+            this.timed = timed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = timed ? System.nanoTime() : 0;
+            int b = super.read();
+            if (timed) {
+                readNanos += System.nanoTime() - start;
+            }
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long start = timed ? System.nanoTime() : 0;
+            int n = super.read(buffer, offset, length);
+            if (timed) {
+                readNanos += System.nanoTime() - start;
+            }
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) {
+            if (wire) {
+                bytesReceived.add(n);
+            }
+            if (decoded) {
+                bytesDecoded.add(n);
             }
-            
-            String responseBody = EntityUtils.toString(response.getEntity());
-            Unmarshaller unmarshaller = agentsContext.createUnmarshaller();
-            return (Agents) unmarshaller.unmarshal(new StringReader(responseBody));
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The shared HTTP client as seen by the requests of one tick, so that a tick that misses its
+ * deadline can abort whatever it still has in flight
+ *
+ * Aborting shuts down the connections of the requests, which also stops a response body that is
+ * still being read; requests the tick sends after it was aborted fail immediately. Closing this
+ * client does not close the shared one.
+ */
+@SuppressWarnings("deprecation")
+class TickHttpClient extends CloseableHttpClient {
+    private final CloseableHttpClient delegate;
+    // Every request of the tick: a body is read after execute returns, so requests are kept until the tick ends
+    private final List<HttpUriRequest> requests = new ArrayList<>();
+    private boolean aborted;
+
+    TickHttpClient(CloseableHttpClient delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException, ClientProtocolException {
+        if (request instanceof HttpUriRequest) {
+            HttpUriRequest uriRequest = (HttpUriRequest) request;
+            synchronized (this) {
+                if (aborted) {
+                    uriRequest.abort();
+                } else {
+                    requests.add(uriRequest);
+                }
+            }
+        }
+        return delegate.execute(target, request, context);
+    }
+
+    /**
+     * Aborts the requests of the tick that are still running and any it sends later
+     */
+    synchronized void abort() {
+        aborted = true;
+        for (HttpUriRequest request : requests) {
+            request.abort();
+        }
+        requests.clear();
+    }
+
+    @Override
+    public HttpParams getParams() {
+        return delegate.getParams();
+    }
+
+    @Override
+    public ClientConnectionManager getConnectionManager() {
+        return delegate.getConnectionManager();
+    }
+
+    @Override
+    public void close() {
+    }
+}
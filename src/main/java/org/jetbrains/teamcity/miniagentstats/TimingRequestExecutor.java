@@ -0,0 +1,49 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+
+/**
+ * Notes when a request is sent on its connection and when the response headers arrive
+ *
+ * The times are stored in the {@link Timing} found in the request context; requests
+ * without one, i.e. all of them when stage instrumentation is off, are not touched.
+ */
+class TimingRequestExecutor extends HttpRequestExecutor {
+    static final String TIMING_ATTRIBUTE = "agentstats.timing";
+
+    /**
+     * Times of one request, in System.nanoTime() units; 0 when not reached
+     */
+    static class Timing {
+        long sendStartNanos;
+        long headersReceivedNanos;
+    }
+
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        Object timing = context.getAttribute(TIMING_ATTRIBUTE);
+        if (timing != null) {
+            ((Timing) timing).sendStartNanos = System.nanoTime();
+        }
+        return super.doSendRequest(request, conn, context);
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws HttpException, IOException {
+        HttpResponse response = super.doReceiveResponse(request, conn, context);
+        Object timing = context.getAttribute(TIMING_ATTRIBUTE);
+        if (timing != null) {
+            ((Timing) timing).headersReceivedNanos = System.nanoTime();
+        }
+        return response;
+    }
+}
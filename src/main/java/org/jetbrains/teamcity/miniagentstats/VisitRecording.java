@@ -0,0 +1,128 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+
+import java.util.Arrays;
+
+/**
+ * Records the visits made while one response is parsed and passes them on to the real visitors,
+ * so that they can be replayed when the same response is received again and its parse is skipped
+ *
+ * Agents and queued builds are kept in parallel primitive arrays; a replay only walks the arrays.
+ */
+class VisitRecording implements AgentVisitor, QueuedBuildVisitor {
+    private static final byte ENABLED = 1;
+    private static final byte CONNECTED = 2;
+    private static final byte BUSY = 4;
+
+    private final AgentVisitor agentVisitor;
+    private final QueuedBuildVisitor queuedBuildVisitor;
+
+    private int agents;
+    private int[] agentIds = new int[0];
+    private byte[] agentFlags = new byte[0];
+    private String[] pools = new String[0];
+    private String[] operatingSystems = new String[0];
+    // Dimensions of the agent whose visit follows
+    private String pendingPool;
+    private String pendingOs;
+
+    private int builds;
+    private long[] buildIds = new long[0];
+    private String[] buildTypeIds = new String[0];
+    private String[] queuedDates = new String[0];
+
+    /**
+     * @param agentVisitor receives the agent visits, may be null
+     * @param queuedBuildVisitor receives the queued build visits, may be null
+     */
+    VisitRecording(AgentVisitor agentVisitor, QueuedBuildVisitor queuedBuildVisitor) {
+        this.agentVisitor = agentVisitor;
+        this.queuedBuildVisitor = queuedBuildVisitor;
+    }
+
+    @Override
+    public void visitDimensions(String pool, String os) {
+        pendingPool = pool;
+        pendingOs = os;
+        if (agentVisitor != null) {
+            agentVisitor.visitDimensions(pool, os);
+        }
+    }
+
+    @Override
+    public void visit(int id, boolean enabled, boolean connected, boolean busy) {
+        if (agents == agentIds.length) {
+            int capacity = Math.max(16, agents * 2);
+            agentIds = Arrays.copyOf(agentIds, capacity);
+            agentFlags = Arrays.copyOf(agentFlags, capacity);
+            pools = Arrays.copyOf(pools, capacity);
+            operatingSystems = Arrays.copyOf(operatingSystems, capacity);
+        }
+        agentIds[agents] = id;
+        agentFlags[agents] = (byte) ((enabled ? ENABLED : 0) | (connected ? CONNECTED : 0) | (busy ? BUSY : 0));
+        pools[agents] = pendingPool;
+        operatingSystems[agents] = pendingOs;
+        agents++;
+        pendingPool = null;
+        pendingOs = null;
+        if (agentVisitor != null) {
+            agentVisitor.visit(id, enabled, connected, busy);
+        }
+    }
+
+    @Override
+    public void visitQueuedBuild(long id, String buildTypeId, String queuedDate) {
+        if (builds == buildIds.length) {
+            int capacity = Math.max(16, builds * 2);
+            buildIds = Arrays.copyOf(buildIds, capacity);
+            buildTypeIds = Arrays.copyOf(buildTypeIds, capacity);
+            queuedDates = Arrays.copyOf(queuedDates, capacity);
+        }
+        buildIds[builds] = id;
+        buildTypeIds[builds] = buildTypeId;
+        queuedDates[builds] = queuedDate;
+        builds++;
+        if (queuedBuildVisitor != null) {
+            queuedBuildVisitor.visitQueuedBuild(id, buildTypeId, queuedDate);
+        }
+    }
+
+    /**
+     * Repeats the recorded visits, in their original order, on the visitors of another recording
+     */
+    void replayTo(VisitRecording target) {
+        replayTo(target.agentVisitor, target.queuedBuildVisitor);
+    }
+
+    /**
+     * Repeats the recorded visits, in their original order, on the given visitors; either may be null
+     */
+    void replayTo(AgentVisitor agentTarget, QueuedBuildVisitor buildTarget) {
+        if (agentTarget != null) {
+            for (int i = 0; i < agents; i++) {
+                if (pools[i] != null || operatingSystems[i] != null) {
+                    agentTarget.visitDimensions(pools[i], operatingSystems[i]);
+                }
+                byte flags = agentFlags[i];
+                agentTarget.visit(agentIds[i], (flags & ENABLED) != 0, (flags & CONNECTED) != 0, (flags & BUSY) != 0);
+            }
+        }
+        if (buildTarget != null) {
+            for (int i = 0; i < builds; i++) {
+                buildTarget.visitQueuedBuild(buildIds[i], buildTypeIds[i], queuedDates[i]);
+            }
+        }
+    }
+
+    /**
+     * Forgets the recorded visits, keeping the arrays for the next recording
+     */
+    void reset() {
+        agents = 0;
+        builds = 0;
+        pendingPool = null;
+        pendingOs = null;
+    }
+}
@@ -0,0 +1,153 @@
+package org.jetbrains.teamcity.miniagentstats.dimensions;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentObserver;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+
+import java.util.Arrays;
+
+/**
+ * Counts agents and busy agents per pool and per operating system, and queued builds per build configuration
+ *
+ * Values are dictionary-encoded: every pool, OS and build type name is stored once in a
+ * {@link DimensionDictionary} and the counters of a tick are int arrays indexed by its code,
+ * so a tick allocates nothing for values that were seen before. {@link #beginTick} clears the
+ * counters; after the tick {@link #snapshot} copies the non-empty rows into immutable tables.
+ *
+ * Agents and queued builds are visited from different request threads, so all methods are synchronized.
+ */
+public class DimensionBreakdown implements AgentObserver, QueuedBuildVisitor {
+    /** Label of agents and builds whose dimension was not in the response */
+    public static final String UNKNOWN = "unknown";
+
+    private final DimensionDictionary pools = new DimensionDictionary();
+    private final DimensionDictionary oses = new DimensionDictionary();
+    private final DimensionDictionary buildTypes = new DimensionDictionary();
+    private int[] poolTotals = new int[8];
+    private int[] poolBusy = new int[8];
+    private int[] osTotals = new int[8];
+    private int[] osBusy = new int[8];
+    private int[] queuedByBuildType = new int[8];
+
+    // Codes of the agent whose visit follows visitDimensions
+    private int pendingPool = -1;
+    private int pendingOs = -1;
+
+    @Override
+    public synchronized void beginTick(long nowMillis) {
+        Arrays.fill(poolTotals, 0);
+        Arrays.fill(poolBusy, 0);
+        Arrays.fill(osTotals, 0);
+        Arrays.fill(osBusy, 0);
+        Arrays.fill(queuedByBuildType, 0);
+        pendingPool = -1;
+        pendingOs = -1;
+    }
+
+    @Override
+    public synchronized void visitDimensions(String pool, String os) {
+        pendingPool = pools.encode(pool != null ? pool : UNKNOWN);
+        pendingOs = oses.encode(os != null ? os : UNKNOWN);
+    }
+
+    @Override
+    public synchronized void visit(int id, boolean enabled, boolean connected, boolean busy) {
+        int pool = pendingPool >= 0 ? pendingPool : pools.encode(UNKNOWN);
+        int os = pendingOs >= 0 ? pendingOs : oses.encode(UNKNOWN);
+        pendingPool = -1;
+        pendingOs = -1;
+        poolTotals = ensureCapacity(poolTotals, pool);
+        poolBusy = ensureCapacity(poolBusy, pool);
+        osTotals = ensureCapacity(osTotals, os);
+        osBusy = ensureCapacity(osBusy, os);
+        poolTotals[pool]++;
+        osTotals[os]++;
+        if (busy) {
+            poolBusy[pool]++;
+            osBusy[os]++;
+        }
+    }
+
+    @Override
+    public synchronized void visitQueuedBuild(long id, String buildTypeId, String queuedDate) {
+        int buildType = buildTypes.encode(buildTypeId != null ? buildTypeId : UNKNOWN);
+        queuedByBuildType = ensureCapacity(queuedByBuildType, buildType);
+        queuedByBuildType[buildType]++;
+    }
+
+    @Override
+    public void endTick() {
+        // Counters stay readable through snapshot() until the next tick begins
+    }
+
+    /**
+     * Returns the counters of the last tick
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(
+                table(pools, poolTotals, poolBusy),
+                table(oses, osTotals, osBusy),
+                table(buildTypes, queuedByBuildType, null));
+    }
+
+    private static DimensionTable table(DimensionDictionary dictionary, int[] totals, int[] busy) {
+        int rows = 0;
+        for (int code = 0; code < dictionary.size(); code++) {
+            if (totals[code] > 0) {
+                rows++;
+            }
+        }
+        String[] values = new String[rows];
+        int[] rowTotals = new int[rows];
+        int[] rowBusy = new int[rows];
+        int row = 0;
+        for (int code = 0; code < dictionary.size(); code++) {
+            if (totals[code] > 0) {
+                values[row] = dictionary.decode(code);
+                rowTotals[row] = totals[code];
+                rowBusy[row] = busy != null ? busy[code] : 0;
+                row++;
+            }
+        }
+        return new DimensionTable(values, rowTotals, rowBusy);
+    }
+
+    private static int[] ensureCapacity(int[] counters, int code) {
+        return code < counters.length ? counters : Arrays.copyOf(counters, Math.max(code + 1, counters.length * 2));
+    }
+
+    /**
+     * Per-dimension tables of one tick
+     */
+    public static class Snapshot {
+        private final DimensionTable pools;
+        private final DimensionTable operatingSystems;
+        private final DimensionTable buildTypes;
+
+        Snapshot(DimensionTable pools, DimensionTable operatingSystems, DimensionTable buildTypes) {
+            this.pools = pools;
+            this.operatingSystems = operatingSystems;
+            this.buildTypes = buildTypes;
+        }
+
+        /**
+         * Agents and busy agents per pool name
+         */
+        public DimensionTable getPools() {
+            return pools;
+        }
+
+        /**
+         * Agents and busy agents per operating system family
+         */
+        public DimensionTable getOperatingSystems() {
+            return operatingSystems;
+        }
+
+        /**
+         * Queued builds per build configuration id
+         */
+        public DimensionTable getBuildTypes() {
+            return buildTypes;
+        }
+    }
+}
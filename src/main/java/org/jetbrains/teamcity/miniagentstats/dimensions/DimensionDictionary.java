@@ -0,0 +1,43 @@
+package org.jetbrains.teamcity.miniagentstats.dimensions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns dense int codes 0, 1, 2, ... to the values of one dimension, e.g. pool names
+ *
+ * Each distinct value is stored once, the first time it is seen; later ticks only look it up,
+ * so counters can be kept in arrays indexed by code instead of maps keyed by freshly parsed strings.
+ * Codes are never removed. Not thread-safe.
+ */
+public class DimensionDictionary {
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    /**
+     * Returns the code of the value, assigning the next free code if it is new
+     */
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        int next = values.size();
+        codes.put(value, next);
+        values.add(value);
+        return next;
+    }
+
+    /**
+     * Returns the value of a code
+     */
+    public String decode(int code) {
+        return values.get(code);
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
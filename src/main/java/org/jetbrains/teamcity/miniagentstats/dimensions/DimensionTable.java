@@ -0,0 +1,63 @@
+package org.jetbrains.teamcity.miniagentstats.dimensions;
+
+/**
+ * Immutable per-value counters of one dimension for one tick, e.g. busy agents per pool
+ */
+public class DimensionTable {
+    private final String[] values;
+    private final int[] totals;
+    private final int[] busy;
+
+    DimensionTable(String[] values, int[] totals, int[] busy) {
+        this.values = values;
+        this.totals = totals;
+        this.busy = busy;
+    }
+
+    /**
+     * Number of rows, i.e. distinct values seen in this tick
+     */
+    public int size() {
+        return values.length;
+    }
+
+    public String getValue(int row) {
+        return values[row];
+    }
+
+    public int getTotal(int row) {
+        return totals[row];
+    }
+
+    /**
+     * Busy agents of the row; always 0 for the queued builds table
+     */
+    public int getBusy(int row) {
+        return busy[row];
+    }
+
+    /**
+     * Returns the total of the given value, or 0 if it was not seen in this tick
+     */
+    public int getTotal(String value) {
+        int row = rowOf(value);
+        return row < 0 ? 0 : totals[row];
+    }
+
+    /**
+     * Returns the busy count of the given value, or 0 if it was not seen in this tick
+     */
+    public int getBusy(String value) {
+        int row = rowOf(value);
+        return row < 0 ? 0 : busy[row];
+    }
+
+    private int rowOf(String value) {
+        for (int row = 0; row < values.length; row++) {
+            if (values[row].equals(value)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+}
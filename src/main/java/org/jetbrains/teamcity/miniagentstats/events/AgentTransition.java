@@ -0,0 +1,28 @@
+package org.jetbrains.teamcity.miniagentstats.events;
+
+import java.util.Locale;
+
+/**
+ * A change of one agent's state between two consecutive ticks
+ */
+public enum AgentTransition {
+    /** The agent connected, or appeared in the response */
+    CONNECTED,
+    /** The agent disconnected, or dropped out of the response */
+    DISCONNECTED,
+    /** The agent started running a build */
+    BUILD_STARTED,
+    /** The agent finished running a build */
+    BUILD_FINISHED,
+    /** The agent was enabled */
+    ENABLED,
+    /** The agent was disabled */
+    DISABLED;
+
+    /**
+     * Returns the name used in output lines, e.g. build_started
+     */
+    public String getLabel() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
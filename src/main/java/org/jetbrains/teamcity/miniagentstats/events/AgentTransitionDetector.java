@@ -0,0 +1,163 @@
+package org.jetbrains.teamcity.miniagentstats.events;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentObserver;
+
+import java.util.Arrays;
+
+/**
+ * Turns consecutive agent snapshots into a stream of state transitions.
+ *
+ * The enabled, connected and busy flags of a tick are kept as bitsets indexed by agent id,
+ * next to the bitsets of the previous tick. At the end of a tick both are compared a word
+ * (64 agents) at a time, so agents whose state did not change cost one XOR per 64 of them and
+ * a quiet fleet of 50k agents is diffed in under a thousand word operations.
+ *
+ * Agents missing from a response are treated as disconnected, since the agents collection only
+ * lists connected agents by default. Build and enabled transitions are only reported for agents
+ * present in both ticks, and build transitions only while the agent stays connected; a busy agent
+ * that disconnects is reported as disconnected rather than as having finished its build.
+ * The first tick only sets the baseline and reports nothing.
+ */
+public class AgentTransitionDetector implements AgentObserver {
+    private static final AgentTransition[] TRANSITIONS = AgentTransition.values();
+
+    private long[] present = new long[0];
+    private long[] enabled = new long[0];
+    private long[] connected = new long[0];
+    private long[] busy = new long[0];
+    private long[] previousPresent = new long[0];
+    private long[] previousEnabled = new long[0];
+    private long[] previousConnected = new long[0];
+    private long[] previousBusy = new long[0];
+
+    private boolean baseline = true;
+    private long tickMillis;
+
+    // Transitions detected but not drained yet
+    private long[] eventMillis = new long[64];
+    private int[] eventAgents = new int[64];
+    private byte[] eventKinds = new byte[64];
+    private int eventCount;
+
+    @Override
+    public synchronized void beginTick(long nowMillis) {
+        tickMillis = nowMillis;
+        Arrays.fill(present, 0);
+        Arrays.fill(enabled, 0);
+        Arrays.fill(connected, 0);
+        Arrays.fill(busy, 0);
+    }
+
+    /**
+     * Records the state of one agent in the current tick; negative ids are ignored
+     */
+    @Override
+    public synchronized void visit(int id, boolean agentEnabled, boolean agentConnected, boolean agentBusy) {
+        if (id < 0) {
+            return;
+        }
+        int word = id >>> 6;
+        ensureWords(word + 1);
+        long bit = 1L << id;
+        present[word] |= bit;
+        if (agentEnabled) {
+            enabled[word] |= bit;
+        }
+        if (agentConnected) {
+            connected[word] |= bit;
+        }
+        if (agentBusy) {
+            busy[word] |= bit;
+        }
+    }
+
+    /**
+     * Compares the tick with the previous one and buffers the transitions for {@link #drain}
+     */
+    @Override
+    public synchronized void endTick() {
+        if (!baseline) {
+            for (int word = 0; word < present.length; word++) {
+                long both = previousPresent[word] & present[word];
+                long connectedNow = connected[word];
+                long connectedBefore = previousConnected[word];
+                long connectedChanged = connectedBefore ^ connectedNow;
+                long enabledChanged = (previousEnabled[word] ^ enabled[word]) & both;
+                long busyChanged = (previousBusy[word] ^ busy[word]) & connectedBefore & connectedNow;
+                long changed = connectedChanged | enabledChanged | busyChanged;
+                while (changed != 0) {
+                    int bitIndex = Long.numberOfTrailingZeros(changed);
+                    long bit = 1L << bitIndex;
+                    int id = (word << 6) + bitIndex;
+                    if ((connectedChanged & bit) != 0) {
+                        add(id, (connectedNow & bit) != 0 ? AgentTransition.CONNECTED : AgentTransition.DISCONNECTED);
+                    }
+                    if ((enabledChanged & bit) != 0) {
+                        add(id, (enabled[word] & bit) != 0 ? AgentTransition.ENABLED : AgentTransition.DISABLED);
+                    }
+                    if ((busyChanged & bit) != 0) {
+                        add(id, (busy[word] & bit) != 0 ? AgentTransition.BUILD_STARTED : AgentTransition.BUILD_FINISHED);
+                    }
+                    changed &= changed - 1;
+                }
+            }
+        }
+        baseline = false;
+
+        // The current snapshot becomes the previous one; beginTick clears the other set
+        long[] swap = previousPresent;
+        previousPresent = present;
+        present = swap;
+        swap = previousEnabled;
+        previousEnabled = enabled;
+        enabled = swap;
+        swap = previousConnected;
+        previousConnected = connected;
+        connected = swap;
+        swap = previousBusy;
+        previousBusy = busy;
+        busy = swap;
+    }
+
+    /**
+     * Passes the buffered transitions to the listener in detection order and clears the buffer
+     *
+     * @return the number of transitions passed
+     */
+    public synchronized int drain(TransitionListener listener) {
+        int drained = eventCount;
+        for (int i = 0; i < drained; i++) {
+            listener.onTransition(eventMillis[i], eventAgents[i], TRANSITIONS[eventKinds[i]]);
+        }
+        eventCount = 0;
+        return drained;
+    }
+
+    private void add(int id, AgentTransition transition) {
+        if (eventCount == eventAgents.length) {
+            int capacity = eventCount * 2;
+            eventMillis = Arrays.copyOf(eventMillis, capacity);
+            eventAgents = Arrays.copyOf(eventAgents, capacity);
+            eventKinds = Arrays.copyOf(eventKinds, capacity);
+        }
+        eventMillis[eventCount] = tickMillis;
+        eventAgents[eventCount] = id;
+        eventKinds[eventCount] = (byte) transition.ordinal();
+        eventCount++;
+    }
+
+    private void ensureWords(int words) {
+        if (words <= present.length) {
+            return;
+        }
+        int capacity = Math.max(words, present.length * 2);
+        present = Arrays.copyOf(present, capacity);
+        enabled = Arrays.copyOf(enabled, capacity);
+        connected = Arrays.copyOf(connected, capacity);
+        busy = Arrays.copyOf(busy, capacity);
+        previousPresent = Arrays.copyOf(previousPresent, capacity);
+        previousEnabled = Arrays.copyOf(previousEnabled, capacity);
+        previousConnected = Arrays.copyOf(previousConnected, capacity);
+        previousBusy = Arrays.copyOf(previousBusy, capacity);
+    }
+}
@@ -0,0 +1,13 @@
+package org.jetbrains.teamcity.miniagentstats.events;
+
+/**
+ * Receives the transitions detected by {@link AgentTransitionDetector}
+ */
+public interface TransitionListener {
+    /**
+     * @param timestampMillis epoch millis of the tick that observed the transition
+     * @param agentId the agent id
+     * @param transition what changed
+     */
+    void onTransition(long timestampMillis, int agentId, AgentTransition transition);
+}
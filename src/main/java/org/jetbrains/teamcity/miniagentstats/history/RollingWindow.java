@@ -0,0 +1,92 @@
+package org.jetbrains.teamcity.miniagentstats.history;
+
+/**
+ * Incrementally maintained min, max, sum and histogram of one metric over a sliding range of samples
+ *
+ * Samples are identified by their sequence number; values are looked up in the metric's ring.
+ * Min and max use monotonic deques of sequence numbers, so every sample is pushed and
+ * popped at most once.
+ */
+class RollingWindow {
+    private final int[] ring;
+    private final int capacity;
+    private final ValueHistogram histogram = new ValueHistogram();
+    private long sum;
+    private int count;
+
+    // Deques of sequence numbers, stored in rings of the same capacity as the samples
+    private final int[] minDeque;
+    private int minHead;
+    private int minSize;
+    private final int[] maxDeque;
+    private int maxHead;
+    private int maxSize;
+
+    RollingWindow(int[] ring) {
+        this.ring = ring;
+        this.capacity = ring.length;
+        this.minDeque = new int[capacity];
+        this.maxDeque = new int[capacity];
+    }
+
+    private int value(int seq) {
+        return ring[Math.floorMod(seq, capacity)];
+    }
+
+    void add(int seq, int value) {
+        sum += value;
+        count++;
+        histogram.add(value);
+
+        while (minSize > 0 && value(minDeque[Math.floorMod(minHead + minSize - 1, capacity)]) >= value) {
+            minSize--;
+        }
+        minDeque[Math.floorMod(minHead + minSize, capacity)] = seq;
+        minSize++;
+
+        while (maxSize > 0 && value(maxDeque[Math.floorMod(maxHead + maxSize - 1, capacity)]) <= value) {
+            maxSize--;
+        }
+        maxDeque[Math.floorMod(maxHead + maxSize, capacity)] = seq;
+        maxSize++;
+    }
+
+    /**
+     * Removes the oldest sample of the window, which must be seq
+     */
+    void remove(int seq) {
+        int value = value(seq);
+        sum -= value;
+        count--;
+        histogram.remove(value);
+
+        if (minSize > 0 && minDeque[minHead] == seq) {
+            minHead = (minHead + 1) % capacity;
+            minSize--;
+        }
+        if (maxSize > 0 && maxDeque[maxHead] == seq) {
+            maxHead = (maxHead + 1) % capacity;
+            maxSize--;
+        }
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getMin() {
+        return minSize == 0 ? 0 : value(minDeque[Math.floorMod(minHead, capacity)]);
+    }
+
+    int getMax() {
+        return maxSize == 0 ? 0 : value(maxDeque[Math.floorMod(maxHead, capacity)]);
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    long getP95() {
+        return histogram.quantile(0.95);
+    }
+}
@@ -0,0 +1,192 @@
+package org.jetbrains.teamcity.miniagentstats.history;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded history of the most recent samples with rolling rollups
+ *
+ * Samples live in primitive rings (no boxing, no per-sample objects). Every insert updates
+ * min, max, mean and p95 of each metric over each configured time window incrementally.
+ *
+ * There is a single writer, the poller. Readers on other threads never block it: they read
+ * optimistically under a sequence lock and retry if an insert happened meanwhile.
+ */
+public class SampleHistory {
+
+    /**
+     * Metrics kept in the history
+     */
+    public enum Metric {
+        QUEUED_BUILDS,
+        TOTAL_AGENTS,
+        BUSY_AGENTS
+    }
+
+    /** 1 minute, 5 minutes and 1 hour */
+    public static final long[] DEFAULT_WINDOWS_MILLIS = {
+            TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5), TimeUnit.HOURS.toMillis(1)
+    };
+
+    private final int capacity;
+    private final long[] timestamps;
+    // values[metric][slot]
+    private final int[][] values;
+    private final long[] windowsMillis;
+    // windows[window][metric]
+    private final RollingWindow[][] windows;
+    // Sequence number of the oldest sample still in each window
+    private final int[] windowStart;
+    // Number of samples ever added; the next sample gets this sequence number
+    private int nextSeq;
+    // Odd while an insert is in progress
+    private volatile long version;
+
+    public SampleHistory(int capacity) {
+        this(capacity, DEFAULT_WINDOWS_MILLIS);
+    }
+
+    public SampleHistory(int capacity, long... windowsMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.values = new int[Metric.values().length][capacity];
+        this.windowsMillis = windowsMillis.clone();
+        this.windows = new RollingWindow[windowsMillis.length][Metric.values().length];
+        for (int w = 0; w < windowsMillis.length; w++) {
+            for (int m = 0; m < values.length; m++) {
+                windows[w][m] = new RollingWindow(values[m]);
+            }
+        }
+        this.windowStart = new int[windowsMillis.length];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long[] getWindowsMillis() {
+        return windowsMillis.clone();
+    }
+
+    /**
+     * Adds a sample; must only be called from the polling thread
+     */
+    public void add(long timestampMillis, int queuedBuilds, int totalAgents, int busyAgents) {
+        long v = version;
+        version = v + 1;
+        // Keep the data writes below from moving before the odd version becomes visible
+        VarHandle.storeStoreFence();
+
+        int seq = nextSeq;
+        // The slot about to be reused must leave every window first
+        evictBefore(seq - capacity + 1);
+
+        int slot = Math.floorMod(seq, capacity);
+        timestamps[slot] = timestampMillis;
+        values[Metric.QUEUED_BUILDS.ordinal()][slot] = queuedBuilds;
+        values[Metric.TOTAL_AGENTS.ordinal()][slot] = totalAgents;
+        values[Metric.BUSY_AGENTS.ordinal()][slot] = busyAgents;
+        for (RollingWindow[] window : windows) {
+            for (int m = 0; m < window.length; m++) {
+                window[m].add(seq, values[m][slot]);
+            }
+        }
+        nextSeq = seq + 1;
+
+        // Drop samples that have aged out of each window
+        for (int w = 0; w < windows.length; w++) {
+            long cutoff = timestampMillis - windowsMillis[w];
+            while (windowStart[w] < seq && timestamps[Math.floorMod(windowStart[w], capacity)] <= cutoff) {
+                removeFromWindow(w, windowStart[w]);
+            }
+        }
+
+        version = v + 2;
+    }
+
+    private void evictBefore(int seq) {
+        for (int w = 0; w < windows.length; w++) {
+            while (windowStart[w] < seq) {
+                removeFromWindow(w, windowStart[w]);
+            }
+        }
+    }
+
+    private void removeFromWindow(int w, int seq) {
+        for (RollingWindow window : windows[w]) {
+            window.remove(seq);
+        }
+        windowStart[w] = seq + 1;
+    }
+
+    /**
+     * Number of samples currently held, at most the capacity
+     */
+    public int size() {
+        while (true) {
+            long before = beginRead();
+            int size = Math.min(nextSeq, capacity);
+            if (endRead(before)) {
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Returns the rollup of a metric over the window with the given index in {@link #getWindowsMillis()}
+     */
+    public WindowStats getWindowStats(Metric metric, int windowIndex) {
+        RollingWindow window = windows[windowIndex][metric.ordinal()];
+        while (true) {
+            long before = beginRead();
+            int count = window.getCount();
+            int min = window.getMin();
+            int max = window.getMax();
+            double mean = window.getMean();
+            long p95 = window.getP95();
+            if (endRead(before)) {
+                return new WindowStats(windowsMillis[windowIndex], count, min, max, mean, p95);
+            }
+        }
+    }
+
+    /**
+     * Copies up to timestamps.length most recent samples, oldest first, into the arrays
+     *
+     * @return the number of samples copied
+     */
+    public int copyRecent(long[] timestamps, int[] queuedBuilds, int[] totalAgents, int[] busyAgents) {
+        while (true) {
+            long before = beginRead();
+            int end = nextSeq;
+            int n = Math.min(Math.min(end, capacity), timestamps.length);
+            for (int i = 0; i < n; i++) {
+                int slot = Math.floorMod(end - n + i, capacity);
+                timestamps[i] = this.timestamps[slot];
+                queuedBuilds[i] = values[Metric.QUEUED_BUILDS.ordinal()][slot];
+                totalAgents[i] = values[Metric.TOTAL_AGENTS.ordinal()][slot];
+                busyAgents[i] = values[Metric.BUSY_AGENTS.ordinal()][slot];
+            }
+            if (endRead(before)) {
+                return n;
+            }
+        }
+    }
+
+    private long beginRead() {
+        long v;
+        while (((v = version) & 1) != 0) {
+            Thread.onSpinWait();
+        }
+        return v;
+    }
+
+    private boolean endRead(long before) {
+        // Keep the data reads above from moving after the version check
+        VarHandle.loadLoadFence();
+        return version == before;
+    }
+}
@@ -0,0 +1,87 @@
+package org.jetbrains.teamcity.miniagentstats.history;
+
+/**
+ * Fixed-size histogram of non-negative values with add and remove
+ *
+ * Values below {@value #EXACT_LIMIT} have a bucket each; larger values fall into
+ * log-linear buckets, 16 per power of two, so quantiles of large values are
+ * accurate to about 6%. The bucket layout is shared by the other histograms of the tool.
+ */
+public class ValueHistogram {
+    public static final int EXACT_LIMIT = 256;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int FIRST_LOG_EXPONENT = 8;
+    /** Number of buckets needed to cover every non-negative long */
+    public static final int BUCKET_COUNT = EXACT_LIMIT + (63 - FIRST_LOG_EXPONENT) * SUB_BUCKETS;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private int total;
+
+    /**
+     * Returns the bucket of a value; negative values count as 0
+     */
+    public static int bucketIndex(long value) {
+        if (value < EXACT_LIMIT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT_LIMIT + (exponent - FIRST_LOG_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value that falls into the bucket
+     */
+    public static long bucketUpperBound(int index) {
+        if (index < EXACT_LIMIT) {
+            return index;
+        }
+        int exponent = FIRST_LOG_EXPONENT + (index - EXACT_LIMIT) / SUB_BUCKETS;
+        int subBucket = (index - EXACT_LIMIT) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void add(int value) {
+        counts[bucketIndex(value)]++;
+        total++;
+    }
+
+    public void remove(int value) {
+        counts[bucketIndex(value)]--;
+        total--;
+    }
+
+    /**
+     * Adds every value counted by another histogram
+     */
+    public void add(ValueHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the value at the quantile (0..1), as the upper bound of its bucket, or 0 if empty
+     */
+    public long quantile(double quantile) {
+        if (total <= 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,54 @@
+package org.jetbrains.teamcity.miniagentstats.history;
+
+/**
+ * Rollup of one metric over one rolling window
+ */
+public class WindowStats {
+    private final long windowMillis;
+    private final int count;
+    private final int min;
+    private final int max;
+    private final double mean;
+    private final long p95;
+
+    public WindowStats(long windowMillis, int count, int min, int max, double mean, long p95) {
+        this.windowMillis = windowMillis;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.p95 = p95;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Number of samples in the window; the other values are 0 when it is 0
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP95() {
+        return p95;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d min=%d max=%d mean=%.1f p95=%d", count, min, max, mean, p95);
+    }
+}
@@ -0,0 +1,128 @@
+package org.jetbrains.teamcity.miniagentstats.metrics;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest values and collector counters of one monitored server, as exposed by the metrics endpoint
+ *
+ * Written by the polling tick of the server and read by the endpoint when it renders;
+ * every update notifies the endpoint so that it can re-render its response.
+ */
+public class CollectorMetrics {
+    /**
+     * Why a tick did not produce a fresh sample
+     */
+    public enum ErrorKind {
+        /** The server did not answer before the tick's deadline */
+        DEADLINE,
+        /** The request failed or the response could not be read */
+        ERROR
+    }
+
+    private final String server;
+    private volatile Sample lastSample;
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong fetchLatencyNanos = new AtomicLong();
+    private final AtomicLong deadlineMisses = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesDecoded = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong unchangedResponses = new AtomicLong();
+    // Set by the endpoint the metrics are registered with
+    private volatile Runnable listener;
+
+    /**
+     * @param server value of the server label of every metric
+     */
+    public CollectorMetrics(String server) {
+        this.server = server;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Records a fresh sample and the latency of the tick that fetched it
+     */
+    public void recordSample(Sample sample) {
+        lastSample = sample;
+        fetchLatencyNanos.addAndGet(sample.getTickLatencyNanos());
+        bytesReceived.addAndGet(sample.getBytesReceived());
+        bytesDecoded.addAndGet(sample.getBytesDecoded());
+        responses.addAndGet(sample.getResponses());
+        unchangedResponses.addAndGet(sample.getUnchangedResponses());
+        fetches.incrementAndGet();
+        notifyListener();
+    }
+
+    /**
+     * Records a tick that produced no fresh sample
+     */
+    public void recordError(ErrorKind kind) {
+        if (kind == ErrorKind.DEADLINE) {
+            deadlineMisses.incrementAndGet();
+        } else {
+            errors.incrementAndGet();
+        }
+        notifyListener();
+    }
+
+    /**
+     * Returns the last fresh sample, or null if none was fetched yet
+     */
+    public Sample getLastSample() {
+        return lastSample;
+    }
+
+    public long getFetches() {
+        return fetches.get();
+    }
+
+    public long getFetchLatencyNanos() {
+        return fetchLatencyNanos.get();
+    }
+
+    public long getErrors(ErrorKind kind) {
+        return kind == ErrorKind.DEADLINE ? deadlineMisses.get() : errors.get();
+    }
+
+    /**
+     * Response body bytes received in successful ticks, as sent by the server
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Response body bytes received in successful ticks, after decompression
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded.get();
+    }
+
+    public long getResponses() {
+        return responses.get();
+    }
+
+    /**
+     * Responses that had not changed since the previous tick and were not parsed
+     */
+    public long getUnchangedResponses() {
+        return unchangedResponses.get();
+    }
+
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    private void notifyListener() {
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.jetbrains.teamcity.miniagentstats.metrics;
+
+import org.jetbrains.teamcity.miniagentstats.history.ValueHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram that many threads can record into without locking
+ *
+ * Uses the log-linear bucket layout of {@link ValueHistogram}, so quantiles are accurate
+ * to about 6% over the whole range of long values. Recording is one atomic increment
+ * plus a max update that only retries while the maximum grows.
+ */
+public class ConcurrentHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(ValueHistogram.BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        counts.incrementAndGet(ValueHistogram.bucketIndex(value));
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Returns the values recorded since the previous call and starts over.
+     * Values recorded concurrently end up in either this snapshot or the next one, never in both.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] snapshot = new long[ValueHistogram.BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+            total += snapshot[i];
+        }
+        return new Snapshot(snapshot, total, max.getAndSet(0));
+    }
+
+    /**
+     * Immutable copy of the recorded values
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long total, long max) {
+            this.counts = counts;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the value at the quantile (0..1), as the upper bound of its bucket capped at the maximum, or 0 if empty
+         */
+        public long quantile(double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(ValueHistogram.bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.jetbrains.teamcity.miniagentstats.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionBreakdown;
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionTable;
+import org.jetbrains.teamcity.miniagentstats.queue.WaitTimeStats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Serves the latest samples and collector counters in the OpenMetrics text format
+ *
+ * The response is rendered once per update into a byte array that replaces the previous one
+ * through a volatile write. A scrape only writes the current array to the socket, so it takes
+ * no lock and allocates nothing of its own, and it never waits for a tick in progress.
+ */
+public class OpenMetricsEndpoint implements Closeable {
+    public static final String PATH = "/metrics";
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final HttpServer server;
+    private final List<CollectorMetrics> collectors = new CopyOnWriteArrayList<>();
+    // Pre-rendered response body, replaced as a whole after every update
+    private volatile byte[] body;
+
+    /**
+     * Binds the endpoint to the given address; port 0 picks a free port
+     */
+    public OpenMetricsEndpoint(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        render();
+    }
+
+    /**
+     * Starts answering scrapes on a background thread
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Returns the port the endpoint listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Adds the metrics of one server to the response; they are re-rendered on every update
+     */
+    public void register(CollectorMetrics metrics) {
+        collectors.add(metrics);
+        metrics.setListener(this::render);
+        render();
+    }
+
+    /**
+     * Returns the current response body
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] current = body;
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, current.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(current);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders all registered metrics and publishes the result.
+     * Called from the polling ticks; synchronized so that concurrent ticks of different servers
+     * publish complete renderings in order.
+     */
+    private synchronized void render() {
+        StringBuilder out = new StringBuilder(256 + collectors.size() * 1024);
+
+        family(out, "teamcity_queued_builds", "gauge", "Builds waiting in the build queue");
+        for (CollectorMetrics metrics : collectors) {
+            Sample sample = metrics.getLastSample();
+            if (sample != null) {
+                sample(out, "teamcity_queued_builds", metrics, sample.getQueuedBuilds());
+            }
+        }
+        family(out, "teamcity_agents", "gauge", "Connected and authorized agents");
+        for (CollectorMetrics metrics : collectors) {
+            Sample sample = metrics.getLastSample();
+            if (sample != null) {
+                sample(out, "teamcity_agents", metrics, sample.getTotalAgents());
+            }
+        }
+        family(out, "teamcity_busy_agents", "gauge", "Agents running a build");
+        for (CollectorMetrics metrics : collectors) {
+            Sample sample = metrics.getLastSample();
+            if (sample != null) {
+                sample(out, "teamcity_busy_agents", metrics, sample.getBusyAgents());
+            }
+        }
+        breakdown(out, "teamcity_pool_agents", "Agents per agent pool", DimensionBreakdown.Snapshot::getPools, "pool", false);
+        breakdown(out, "teamcity_pool_busy_agents", "Agents running a build per agent pool", DimensionBreakdown.Snapshot::getPools, "pool", true);
+        breakdown(out, "teamcity_os_agents", "Agents per operating system", DimensionBreakdown.Snapshot::getOperatingSystems, "os", false);
+        breakdown(out, "teamcity_os_busy_agents", "Agents running a build per operating system",
+                DimensionBreakdown.Snapshot::getOperatingSystems, "os", true);
+        breakdown(out, "teamcity_build_type_queued_builds", "Builds waiting in the build queue per build configuration",
+                DimensionBreakdown.Snapshot::getBuildTypes, "build_type", false);
+        queueWait(out);
+        family(out, "agentstats_last_sample_timestamp_seconds", "gauge", "Time of the last fresh sample");
+        for (CollectorMetrics metrics : collectors) {
+            Sample sample = metrics.getLastSample();
+            if (sample != null) {
+                sample(out, "agentstats_last_sample_timestamp_seconds", metrics, sample.getTimestampMillis() / 1000.0);
+            }
+        }
+
+        family(out, "agentstats_fetch_latency_seconds", "summary", "Duration of successful polling ticks");
+        for (CollectorMetrics metrics : collectors) {
+            sample(out, "agentstats_fetch_latency_seconds_count", metrics, metrics.getFetches());
+            sample(out, "agentstats_fetch_latency_seconds_sum", metrics, metrics.getFetchLatencyNanos() / 1e9);
+        }
+        family(out, "agentstats_fetch_errors", "counter", "Polling ticks that produced no fresh sample");
+        for (CollectorMetrics metrics : collectors) {
+            for (CollectorMetrics.ErrorKind kind : CollectorMetrics.ErrorKind.values()) {
+                sample(out, "agentstats_fetch_errors_total", metrics, metrics.getErrors(kind), "reason", kind.name().toLowerCase(Locale.ROOT));
+            }
+        }
+        family(out, "agentstats_response_bytes", "counter", "Response body bytes of successful ticks, as received and after decompression");
+        for (CollectorMetrics metrics : collectors) {
+            sample(out, "agentstats_response_bytes_total", metrics, metrics.getBytesReceived(), "encoding", "wire");
+            sample(out, "agentstats_response_bytes_total", metrics, metrics.getBytesDecoded(), "encoding", "decoded");
+        }
+        family(out, "agentstats_responses", "counter", "Responses of successful ticks, parsed or left unparsed because they had not changed");
+        for (CollectorMetrics metrics : collectors) {
+            sample(out, "agentstats_responses_total", metrics, metrics.getResponses() - metrics.getUnchangedResponses(), "result", "parsed");
+            sample(out, "agentstats_responses_total", metrics, metrics.getUnchangedResponses(), "result", "unchanged");
+        }
+        out.append("# EOF\n");
+
+        body = out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Renders queue wait percentiles and departures per window, only if some server tracks queue waits.
+     * They are gauges rather than a summary because the windowed counts are not monotonic.
+     */
+    private void queueWait(StringBuilder out) {
+        boolean headerWritten = false;
+        for (CollectorMetrics metrics : collectors) {
+            Sample sample = metrics.getLastSample();
+            if (sample == null || sample.getQueueWait() == null) {
+                continue;
+            }
+            if (!headerWritten) {
+                family(out, "teamcity_queue_wait_seconds", "gauge", "Time builds that left the queue in the window waited in it");
+                headerWritten = true;
+            }
+            for (WaitTimeStats stats : sample.getQueueWait()) {
+                String window = stats.getWindowMillis() / 1000 + "s";
+                sample(out, "teamcity_queue_wait_seconds", metrics, stats.getP50Millis() / 1000.0, "window", window, "percentile", "50");
+                sample(out, "teamcity_queue_wait_seconds", metrics, stats.getP90Millis() / 1000.0, "window", window, "percentile", "90");
+                sample(out, "teamcity_queue_wait_seconds", metrics, stats.getP99Millis() / 1000.0, "window", window, "percentile", "99");
+            }
+        }
+        headerWritten = false;
+        for (CollectorMetrics metrics : collectors) {
+            Sample sample = metrics.getLastSample();
+            if (sample == null || sample.getQueueWait() == null) {
+                continue;
+            }
+            if (!headerWritten) {
+                family(out, "teamcity_queue_departures", "gauge", "Builds that left the queue in the window");
+                headerWritten = true;
+            }
+            for (WaitTimeStats stats : sample.getQueueWait()) {
+                sample(out, "teamcity_queue_departures", metrics, stats.getCount(), "window", stats.getWindowMillis() / 1000 + "s");
+            }
+        }
+    }
+
+    /**
+     * Renders one gauge family with a row label, only if some server has a breakdown
+     */
+    private void breakdown(StringBuilder out, String name, String help, Function<DimensionBreakdown.Snapshot, DimensionTable> table,
+                           String label, boolean busy) {
+        boolean headerWritten = false;
+        for (CollectorMetrics metrics : collectors) {
+            Sample sample = metrics.getLastSample();
+            if (sample == null || sample.getBreakdown() == null) {
+                continue;
+            }
+            if (!headerWritten) {
+                family(out, name, "gauge", help);
+                headerWritten = true;
+            }
+            DimensionTable rows = table.apply(sample.getBreakdown());
+            for (int row = 0; row < rows.size(); row++) {
+                sample(out, name, metrics, busy ? rows.getBusy(row) : rows.getTotal(row), label, rows.getValue(row));
+            }
+        }
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, CollectorMetrics metrics, long value, String... labels) {
+        labels(out.append(name), metrics, labels).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, CollectorMetrics metrics, double value, String... labels) {
+        labels(out.append(name), metrics, labels).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes the server label followed by the given label name and value pairs
+     */
+    private static StringBuilder labels(StringBuilder out, CollectorMetrics metrics, String... labels) {
+        out.append("{server=\"");
+        escape(out, metrics.getServer());
+        out.append('"');
+        for (int i = 0; i < labels.length; i += 2) {
+            out.append(',').append(labels[i]).append("=\"");
+            escape(out, labels[i + 1]);
+            out.append('"');
+        }
+        return out.append('}');
+    }
+
+    /**
+     * Escapes a label value as required by the text format
+     */
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Stops answering scrapes
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
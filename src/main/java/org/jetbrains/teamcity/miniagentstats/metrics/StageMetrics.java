@@ -0,0 +1,131 @@
+package org.jetbrains.teamcity.miniagentstats.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Latency histograms of the stages of a tick, shared by the collector's components
+ *
+ * Callers take a start time with {@link #start()} and report the stage with {@link #recordSince}.
+ * When disabled both are a field read and a branch, without calling the clock.
+ * Each stage has a {@link ConcurrentHistogram}, so memory is fixed and recording takes no lock.
+ */
+public class StageMetrics {
+    /** Instrumentation that records nothing */
+    public static final StageMetrics DISABLED = new StageMetrics(false, 0);
+
+    /**
+     * Instrumented stages, in the order they happen within a request and a tick
+     */
+    public enum Stage {
+        /** Leasing a pooled connection, connecting if none is idle */
+        CONNECT,
+        /** From sending the request until the response headers arrive */
+        FIRST_BYTE,
+        /** Time spent reading the response body from the socket */
+        BODY_READ,
+        /** Time spent in the XML parser, excluding the body reads it triggers */
+        PARSE,
+        /** Counting agents in an unmarshalled list; the streaming parser counts while parsing */
+        COUNT,
+        /** Formatting the output line */
+        FORMAT,
+        /** Handing the sample to the output file */
+        SINK_WRITE
+    }
+
+    private final boolean enabled;
+    private final long reportIntervalNanos;
+    private final ConcurrentHistogram[] histograms = new ConcurrentHistogram[Stage.values().length];
+    private final AtomicLong nextReportNanos;
+
+    /**
+     * Creates enabled instrumentation
+     *
+     * @param reportIntervalMillis how often {@link #reportIfDue} emits a summary
+     */
+    public StageMetrics(long reportIntervalMillis) {
+        this(true, reportIntervalMillis);
+    }
+
+    private StageMetrics(boolean enabled, long reportIntervalMillis) {
+        this.enabled = enabled;
+        this.reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new ConcurrentHistogram();
+        }
+        this.nextReportNanos = new AtomicLong(System.nanoTime() + reportIntervalNanos);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the start time of a stage, or 0 when disabled
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a stage that started at the given time
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        if (enabled) {
+            histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records a stage whose duration was measured by the caller
+     */
+    public void record(Stage stage, long nanos) {
+        if (enabled) {
+            histograms[stage.ordinal()].record(nanos);
+        }
+    }
+
+    /**
+     * Emits a summary if the report interval has passed; when several threads call this at
+     * the same time only one of them reports
+     */
+    public void reportIfDue(Consumer<String> out) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        long due = nextReportNanos.get();
+        if (now - due >= 0 && nextReportNanos.compareAndSet(due, now + reportIntervalNanos)) {
+            out.accept(summary());
+        }
+    }
+
+    /**
+     * Returns p50, p99 and max of every stage recorded since the previous summary, and starts over
+     */
+    public String summary() {
+        StringBuilder line = new StringBuilder("stages:");
+        for (Stage stage : Stage.values()) {
+            ConcurrentHistogram.Snapshot snapshot = histograms[stage.ordinal()].snapshotAndReset();
+            line.append(' ').append(stage.name().toLowerCase(Locale.ROOT));
+            if (snapshot.getCount() == 0) {
+                line.append(" n=0");
+            } else {
+                line.append(" n=").append(snapshot.getCount())
+                        .append(" p50=").append(millis(snapshot.quantile(0.5)))
+                        .append(" p99=").append(millis(snapshot.quantile(0.99)))
+                        .append(" max=").append(millis(snapshot.getMax()));
+            }
+            line.append(';');
+        }
+        line.setLength(line.length() - 1);
+        return line.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+    }
+}
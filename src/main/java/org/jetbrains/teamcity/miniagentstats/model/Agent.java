@@ -8,6 +8,9 @@ import javax.xml.bind.annotation.XmlElement;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class Agent {
     
+    @XmlAttribute
+    private int id;
+    
     @XmlAttribute
     private boolean enabled;
     
@@ -17,6 +20,20 @@ public class Agent {
     @XmlElement(name = "build")
     private Build build;
     
+    @XmlElement(name = "pool")
+    private Pool pool;
+    
+    @XmlElement(name = "environment")
+    private Environment environment;
+    
+    public int getId() {
+        return id;
+    }
+    
+    public void setId(int id) {
+        this.id = id;
+    }
+    
     public boolean isEnabled() {
         return enabled;
     }
@@ -45,8 +62,66 @@ public class Agent {
         return build != null;
     }
     
+    public Pool getPool() {
+        return pool;
+    }
+    
+    public void setPool(Pool pool) {
+        this.pool = pool;
+    }
+    
+    public Environment getEnvironment() {
+        return environment;
+    }
+    
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+    
+    /**
+     * Returns the name of the agent pool, or null if the pool was not requested
+     */
+    public String getPoolName() {
+        return pool != null ? pool.getName() : null;
+    }
+    
+    /**
+     * Returns the operating system family, e.g. Linux, or null if the environment was not requested
+     */
+    public String getOsType() {
+        return environment != null ? environment.getOsType() : null;
+    }
+    
     public static class Build {
         // This class is just a marker to check if build exists
         // We don't need any properties from it
     }
-}
\ No newline at end of file
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Pool {
+        @XmlAttribute
+        private String name;
+        
+        public String getName() {
+            return name;
+        }
+        
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Environment {
+        @XmlAttribute
+        private String osType;
+        
+        public String getOsType() {
+            return osType;
+        }
+        
+        public void setOsType(String osType) {
+            this.osType = osType;
+        }
+    }
+}
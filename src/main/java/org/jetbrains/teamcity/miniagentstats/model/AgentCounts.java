@@ -0,0 +1,105 @@
+package org.jetbrains.teamcity.miniagentstats.model;
+
+import java.util.List;
+
+/**
+ * Fleet-wide agent counters computed from one /app/rest/agents response
+ */
+public class AgentCounts {
+    
+    /** Value of a counter that was not requested from the server */
+    public static final int UNKNOWN = -1;
+    
+    private int total;
+    private int enabled;
+    private int connected;
+    private int busy;
+    
+    public AgentCounts() {
+    }
+    
+    public AgentCounts(int total, int enabled, int connected, int busy) {
+        this.total = total;
+        this.enabled = enabled;
+        this.connected = connected;
+        this.busy = busy;
+    }
+    
+    /**
+     * Computes the counters from an unmarshalled agents collection.
+     * Busy agents are those that are enabled, connected, and running a build.
+     */
+    public static AgentCounts fromAgents(Agents agents) {
+        return fromAgents(agents, null);
+    }
+    
+    /**
+     * Computes the counters from an unmarshalled agents collection and reports every agent to the visitor, if any
+     */
+    public static AgentCounts fromAgents(Agents agents, AgentVisitor visitor) {
+        int enabledCount = 0;
+        int connectedCount = 0;
+        int busyCount = 0;
+        List<Agent> agentList = agents.getAgents();
+        
+        if (agentList != null) {
+            for (Agent agent : agentList) {
+                if (agent.isEnabled()) {
+                    enabledCount++;
+                }
+                if (agent.isConnected()) {
+                    connectedCount++;
+                }
+                boolean busy = agent.isEnabled() && agent.isConnected() && agent.hasBuild();
+                if (busy) {
+                    busyCount++;
+                }
+                if (visitor != null) {
+                    if (agent.getPool() != null || agent.getEnvironment() != null) {
+                        visitor.visitDimensions(agent.getPoolName(), agent.getOsType());
+                    }
+                    visitor.visit(agent.getId(), agent.isEnabled(), agent.isConnected(), busy);
+                }
+            }
+        }
+        
+        return new AgentCounts(agents.getCount(), enabledCount, connectedCount, busyCount);
+    }
+    
+    public int getTotal() {
+        return total;
+    }
+    
+    public void setTotal(int total) {
+        this.total = total;
+    }
+    
+    public int getEnabled() {
+        return enabled;
+    }
+    
+    public void setEnabled(int enabled) {
+        this.enabled = enabled;
+    }
+    
+    public int getConnected() {
+        return connected;
+    }
+    
+    public void setConnected(int connected) {
+        this.connected = connected;
+    }
+    
+    public int getBusy() {
+        return busy;
+    }
+    
+    public void setBusy(int busy) {
+        this.busy = busy;
+    }
+    
+    @Override
+    public String toString() {
+        return "AgentCounts{total=" + total + ", enabled=" + enabled + ", connected=" + connected + ", busy=" + busy + "}";
+    }
+}
@@ -0,0 +1,70 @@
+package org.jetbrains.teamcity.miniagentstats.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link AgentVisitor} that is told where each tick starts and ends.
+ *
+ * Each tick calls {@link #beginTick}, then {@link #visit} for every agent of the response,
+ * then {@link #endTick} once the whole response has been read.
+ */
+public interface AgentObserver extends AgentVisitor {
+    /**
+     * Starts a tick observed at the given time
+     */
+    void beginTick(long nowMillis);
+
+    /**
+     * Finishes the current tick after every agent has been visited
+     */
+    void endTick();
+
+    /**
+     * Combines observers into one, skipping nulls; returns null if none are left
+     */
+    static AgentObserver combine(AgentObserver... observers) {
+        List<AgentObserver> present = new ArrayList<>();
+        for (AgentObserver observer : observers) {
+            if (observer != null) {
+                present.add(observer);
+            }
+        }
+        if (present.isEmpty()) {
+            return null;
+        }
+        if (present.size() == 1) {
+            return present.get(0);
+        }
+        AgentObserver[] all = present.toArray(new AgentObserver[0]);
+        return new AgentObserver() {
+            @Override
+            public void beginTick(long nowMillis) {
+                for (AgentObserver observer : all) {
+                    observer.beginTick(nowMillis);
+                }
+            }
+
+            @Override
+            public void visit(int id, boolean enabled, boolean connected, boolean busy) {
+                for (AgentObserver observer : all) {
+                    observer.visit(id, enabled, connected, busy);
+                }
+            }
+
+            @Override
+            public void visitDimensions(String pool, String os) {
+                for (AgentObserver observer : all) {
+                    observer.visitDimensions(pool, os);
+                }
+            }
+
+            @Override
+            public void endTick() {
+                for (AgentObserver observer : all) {
+                    observer.endTick();
+                }
+            }
+        };
+    }
+}
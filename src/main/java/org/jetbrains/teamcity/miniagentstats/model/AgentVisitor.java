@@ -0,0 +1,24 @@
+package org.jetbrains.teamcity.miniagentstats.model;
+
+/**
+ * Receives the state of every agent of an agents response, in document order
+ */
+public interface AgentVisitor {
+    // Id reported for an agent the response carried no id for
+    int NO_ID = -1;
+
+    /**
+     * @param id the agent id, or {@link #NO_ID} if the response did not carry one
+     * @param enabled whether the agent is enabled
+     * @param connected whether the agent is connected
+     * @param busy whether the agent is enabled, connected and running a build
+     */
+    void visit(int id, boolean enabled, boolean connected, boolean busy);
+
+    /**
+     * Receives the pool and operating system of an agent just before {@link #visit} is called for it,
+     * if the response carried them; either may be null. Does nothing by default.
+     */
+    default void visitDimensions(String pool, String os) {
+    }
+}
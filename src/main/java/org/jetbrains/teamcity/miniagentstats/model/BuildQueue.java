@@ -3,7 +3,9 @@ package org.jetbrains.teamcity.miniagentstats.model;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
 
 @XmlRootElement(name = "builds")
 @XmlAccessorType(XmlAccessType.FIELD)
@@ -12,6 +14,9 @@ public class BuildQueue {
     @XmlAttribute
     private int count;
     
+    @XmlElement(name = "build")
+    private List<QueuedBuild> builds;
+    
     public int getCount() {
         return count;
     }
@@ -19,4 +24,49 @@ public class BuildQueue {
     public void setCount(int count) {
         this.count = count;
     }
-}
\ No newline at end of file
+    
+    public List<QueuedBuild> getBuilds() {
+        return builds;
+    }
+    
+    public void setBuilds(List<QueuedBuild> builds) {
+        this.builds = builds;
+    }
+    
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class QueuedBuild {
+        // Left as is by the unmarshaller when the response carries no id
+        @XmlAttribute
+        private long id = QueuedBuildVisitor.NO_ID;
+        
+        @XmlAttribute
+        private String buildTypeId;
+        
+        @XmlElement
+        private String queuedDate;
+        
+        public long getId() {
+            return id;
+        }
+        
+        public void setId(long id) {
+            this.id = id;
+        }
+        
+        public String getBuildTypeId() {
+            return buildTypeId;
+        }
+        
+        public void setBuildTypeId(String buildTypeId) {
+            this.buildTypeId = buildTypeId;
+        }
+        
+        public String getQueuedDate() {
+            return queuedDate;
+        }
+        
+        public void setQueuedDate(String queuedDate) {
+            this.queuedDate = queuedDate;
+        }
+    }
+}
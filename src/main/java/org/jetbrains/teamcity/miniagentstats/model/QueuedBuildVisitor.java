@@ -0,0 +1,32 @@
+package org.jetbrains.teamcity.miniagentstats.model;
+
+/**
+ * Receives every build of a build queue response, in queue order
+ */
+public interface QueuedBuildVisitor {
+    // Id reported for a build the response carried no id for
+    long NO_ID = -1;
+
+    /**
+     * @param id the build id, or {@link #NO_ID} if the response did not carry one
+     * @param buildTypeId the id of the build configuration, or null if it was not in the response
+     * @param queuedDate when the build was queued, in TeamCity's yyyyMMdd'T'HHmmssZ format, or null if it was not in the response
+     */
+    void visitQueuedBuild(long id, String buildTypeId, String queuedDate);
+
+    /**
+     * Combines visitors into one, skipping nulls; returns null if none are left
+     */
+    static QueuedBuildVisitor combine(QueuedBuildVisitor first, QueuedBuildVisitor second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return (id, buildTypeId, queuedDate) -> {
+            first.visitQueuedBuild(id, buildTypeId, queuedDate);
+            second.visitQueuedBuild(id, buildTypeId, queuedDate);
+        };
+    }
+}
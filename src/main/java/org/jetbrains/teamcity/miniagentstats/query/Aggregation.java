@@ -0,0 +1,87 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import java.util.Locale;
+
+/**
+ * One aggregate computed per bucket and column of a {@link SampleQuery}
+ */
+public final class Aggregation {
+    /**
+     * Kind of aggregate
+     */
+    public enum Kind {
+        MIN, MAX, AVG, PERCENTILE
+    }
+
+    public static final Aggregation MIN = new Aggregation(Kind.MIN, 0, "min");
+    public static final Aggregation MAX = new Aggregation(Kind.MAX, 0, "max");
+    public static final Aggregation AVG = new Aggregation(Kind.AVG, 0, "avg");
+
+    private final Kind kind;
+    private final double quantile;
+    private final String label;
+
+    private Aggregation(Kind kind, double quantile, String label) {
+        this.kind = kind;
+        this.quantile = quantile;
+        this.label = label;
+    }
+
+    /**
+     * Returns the percentile with the given rank, e.g. 99 or 99.9
+     */
+    public static Aggregation percentile(double percent) {
+        if (!(percent > 0 && percent <= 100)) {
+            throw new IllegalArgumentException("Percentile must be in (0, 100]: " + percent);
+        }
+        String label = percent == Math.rint(percent) ? String.valueOf((long) percent) : String.valueOf(percent);
+        return new Aggregation(Kind.PERCENTILE, percent / 100, "p" + label);
+    }
+
+    /**
+     * Parses min, max, avg or a percentile written as p50, p99 or p99.9
+     */
+    public static Aggregation parse(String text) {
+        String name = text.trim().toLowerCase(Locale.ROOT);
+        switch (name) {
+            case "min":
+                return MIN;
+            case "max":
+                return MAX;
+            case "avg":
+                return AVG;
+            default:
+                if (name.startsWith("p")) {
+                    try {
+                        return percentile(Double.parseDouble(name.substring(1)));
+                    } catch (NumberFormatException e) {
+                        // Reported below
+                    }
+                }
+                throw new IllegalArgumentException("Unknown aggregation: " + text + " (expected min, max, avg or p<percent>)");
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Quantile of a percentile, 0..1
+     */
+    public double getQuantile() {
+        return quantile;
+    }
+
+    /**
+     * Name used in the result header, e.g. max or p99
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
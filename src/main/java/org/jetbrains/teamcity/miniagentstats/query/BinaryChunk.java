@@ -0,0 +1,31 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleFormat;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleReader;
+
+/**
+ * A range of records of a binary sample store; the reader's mappings are shared by all chunks of the file
+ */
+class BinaryChunk implements ScanChunk {
+    private final BinarySampleReader reader;
+    private final long first;
+    private final long end;
+
+    BinaryChunk(BinarySampleReader reader, long first, long end) {
+        this.reader = reader;
+        this.first = first;
+        this.end = end;
+    }
+
+    @Override
+    public void scan(SampleQuery query, QueryResult result) {
+        boolean includeStale = query.isIncludeStale();
+        // Records come from lowerBound of the time range, so only the stale flag is checked
+        reader.scanRecords(first, end, (timestamp, queuedBuilds, totalAgents, busyAgents, flags) -> {
+            if (includeStale || (flags & BinarySampleFormat.FLAG_STALE) == 0) {
+                result.add(timestamp, queuedBuilds, totalAgents, busyAgents);
+            }
+        });
+        result.addBytesScanned((end - first) * BinarySampleFormat.RECORD_SIZE);
+    }
+}
@@ -0,0 +1,96 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import org.jetbrains.teamcity.miniagentstats.history.ValueHistogram;
+
+/**
+ * Min, max, sum and optionally a histogram of every column over the samples of one bucket
+ *
+ * Partial results of different chunks are combined with {@link #merge}; every aggregate is
+ * exact except percentiles, which have the resolution of {@link ValueHistogram}.
+ */
+public class BucketStats {
+    private static final int COLUMNS = SampleColumn.values().length;
+
+    private final long startMillis;
+    private long samples;
+    private final int[] min = new int[COLUMNS];
+    private final int[] max = new int[COLUMNS];
+    private final long[] sum = new long[COLUMNS];
+    // Null unless a percentile was asked for
+    private final ValueHistogram[] histograms;
+
+    BucketStats(long startMillis, boolean histograms) {
+        this.startMillis = startMillis;
+        this.histograms = histograms ? new ValueHistogram[COLUMNS] : null;
+        for (int c = 0; c < COLUMNS; c++) {
+            min[c] = Integer.MAX_VALUE;
+            max[c] = Integer.MIN_VALUE;
+            if (histograms) {
+                this.histograms[c] = new ValueHistogram();
+            }
+        }
+    }
+
+    void add(int queuedBuilds, int totalAgents, int busyAgents) {
+        samples++;
+        add(0, queuedBuilds);
+        add(1, totalAgents);
+        add(2, busyAgents);
+    }
+
+    private void add(int column, int value) {
+        if (value < min[column]) {
+            min[column] = value;
+        }
+        if (value > max[column]) {
+            max[column] = value;
+        }
+        sum[column] += value;
+        if (histograms != null) {
+            histograms[column].add(value);
+        }
+    }
+
+    void merge(BucketStats other) {
+        samples += other.samples;
+        for (int c = 0; c < COLUMNS; c++) {
+            min[c] = Math.min(min[c], other.min[c]);
+            max[c] = Math.max(max[c], other.max[c]);
+            sum[c] += other.sum[c];
+            if (histograms != null) {
+                histograms[c].add(other.histograms[c]);
+            }
+        }
+    }
+
+    /**
+     * Start of the bucket in local millis, or Long.MIN_VALUE if the query has a single bucket
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Returns an aggregate of a column; percentiles need a query that asked for one
+     */
+    public double get(SampleColumn column, Aggregation aggregation) {
+        int c = column.ordinal();
+        switch (aggregation.getKind()) {
+            case MIN:
+                return min[c];
+            case MAX:
+                return max[c];
+            case AVG:
+                return samples == 0 ? 0 : (double) sum[c] / samples;
+            default:
+                if (histograms == null) {
+                    throw new IllegalStateException("The query computed no percentiles");
+                }
+                return histograms[c].quantile(aggregation.getQuantile());
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * A byte range of a CSV output file, parsed straight from its own memory mapping
+ *
+ * A chunk owns the lines that start inside its range: it skips the partial line at its start,
+ * which the previous chunk finishes, and reads its last line past its end. Lines have the form
+ * written by the monitor, {@code timestamp,queued_builds,total_agents,busy_agents} with optional
+ * extra columns and a trailing {@code stale}; timestamps are local date-times or epoch millis.
+ * The counters and the usual ISO timestamps are parsed without allocating.
+ */
+class CsvChunk implements ScanChunk {
+    // Longest line a chunk reads past its end
+    static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    private static final byte[] STALE = ",stale".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long start;
+    private final long end;
+
+    // Per-scan parsing state; a chunk is scanned by one thread
+    private ZoneId zone;
+    private ZoneOffsetCache offsets;
+    private int cachedDate = -1;
+    private long cachedEpochDay;
+    private int cursor;
+
+    CsvChunk(Path file, FileChannel channel, long fileSize, long start, long end) {
+        this.file = file;
+        this.channel = channel;
+        this.fileSize = fileSize;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public void scan(SampleQuery query, QueryResult result) throws IOException {
+        zone = query.getZone();
+        offsets = new ZoneOffsetCache(zone);
+        long mapStart = Math.max(0, start - 1);
+        long mapEnd = Math.min(fileSize, end + MAX_LINE_BYTES);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        int limit = buffer.limit();
+        // Lines starting before this position belong to the chunk
+        int owned = (int) (end - mapStart);
+
+        int position = 0;
+        if (start > 0) {
+            // The line around the start belongs to the previous chunk, unless it ended right before it
+            while (position < limit && buffer.get(position) != '\n') {
+                position++;
+            }
+            position++;
+        }
+        while (position < owned) {
+            int lineEnd = position;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            boolean terminated = lineEnd < limit;
+            if (!terminated && mapEnd < fileSize) {
+                throw new IOException(file + ": line at byte " + (mapStart + position) + " is longer than "
+                        + MAX_LINE_BYTES + " bytes");
+            }
+            // An unterminated last line may still be being written; it is skipped if incomplete
+            if (!parseLine(buffer, position, lineEnd, query, result) && terminated) {
+                throw new IOException(file + ": malformed line at byte " + (mapStart + position) + ": "
+                        + text(buffer, position, lineEnd));
+            }
+            position = lineEnd + 1;
+        }
+        result.addBytesScanned(end - start);
+    }
+
+    /**
+     * Adds the sample of one line if it passes the filters; returns false if the line is malformed
+     */
+    private boolean parseLine(ByteBuffer buffer, int from, int to, SampleQuery query, QueryResult result) {
+        if (to > from && buffer.get(to - 1) == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return true;
+        }
+        int comma = from;
+        while (comma < to && buffer.get(comma) != ',') {
+            comma++;
+        }
+        if (comma == to) {
+            return false;
+        }
+        long timestamp = parseTimestamp(buffer, from, comma);
+        if (timestamp == Long.MIN_VALUE) {
+            return false;
+        }
+        cursor = comma + 1;
+        int queuedBuilds = parseCounter(buffer, to);
+        int totalAgents = parseCounter(buffer, to);
+        int busyAgents = parseCounter(buffer, to);
+        if (busyAgents < 0 || totalAgents < 0 || queuedBuilds < 0) {
+            return false;
+        }
+        if (timestamp < query.getFromMillis() || timestamp >= query.getToMillis()) {
+            return true;
+        }
+        if (!query.isIncludeStale() && endsWith(buffer, from, to, STALE)) {
+            return true;
+        }
+        result.add(timestamp, queuedBuilds, totalAgents, busyAgents);
+        return true;
+    }
+
+    /**
+     * Parses the non-negative decimal at the cursor up to the next comma or the line end and moves
+     * the cursor past the comma; returns -1 if the column is empty or not a number
+     */
+    private int parseCounter(ByteBuffer buffer, int to) {
+        int position = cursor;
+        long value = 0;
+        while (position < to) {
+            byte b = buffer.get(position);
+            if (b == ',') {
+                break;
+            }
+            if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+            position++;
+        }
+        if (position == cursor || value > Integer.MAX_VALUE) {
+            return -1;
+        }
+        cursor = position + 1;
+        return (int) value;
+    }
+
+    /**
+     * Parses epoch millis, or a local date-time as printed by LocalDateTime; returns Long.MIN_VALUE if invalid
+     */
+    private long parseTimestamp(ByteBuffer buffer, int from, int to) {
+        boolean digits = to > from && to - from <= 18;
+        long epochMillis = 0;
+        for (int i = from; i < to && digits; i++) {
+            int digit = buffer.get(i) - '0';
+            digits = digit >= 0 && digit <= 9;
+            epochMillis = epochMillis * 10 + digit;
+        }
+        if (digits) {
+            return epochMillis;
+        }
+
+        // yyyy-MM-ddTHH:mm[:ss[.fraction]]
+        int length = to - from;
+        if (length >= 16 && buffer.get(from + 4) == '-' && buffer.get(from + 7) == '-'
+                && buffer.get(from + 10) == 'T' && buffer.get(from + 13) == ':') {
+            int year = digits(buffer, from, 4);
+            int month = digits(buffer, from + 5, 2);
+            int day = digits(buffer, from + 8, 2);
+            int hour = digits(buffer, from + 11, 2);
+            int minute = digits(buffer, from + 14, 2);
+            int second = 0;
+            int millis = 0;
+            boolean valid = year >= 0 && month >= 0 && day >= 0 && hour >= 0 && hour < 24 && minute >= 0 && minute < 60;
+            if (valid && length > 16) {
+                valid = length >= 19 && buffer.get(from + 16) == ':';
+                second = valid ? digits(buffer, from + 17, 2) : -1;
+                valid = valid && second >= 0 && second < 60;
+                if (valid && length > 19) {
+                    valid = length <= 29 && buffer.get(from + 19) == '.';
+                    int scale = 100;
+                    for (int i = from + 20; i < to && valid; i++) {
+                        int digit = buffer.get(i) - '0';
+                        valid = digit >= 0 && digit <= 9;
+                        millis += digit * scale;
+                        scale /= 10;
+                    }
+                }
+            }
+            if (valid) {
+                int date = year * 10_000 + month * 100 + day;
+                if (date != cachedDate) {
+                    try {
+                        cachedEpochDay = LocalDate.of(year, month, day).toEpochDay();
+                    } catch (DateTimeException e) {
+                        return Long.MIN_VALUE;
+                    }
+                    cachedDate = date;
+                }
+                long localMillis = cachedEpochDay * MILLIS_PER_DAY + ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+                return offsets.toEpoch(localMillis);
+            }
+        }
+
+        // Other forms LocalDateTime can print, such as years beyond 9999
+        try {
+            return LocalDateTime.parse(text(buffer, from, to)).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Parses a fixed number of decimal digits; returns -1 if one of them is not a digit
+     */
+    private static int digits(ByteBuffer buffer, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean endsWith(ByteBuffer buffer, int from, int to, byte[] suffix) {
+        if (to - from < suffix.length) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (buffer.get(to - suffix.length + i) != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String text(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[Math.min(to - from, 200)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
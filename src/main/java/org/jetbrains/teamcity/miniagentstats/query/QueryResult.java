@@ -0,0 +1,138 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Buckets of a {@link SampleQuery}, filled by one chunk of the scan or merged from several
+ *
+ * Buckets are keyed by their start in local time, so a one-day bucket is a calendar day even
+ * when a daylight saving change makes it 23 or 25 hours long. Samples arrive in time order
+ * within a chunk, so the bucket of the previous sample is kept at hand.
+ */
+public class QueryResult {
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    // 1970-01-05, the first Monday after the epoch, where week buckets start
+    private static final long FIRST_MONDAY_MILLIS = 4 * MILLIS_PER_DAY;
+
+    private final long bucketMillis;
+    private final long bucketOrigin;
+    private final boolean histograms;
+    private final ZoneOffsetCache offsets;
+    private final TreeMap<Long, BucketStats> buckets = new TreeMap<>();
+    private long samples;
+    private long bytesScanned;
+
+    // Bucket of the previous sample, valid for local millis in [currentStart, currentEnd)
+    private BucketStats current;
+    private long currentStart;
+    private long currentEnd;
+
+    QueryResult(SampleQuery query) {
+        this.bucketMillis = query.getBucketMillis();
+        this.bucketOrigin = bucketMillis > 0 && bucketMillis % (7 * MILLIS_PER_DAY) == 0 ? FIRST_MONDAY_MILLIS : 0;
+        this.histograms = query.needsHistograms();
+        this.offsets = new ZoneOffsetCache(query.getZone());
+    }
+
+    /**
+     * Adds a sample that passed the time range and stale filters
+     */
+    void add(long epochMillis, int queuedBuilds, int totalAgents, int busyAgents) {
+        samples++;
+        if (bucketMillis <= 0) {
+            if (current == null) {
+                current = buckets.computeIfAbsent(Long.MIN_VALUE, start -> new BucketStats(start, histograms));
+            }
+        } else {
+            long localMillis = offsets.toLocal(epochMillis);
+            if (current == null || localMillis < currentStart || localMillis >= currentEnd) {
+                currentStart = Math.floorDiv(localMillis - bucketOrigin, bucketMillis) * bucketMillis + bucketOrigin;
+                currentEnd = currentStart + bucketMillis;
+                current = buckets.computeIfAbsent(currentStart, start -> new BucketStats(start, histograms));
+            }
+        }
+        current.add(queuedBuilds, totalAgents, busyAgents);
+    }
+
+    void addBytesScanned(long bytes) {
+        bytesScanned += bytes;
+    }
+
+    /**
+     * Adds the buckets and counters of another partial result
+     */
+    void merge(QueryResult other) {
+        samples += other.samples;
+        bytesScanned += other.bytesScanned;
+        for (Map.Entry<Long, BucketStats> entry : other.buckets.entrySet()) {
+            BucketStats mine = buckets.get(entry.getKey());
+            if (mine == null) {
+                buckets.put(entry.getKey(), entry.getValue());
+            } else {
+                mine.merge(entry.getValue());
+            }
+        }
+        current = null;
+    }
+
+    /**
+     * Non-empty buckets in time order
+     */
+    public List<BucketStats> getBuckets() {
+        return new ArrayList<>(buckets.values());
+    }
+
+    /**
+     * Number of samples that were aggregated
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Bytes of the files read by the scan
+     */
+    public long getBytesScanned() {
+        return bytesScanned;
+    }
+
+    /**
+     * Writes a CSV header and one line per bucket: its local start time (or "all"), its sample count,
+     * and every aggregation of every column
+     */
+    public void write(List<SampleColumn> columns, List<Aggregation> aggregations, Consumer<String> out) {
+        StringBuilder line = new StringBuilder("bucket,samples");
+        for (SampleColumn column : columns) {
+            for (Aggregation aggregation : aggregations) {
+                line.append(',').append(column.getLabel()).append('_').append(aggregation.getLabel());
+            }
+        }
+        out.accept(line.toString());
+        for (BucketStats bucket : buckets.values()) {
+            line.setLength(0);
+            long start = bucket.getStartMillis();
+            line.append(start == Long.MIN_VALUE ? "all" : LocalDateTime.ofEpochSecond(Math.floorDiv(start, 1000L),
+                    (int) Math.floorMod(start, 1000L) * 1_000_000, ZoneOffset.UTC).toString());
+            line.append(',').append(bucket.getSamples());
+            for (SampleColumn column : columns) {
+                for (Aggregation aggregation : aggregations) {
+                    double value = bucket.get(column, aggregation);
+                    line.append(',');
+                    if (aggregation.getKind() == Aggregation.Kind.AVG) {
+                        line.append(String.format(Locale.ROOT, "%.2f", value));
+                    } else {
+                        line.append((long) value);
+                    }
+                }
+            }
+            out.accept(line.toString());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import java.util.Locale;
+
+/**
+ * Counter of a sample that a {@link SampleQuery} aggregates
+ */
+public enum SampleColumn {
+    QUEUED("queued"),
+    TOTAL("total"),
+    BUSY("busy");
+
+    private final String label;
+
+    SampleColumn(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Name used in options and in the result header
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Parses queued, total or busy
+     */
+    public static SampleColumn parse(String text) {
+        String name = text.trim().toLowerCase(Locale.ROOT);
+        for (SampleColumn column : values()) {
+            if (column.label.equals(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column: " + text + " (expected queued, total or busy)");
+    }
+}
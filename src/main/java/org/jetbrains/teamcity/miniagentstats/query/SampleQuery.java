@@ -0,0 +1,237 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleFormat;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Aggregates recorded samples per time bucket over CSV and binary output files
+ *
+ * Every file is split into chunks, aligned to lines by {@link CsvChunk} and to records for binary
+ * stores, and the chunks are scanned by a fork/join pool: each leaf task fills its own
+ * {@link QueryResult}, and the partial results are merged on the way back up. Chunks are read
+ * through their own memory mappings, so the scan scales with the cores as long as the files
+ * are in the page cache or the disk keeps up.
+ *
+ * Stale samples, which repeat the previous sample after a missed tick, are left out unless
+ * {@link #setIncludeStale} is set.
+ */
+public class SampleQuery {
+    private long fromMillis = Long.MIN_VALUE;
+    private long toMillis = Long.MAX_VALUE;
+    private long bucketMillis;
+    private ZoneId zone = ZoneId.systemDefault();
+    private List<SampleColumn> columns = Arrays.asList(SampleColumn.values());
+    private List<Aggregation> aggregations = Arrays.asList(Aggregation.MIN, Aggregation.MAX, Aggregation.AVG);
+    private boolean includeStale;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int csvChunkBytes = 8 * 1024 * 1024;
+    private int binaryChunkRecords = 256 * 1024;
+
+    /**
+     * Samples at or after this epoch millis are aggregated
+     */
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    public void setFromMillis(long fromMillis) {
+        this.fromMillis = fromMillis;
+    }
+
+    /**
+     * Samples before this epoch millis are aggregated
+     */
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    public void setToMillis(long toMillis) {
+        this.toMillis = toMillis;
+    }
+
+    /**
+     * Length of the buckets in local time, aligned to local midnight (to Mondays for whole weeks);
+     * 0 aggregates the whole range into one bucket
+     */
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public void setBucketMillis(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * Zone of ISO timestamps in CSV files, of the time range options and of the buckets
+     */
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    public void setZone(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    public List<SampleColumn> getColumns() {
+        return columns;
+    }
+
+    public void setColumns(List<SampleColumn> columns) {
+        this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+    }
+
+    public List<Aggregation> getAggregations() {
+        return aggregations;
+    }
+
+    public void setAggregations(List<Aggregation> aggregations) {
+        this.aggregations = Collections.unmodifiableList(new ArrayList<>(aggregations));
+    }
+
+    public boolean isIncludeStale() {
+        return includeStale;
+    }
+
+    public void setIncludeStale(boolean includeStale) {
+        this.includeStale = includeStale;
+    }
+
+    /**
+     * Number of threads scanning chunks
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    void setCsvChunkBytes(int csvChunkBytes) {
+        this.csvChunkBytes = csvChunkBytes;
+    }
+
+    void setBinaryChunkRecords(int binaryChunkRecords) {
+        this.binaryChunkRecords = binaryChunkRecords;
+    }
+
+    boolean needsHistograms() {
+        for (Aggregation aggregation : aggregations) {
+            if (aggregation.getKind() == Aggregation.Kind.PERCENTILE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans the files, each either CSV or binary output as told by its header, and returns the buckets
+     */
+    public QueryResult run(List<Path> files) throws IOException {
+        List<ScanChunk> chunks = new ArrayList<>();
+        List<Closeable> opened = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                split(file, chunks, opened);
+            }
+            if (chunks.isEmpty()) {
+                return new QueryResult(this);
+            }
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                return pool.invoke(new ScanTask(chunks, 0, chunks.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            for (Closeable closeable : opened) {
+                closeable.close();
+            }
+        }
+    }
+
+    private void split(Path file, List<ScanChunk> chunks, List<Closeable> opened) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        opened.add(channel);
+        long size = channel.size();
+        if (isBinary(channel, size)) {
+            BinarySampleReader reader = new BinarySampleReader(file);
+            opened.add(reader);
+            long first = reader.lowerBound(fromMillis);
+            long end = toMillis == Long.MAX_VALUE ? reader.size() : reader.lowerBound(toMillis);
+            for (long record = first; record < end; record += binaryChunkRecords) {
+                chunks.add(new BinaryChunk(reader, record, Math.min(end, record + binaryChunkRecords)));
+            }
+        } else {
+            for (long start = 0; start < size; start += csvChunkBytes) {
+                chunks.add(new CsvChunk(file, channel, size, start, Math.min(size, start + csvChunkBytes)));
+            }
+        }
+    }
+
+    private static boolean isBinary(FileChannel channel, long size) throws IOException {
+        if (size < BinarySampleFormat.HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+        channel.read(magic, 0);
+        return !magic.hasRemaining() && magic.getInt(0) == BinarySampleFormat.MAGIC;
+    }
+
+    /**
+     * Scans a range of chunks, halving it until one chunk is left
+     */
+    private class ScanTask extends RecursiveTask<QueryResult> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ScanChunk> chunks;
+        private final int from;
+        private final int to;
+
+        ScanTask(List<ScanChunk> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected QueryResult compute() {
+            if (to - from == 1) {
+                QueryResult result = new QueryResult(SampleQuery.this);
+                try {
+                    chunks.get(from).scan(SampleQuery.this, result);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return result;
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(chunks, from, middle);
+            left.fork();
+            QueryResult right = new ScanTask(chunks, middle, to).compute();
+            QueryResult result = left.join();
+            result.merge(right);
+            return result;
+        }
+    }
+}
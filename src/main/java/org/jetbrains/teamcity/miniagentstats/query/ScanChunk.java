@@ -0,0 +1,13 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import java.io.IOException;
+
+/**
+ * A part of an input file that one fork/join task scans on its own
+ */
+interface ScanChunk {
+    /**
+     * Adds the samples of the chunk that pass the query's filters to the result
+     */
+    void scan(SampleQuery query, QueryResult result) throws IOException;
+}
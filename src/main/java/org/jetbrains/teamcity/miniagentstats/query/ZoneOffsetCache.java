@@ -0,0 +1,70 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Converts between epoch millis and local millis (local date-time as millis since 1970-01-01T00:00)
+ *
+ * The zone offset is looked up only when a time falls outside the span between the transitions
+ * around the last one, so consecutive samples are converted with two additions.
+ * Not thread-safe; every scan uses its own cache.
+ */
+class ZoneOffsetCache {
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    // Offset valid for epoch millis in [fromMillis, untilMillis)
+    private long fromMillis = Long.MAX_VALUE;
+    private long untilMillis = Long.MIN_VALUE;
+    private long offsetMillis;
+
+    ZoneOffsetCache(ZoneId zone) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+    }
+
+    long toLocal(long epochMillis) {
+        if (epochMillis < fromMillis || epochMillis >= untilMillis) {
+            update(epochMillis);
+        }
+        return epochMillis + offsetMillis;
+    }
+
+    /**
+     * Converts a local time like {@code LocalDateTime.atZone}, except that in an overlap the offset
+     * of the neighbouring samples may be used instead of the earlier one
+     */
+    long toEpoch(long localMillis) {
+        long epochMillis = localMillis - offsetMillis;
+        if (epochMillis >= fromMillis && epochMillis < untilMillis) {
+            return epochMillis;
+        }
+        update(epochMillis);
+        epochMillis = localMillis - offsetMillis;
+        if (epochMillis >= fromMillis && epochMillis < untilMillis) {
+            return epochMillis;
+        }
+        // In a gap or next to a transition
+        LocalDateTime local = LocalDateTime.ofEpochSecond(Math.floorDiv(localMillis, 1000L),
+                (int) Math.floorMod(localMillis, 1000L) * 1_000_000, ZoneOffset.UTC);
+        return local.atZone(zone).toInstant().toEpochMilli();
+    }
+
+    private void update(long epochMillis) {
+        Instant instant = Instant.ofEpochMilli(epochMillis);
+        offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+        if (rules.isFixedOffset()) {
+            fromMillis = Long.MIN_VALUE;
+            untilMillis = Long.MAX_VALUE;
+            return;
+        }
+        ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        fromMillis = previous != null ? previous.toEpochSecond() * 1000 : Long.MIN_VALUE;
+        untilMillis = next != null ? next.toEpochSecond() * 1000 : Long.MAX_VALUE;
+    }
+}
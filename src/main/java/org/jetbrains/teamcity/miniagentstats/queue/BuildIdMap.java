@@ -0,0 +1,133 @@
+package org.jetbrains.teamcity.miniagentstats.queue;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from non-negative build ids to long values, e.g. queued times
+ *
+ * Keys and values are kept in primitive arrays probed linearly and at most half full, so
+ * neither lookups nor inserts box. Entries are iterated by slot: every slot from 0 to
+ * {@link #capacity()} whose {@link #keyAt} is not -1 holds an entry. Not thread-safe.
+ */
+public class BuildIdMap {
+    private static final long EMPTY = -1;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    public BuildIdMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long key) {
+        return slotOf(key) >= 0;
+    }
+
+    /**
+     * Returns the value of the key, or the default if it is not in the map
+     */
+    public long get(long key, long defaultValue) {
+        int slot = slotOf(key);
+        return slot < 0 ? defaultValue : values[slot];
+    }
+
+    /**
+     * Adds or replaces the value of a key
+     */
+    public void put(long key, long value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Key must not be negative: " + key);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Removes every entry, keeping the capacity
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the key stored in a slot, or -1 if the slot is empty
+     */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long valueAt(int slot) {
+        return values[slot];
+    }
+
+    private int slotOf(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long current = keys[slot];
+            if (current == key) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Spreads sequential ids over the table (Murmur3 64-bit finalizer)
+     */
+    private static int hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
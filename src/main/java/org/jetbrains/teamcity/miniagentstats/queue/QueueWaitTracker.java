@@ -0,0 +1,119 @@
+package org.jetbrains.teamcity.miniagentstats.queue;
+
+import org.jetbrains.teamcity.miniagentstats.history.SampleHistory;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long builds wait in the queue from successive build queue responses
+ *
+ * Each tick calls {@link #beginTick}, then {@link #visitQueuedBuild} for every queued build,
+ * then {@link #endTick}. The ids of the previous and the current tick are kept in two
+ * {@link BuildIdMap}s with the time each build was queued; a build of the previous tick that is
+ * missing from the current one has left the queue, and its wait up to the current tick is recorded
+ * in a {@link WaitTimeSketch} per window. The diff is O(queue size) and does not box.
+ *
+ * The queued time comes from the build's queuedDate, parsed only when the build is first seen;
+ * without it the tick that first saw the build is used. Waits are accurate to one polling interval,
+ * and builds removed from the queue without starting, e.g. canceled ones, are counted as well.
+ */
+public class QueueWaitTracker implements QueuedBuildVisitor {
+    /** Format of TeamCity REST dates, e.g. 20240115T101530+0000 */
+    static final DateTimeFormatter QUEUED_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssZ");
+    private static final int SLICES_PER_WINDOW = 12;
+
+    private final WaitTimeSketch[] sketches;
+    private BuildIdMap previous = new BuildIdMap(64);
+    private BuildIdMap current = new BuildIdMap(64);
+    private long tickMillis;
+    private long departures;
+
+    public QueueWaitTracker() {
+        this(SampleHistory.DEFAULT_WINDOWS_MILLIS);
+    }
+
+    public QueueWaitTracker(long... windowsMillis) {
+        sketches = new WaitTimeSketch[windowsMillis.length];
+        for (int i = 0; i < windowsMillis.length; i++) {
+            sketches[i] = new WaitTimeSketch(windowsMillis[i], SLICES_PER_WINDOW);
+        }
+    }
+
+    /**
+     * Starts a tick observed at the given time
+     */
+    public synchronized void beginTick(long nowMillis) {
+        tickMillis = nowMillis;
+        current.clear();
+    }
+
+    @Override
+    public synchronized void visitQueuedBuild(long id, String buildTypeId, String queuedDate) {
+        if (id < 0) {
+            // A build without an id, reported as NO_ID, cannot be told apart from the others, so its wait cannot be followed
+            return;
+        }
+        long queuedMillis = previous.get(id, -1);
+        if (queuedMillis < 0) {
+            queuedMillis = parseQueuedDate(queuedDate, tickMillis);
+        }
+        current.put(id, queuedMillis);
+    }
+
+    /**
+     * Records the waits of the builds that left the queue since the previous tick
+     */
+    public synchronized void endTick() {
+        for (int slot = 0; slot < previous.capacity(); slot++) {
+            long id = previous.keyAt(slot);
+            if (id >= 0 && !current.contains(id)) {
+                long waitMillis = Math.max(0, tickMillis - previous.valueAt(slot));
+                for (WaitTimeSketch sketch : sketches) {
+                    sketch.record(tickMillis, waitMillis);
+                }
+                departures++;
+            }
+        }
+        BuildIdMap swap = previous;
+        previous = current;
+        current = swap;
+    }
+
+    /**
+     * Number of builds seen leaving the queue since tracking started
+     */
+    public synchronized long getDepartures() {
+        return departures;
+    }
+
+    /**
+     * Returns p50, p90 and p99 of the waits in each window as of the last tick
+     */
+    public synchronized List<WaitTimeStats> getStats() {
+        List<WaitTimeStats> stats = new ArrayList<>(sketches.length);
+        for (WaitTimeSketch sketch : sketches) {
+            stats.add(new WaitTimeStats(sketch.getWindowMillis(), sketch.count(tickMillis),
+                    sketch.quantile(tickMillis, 0.5), sketch.quantile(tickMillis, 0.9), sketch.quantile(tickMillis, 0.99)));
+        }
+        return stats;
+    }
+
+    /**
+     * Parses a TeamCity date, falling back to the given time if it is missing or malformed
+     */
+    static long parseQueuedDate(String queuedDate, long fallbackMillis) {
+        if (queuedDate == null) {
+            return fallbackMillis;
+        }
+        try {
+            return OffsetDateTime.parse(queuedDate, QUEUED_DATE_FORMAT).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return fallbackMillis;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.jetbrains.teamcity.miniagentstats.queue;
+
+import org.jetbrains.teamcity.miniagentstats.history.ValueHistogram;
+
+import java.util.Arrays;
+
+/**
+ * Quantiles of wait times recorded during a sliding time window, in a fixed amount of memory
+ *
+ * The window is split into slices with one histogram each, in the bucket layout of {@link ValueHistogram}.
+ * A merged histogram holds the sum of all live slices; when a slice falls out of the window its counts
+ * are subtracted and it is reused. Memory is (slices + 1) histograms regardless of how many values
+ * are recorded, and quantiles are accurate to the bucket width, about 6%. The window moves in steps
+ * of one slice. Not thread-safe.
+ */
+public class WaitTimeSketch {
+    private final long windowMillis;
+    private final long sliceMillis;
+    // counts[slice][bucket]
+    private final int[][] counts;
+    // Index of the time slice each ring slot holds, i.e. start time / sliceMillis
+    private final long[] sliceIndexes;
+    // Longest wait of each slice, so quantiles can be capped at the window's maximum
+    private final long[] sliceMax;
+    private final int[] merged = new int[ValueHistogram.BUCKET_COUNT];
+    private long total;
+
+    public WaitTimeSketch(long windowMillis, int slices) {
+        if (windowMillis <= 0 || slices <= 0) {
+            throw new IllegalArgumentException("Window and slices must be positive");
+        }
+        this.windowMillis = windowMillis;
+        this.sliceMillis = Math.max(1, windowMillis / slices);
+        this.counts = new int[slices][ValueHistogram.BUCKET_COUNT];
+        this.sliceIndexes = new long[slices];
+        this.sliceMax = new long[slices];
+        Arrays.fill(sliceIndexes, Long.MIN_VALUE);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Records a wait that ended at the given time
+     */
+    public void record(long nowMillis, long waitMillis) {
+        int slot = advance(nowMillis);
+        int bucket = ValueHistogram.bucketIndex(waitMillis);
+        counts[slot][bucket]++;
+        merged[bucket]++;
+        total++;
+        sliceMax[slot] = Math.max(sliceMax[slot], waitMillis);
+    }
+
+    /**
+     * Returns the number of waits recorded in the window ending at the given time
+     */
+    public long count(long nowMillis) {
+        advance(nowMillis);
+        return total;
+    }
+
+    /**
+     * Returns the wait at the quantile (0..1) in the window ending at the given time, or 0 if it is empty
+     */
+    public long quantile(long nowMillis, double quantile) {
+        advance(nowMillis);
+        if (total == 0) {
+            return 0;
+        }
+        long max = 0;
+        for (long sliceMaxMillis : sliceMax) {
+            max = Math.max(max, sliceMaxMillis);
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < merged.length; i++) {
+            seen += merged[i];
+            if (seen >= rank) {
+                // Never report more than the longest wait in the window
+                return Math.min(ValueHistogram.bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Expires slices that left the window and returns the ring slot of the current slice
+     */
+    private int advance(long nowMillis) {
+        long current = Math.floorDiv(nowMillis, sliceMillis);
+        int slot = (int) Math.floorMod(current, (long) counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            long index = sliceIndexes[i];
+            if (index != Long.MIN_VALUE && (index <= current - counts.length || index > current)) {
+                expire(i);
+            }
+        }
+        if (sliceIndexes[slot] != current) {
+            if (sliceIndexes[slot] != Long.MIN_VALUE) {
+                expire(slot);
+            }
+            sliceIndexes[slot] = current;
+        }
+        return slot;
+    }
+
+    private void expire(int slot) {
+        int[] slice = counts[slot];
+        for (int bucket = 0; bucket < slice.length; bucket++) {
+            if (slice[bucket] != 0) {
+                merged[bucket] -= slice[bucket];
+                total -= slice[bucket];
+                slice[bucket] = 0;
+            }
+        }
+        sliceIndexes[slot] = Long.MIN_VALUE;
+        sliceMax[slot] = 0;
+    }
+}
@@ -0,0 +1,49 @@
+package org.jetbrains.teamcity.miniagentstats.queue;
+
+/**
+ * Quantiles of the queue wait times of builds that left the queue during one rolling window
+ */
+public class WaitTimeStats {
+    private final long windowMillis;
+    private final long count;
+    private final long p50Millis;
+    private final long p90Millis;
+    private final long p99Millis;
+
+    public WaitTimeStats(long windowMillis, long count, long p50Millis, long p90Millis, long p99Millis) {
+        this.windowMillis = windowMillis;
+        this.count = count;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Number of builds that left the queue in the window; the quantiles are 0 when it is 0
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getP50Millis() {
+        return p50Millis;
+    }
+
+    public long getP90Millis() {
+        return p90Millis;
+    }
+
+    public long getP99Millis() {
+        return p99Millis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%ds: n=%d p50=%.1fs p90=%.1fs p99=%.1fs",
+                windowMillis / 1000, count, p50Millis / 1000.0, p90Millis / 1000.0, p99Millis / 1000.0);
+    }
+}
@@ -0,0 +1,59 @@
+package org.jetbrains.teamcity.miniagentstats.replay;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Layout of a response archive, the raw agents and build queue responses of successive ticks
+ *
+ * <pre>
+ * header: int magic "TCRA" | short version
+ * record: byte type | payload
+ *   TICK:                        long epoch millis of the tick whose responses follow
+ *   AGENTS, BUILD_QUEUE:         int length | length bytes of the decoded response body
+ *   AGENTS, BUILD_QUEUE | UNCHANGED: no payload; the body is the previous one of the same type
+ * </pre>
+ * A compressed archive is the same stream in gzip members; every session that appends to it
+ * starts a new member, which readers see as one continuous stream.
+ */
+public final class ResponseArchive {
+    public static final int MAGIC = 0x54435241; // "TCRA"
+    public static final short VERSION = 1;
+
+    public static final byte TICK = 0;
+    public static final byte AGENTS = 1;
+    public static final byte BUILD_QUEUE = 2;
+    /** Flag of a response type whose body did not change since the previous response of that type */
+    public static final byte UNCHANGED = (byte) 0x80;
+
+    private ResponseArchive() {
+    }
+
+    /**
+     * Returns whether a new archive at this path is compressed, i.e. whether its name ends with .gz
+     */
+    public static boolean isCompressedName(Path file) {
+        return file.getFileName().toString().endsWith(".gz");
+    }
+
+    /**
+     * Returns whether an existing file starts with the gzip magic bytes
+     */
+    static boolean isGzip(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        }
+    }
+
+    /**
+     * Opens an archive for reading, decompressing it if it is compressed
+     */
+    static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 65536);
+        return isGzip(file) ? new BufferedInputStream(new GZIPInputStream(in, 65536), 65536) : in;
+    }
+}
@@ -0,0 +1,96 @@
+package org.jetbrains.teamcity.miniagentstats.replay;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Reads the records of a {@link ResponseArchive} one by one
+ *
+ * The body of a response record is read into a buffer that is reused by the next record.
+ * A record cut off at the end of the archive, as left by an interrupted recording, ends the archive.
+ */
+public class ResponseArchiveReader implements Closeable {
+    /** Returned by {@link #next()} at the end of the archive */
+    public static final int END = -1;
+
+    private final Path file;
+    private final DataInputStream in;
+    private long tickMillis;
+    private byte[] body = new byte[8192];
+    private int length;
+
+    public ResponseArchiveReader(Path file) throws IOException {
+        this.file = file;
+        this.in = new DataInputStream(ResponseArchive.open(file));
+        try {
+            if (in.readInt() != ResponseArchive.MAGIC) {
+                throw new IOException(file + " is not a response archive");
+            }
+            short version = in.readShort();
+            if (version != ResponseArchive.VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e instanceof EOFException ? new IOException(file + " is not a response archive") : e;
+        }
+    }
+
+    /**
+     * Reads the next record and returns its type as an unsigned byte, including the {@link ResponseArchive#UNCHANGED} flag,
+     * or {@link #END}
+     */
+    public int next() throws IOException {
+        try {
+            int type = in.read();
+            if (type < 0) {
+                return END;
+            }
+            byte code = (byte) type;
+            if (code == ResponseArchive.TICK) {
+                tickMillis = in.readLong();
+            } else if (code == ResponseArchive.AGENTS || code == ResponseArchive.BUILD_QUEUE) {
+                length = in.readInt();
+                if (length < 0) {
+                    throw new IOException(file + " has a response of negative length");
+                }
+                if (length > body.length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                in.readFully(body, 0, length);
+            } else if ((code & ~ResponseArchive.UNCHANGED) != ResponseArchive.AGENTS
+                    && (code & ~ResponseArchive.UNCHANGED) != ResponseArchive.BUILD_QUEUE) {
+                throw new IOException(file + " has a record of unknown type " + type);
+            }
+            return type;
+        } catch (EOFException e) {
+            return END;
+        }
+    }
+
+    /**
+     * Time of the last TICK record
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Body of the last response record; only valid until the next call of {@link #next()}
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
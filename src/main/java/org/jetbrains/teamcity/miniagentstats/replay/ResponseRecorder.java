@@ -0,0 +1,102 @@
+package org.jetbrains.teamcity.miniagentstats.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends the responses of every tick to a {@link ResponseArchive}
+ *
+ * An existing archive is appended to in its own compression; a new one is compressed if its name ends with .gz.
+ * The stream is flushed at the start of every tick, so an interrupted recording loses at most the last tick.
+ */
+public class ResponseRecorder implements Closeable {
+    private final Path file;
+    private final DataOutputStream out;
+    private long ticks;
+    private long responses;
+
+    public ResponseRecorder(Path file) throws IOException {
+        this.file = file;
+        boolean exists = Files.exists(file) && Files.size(file) > 0;
+        if (exists) {
+            checkHeader(file);
+        } else if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        boolean compressed = exists ? ResponseArchive.isGzip(file) : ResponseArchive.isCompressedName(file);
+        OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (compressed) {
+            stream = new GZIPOutputStream(stream, 65536, true);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        if (!exists) {
+            out.writeInt(ResponseArchive.MAGIC);
+            out.writeShort(ResponseArchive.VERSION);
+        }
+    }
+
+    private static void checkHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(ResponseArchive.open(file))) {
+            if (in.readInt() != ResponseArchive.MAGIC) {
+                throw new IOException(file + " is not a response archive");
+            }
+            short version = in.readShort();
+            if (version != ResponseArchive.VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Starts a tick; the responses recorded until the next call belong to it
+     */
+    public synchronized void beginTick(long tickMillis) throws IOException {
+        out.flush();
+        out.writeByte(ResponseArchive.TICK);
+        out.writeLong(tickMillis);
+        ticks++;
+    }
+
+    /**
+     * Records a decoded response body of the given type, {@link ResponseArchive#AGENTS} or {@link ResponseArchive#BUILD_QUEUE}
+     */
+    public synchronized void record(byte type, byte[] body, int length) throws IOException {
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(body, 0, length);
+        responses++;
+    }
+
+    /**
+     * Records a response that is the same as the previous one of its type
+     */
+    public synchronized void recordUnchanged(byte type) throws IOException {
+        out.writeByte(type | ResponseArchive.UNCHANGED);
+        responses++;
+    }
+
+    public synchronized long getTicks() {
+        return ticks;
+    }
+
+    public synchronized long getResponses() {
+        return responses;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
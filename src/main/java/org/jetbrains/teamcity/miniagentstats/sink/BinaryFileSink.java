@@ -0,0 +1,51 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleFormat;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Appends every sample as a record of a binary sample store
+ */
+public class BinaryFileSink implements FileSink {
+    private final BinarySampleWriter writer;
+    private final StageMetrics stageMetrics;
+
+    public BinaryFileSink(BinarySampleWriter writer, StageMetrics stageMetrics) {
+        this.writer = writer;
+        this.stageMetrics = stageMetrics;
+    }
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public List<Path> getFiles() {
+        return Arrays.asList(writer.getFile(), BinarySampleFormat.indexFile(writer.getFile()));
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return BinarySampleFormat.HEADER_SIZE + writer.getRecordCount() * BinarySampleFormat.RECORD_SIZE;
+    }
+
+    @Override
+    public synchronized void write(Sample sample) throws IOException {
+        long writeStart = stageMetrics.start();
+        writer.append(sample);
+        stageMetrics.recordSince(StageMetrics.Stage.SINK_WRITE, writeStart);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,49 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.ByteSink;
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.SampleLineFormatter;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Prints every sample as one line, as bytes to a {@link ByteSink} or as a string to a print consumer
+ */
+public class ConsoleSink implements SampleSink {
+    private final SampleLineFormatter formatter;
+    private final boolean reportBytes;
+    private final ByteSink lineSink;
+    private final Consumer<String> print;
+    private final StageMetrics stageMetrics;
+
+    /**
+     * @param lineSink receives the lines without allocating; null to pass them to print as strings
+     */
+    public ConsoleSink(SampleLineFormatter formatter, boolean reportBytes, ByteSink lineSink, Consumer<String> print,
+                       StageMetrics stageMetrics) {
+        this.formatter = formatter;
+        this.reportBytes = reportBytes;
+        this.lineSink = lineSink;
+        this.print = print;
+        this.stageMetrics = stageMetrics;
+    }
+
+    @Override
+    public String getName() {
+        return "console";
+    }
+
+    @Override
+    public synchronized void write(Sample sample) throws IOException {
+        long formatStart = stageMetrics.start();
+        int length = formatter.format(sample, reportBytes);
+        stageMetrics.recordSince(StageMetrics.Stage.FORMAT, formatStart);
+        if (lineSink != null) {
+            lineSink.write(formatter.getBuffer(), 0, length);
+        } else {
+            print.accept(formatter.toString());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.BufferedCsvSink;
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.SampleLineFormatter;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Appends every sample as one line to a CSV output file
+ */
+public class CsvFileSink implements FileSink {
+    private final BufferedCsvSink output;
+    private final SampleLineFormatter formatter;
+    private final boolean reportBytes;
+    private final StageMetrics stageMetrics;
+
+    public CsvFileSink(BufferedCsvSink output, SampleLineFormatter formatter, boolean reportBytes, StageMetrics stageMetrics) {
+        this.output = output;
+        this.formatter = formatter;
+        this.reportBytes = reportBytes;
+        this.stageMetrics = stageMetrics;
+    }
+
+    @Override
+    public String getName() {
+        return "csv";
+    }
+
+    @Override
+    public List<Path> getFiles() {
+        return Collections.singletonList(output.getFile());
+    }
+
+    @Override
+    public long getSize() {
+        return output.getSize();
+    }
+
+    @Override
+    public synchronized void write(Sample sample) throws IOException {
+        // Formatting is timed once per sample by the console sink; here it counts towards the write
+        long writeStart = stageMetrics.start();
+        int length = formatter.format(sample, reportBytes);
+        output.write(formatter.getBuffer(), 0, length);
+        stageMetrics.recordSince(StageMetrics.Stage.SINK_WRITE, writeStart);
+    }
+
+    /**
+     * Writes the lines still queued and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
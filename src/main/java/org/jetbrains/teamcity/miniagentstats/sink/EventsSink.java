@@ -0,0 +1,93 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.BufferedCsvSink;
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.events.AgentTransition;
+import org.jetbrains.teamcity.miniagentstats.events.AgentTransitionDetector;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Prints the agent transitions detected up to each sample and appends them to the output file
+ *
+ * Transitions are drained from the detector when the sample arrives, so a sink that skipped
+ * samples still writes every transition, with the time of the tick that observed it.
+ */
+public class EventsSink implements FileSink {
+    private final AgentTransitionDetector transitions;
+    private final Consumer<String> print;
+    private final BufferedCsvSink output;
+    private final StageMetrics stageMetrics;
+    private final List<String> lines = new ArrayList<>();
+
+    /**
+     * @param output the events file; null to only print the transitions
+     */
+    public EventsSink(AgentTransitionDetector transitions, Consumer<String> print, BufferedCsvSink output,
+                      StageMetrics stageMetrics) {
+        this.transitions = transitions;
+        this.print = print;
+        this.output = output;
+        this.stageMetrics = stageMetrics;
+    }
+
+    @Override
+    public String getName() {
+        return "events";
+    }
+
+    /**
+     * The events file, or no file if the transitions are only printed
+     */
+    @Override
+    public List<Path> getFiles() {
+        return output != null ? Collections.singletonList(output.getFile()) : Collections.emptyList();
+    }
+
+    @Override
+    public long getSize() {
+        return output != null ? output.getSize() : 0;
+    }
+
+    @Override
+    public synchronized void write(Sample sample) throws IOException {
+        lines.clear();
+        // Formatted first, so the detector is not held while the lines are written
+        transitions.drain((timestampMillis, agentId, transition) -> lines.add(formatTransition(timestampMillis, agentId, transition)));
+        if (lines.isEmpty()) {
+            return;
+        }
+        long writeStart = stageMetrics.start();
+        for (String line : lines) {
+            print.accept(line);
+            if (output != null) {
+                output.write(line);
+            }
+        }
+        stageMetrics.recordSince(StageMetrics.Stage.SINK_WRITE, writeStart);
+    }
+
+    /**
+     * Formats a transition as one output line: timestamp, agent id and event
+     */
+    public static String formatTransition(long timestampMillis, int agentId, AgentTransition transition) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault())
+                + "," + agentId + "," + transition.getLabel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (output != null) {
+            output.close();
+        }
+    }
+}
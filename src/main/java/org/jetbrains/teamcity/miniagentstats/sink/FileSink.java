@@ -0,0 +1,19 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A sink writing to an output file, which a {@link RotatingFileSink} can roll over into segments
+ */
+public interface FileSink extends SampleSink {
+    /**
+     * The output file first, then any sidecar files that belong to it, such as a segment index
+     */
+    List<Path> getFiles();
+
+    /**
+     * Size of the output file once everything written so far reaches it
+     */
+    long getSize();
+}
@@ -0,0 +1,13 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+/**
+ * What happens when a sink falls a whole ring buffer behind the collector
+ */
+public enum LagPolicy {
+    /** The collector waits for the sink, so the sink receives every sample */
+    BLOCK,
+    /** Samples the collector overwrote are skipped; the sink continues with the oldest one left */
+    DROP,
+    /** The sink always continues with the newest sample, skipping whatever it did not get to */
+    SAMPLE
+}
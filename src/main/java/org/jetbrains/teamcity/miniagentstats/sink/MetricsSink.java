@@ -0,0 +1,28 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.metrics.CollectorMetrics;
+
+/**
+ * Publishes fresh samples on the metrics endpoint; stale samples are counted as deadline misses by the collector instead
+ */
+public class MetricsSink implements SampleSink {
+    private final CollectorMetrics metrics;
+
+    public MetricsSink(CollectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String getName() {
+        return "metrics";
+    }
+
+    @Override
+    public void write(Sample sample) {
+        if (!sample.isStale()) {
+            // The metrics keep the last sample, and the one passed in is reused
+            metrics.recordSample(sample.copy());
+        }
+    }
+}
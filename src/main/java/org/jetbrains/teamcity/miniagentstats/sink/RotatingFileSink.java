@@ -0,0 +1,132 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * Rolls a file sink over into segments by size or by local hour or day
+ *
+ * Rollover is decided by the timestamp of the sample about to be written, so replayed samples are
+ * segmented like live ones. The finished segment is renamed on the writing thread; compression and
+ * retention run on the {@link SegmentArchiver}'s thread. An existing non-empty output file is
+ * appended to and continues its segment, which started at the file's creation time.
+ */
+public class RotatingFileSink implements SampleSink {
+
+    /**
+     * Opens the sink for the output file, truncating it unless appending
+     */
+    public interface Opener {
+        FileSink open(boolean append) throws IOException;
+    }
+
+    private static final long NOT_SET = Long.MIN_VALUE;
+
+    private final Opener opener;
+    private final RotationSettings settings;
+    private final SegmentArchiver archiver;
+    private final ZoneId zone;
+    private FileSink current;
+    // Time of the first sample of the current segment
+    private long segmentStartMillis = NOT_SET;
+    // Local hour or day of the current segment
+    private long periodStartMillis = NOT_SET;
+    private long periodEndMillis = NOT_SET;
+
+    public RotatingFileSink(Path file, Opener opener, RotationSettings settings, SegmentArchiver archiver, ZoneId zone) throws IOException {
+        this.opener = opener;
+        this.settings = settings;
+        this.archiver = archiver;
+        this.zone = zone;
+        if (Files.isRegularFile(file) && Files.size(file) > 0) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            segmentStartMillis = attributes.creationTime().toMillis();
+            updatePeriod(attributes.lastModifiedTime().toMillis());
+        }
+        this.current = opener.open(true);
+    }
+
+    @Override
+    public String getName() {
+        return current.getName();
+    }
+
+    @Override
+    public synchronized void write(Sample sample) throws IOException {
+        long time = sample.getTimestampMillis();
+        IOException rolloverError = null;
+        if (segmentStartMillis != NOT_SET && isRolloverDue(time)) {
+            rolloverError = rollOver();
+        }
+        current.write(sample);
+        if (segmentStartMillis == NOT_SET) {
+            segmentStartMillis = time;
+        }
+        if (periodStartMillis == NOT_SET || time >= periodEndMillis || time < periodStartMillis) {
+            updatePeriod(time);
+        }
+        if (rolloverError != null) {
+            throw rolloverError;
+        }
+    }
+
+    private boolean isRolloverDue(long time) {
+        if (settings.getMaxBytes() > 0 && current.getSize() >= settings.getMaxBytes()) {
+            return true;
+        }
+        // Only later periods start a segment, so a clock stepping back a little does not
+        return settings.getPeriod() != RotationSettings.Period.NONE && periodEndMillis != NOT_SET && time >= periodEndMillis;
+    }
+
+    private void updatePeriod(long time) {
+        ChronoUnit unit;
+        switch (settings.getPeriod()) {
+            case HOURLY:
+                unit = ChronoUnit.HOURS;
+                break;
+            case DAILY:
+                unit = ChronoUnit.DAYS;
+                break;
+            default:
+                return;
+        }
+        ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), zone).truncatedTo(unit);
+        periodStartMillis = start.toInstant().toEpochMilli();
+        periodEndMillis = start.plus(1, unit).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Closes the current segment, hands it to the archiver and starts a new output file.
+     * Returns the error if the segment could not be renamed; the sample is then still written
+     * to the old file, and the rollover is retried with the next one.
+     */
+    private IOException rollOver() throws IOException {
+        current.close();
+        List<Path> files = current.getFiles();
+        try {
+            archiver.archive(files, segmentStartMillis);
+        } catch (IOException e) {
+            // Keep appending to the file that could not be renamed rather than truncating it
+            current = opener.open(true);
+            return new IOException("Error rolling over " + files.get(0) + ": " + e.getMessage(), e);
+        }
+        current = opener.open(false);
+        segmentStartMillis = NOT_SET;
+        periodStartMillis = NOT_SET;
+        return null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        current.close();
+    }
+}
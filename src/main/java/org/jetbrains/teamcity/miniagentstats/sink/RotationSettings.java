@@ -0,0 +1,98 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+/**
+ * Settings of segmented output: when the output file rolls over, how finished segments are
+ * compressed and how many of them are kept
+ */
+public class RotationSettings {
+
+    /**
+     * Local time period after which the output file rolls over
+     */
+    public enum Period {
+        /** Only by size */
+        NONE,
+        HOURLY,
+        DAILY
+    }
+
+    /**
+     * How finished segments are compressed
+     */
+    public enum Compression {
+        NONE,
+        /** Into {@code <segment>.gz} */
+        GZIP
+    }
+
+    /** Smallest size limit, so that a binary header alone never fills a segment */
+    public static final long MIN_SEGMENT_BYTES = 1024;
+
+    private long maxBytes;
+    private Period period = Period.NONE;
+    private Compression compression = Compression.GZIP;
+    private int retainSegments;
+    private long retainMillis;
+
+    /**
+     * The output file rolls over before a sample would be written to a file of at least this size; 0 for no size limit
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes != 0 && maxBytes < MIN_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Segment size must be at least " + MIN_SEGMENT_BYTES + " bytes");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The output file rolls over when a sample falls into another hour or day than the previous one
+     */
+    public Period getPeriod() {
+        return period;
+    }
+
+    public void setPeriod(Period period) {
+        this.period = period;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Finished segments kept, newest first; 0 keeps all
+     */
+    public int getRetainSegments() {
+        return retainSegments;
+    }
+
+    public void setRetainSegments(int retainSegments) {
+        this.retainSegments = retainSegments;
+    }
+
+    /**
+     * Finished segments last written longer ago than this are deleted; 0 keeps them regardless of age
+     */
+    public long getRetainMillis() {
+        return retainMillis;
+    }
+
+    public void setRetainMillis(long retainMillis) {
+        this.retainMillis = retainMillis;
+    }
+
+    /**
+     * Whether the output file rolls over at all
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0 || period != Period.NONE;
+    }
+}
@@ -0,0 +1,274 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer, multi-consumer ring of preallocated samples
+ *
+ * The producer copies every sample into the next slot and publishes its sequence number;
+ * each consumer has a {@link Cursor} with its own position and copies the slots out again, so
+ * neither side allocates. Each slot carries the sequence it holds, written before and after the
+ * copy like a seqlock, which lets a consumer that was overtaken detect a torn read and skip ahead.
+ * The producer only waits for cursors with the {@link LagPolicy#BLOCK} policy.
+ * There is one producer at a time, e.g. the ticks of one monitor, which never overlap; publishing
+ * takes no lock, and overlapping publishes fail an assertion when assertions are enabled.
+ */
+public class SampleRingBuffer {
+    // Slot sequence while the producer is copying into it
+    private static final long WRITING = -1;
+    // Longest a waiting side parks before it checks again, in case a wakeup was missed
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Sample[] slots;
+    private final AtomicLongArray slotSequences;
+    private final int mask;
+    private volatile Cursor[] cursors = new Cursor[0];
+    // Last published sequence
+    private volatile long published = -1;
+    private volatile boolean closed;
+    // Producer parked until a blocking cursor moves on; null while it runs
+    private volatile Thread waitingProducer;
+    // Set while a sample is published; only used by assertions, which check that there is one producer at a time
+    private final AtomicBoolean publishing = new AtomicBoolean();
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public SampleRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Ring buffer capacity must be between 1 and 2^30: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Sample[size];
+        slotSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Sample();
+            // Below any sequence a consumer asks for
+            slotSequences.set(i, WRITING);
+        }
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Adds a consumer that starts with the next published sample
+     */
+    public synchronized Cursor addCursor(LagPolicy policy) {
+        Cursor cursor = new Cursor(policy, published + 1);
+        Cursor[] extended = Arrays.copyOf(cursors, cursors.length + 1);
+        extended[cursors.length] = cursor;
+        cursors = extended;
+        return cursor;
+    }
+
+    /**
+     * Copies a sample into the next slot and wakes the consumers waiting for it; must not be called
+     * by two threads at the same time. Waits while a blocking cursor is a whole ring behind; an
+     * interrupt stops the wait and overwrites the slot anyway, so that cursor skips it.
+     *
+     * @return false if the ring is closed and the sample was not published
+     */
+    public boolean publish(Sample sample) {
+        assert publishing.compareAndSet(false, true) : "Samples are published by more than one thread at a time";
+        try {
+            return publishNext(sample);
+        } finally {
+            assert publishing.getAndSet(false);
+        }
+    }
+
+    private boolean publishNext(Sample sample) {
+        if (closed) {
+            return false;
+        }
+        long sequence = published + 1;
+        long wrapped = sequence - slots.length;
+        for (Cursor cursor : cursors) {
+            if (cursor.policy == LagPolicy.BLOCK) {
+                awaitCursor(cursor, wrapped);
+            }
+        }
+        int index = (int) (sequence & mask);
+        slotSequences.set(index, WRITING);
+        // Keeps the copy after the marker, so a reader that sees the old sequence again read a whole sample
+        VarHandle.releaseFence();
+        slots[index].set(sample);
+        slotSequences.set(index, sequence);
+        published = sequence;
+        for (Cursor cursor : cursors) {
+            Thread waiter = cursor.waiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the cursor has read past the given sequence
+     */
+    private void awaitCursor(Cursor cursor, long sequence) {
+        int spins = 0;
+        while (cursor.next <= sequence && !cursor.detached && !closed) {
+            if (spins++ < 100) {
+                Thread.onSpinWait();
+                continue;
+            }
+            waitingProducer = Thread.currentThread();
+            if (cursor.next <= sequence && !cursor.detached) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingProducer = null;
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops publishing; cursors still receive the samples published before
+     */
+    public void close() {
+        closed = true;
+        for (Cursor cursor : cursors) {
+            Thread waiter = cursor.waiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Position of one consumer in the ring; used by one consumer at a time
+     */
+    public final class Cursor {
+        private final LagPolicy policy;
+        // Next sequence to read, read by the producer for blocking cursors
+        private volatile long next;
+        private volatile long skipped;
+        private volatile Thread waiter;
+        private volatile boolean detached;
+
+        private Cursor(LagPolicy policy, long next) {
+            this.policy = policy;
+            this.next = next;
+        }
+
+        public LagPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * Samples this cursor did not receive because its policy skipped them
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Copies the next sample into target, waiting until one is published
+         *
+         * @return false once the ring is closed and every sample published before was taken
+         */
+        public boolean take(Sample target) throws InterruptedException {
+            while (true) {
+                long sequence = next;
+                if (poll(target)) {
+                    return true;
+                }
+                if (closed) {
+                    // Closing happens after the last publish, so nothing more will come
+                    if (published < sequence) {
+                        return false;
+                    }
+                    continue;
+                }
+                waiter = Thread.currentThread();
+                if (published < sequence && !closed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                waiter = null;
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        /**
+         * Copies the next sample into target if one was published, without waiting
+         *
+         * @return false if this cursor has taken every sample published so far
+         */
+        public boolean poll(Sample target) {
+            while (true) {
+                long available = published;
+                long sequence = next;
+                if (sequence > available) {
+                    return false;
+                }
+
+                long wanted = sequence;
+                if (policy == LagPolicy.SAMPLE) {
+                    wanted = available;
+                } else if (available - sequence >= slots.length) {
+                    // Overtaken: the oldest slot that may still be intact
+                    wanted = available - slots.length + 1;
+                }
+                int index = (int) (wanted & mask);
+                if (slotSequences.get(index) == wanted) {
+                    target.set(slots[index]);
+                    // Keeps the copy before the check that the slot was not overwritten meanwhile
+                    VarHandle.acquireFence();
+                    if (slotSequences.get(index) == wanted) {
+                        if (wanted > sequence) {
+                            skipped += wanted - sequence;
+                        }
+                        next = wanted + 1;
+                        Thread producer = waitingProducer;
+                        if (producer != null) {
+                            LockSupport.unpark(producer);
+                        }
+                        return true;
+                    }
+                }
+                // The producer is overwriting the slot; look again once it has moved on
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * Whether a sample was published that this cursor has not taken yet
+         */
+        public boolean hasNext() {
+            return next <= published;
+        }
+
+        /**
+         * Stops the producer from waiting for this cursor, e.g. when its consumer has stopped
+         */
+        public void detach() {
+            detached = true;
+            Thread producer = waitingProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of samples, such as the console, an output file or the metrics endpoint
+ *
+ * In a {@link SinkPipeline} every sink runs on its own thread and receives the samples in order,
+ * except those its {@link LagPolicy} skips. The sample passed to {@link #write} is reused for the
+ * next one; a sink that keeps it must copy it.
+ */
+public interface SampleSink extends Closeable {
+    /**
+     * Short name used for the consumer thread, lag policies and messages, e.g. "csv"
+     */
+    String getName();
+
+    void write(Sample sample) throws IOException;
+
+    /**
+     * Flushes and releases the sink's resources once the last sample was written
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
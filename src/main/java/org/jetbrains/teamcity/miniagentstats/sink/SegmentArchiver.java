@@ -0,0 +1,264 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Turns finished output segments into archived files: renames them next to the output file,
+ * then compresses them and applies the retention limits on its own thread or a shared executor
+ *
+ * A segment of {@code stats.csv} that started at 2024-03-01 10:00 becomes
+ * {@code stats.20240301-100000.csv}, then {@code stats.20240301-100000.csv.gz}; sidecar files
+ * such as {@code stats.bin.idx} get the same stamp. Compression writes to a temporary file and
+ * renames it, so a segment is always either complete and uncompressed or complete and compressed;
+ * {@link #resume} finishes the segments an interrupted run left behind. The work of one archiver
+ * runs in the order it was queued, also on a shared executor.
+ */
+public class SegmentArchiver implements Closeable {
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final String stem;
+    // Matches segment file names and captures their stamp
+    private final Pattern segmentName;
+    private final RotationSettings settings;
+    private final ZoneId zone;
+    private final LongSupplier clock;
+    private final Executor executor;
+    // The executor created for this archiver, shut down by close; null for a shared one
+    private final ExecutorService ownExecutor;
+    // Completes once the work queued last is done; later work runs after it
+    private CompletableFuture<Void> queued = CompletableFuture.completedFuture(null);
+
+    public SegmentArchiver(Path file, RotationSettings settings, ZoneId zone) {
+        this(file, settings, zone, System::currentTimeMillis, null);
+    }
+
+    /**
+     * Archives on the given executor, which is not shut down by close, instead of a thread of its own
+     */
+    public SegmentArchiver(Path file, RotationSettings settings, ZoneId zone, Executor executor) {
+        this(file, settings, zone, System::currentTimeMillis, executor);
+    }
+
+    SegmentArchiver(Path file, RotationSettings settings, ZoneId zone, LongSupplier clock) {
+        this(file, settings, zone, clock, null);
+    }
+
+    SegmentArchiver(Path file, RotationSettings settings, ZoneId zone, LongSupplier clock, Executor executor) {
+        Path absolute = file.toAbsolutePath();
+        this.directory = absolute.getParent();
+        String name = absolute.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        this.stem = dot > 0 ? name.substring(0, dot) : name;
+        this.segmentName = Pattern.compile(Pattern.quote(stem) + "\\.(\\d{8}-\\d{6}(?:-\\d+)?)(\\..*)?");
+        this.settings = settings;
+        this.zone = zone;
+        this.clock = clock;
+        if (executor != null) {
+            this.ownExecutor = null;
+            this.executor = executor;
+        } else {
+            this.ownExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "segment-archiver-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor = ownExecutor;
+        }
+    }
+
+    /**
+     * Renames the closed files of a segment to their archived names and queues their compression;
+     * returns the new paths. Only the rename happens on the calling thread.
+     */
+    public List<Path> archive(List<Path> files, long startMillis) throws IOException {
+        String stamp = STAMP.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(startMillis), zone));
+        // Segments rolled over by size within one second get a counter
+        String unique = stamp;
+        for (int n = 1; isTaken(files, unique); n++) {
+            unique = stamp + "-" + n;
+        }
+        List<Path> archived = new ArrayList<>();
+        for (Path file : files) {
+            if (Files.exists(file)) {
+                Path target = segmentFile(file, unique);
+                Files.move(file, target);
+                archived.add(target);
+            }
+        }
+        queue(() -> {
+            for (Path segment : archived) {
+                compress(segment);
+            }
+            applyRetention();
+        });
+        return archived;
+    }
+
+    /**
+     * Queues the compression of segments left uncompressed by an earlier run and applies the retention limits
+     */
+    public void resume() {
+        queue(() -> {
+            try {
+                for (Path file : listSegmentFiles()) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(TEMPORARY_SUFFIX)) {
+                        Files.deleteIfExists(file);
+                    } else if (!name.endsWith(GZIP_SUFFIX)) {
+                        compress(file);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error listing output segments in " + directory + ": " + e.getMessage());
+            }
+            applyRetention();
+        });
+    }
+
+    /**
+     * Runs the work on the executor after the work queued before
+     */
+    private synchronized void queue(Runnable work) {
+        queued = queued.thenRunAsync(work, executor).exceptionally(e -> {
+            System.err.println("Error archiving output segments in " + directory + ": " + e.getMessage());
+            return null;
+        });
+    }
+
+    private boolean isTaken(List<Path> files, String stamp) {
+        for (Path file : files) {
+            Path target = segmentFile(file, stamp);
+            if (Files.exists(target) || Files.exists(target.resolveSibling(target.getFileName() + GZIP_SUFFIX))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Inserts the stamp after the stem of the output file: stats.csv and stats.csv.idx become stats.STAMP.csv and stats.STAMP.csv.idx
+     */
+    private Path segmentFile(Path file, String stamp) {
+        String name = file.getFileName().toString();
+        String rest = name.startsWith(stem) ? name.substring(stem.length()) : "." + name;
+        return directory.resolve(stem + "." + stamp + rest);
+    }
+
+    private void compress(Path segment) {
+        if (settings.getCompression() != RotationSettings.Compression.GZIP) {
+            return;
+        }
+        Path compressed = segment.resolveSibling(segment.getFileName() + GZIP_SUFFIX);
+        Path temporary = segment.resolveSibling(compressed.getFileName() + TEMPORARY_SUFFIX);
+        try {
+            try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(temporary), 64 * 1024)) {
+                Files.copy(segment, output);
+            }
+            Files.move(temporary, compressed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(segment);
+        } catch (IOException e) {
+            System.err.println("Error compressing output segment " + segment + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Removed by the next resume
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest segments beyond the retained count and the segments last written before the retained age
+     */
+    private void applyRetention() {
+        if (settings.getRetainSegments() <= 0 && settings.getRetainMillis() <= 0) {
+            return;
+        }
+        try {
+            // Files of each segment by stamp, oldest first
+            TreeMap<String, List<Path>> segments = new TreeMap<>();
+            for (Path file : listSegmentFiles()) {
+                Matcher matcher = segmentName.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    segments.computeIfAbsent(matcher.group(1), stamp -> new ArrayList<>()).add(file);
+                }
+            }
+            int excess = settings.getRetainSegments() > 0 ? segments.size() - settings.getRetainSegments() : 0;
+            long oldest = settings.getRetainMillis() > 0 ? clock.getAsLong() - settings.getRetainMillis() : Long.MIN_VALUE;
+            for (Map.Entry<String, List<Path>> segment : segments.entrySet()) {
+                boolean expired = excess-- > 0;
+                for (Path file : segment.getValue()) {
+                    expired |= Files.getLastModifiedTime(file).toMillis() < oldest;
+                }
+                if (expired) {
+                    for (Path file : segment.getValue()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error applying output retention in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private List<Path> listSegmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> segmentName.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Waits for the queued compressions, so that stopping the monitor leaves no half-written archive
+     */
+    @Override
+    public void close() throws IOException {
+        CompletableFuture<Void> last;
+        synchronized (this) {
+            last = queued;
+        }
+        try {
+            last.get(1, TimeUnit.MINUTES);
+        } catch (TimeoutException e) {
+            throw new IOException("Compressing output segments in " + directory + " did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing output segments", e);
+        } catch (ExecutionException e) {
+            // Not thrown: queue reports failed work and lets the work after it run
+        } finally {
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+        }
+    }
+}
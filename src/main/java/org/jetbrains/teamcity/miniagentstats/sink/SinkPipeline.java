@@ -0,0 +1,265 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Fans samples out to sinks that each run on their own thread, or as tasks on a shared executor
+ *
+ * The collector publishes into a {@link SampleRingBuffer} and returns; every sink takes the
+ * samples from its own cursor, so a slow disk delays only the sink that writes to it. How far a
+ * sink may fall behind before samples are skipped, or the collector waits, is set by its
+ * {@link LagPolicy}. Closing the pipeline lets every sink write what was published and closes it.
+ *
+ * With a shared executor a sink holds no thread while it is caught up: publishing schedules a task
+ * that writes the samples that are there and returns, so many pipelines can share a bounded pool.
+ */
+public class SinkPipeline implements Closeable {
+    private final SampleRingBuffer ring;
+    // Runs the sink tasks; null gives every sink its own thread
+    private final Executor executor;
+    // Replaced as a whole when a sink is added, so publishing iterates without locking or allocating
+    private volatile SinkConsumer[] consumers = new SinkConsumer[0];
+
+    public SinkPipeline(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param executor runs the sinks as tasks, must not be the executor of the publishing thread
+     *                 if a sink blocks; it is not shut down when the pipeline closes
+     */
+    public SinkPipeline(int capacity, Executor executor) {
+        this.ring = new SampleRingBuffer(capacity);
+        this.executor = executor;
+    }
+
+    /**
+     * Starts consuming samples for the sink; must be called before the first sample is published
+     */
+    public synchronized void add(SampleSink sink, LagPolicy policy) {
+        SampleRingBuffer.Cursor cursor = ring.addCursor(policy);
+        SinkConsumer consumer = executor != null ? new SinkTask(sink, cursor, ring, executor) : new SinkThread(sink, cursor);
+        SinkConsumer[] extended = Arrays.copyOf(consumers, consumers.length + 1);
+        extended[consumers.length] = consumer;
+        consumers = extended;
+        consumer.start();
+    }
+
+    /**
+     * Hands a sample to every sink without waiting for them, unless a blocking sink is a whole ring behind
+     */
+    public void publish(Sample sample) throws IOException {
+        if (!ring.publish(sample)) {
+            throw new IOException("Sink pipeline is closed");
+        }
+        for (SinkConsumer consumer : consumers) {
+            consumer.published();
+        }
+    }
+
+    /**
+     * Returns the number of samples the named sink skipped, or 0 if there is no such sink
+     */
+    public synchronized long getSkipped(String sinkName) {
+        for (SinkConsumer consumer : consumers) {
+            if (consumer.sink.getName().equals(sinkName)) {
+                return consumer.cursor.getSkipped();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reports every sink that skipped samples
+     */
+    public synchronized void reportSkipped(Consumer<String> out) {
+        for (SinkConsumer consumer : consumers) {
+            long skipped = consumer.cursor.getSkipped();
+            if (skipped > 0) {
+                out.accept("Sink " + consumer.sink.getName() + " fell behind and skipped " + skipped + " samples ("
+                        + consumer.cursor.getPolicy().name().toLowerCase(Locale.ROOT) + " policy)");
+            }
+        }
+    }
+
+    /**
+     * Waits until every sink has written the samples published so far, then closes the sinks
+     *
+     * @throws IOException the first error a sink reported while closing
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        ring.close();
+        boolean interrupted = false;
+        IOException error = null;
+        for (SinkConsumer consumer : consumers) {
+            consumer.published();
+            while (true) {
+                try {
+                    consumer.awaitClosed();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (error == null) {
+                error = consumer.closeError;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * One sink with its cursor
+     */
+    private abstract static class SinkConsumer {
+        final SampleSink sink;
+        final SampleRingBuffer.Cursor cursor;
+        // Copied out of the ring, so the slot can be reused while the sink writes
+        final Sample sample = new Sample();
+        volatile IOException closeError;
+
+        SinkConsumer(SampleSink sink, SampleRingBuffer.Cursor cursor) {
+            this.sink = sink;
+            this.cursor = cursor;
+        }
+
+        abstract void start();
+
+        /**
+         * Called after a sample was published and once the ring is closed
+         */
+        void published() {
+        }
+
+        /**
+         * Waits until the sink has written every sample and was closed
+         */
+        abstract void awaitClosed() throws InterruptedException;
+
+        void write() {
+            try {
+                sink.write(sample);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error writing statistics to " + sink.getName() + ": " + e.getMessage());
+            }
+        }
+
+        void finish() {
+            cursor.detach();
+            try {
+                sink.close();
+            } catch (IOException e) {
+                closeError = e;
+            }
+        }
+    }
+
+    /**
+     * A sink on a thread of its own, which waits for the next sample
+     */
+    private static final class SinkThread extends SinkConsumer implements Runnable {
+        private final Thread thread;
+
+        SinkThread(SampleSink sink, SampleRingBuffer.Cursor cursor) {
+            super(sink, cursor);
+            this.thread = new Thread(this, "sink-" + sink.getName());
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        void start() {
+            thread.start();
+        }
+
+        @Override
+        void awaitClosed() throws InterruptedException {
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    try {
+                        if (!cursor.take(sample)) {
+                            break;
+                        }
+                        write();
+                    } catch (InterruptedException e) {
+                        // Only closing the ring stops a sink; keep draining
+                    }
+                }
+            } finally {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * A sink run as a task on a shared executor whenever samples are waiting for it; at most one task runs at a time
+     */
+    private static final class SinkTask extends SinkConsumer implements Runnable {
+        private final SampleRingBuffer ring;
+        private final Executor executor;
+        // Set while a task is queued or running
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        SinkTask(SampleSink sink, SampleRingBuffer.Cursor cursor, SampleRingBuffer ring, Executor executor) {
+            super(sink, cursor);
+            this.ring = ring;
+            this.executor = executor;
+        }
+
+        @Override
+        void start() {
+        }
+
+        @Override
+        void published() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        void awaitClosed() throws InterruptedException {
+            closed.await();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                while (cursor.poll(sample)) {
+                    write();
+                }
+                if (ring.isClosed() && !cursor.hasNext()) {
+                    // Closing happens after the last publish, so every sample was written
+                    finish();
+                    closed.countDown();
+                    return;
+                }
+                scheduled.set(false);
+                // A sample published, or the ring closed, after the last look gets this task again
+                if (!cursor.hasNext() && !ring.isClosed() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ring size and lag policies of a {@link SinkPipeline}
+ */
+public class SinkPipelineSettings {
+    // Sinks whose output is the record of the run; a gap in them cannot be filled in later
+    private static final Set<String> FILE_SINKS = new HashSet<>(Arrays.asList("csv", "binary", "events"));
+
+    // About 17 minutes of samples at a 1-second interval before a sink starts losing samples
+    private int ringCapacity = 1024;
+    // A stalled output file holds up collection rather than losing samples; the console and the
+    // metrics endpoint only show the latest values, so they drop samples instead
+    private LagPolicy fileSinkPolicy = LagPolicy.BLOCK;
+    private LagPolicy otherSinkPolicy = LagPolicy.DROP;
+    private final Map<String, LagPolicy> policies = new HashMap<>();
+
+    public int getRingCapacity() {
+        return ringCapacity;
+    }
+
+    public void setRingCapacity(int ringCapacity) {
+        this.ringCapacity = ringCapacity;
+    }
+
+    /**
+     * Sets the policy of sinks without a policy of their own, replacing block for the output files
+     * and drop for the other sinks
+     */
+    public void setDefaultPolicy(LagPolicy defaultPolicy) {
+        this.fileSinkPolicy = defaultPolicy;
+        this.otherSinkPolicy = defaultPolicy;
+    }
+
+    /**
+     * Sets the policy of the sink with the given name, e.g. "console" or "csv"
+     */
+    public void setPolicy(String sinkName, LagPolicy policy) {
+        policies.put(sinkName, policy);
+    }
+
+    public LagPolicy getPolicy(String sinkName) {
+        LagPolicy policy = policies.get(sinkName);
+        if (policy != null) {
+            return policy;
+        }
+        return FILE_SINKS.contains(sinkName) ? fileSinkPolicy : otherSinkPolicy;
+    }
+}
@@ -0,0 +1,75 @@
+package org.jetbrains.teamcity.miniagentstats.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Layout of the binary sample store
+ *
+ * The data file starts with a {@value #HEADER_SIZE}-byte header followed by fixed-width records:
+ * <pre>
+ * header: int magic "TCAS" | short version | short record size | int records per segment | 20 reserved bytes
+ * record: long epoch millis | int queued builds | int total agents | int busy agents | byte flags
+ * </pre>
+ * Records are appended in time order. The sidecar index file ({@code <data file>.idx}) holds
+ * the timestamp of the first record of every segment of {@link #getRecordsPerSegment()} records,
+ * as one long per segment, so range scans can find their start without touching the data.
+ */
+public final class BinarySampleFormat {
+    public static final int MAGIC = 0x54434153; // "TCAS"
+    // Version 1 had a 24-byte record with an int of flags
+    public static final short VERSION = 2;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 21;
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 4096;
+
+    // Offsets of the fields inside a record
+    static final int TIMESTAMP_OFFSET = 0;
+    static final int QUEUED_OFFSET = 8;
+    static final int TOTAL_OFFSET = 12;
+    static final int BUSY_OFFSET = 16;
+    static final int FLAGS_OFFSET = 20;
+
+    /** Flag of a record carried over from the previous sample because its tick missed the deadline */
+    public static final int FLAG_STALE = 1;
+
+    private BinarySampleFormat() {
+    }
+
+    /**
+     * Returns the path of the segment index belonging to a data file
+     */
+    public static Path indexFile(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName() + ".idx");
+    }
+
+    static void writeHeader(ByteBuffer buffer, int recordsPerSegment) {
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) RECORD_SIZE);
+        buffer.putInt(recordsPerSegment);
+        while (buffer.position() < HEADER_SIZE) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Validates a header and returns its records-per-segment value
+     */
+    static int readHeader(ByteBuffer buffer, Path file) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not an agent statistics binary file");
+        }
+        short version = buffer.getShort();
+        short recordSize = buffer.getShort();
+        if (version != VERSION || recordSize != RECORD_SIZE) {
+            throw new IOException(file + " has unsupported version " + version + " or record size " + recordSize);
+        }
+        int recordsPerSegment = buffer.getInt();
+        if (recordsPerSegment <= 0) {
+            throw new IOException(file + " has an invalid segment size " + recordsPerSegment);
+        }
+        return recordsPerSegment;
+    }
+}
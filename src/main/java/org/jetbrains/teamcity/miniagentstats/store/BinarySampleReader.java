@@ -0,0 +1,206 @@
+package org.jetbrains.teamcity.miniagentstats.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a binary sample store through memory-mapped buffers
+ *
+ * Fields are read in place from the mapped file, so scans copy and allocate nothing per record.
+ * The reader sees the records that existed when it was opened.
+ */
+public class BinarySampleReader implements Closeable {
+    // Largest number of records in one mapping; files above 2 GB are mapped in several chunks
+    private static final int MAX_RECORDS_PER_MAP = Integer.MAX_VALUE / BinarySampleFormat.RECORD_SIZE;
+
+    /**
+     * Receives the fields of each record of a scan
+     */
+    public interface RecordVisitor {
+        void visit(long timestampMillis, int queuedBuilds, int totalAgents, int busyAgents, int flags);
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] maps;
+    private final int recordsPerMap;
+    private final int recordsPerSegment;
+    private final long size;
+    // Timestamp of the first record of each segment; may be shorter than needed if the index is missing
+    private final long[] segmentStarts;
+
+    public BinarySampleReader(Path file) throws IOException {
+        this(file, MAX_RECORDS_PER_MAP);
+    }
+
+    BinarySampleReader(Path file, int recordsPerMap) throws IOException {
+        this.file = file;
+        this.recordsPerMap = recordsPerMap;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), BinarySampleFormat.HEADER_SIZE));
+            this.recordsPerSegment = BinarySampleFormat.readHeader(header, file);
+            this.size = (channel.size() - BinarySampleFormat.HEADER_SIZE) / BinarySampleFormat.RECORD_SIZE;
+
+            int mapCount = (int) ((size + recordsPerMap - 1) / recordsPerMap);
+            this.maps = new MappedByteBuffer[mapCount];
+            for (int i = 0; i < mapCount; i++) {
+                long first = (long) i * recordsPerMap;
+                long records = Math.min(recordsPerMap, size - first);
+                maps[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        BinarySampleFormat.HEADER_SIZE + first * BinarySampleFormat.RECORD_SIZE,
+                        records * BinarySampleFormat.RECORD_SIZE);
+            }
+            this.segmentStarts = readIndex(BinarySampleFormat.indexFile(file));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private long[] readIndex(Path indexFile) throws IOException {
+        if (!Files.exists(indexFile)) {
+            return new long[0];
+        }
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            long expected = (size + recordsPerSegment - 1) / recordsPerSegment;
+            int entries = (int) Math.min(expected, index.size() / Long.BYTES);
+            long[] starts = new long[entries];
+            if (entries > 0) {
+                ByteBuffer buffer = index.map(FileChannel.MapMode.READ_ONLY, 0, (long) entries * Long.BYTES);
+                buffer.asLongBuffer().get(starts);
+            }
+            return starts;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Number of records in the file
+     */
+    public long size() {
+        return size;
+    }
+
+    public long timestampMillis(long record) {
+        return buffer(record).getLong(offset(record) + BinarySampleFormat.TIMESTAMP_OFFSET);
+    }
+
+    public int queuedBuilds(long record) {
+        return buffer(record).getInt(offset(record) + BinarySampleFormat.QUEUED_OFFSET);
+    }
+
+    public int totalAgents(long record) {
+        return buffer(record).getInt(offset(record) + BinarySampleFormat.TOTAL_OFFSET);
+    }
+
+    public int busyAgents(long record) {
+        return buffer(record).getInt(offset(record) + BinarySampleFormat.BUSY_OFFSET);
+    }
+
+    public int flags(long record) {
+        return buffer(record).get(offset(record) + BinarySampleFormat.FLAGS_OFFSET) & 0xFF;
+    }
+
+    /**
+     * Returns the index of the first record at or after the timestamp, or size() if there is none
+     */
+    public long lowerBound(long timestampMillis) {
+        long low = 0;
+        long high = size;
+
+        // Narrow the search to one segment using the index
+        if (segmentStarts.length > 0) {
+            int segmentLow = 0;
+            int segmentHigh = segmentStarts.length;
+            while (segmentLow < segmentHigh) {
+                int mid = (segmentLow + segmentHigh) >>> 1;
+                if (segmentStarts[mid] < timestampMillis) {
+                    segmentLow = mid + 1;
+                } else {
+                    segmentHigh = mid;
+                }
+            }
+            // Segment segmentLow starts at or after the timestamp, so the answer is in the segment before it
+            low = Math.max(0, (long) (segmentLow - 1) * recordsPerSegment);
+            if (segmentLow < segmentStarts.length) {
+                high = Math.min(size, (long) segmentLow * recordsPerSegment);
+            }
+        }
+
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timestampMillis(mid) < timestampMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Visits every record with fromMillis <= timestamp < toMillis
+     *
+     * @return the number of records visited
+     */
+    public long scan(long fromMillis, long toMillis, RecordVisitor visitor) {
+        long count = 0;
+        for (long record = lowerBound(fromMillis); record < size; record++) {
+            ByteBuffer buffer = buffer(record);
+            int offset = offset(record);
+            long timestamp = buffer.getLong(offset + BinarySampleFormat.TIMESTAMP_OFFSET);
+            if (timestamp >= toMillis) {
+                break;
+            }
+            visitor.visit(timestamp,
+                    buffer.getInt(offset + BinarySampleFormat.QUEUED_OFFSET),
+                    buffer.getInt(offset + BinarySampleFormat.TOTAL_OFFSET),
+                    buffer.getInt(offset + BinarySampleFormat.BUSY_OFFSET),
+                    buffer.get(offset + BinarySampleFormat.FLAGS_OFFSET) & 0xFF);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Visits the records with first <= index < end; several threads may scan different ranges at once
+     */
+    public void scanRecords(long first, long end, RecordVisitor visitor) {
+        for (long record = first; record < end; record++) {
+            ByteBuffer buffer = buffer(record);
+            int offset = offset(record);
+            visitor.visit(buffer.getLong(offset + BinarySampleFormat.TIMESTAMP_OFFSET),
+                    buffer.getInt(offset + BinarySampleFormat.QUEUED_OFFSET),
+                    buffer.getInt(offset + BinarySampleFormat.TOTAL_OFFSET),
+                    buffer.getInt(offset + BinarySampleFormat.BUSY_OFFSET),
+                    buffer.get(offset + BinarySampleFormat.FLAGS_OFFSET) & 0xFF);
+        }
+    }
+
+    private ByteBuffer buffer(long record) {
+        if (record < 0 || record >= size) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+        }
+        return maps[(int) (record / recordsPerMap)];
+    }
+
+    private int offset(long record) {
+        return (int) (record % recordsPerMap) * BinarySampleFormat.RECORD_SIZE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,154 @@
+package org.jetbrains.teamcity.miniagentstats.store;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends samples to a binary sample store as fixed-width records
+ *
+ * Opening an existing file in append mode validates its header, drops a partially written
+ * trailing record left by a crash, and rebuilds the segment index if it is out of date.
+ */
+public class BinarySampleWriter implements Closeable {
+    private final Path file;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final int recordsPerSegment;
+    // Reused for every record, so appending allocates nothing
+    private final ByteBuffer record = ByteBuffer.allocate(BinarySampleFormat.RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(Long.BYTES);
+    private long recordCount;
+
+    public BinarySampleWriter(Path file, boolean append) throws IOException {
+        this(file, append, BinarySampleFormat.DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    public BinarySampleWriter(Path file, boolean append, int recordsPerSegment) throws IOException {
+        this.file = file;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        boolean existing = append && Files.exists(file) && Files.size(file) >= BinarySampleFormat.HEADER_SIZE;
+        this.data = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(BinarySampleFormat.indexFile(file),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (existing) {
+            ByteBuffer header = ByteBuffer.allocate(BinarySampleFormat.HEADER_SIZE);
+            readFully(data, header, 0);
+            header.flip();
+            this.recordsPerSegment = BinarySampleFormat.readHeader(header, file);
+            // A record cut short by a crash is dropped
+            this.recordCount = (data.size() - BinarySampleFormat.HEADER_SIZE) / BinarySampleFormat.RECORD_SIZE;
+            data.truncate(BinarySampleFormat.HEADER_SIZE + recordCount * BinarySampleFormat.RECORD_SIZE);
+            rebuildIndexIfNeeded();
+        } else {
+            this.recordsPerSegment = recordsPerSegment;
+            data.truncate(0);
+            index.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(BinarySampleFormat.HEADER_SIZE);
+            BinarySampleFormat.writeHeader(header, recordsPerSegment);
+            header.flip();
+            writeFully(data, header, 0);
+            this.recordCount = 0;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Appends one sample
+     */
+    public void append(Sample sample) throws IOException {
+        append(sample.getTimestampMillis(), sample.getQueuedBuilds(), sample.getTotalAgents(), sample.getBusyAgents(),
+                sample.isStale() ? BinarySampleFormat.FLAG_STALE : 0);
+    }
+
+    /**
+     * Appends one record
+     */
+    public void append(long timestampMillis, int queuedBuilds, int totalAgents, int busyAgents, int flags) throws IOException {
+        if (recordCount % recordsPerSegment == 0) {
+            indexEntry.clear();
+            indexEntry.putLong(timestampMillis);
+            indexEntry.flip();
+            writeFully(index, indexEntry, (recordCount / recordsPerSegment) * Long.BYTES);
+        }
+
+        record.clear();
+        record.putLong(timestampMillis);
+        record.putInt(queuedBuilds);
+        record.putInt(totalAgents);
+        record.putInt(busyAgents);
+        record.put((byte) flags);
+        record.flip();
+        writeFully(data, record, BinarySampleFormat.HEADER_SIZE + recordCount * BinarySampleFormat.RECORD_SIZE);
+        recordCount++;
+    }
+
+    /**
+     * Forces written records to the storage device
+     */
+    public void force() throws IOException {
+        data.force(false);
+        index.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Rewrites the index from the data file when it does not cover every segment
+     */
+    private void rebuildIndexIfNeeded() throws IOException {
+        long segments = (recordCount + recordsPerSegment - 1) / recordsPerSegment;
+        if (index.size() == segments * Long.BYTES) {
+            return;
+        }
+        index.truncate(0);
+        ByteBuffer timestamp = ByteBuffer.allocate(Long.BYTES);
+        for (long segment = 0; segment < segments; segment++) {
+            timestamp.clear();
+            readFully(data, timestamp, BinarySampleFormat.HEADER_SIZE + segment * recordsPerSegment * BinarySampleFormat.RECORD_SIZE);
+            timestamp.flip();
+            writeFully(index, timestamp, segment * Long.BYTES);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.jetbrains.teamcity.miniagentstats.store;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Converts CSV output of the monitor into a binary sample store
+ *
+ * Lines have the form {@code timestamp,queued_builds,total_agents,busy_agents} with optional
+ * extra columns; a trailing {@code stale} column sets the stale flag. Timestamps are local
+ * date-times, converted with the given time zone, or epoch milliseconds.
+ */
+public class CsvToBinaryConverter {
+    private final ZoneId zone;
+
+    public CsvToBinaryConverter(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Converts a CSV file and returns the number of records written
+     */
+    public long convert(Path csvFile, Path binaryFile) throws IOException {
+        long lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8);
+             BinarySampleWriter writer = new BinarySampleWriter(binaryFile, false)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split(",");
+                if (parts.length < 4) {
+                    throw new IOException(csvFile + ":" + lineNumber + ": expected at least 4 columns");
+                }
+                try {
+                    long timestamp = parseTimestamp(parts[0], zone);
+                    int flags = "stale".equals(parts[parts.length - 1]) ? BinarySampleFormat.FLAG_STALE : 0;
+                    writer.append(timestamp, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                            Integer.parseInt(parts[3]), flags);
+                } catch (DateTimeParseException | NumberFormatException e) {
+                    throw new IOException(csvFile + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+            return writer.getRecordCount();
+        }
+    }
+    
+    /**
+     * Parses a local date-time, or epoch milliseconds when the column has only digits
+     */
+    static long parseTimestamp(String text, ZoneId zone) {
+        boolean digits = !text.isEmpty();
+        for (int i = 0; i < text.length() && digits; i++) {
+            digits = text.charAt(i) >= '0' && text.charAt(i) <= '9';
+        }
+        if (digits) {
+            return Long.parseLong(text);
+        }
+        return LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,78 @@
+package org.jetbrains.teamcity.miniagentstats.utilization;
+
+import java.time.Instant;
+
+/**
+ * Accumulated utilization of one agent, as returned by {@link AgentUtilizationTracker}
+ */
+public class AgentUtilization {
+    /**
+     * State of an agent at its last observation
+     */
+    public enum State {
+        /** Enabled, connected and running a build */
+        BUSY,
+        /** Connected but not running a build, or disabled */
+        IDLE,
+        /** Reported as disconnected or missing from the last response */
+        DISCONNECTED
+    }
+
+    private final int id;
+    private final long busyMillis;
+    private final long idleMillis;
+    private final int disconnects;
+    private final long lastStateChangeMillis;
+    private final State state;
+
+    public AgentUtilization(int id, long busyMillis, long idleMillis, int disconnects, long lastStateChangeMillis, State state) {
+        this.id = id;
+        this.busyMillis = busyMillis;
+        this.idleMillis = idleMillis;
+        this.disconnects = disconnects;
+        this.lastStateChangeMillis = lastStateChangeMillis;
+        this.state = state;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getBusySeconds() {
+        return busyMillis / 1000;
+    }
+
+    public long getIdleSeconds() {
+        return idleMillis / 1000;
+    }
+
+    /**
+     * Share of the connected time the agent spent running builds, 0..1
+     */
+    public double getUtilization() {
+        long connected = busyMillis + idleMillis;
+        return connected == 0 ? 0 : (double) busyMillis / connected;
+    }
+
+    public int getDisconnects() {
+        return disconnects;
+    }
+
+    /**
+     * Epoch millis of the last observed state change
+     */
+    public long getLastStateChangeMillis() {
+        return lastStateChangeMillis;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("agent %d: %.1f%% busy, busy %ds, idle %ds, %d disconnects, %s since %s",
+                id, getUtilization() * 100, getBusySeconds(), getIdleSeconds(), disconnects, state,
+                Instant.ofEpochMilli(lastStateChangeMillis));
+    }
+}
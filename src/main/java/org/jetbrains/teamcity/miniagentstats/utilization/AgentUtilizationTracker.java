@@ -0,0 +1,208 @@
+package org.jetbrains.teamcity.miniagentstats.utilization;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentObserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Accumulates busy and idle time, disconnects and state changes of every agent across ticks
+ *
+ * Each tick calls {@link #beginTick}, then {@link #visit} for every agent of the response, then
+ * {@link #endTick}. The time since an agent's previous observation is credited to the state it
+ * had then. Agents missing from a response are treated as disconnected, since the agents
+ * collection only lists connected agents by default.
+ *
+ * Agents are kept in an {@link IntIndexMap} and parallel primitive arrays, about 60 bytes per
+ * agent, so 50k agents take a few megabytes and a tick allocates nothing.
+ */
+public class AgentUtilizationTracker implements AgentObserver {
+    private static final byte BUSY = 0;
+    private static final byte IDLE = 1;
+    private static final byte DISCONNECTED = 2;
+    private static final AgentUtilization.State[] STATES = {
+            AgentUtilization.State.BUSY, AgentUtilization.State.IDLE, AgentUtilization.State.DISCONNECTED};
+
+    private final IntIndexMap index;
+    private int[] ids;
+    private long[] busyMillis;
+    private long[] idleMillis;
+    private long[] lastAccountedMillis;
+    private long[] lastChangeMillis;
+    private int[] disconnects;
+    private int[] lastSeenTick;
+    private byte[] states;
+
+    private int tick;
+    private long tickMillis;
+
+    public AgentUtilizationTracker(int expectedAgents) {
+        int capacity = Math.max(16, expectedAgents);
+        index = new IntIndexMap(capacity);
+        ids = new int[capacity];
+        busyMillis = new long[capacity];
+        idleMillis = new long[capacity];
+        lastAccountedMillis = new long[capacity];
+        lastChangeMillis = new long[capacity];
+        disconnects = new int[capacity];
+        lastSeenTick = new int[capacity];
+        states = new byte[capacity];
+    }
+
+    /**
+     * Starts a tick observed at the given time
+     */
+    @Override
+    public synchronized void beginTick(long nowMillis) {
+        tick++;
+        tickMillis = nowMillis;
+    }
+
+    /**
+     * Records the state of one agent in the current tick; agents without an id cannot be followed and are ignored
+     */
+    @Override
+    public synchronized void visit(int id, boolean enabled, boolean connected, boolean busy) {
+        if (id < 0) {
+            return;
+        }
+        byte state = !connected ? DISCONNECTED : busy ? BUSY : IDLE;
+        int before = index.size();
+        int i = index.getOrAdd(id);
+        if (i == before) {
+            ensureCapacity(i + 1);
+            ids[i] = id;
+            states[i] = state;
+            lastAccountedMillis[i] = tickMillis;
+            lastChangeMillis[i] = tickMillis;
+        } else {
+            observe(i, state);
+        }
+        lastSeenTick[i] = tick;
+    }
+
+    /**
+     * Finishes the current tick; agents that were not in the response become disconnected
+     */
+    @Override
+    public synchronized void endTick() {
+        int size = index.size();
+        for (int i = 0; i < size; i++) {
+            if (lastSeenTick[i] != tick) {
+                observe(i, DISCONNECTED);
+            }
+        }
+    }
+
+    private void observe(int i, byte state) {
+        long elapsed = Math.max(0, tickMillis - lastAccountedMillis[i]);
+        if (states[i] == BUSY) {
+            busyMillis[i] += elapsed;
+        } else if (states[i] == IDLE) {
+            idleMillis[i] += elapsed;
+        }
+        lastAccountedMillis[i] = tickMillis;
+        if (states[i] != state) {
+            if (state == DISCONNECTED) {
+                disconnects[i]++;
+            }
+            states[i] = state;
+            lastChangeMillis[i] = tickMillis;
+        }
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(required, ids.length * 2);
+        ids = Arrays.copyOf(ids, capacity);
+        busyMillis = Arrays.copyOf(busyMillis, capacity);
+        idleMillis = Arrays.copyOf(idleMillis, capacity);
+        lastAccountedMillis = Arrays.copyOf(lastAccountedMillis, capacity);
+        lastChangeMillis = Arrays.copyOf(lastChangeMillis, capacity);
+        disconnects = Arrays.copyOf(disconnects, capacity);
+        lastSeenTick = Arrays.copyOf(lastSeenTick, capacity);
+        states = Arrays.copyOf(states, capacity);
+    }
+
+    /**
+     * Returns the number of agents ever seen
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the accumulated utilization of an agent, or null if it was never seen
+     */
+    public synchronized AgentUtilization get(int id) {
+        int i = index.get(id);
+        return i < 0 ? null : toUtilization(i);
+    }
+
+    /**
+     * Returns up to n agents with the highest share of busy time, highest first
+     */
+    public synchronized List<AgentUtilization> mostUtilized(int n) {
+        return top(n, true);
+    }
+
+    /**
+     * Returns up to n agents with the lowest share of busy time, lowest first.
+     * Agents that were never seen connected are left out.
+     */
+    public synchronized List<AgentUtilization> leastUtilized(int n) {
+        return top(n, false);
+    }
+
+    /**
+     * Selects the top n indexes with an insertion-sorted array, O(agents * n) without boxing
+     */
+    private List<AgentUtilization> top(int n, boolean highest) {
+        int[] selected = new int[Math.max(0, n)];
+        int count = 0;
+        int size = index.size();
+        for (int i = 0; i < size && n > 0; i++) {
+            if (busyMillis[i] + idleMillis[i] == 0) {
+                continue;
+            }
+            int position = count;
+            while (position > 0 && ranksBefore(i, selected[position - 1], highest)) {
+                position--;
+            }
+            if (position >= n) {
+                continue;
+            }
+            int end = Math.min(count, n - 1);
+            System.arraycopy(selected, position, selected, position + 1, end - position);
+            selected[position] = i;
+            count = Math.min(count + 1, n);
+        }
+        List<AgentUtilization> result = new ArrayList<>(count);
+        for (int k = 0; k < count; k++) {
+            result.add(toUtilization(selected[k]));
+        }
+        return result;
+    }
+
+    /**
+     * Orders by utilization, then by busy time in the same direction, then by id
+     */
+    private boolean ranksBefore(int a, int b, boolean highest) {
+        double left = (double) busyMillis[a] / (busyMillis[a] + idleMillis[a]);
+        double right = (double) busyMillis[b] / (busyMillis[b] + idleMillis[b]);
+        if (left != right) {
+            return highest ? left > right : left < right;
+        }
+        if (busyMillis[a] != busyMillis[b]) {
+            return highest ? busyMillis[a] > busyMillis[b] : busyMillis[a] < busyMillis[b];
+        }
+        return ids[a] < ids[b];
+    }
+
+    private AgentUtilization toUtilization(int i) {
+        return new AgentUtilization(ids[i], busyMillis[i], idleMillis[i], disconnects[i], lastChangeMillis[i], STATES[states[i]]);
+    }
+}
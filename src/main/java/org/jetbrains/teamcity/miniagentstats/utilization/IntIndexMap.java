@@ -0,0 +1,106 @@
+package org.jetbrains.teamcity.miniagentstats.utilization;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from non-negative int keys to dense indexes 0, 1, 2, ...
+ *
+ * Keys are stored in a primitive array probed linearly and kept at most half full,
+ * so a lookup usually touches one or two slots and no objects are allocated per key.
+ * Callers keep their values in parallel arrays addressed by the returned index.
+ * Keys are never removed.
+ */
+public class IntIndexMap {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] indexes;
+    private int size;
+
+    public IntIndexMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        indexes = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the index of the key, or -1 if it is not in the map
+     */
+    public int get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int current = keys[slot];
+            if (current == key) {
+                return indexes[slot];
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the key, adding it with the next free index if it is not in the map
+     */
+    public int getOrAdd(int key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Key must not be negative: " + key);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            int current = keys[slot];
+            if (current == key) {
+                return indexes[slot];
+            }
+            if (current == EMPTY) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            return getOrAdd(key);
+        }
+        keys[slot] = key;
+        indexes[slot] = size;
+        return size++;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldIndexes = indexes;
+        keys = new int[oldKeys.length * 2];
+        indexes = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                indexes[slot] = oldIndexes[i];
+            }
+        }
+    }
+
+    /**
+     * Spreads sequential ids over the table (Murmur3 finalizer)
+     */
+    private static int hash(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,220 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionBreakdown;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs AgentStats against a local HTTP stub to check the real HTTP path
+ */
+public class AgentStatsHttpTest {
+
+    private static final String BUILD_QUEUE_XML = "<builds count=\"4\"/>";
+    private static final String AGENTS_XML = "<agents count=\"3\">"
+            + "<agent id=\"1\" enabled=\"true\" connected=\"true\"><build id=\"10\"/></agent>"
+            + "<agent id=\"2\" enabled=\"true\" connected=\"true\"/>"
+            + "<agent id=\"3\" enabled=\"false\" connected=\"true\"><build id=\"11\"/></agent>"
+            + "</agents>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String serverUrl;
+    // Remote ports seen by the stub: one port per TCP connection opened by the client
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/app/rest/buildQueue", exchange -> respond(exchange, BUILD_QUEUE_XML));
+        server.createContext("/app/rest/agents", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            if (query.contains("running:true")) {
+                respond(exchange, "<agents count=\"1\"/>");
+            } else if (query.equals("fields=count")) {
+                respond(exchange, "<agents count=\"3\"/>");
+            } else {
+                respond(exchange, AGENTS_XML);
+            }
+        });
+        server.start();
+        serverUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        queries.add(exchange.getRequestURI().getPath() + "?" + exchange.getRequestURI().getQuery());
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    @Test
+    public void testConnectionsAreReusedAcrossTicks() throws Exception {
+        List<String> output = new ArrayList<>();
+        AgentStats agentStats = new AgentStats(output::add, new TeamCityClientImpl());
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                agentStats.fetchAndDisplayStats(serverUrl, "Bearer test-token", null);
+            }
+        } finally {
+            agentStats.stopMonitoring();
+        }
+
+        assertEquals("Each tick should print one line", 5, output.size());
+        String[] parts = output.get(0).split(",");
+        assertEquals("Queued builds count should match", "4", parts[1]);
+        assertEquals("Total agents count should match", "3", parts[2]);
+        assertEquals("Busy agents count should match", "1", parts[3]);
+        // Both requests of a tick run concurrently, so at most two connections are ever opened
+        assertTrue("Ticks should reuse pooled connections", clientPorts.size() <= 2);
+    }
+
+    @Test
+    public void testDefaultPathCreatesNoJaxbContext() throws Exception {
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        AgentStats agentStats = new AgentStats(message -> {}, client);
+        try {
+            agentStats.fetchAndDisplayStats(serverUrl, "Bearer test-token", null);
+        } finally {
+            agentStats.stopMonitoring();
+        }
+        assertEquals(4, agentStats.getLastSample().getQueuedBuilds());
+        assertFalse("Streaming parsers should not need JAXB", client.hasJaxbContext());
+
+        client.setStreamingParser(false);
+        agentStats.fetchAndDisplayStats(serverUrl, "Bearer test-token", null);
+        agentStats.stopMonitoring();
+        assertTrue("The JAXB fallback creates its contexts on first use", client.hasJaxbContext());
+    }
+
+    @Test
+    public void testStopMonitoringClosesClient() throws Exception {
+        AgentStats agentStats = new AgentStats(message -> {}, new TeamCityClientImpl());
+        agentStats.fetchAndDisplayStats(serverUrl, "Bearer test-token", null);
+        agentStats.stopMonitoring();
+        Set<Integer> firstClientPorts = new HashSet<>(clientPorts);
+
+        // A fresh client is created after the previous one was closed
+        agentStats.fetchAndDisplayStats(serverUrl, "Bearer test-token", null);
+        agentStats.stopMonitoring();
+
+        assertTrue("The second client should open new connections", clientPorts.size() > firstClientPorts.size());
+    }
+
+    @Test
+    public void testCountsModeRequestsOnlyCounts() throws Exception {
+        TeamCityClientImpl fullClient = new TeamCityClientImpl();
+        AgentStats fullStats = new AgentStats(message -> {}, fullClient);
+        Sample fullSample;
+        try {
+            fullSample = fullStats.collectSample(serverUrl, "Bearer test-token");
+        } finally {
+            fullStats.stopMonitoring();
+        }
+        queries.clear();
+
+        TeamCityClientImpl countsClient = new TeamCityClientImpl();
+        countsClient.setRequestMode(TeamCityClientImpl.RequestMode.COUNTS);
+        List<String> output = new ArrayList<>();
+        AgentStats countsStats = new AgentStats(output::add, countsClient);
+        countsStats.setReportBytes(true);
+        try {
+            countsStats.fetchAndDisplayStats(serverUrl, "Bearer test-token", null);
+        } finally {
+            countsStats.stopMonitoring();
+        }
+
+        Sample countsSample = countsStats.getLastSample();
+        assertEquals("Queued builds count should match", 4, countsSample.getQueuedBuilds());
+        assertEquals("Total agents count should match", 3, countsSample.getTotalAgents());
+        assertEquals("Busy agents count should match", 1, countsSample.getBusyAgents());
+        assertEquals("Counts mode sends one request per metric", 3, queries.size());
+        for (String query : queries) {
+            assertTrue("Only counts should be requested: " + query, query.endsWith("fields=count"));
+        }
+        assertTrue("Counts mode should receive fewer bytes",
+                countsSample.getBytesReceived() < fullSample.getBytesReceived());
+
+        String[] parts = output.get(0).split(",");
+        assertEquals("Bytes column should be appended", 5, parts.length);
+        assertEquals("Bytes column should match the sample", String.valueOf(countsSample.getBytesReceived()), parts[4]);
+    }
+
+    @Test
+    public void testBreakdownRequestsDimensions() throws Exception {
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        client.setRequestDimensions(true);
+        AgentStats agentStats = new AgentStats(message -> {}, client);
+        agentStats.setDimensionBreakdown(new DimensionBreakdown());
+        Sample sample;
+        try {
+            sample = agentStats.collectSample(serverUrl, "Bearer test-token");
+        } finally {
+            agentStats.stopMonitoring();
+        }
+
+        assertTrue(queries.toString(), queries.contains("/app/rest/buildQueue?fields=count,build(id,buildTypeId)"));
+        assertTrue(queries.toString(), queries.contains(
+                "/app/rest/agents?fields=count,agent(id,enabled,connected,build,pool(name),environment(osType))"));
+        // The stub sends neither pools nor environments
+        assertEquals(3, sample.getBreakdown().getPools().getTotal(DimensionBreakdown.UNKNOWN));
+        assertEquals(1, sample.getBreakdown().getPools().getBusy(DimensionBreakdown.UNKNOWN));
+    }
+
+    @Test
+    public void testStageMetricsCoverRequestsAndOutput() throws Exception {
+        StageMetrics stageMetrics = new StageMetrics(60_000);
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        client.setStageMetrics(stageMetrics);
+        client.setStreamingParser(false);
+        AgentStats agentStats = new AgentStats(message -> {}, client);
+        agentStats.setStageMetrics(stageMetrics);
+        File output = temporaryFolder.newFile("stats.csv");
+        try {
+            agentStats.fetchAndDisplayStats(serverUrl, "Bearer test-token", output.getPath());
+        } finally {
+            agentStats.stopMonitoring();
+        }
+
+        String summary = stageMetrics.summary();
+        // Two requests per tick, one unmarshalled agent list, one output line
+        for (String stage : new String[]{"connect", "first_byte", "body_read", "parse"}) {
+            assertTrue(summary, summary.contains(stage + " n=2 "));
+        }
+        for (String stage : new String[]{"count", "format", "sink_write"}) {
+            assertTrue(summary, summary.contains(stage + " n=1 "));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives AgentStats end to end over real HTTP against FakeTeamCityServer at sub-second intervals
+ */
+public class AgentStatsLoadTest {
+
+    private FakeTeamCityServer server;
+    private ScheduledExecutorService timer;
+    private RecordingAgentStats agentStats;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeTeamCityServer();
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        if (agentStats != null) {
+            agentStats.stopMonitoring();
+        }
+        timer.shutdownNow();
+        server.close();
+    }
+
+    /**
+     * Starts polling after one untimed warm-up request, so that class loading and JIT compilation
+     * do not count against the first tick's deadline
+     */
+    private void startPolling(long intervalMillis, PollingSettings settings) throws Exception {
+        agentStats = new RecordingAgentStats(new TeamCityClientImpl());
+        agentStats.setPollingSettings(settings);
+        agentStats.collectSample(server.getUrl(), "Bearer test-token");
+        PollingPolicy policy = new PollingPolicy(intervalMillis, settings);
+        agentStats.startPolling(policy, server.getUrl(), "test-token", null, new PollingScheduler(timer, timer));
+    }
+
+    private void poll(long intervalMillis, PollingSettings settings, long runMillis) throws Exception {
+        startPolling(intervalMillis, settings);
+        Thread.sleep(runMillis);
+        agentStats.stopMonitoring();
+    }
+
+    private static long percentile(List<Long> sortedValues, double fraction) {
+        return sortedValues.get((int) Math.min(sortedValues.size() - 1, Math.floor(sortedValues.size() * fraction)));
+    }
+
+    @Test
+    public void testSubSecondPollingOf100kAgents() throws Exception {
+        server.setFleet(100_000, 500);
+        server.setChurnPerRequest(200);
+        PollingSettings settings = new PollingSettings();
+        settings.setDeadlineMillis(5000);
+        // Rendering and parsing several megabytes per tick takes a good part of the interval; only back off beyond it
+        settings.setSlowTickFraction(1.0);
+
+        poll(500, settings, 5000);
+
+        List<Sample> samples = agentStats.snapshot();
+        assertTrue("At least a sample per second is expected: " + samples.size(), samples.size() >= 5);
+        List<Long> latencies = new ArrayList<>();
+        for (Sample sample : samples) {
+            assertFalse("No tick should miss its deadline", sample.isStale());
+            assertEquals("Every agent should be counted", 100_000, sample.getTotalAgents());
+            assertTrue("Busy agents should be plausible: " + sample.getBusyAgents(),
+                    sample.getBusyAgents() > 40_000 && sample.getBusyAgents() < 60_000);
+            assertTrue("Full responses of 100k agents are several megabytes", sample.getBytesReceived() > 1_000_000);
+            latencies.add(sample.getTickLatencyNanos());
+        }
+        Collections.sort(latencies);
+        assertTrue("Median tick latency should stay below the interval: " + latencies,
+                percentile(latencies, 0.5) < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals("Each tick should send one agents and one build queue request",
+                2 * (samples.size() + 1), server.getRequests(), 2);
+    }
+
+    @Test
+    public void testCountsFollowChurn() throws Exception {
+        server.setFleet(1000, 10);
+        server.setChurnPerRequest(50);
+
+        poll(100, new PollingSettings(), 1500);
+
+        List<Sample> samples = agentStats.snapshot();
+        assertTrue("Ticks every 100 ms should produce many samples: " + samples.size(), samples.size() >= 8);
+        long distinctBusy = samples.stream().mapToInt(Sample::getBusyAgents).distinct().count();
+        assertTrue("Busy agents should change between ticks", distinctBusy > 1);
+
+        // Without churn the last sample must match what the server sent
+        server.setChurnPerRequest(0);
+        agentStats.collectSample(server.getUrl(), "Bearer test-token");
+        AgentCounts served = server.getLastServedCounts();
+        assertEquals(served.getBusy(), agentStats.getLastSample().getBusyAgents());
+        assertEquals(served.getTotal(), agentStats.getLastSample().getTotalAgents());
+        assertEquals(server.getQueuedBuilds(), agentStats.getLastSample().getQueuedBuilds());
+    }
+
+    @Test
+    public void testServerErrorsDoNotStopPolling() throws Exception {
+        server.setFleet(1000, 10);
+        PollingSettings settings = new PollingSettings();
+        settings.setMaxBackoffMillis(400);
+
+        startPolling(100, settings);
+        server.setErrorRate(0.3);
+        Thread.sleep(3000);
+        agentStats.stopMonitoring();
+
+        assertTrue("Some requests should have failed", server.getErrors() > 0);
+        assertTrue("Polling should go on between errors: " + agentStats.snapshot().size(),
+                agentStats.snapshot().size() >= 3);
+    }
+
+    @Test
+    public void testSlowDripMissesDeadlineAndEmitsStaleSamples() throws Exception {
+        server.setFleet(10_000, 10);
+        PollingSettings settings = new PollingSettings();
+        settings.setDeadlineMillis(300);
+        settings.setMaxBackoffMillis(600);
+        startPolling(200, settings);
+        Thread.sleep(500);
+
+        // About 1 MB dripped in 16 KB chunks every 100 ms takes over six seconds, far beyond the deadline
+        server.setDrip(16 * 1024, 100);
+        server.setLatencyMillis(100);
+        Thread.sleep(2000);
+
+        List<Sample> samples = agentStats.snapshot();
+        assertFalse("The first ticks should be fresh", samples.get(0).isStale());
+        Sample last = samples.get(samples.size() - 1);
+        assertTrue("Ticks after the slowdown should be stale", last.isStale());
+        assertEquals("Stale samples carry the last values", samples.get(0).getTotalAgents(), last.getTotalAgents());
+
+        // Abandoned requests are aborted, so they hold no request threads or connections once the server recovers
+        int stale = samples.size();
+        server.setDrip(0, 0);
+        server.setLatencyMillis(0);
+        Thread.sleep(2500);
+        agentStats.stopMonitoring();
+
+        List<Sample> recovered = agentStats.snapshot().subList(stale, agentStats.snapshot().size());
+        assertTrue("Fresh samples should come back while the abandoned responses are still dripping",
+                recovered.stream().anyMatch(sample -> !sample.isStale()));
+        assertFalse("The last tick should be fresh", recovered.get(recovered.size() - 1).isStale());
+    }
+}
+
@@ -1,6 +1,14 @@
 package org.jetbrains.teamcity.miniagentstats;
 
+import org.jetbrains.teamcity.miniagentstats.events.AgentTransition;
+import org.jetbrains.teamcity.miniagentstats.history.SampleHistory;
 import org.jetbrains.teamcity.miniagentstats.model.Agent;
+import org.jetbrains.teamcity.miniagentstats.queue.QueueWaitTracker;
+import org.jetbrains.teamcity.miniagentstats.sink.EventsSink;
+import org.jetbrains.teamcity.miniagentstats.sink.LagPolicy;
+import org.jetbrains.teamcity.miniagentstats.sink.SinkPipelineSettings;
+import org.jetbrains.teamcity.miniagentstats.utilization.AgentUtilization;
+import org.jetbrains.teamcity.miniagentstats.utilization.AgentUtilizationTracker;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -10,7 +18,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
@@ -170,6 +181,246 @@ public class AgentStatsTest {
         assertEquals("Busy agents count should match", "0", parts[3]); // No busy agents
     }
     
+    @Test
+    public void testHistoryIsOnlyKeptWhenEnabled() throws Exception {
+        mockTeamCityClient.setQueuedBuildsCount(3);
+        mockTeamCityClient.setTotalAgentsCount(4);
+        AgentStats testAgentStats = new AgentStats(message -> {}, mockTeamCityClient);
+        try {
+            testAgentStats.collectSample("http://test-teamcity", "test-token");
+            assertNull("No history should be kept by default", testAgentStats.getHistory());
+
+            testAgentStats.setHistory(new SampleHistory(16));
+            testAgentStats.collectSample("http://test-teamcity", "test-token");
+            testAgentStats.collectSample("http://test-teamcity", "test-token");
+            SampleHistory history = testAgentStats.getHistory();
+            assertEquals(2, history.size());
+            assertEquals(3, history.getWindowStats(SampleHistory.Metric.QUEUED_BUILDS, 0).getMax());
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+    }
+    
+    @Test
+    public void testRequestsOfOneTickRunConcurrently() throws Exception {
+        mockTeamCityClient.setQueuedBuildsCount(1);
+        mockTeamCityClient.setTotalAgentsCount(2);
+        mockTeamCityClient.setDelayMillis(300);
+        
+        AgentStats testAgentStats = new AgentStats(message -> {}, mockTeamCityClient);
+        try {
+            Sample sample = testAgentStats.collectSample("http://test-teamcity", "test-token");
+            
+            assertEquals("Queued builds count should match", 1, sample.getQueuedBuilds());
+            assertEquals("Total agents count should match", 2, sample.getTotalAgents());
+            assertTrue("Queue latency should be recorded", sample.getQueueLatencyNanos() >= 300_000_000L);
+            assertTrue("Agents latency should be recorded", sample.getAgentsLatencyNanos() >= 300_000_000L);
+            // Sequential calls would take at least 600 ms
+            assertTrue("Tick should take about the slowest request, not the sum",
+                    sample.getTickLatencyNanos() < 550_000_000L);
+            assertSame("Last sample should be kept", sample, testAgentStats.getLastSample());
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+    }
+    
+    @Test
+    public void testMissedDeadlineEmitsStaleSample() throws Exception {
+        mockTeamCityClient.setQueuedBuildsCount(4);
+        mockTeamCityClient.setTotalAgentsCount(8);
+        
+        AgentStats testAgentStats = new AgentStats(message -> outputLines.add(message), mockTeamCityClient);
+        testAgentStats.setTimestampFormat(SampleLineFormatter.TimestampFormat.EPOCH_MILLIS);
+        AtomicLong clock = new AtomicLong(1_000_000L);
+        testAgentStats.setClock(clock::get);
+        PollingPolicy policy = new PollingPolicy(1000, new PollingSettings());
+        try {
+            PollingPolicy.Outcome first = testAgentStats.runTick("http://test-teamcity", "test-token", null,
+                    TimeUnit.MILLISECONDS.toNanos(500), policy);
+            assertEquals("First tick should succeed", PollingPolicy.Outcome.CHANGED, first);
+            
+            mockTeamCityClient.setDelayMillis(400);
+            clock.set(2_000_000L);
+            PollingPolicy.Outcome second = testAgentStats.runTick("http://test-teamcity", "test-token", null,
+                    TimeUnit.MILLISECONDS.toNanos(100), policy);
+            assertEquals("Tick past its deadline should be slow", PollingPolicy.Outcome.SLOW, second);
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+        
+        assertEquals("Both ticks should print a line", 2, outputLines.size());
+        String[] parts = outputLines.get(1).split(",");
+        assertEquals("Stale line should carry the marker", "stale", parts[parts.length - 1]);
+        assertEquals("Stale line should repeat the last queued builds count", "4", parts[1]);
+        assertEquals("Stale line should be stamped by the monitor's clock", "2000000", parts[0]);
+    }
+    
+    /**
+     * Runs a tick at the given monitor time with the given deadline
+     */
+    private static PollingPolicy.Outcome tick(AgentStats agentStats, AtomicLong clock, long timeMillis, long deadlineMillis,
+                                              String outputFile) {
+        clock.set(timeMillis);
+        return agentStats.runTick("http://test-teamcity", "test-token", outputFile,
+                TimeUnit.MILLISECONDS.toNanos(deadlineMillis), new PollingPolicy(1000, new PollingSettings()));
+    }
+    
+    @Test
+    public void testAbandonedTickDoesNotReachUtilization() throws Exception {
+        ScriptedTeamCityClient client = new ScriptedTeamCityClient();
+        client.addAgents(0, new int[]{1}, new boolean[]{true}, new boolean[]{false});
+        // Misses its deadline, then reports the agent disconnected while the next tick is running
+        client.addAgents(300, new int[]{1}, new boolean[]{false}, new boolean[]{false});
+        client.addAgents(400, new int[]{1}, new boolean[]{true}, new boolean[]{false});
+        
+        AgentStats testAgentStats = new AgentStats(message -> outputLines.add(message), client);
+        AgentUtilizationTracker utilization = new AgentUtilizationTracker(16);
+        testAgentStats.setUtilizationTracker(utilization);
+        AtomicLong clock = new AtomicLong();
+        testAgentStats.setClock(clock::get);
+        try {
+            assertEquals(PollingPolicy.Outcome.CHANGED, tick(testAgentStats, clock, 0, 1000, null));
+            assertEquals(PollingPolicy.Outcome.SLOW, tick(testAgentStats, clock, 10_000, 100, null));
+            tick(testAgentStats, clock, 20_000, 1000, null);
+            // Past the late visits of the abandoned tick
+            Thread.sleep(200);
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+        
+        AgentUtilization agent = utilization.get(1);
+        assertEquals("Only completed ticks should be accounted", 0, agent.getDisconnects());
+        assertEquals(20, agent.getIdleSeconds());
+        assertEquals(AgentUtilization.State.IDLE, agent.getState());
+    }
+    
+    @Test
+    public void testAbandonedTickEmitsNoTransitions() throws Exception {
+        ScriptedTeamCityClient client = new ScriptedTeamCityClient();
+        client.addAgents(0, new int[]{1}, new boolean[]{true}, new boolean[]{false});
+        // The agents request misses its deadline; its agents arrive while the next tick is running
+        client.addAgents(300, new int[]{1, 2}, new boolean[]{true, true}, new boolean[]{true, false});
+        client.addAgents(400, new int[]{1}, new boolean[]{true}, new boolean[]{false});
+        client.addAgents(0, new int[]{1}, new boolean[]{true}, new boolean[]{true});
+        
+        AgentStats testAgentStats = new AgentStats(message -> outputLines.add(message), client);
+        testAgentStats.setOutputFormat(AgentStats.OutputFormat.EVENTS);
+        AtomicLong clock = new AtomicLong();
+        testAgentStats.setClock(clock::get);
+        try {
+            tick(testAgentStats, clock, 0, 1000, testOutputFile);
+            assertEquals(PollingPolicy.Outcome.SLOW, tick(testAgentStats, clock, 10_000, 100, testOutputFile));
+            tick(testAgentStats, clock, 20_000, 1000, testOutputFile);
+            Thread.sleep(200);
+            tick(testAgentStats, clock, 30_000, 1000, testOutputFile);
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+        
+        // Agent 2 of the abandoned tick was never seen, and the build started in the last tick
+        assertEquals(Collections.singletonList(EventsSink.formatTransition(30_000, 1, AgentTransition.BUILD_STARTED)),
+                Files.readAllLines(Paths.get(testOutputFile)));
+    }
+    
+    @Test
+    public void testAbandonedTickDoesNotReachQueueWait() throws Exception {
+        ScriptedTeamCityClient client = new ScriptedTeamCityClient();
+        client.addQueue(0, 7);
+        client.addAgents(0, new int[0], new boolean[0], new boolean[0]);
+        // The agents request fails; the half-read tick must not count
+        client.addQueue(0, 7, 8);
+        client.addAgentsFailure();
+        // The build queue request misses its deadline and still lists build 7 while the next tick is running
+        client.addQueue(300, 7);
+        client.addAgents(0, new int[0], new boolean[0], new boolean[0]);
+        client.addQueue(0);
+        client.addAgents(400, new int[0], new boolean[0], new boolean[0]);
+        
+        AgentStats testAgentStats = new AgentStats(message -> outputLines.add(message), client);
+        QueueWaitTracker queueWait = new QueueWaitTracker();
+        testAgentStats.setQueueWaitTracker(queueWait);
+        AtomicLong clock = new AtomicLong();
+        testAgentStats.setClock(clock::get);
+        try {
+            tick(testAgentStats, clock, 0, 1000, null);
+            assertEquals(PollingPolicy.Outcome.FAILED, tick(testAgentStats, clock, 10_000, 1000, null));
+            assertEquals(PollingPolicy.Outcome.SLOW, tick(testAgentStats, clock, 20_000, 100, null));
+            tick(testAgentStats, clock, 30_000, 1000, null);
+            Thread.sleep(200);
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+        
+        assertEquals("Build 7 left the queue in the last tick; build 8 was never seen", 1, queueWait.getDepartures());
+    }
+    
+    @Test
+    public void testEventsFormatWritesTransitionsOnly() throws Exception {
+        Agent first = MockTeamCityClient.createAgent(true, true, false);
+        first.setId(1);
+        Agent second = MockTeamCityClient.createAgent(true, true, true);
+        second.setId(2);
+        List<Agent> agents = new ArrayList<>();
+        agents.add(first);
+        agents.add(second);
+        mockTeamCityClient.setAgents(agents);
+        mockTeamCityClient.setTotalAgentsCount(2);
+
+        AgentStats testAgentStats = new AgentStats(message -> outputLines.add(message), mockTeamCityClient);
+        testAgentStats.setOutputFormat(AgentStats.OutputFormat.EVENTS);
+        try {
+            testAgentStats.fetchAndDisplayStats("http://test-teamcity", "test-token", testOutputFile);
+
+            Agent started = MockTeamCityClient.createAgent(true, true, true);
+            started.setId(1);
+            List<Agent> next = new ArrayList<>();
+            next.add(started);
+            mockTeamCityClient.setAgents(next);
+            mockTeamCityClient.setTotalAgentsCount(1);
+            testAgentStats.fetchAndDisplayStats("http://test-teamcity", "test-token", testOutputFile);
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+
+        List<String> lines = Files.readAllLines(Paths.get(testOutputFile));
+        assertEquals("Only transitions should be written", 2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith(",1,build_started"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(",2,disconnected"));
+        // The console still shows one sample line per tick, followed by the transitions
+        assertEquals(4, outputLines.size());
+        assertTrue(outputLines.get(1), outputLines.get(1).endsWith(",1,1"));
+        assertEquals(lines.get(0), outputLines.get(2));
+    }
+
+    @Test
+    public void testSinkPipelineWritesEverySampleBeforeStopping() throws Exception {
+        mockTeamCityClient.setQueuedBuildsCount(4);
+        mockTeamCityClient.setTotalAgentsCount(2);
+        List<Agent> agents = new ArrayList<>();
+        agents.add(MockTeamCityClient.createAgent(true, true, true));
+        mockTeamCityClient.setAgents(agents);
+        List<String> console = Collections.synchronizedList(new ArrayList<>());
+
+        AgentStats testAgentStats = new AgentStats(console::add, mockTeamCityClient);
+        SinkPipelineSettings settings = new SinkPipelineSettings();
+        settings.setRingCapacity(4);
+        // The console drops by default; only blocking sinks are sure to see every sample
+        settings.setDefaultPolicy(LagPolicy.BLOCK);
+        testAgentStats.setSinkPipelineSettings(settings);
+        try {
+            for (int i = 0; i < 50; i++) {
+                testAgentStats.fetchAndDisplayStats("http://test-teamcity", "test-token", testOutputFile);
+            }
+        } finally {
+            testAgentStats.stopMonitoring();
+        }
+
+        List<String> lines = Files.readAllLines(Paths.get(testOutputFile));
+        assertEquals("Stopping drains the ring and the file", 50, lines.size());
+        assertTrue(lines.get(49), lines.get(49).endsWith(",4,2,1"));
+        assertEquals(lines, console);
+    }
+
     /**
      * Special subclass of AgentStats that allows injecting a mock TeamCityClient
      * and provides a method to test fetchAndDisplayStats directly
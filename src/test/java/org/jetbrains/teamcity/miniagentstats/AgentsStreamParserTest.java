@@ -0,0 +1,142 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the StAX agents parser against the JAXB path on the same fixtures
+ */
+public class AgentsStreamParserTest {
+
+    private final AgentsStreamParser parser = new AgentsStreamParser();
+
+    @Test
+    public void testMixedFleet() throws Exception {
+        AgentCounts counts = assertSameAsJaxb("agents-mixed.xml");
+        assertEquals("Total agents should match", 6, counts.getTotal());
+        assertEquals("Enabled agents should match", 4, counts.getEnabled());
+        assertEquals("Connected agents should match", 4, counts.getConnected());
+        assertEquals("Busy agents should match", 2, counts.getBusy());
+    }
+
+    @Test
+    public void testEmptyFleet() throws Exception {
+        AgentCounts counts = assertSameAsJaxb("agents-empty.xml");
+        assertEquals("Total agents should match", 0, counts.getTotal());
+        assertEquals("Busy agents should match", 0, counts.getBusy());
+    }
+
+    @Test
+    public void testOnlyDirectBuildChildMakesAgentBusy() throws Exception {
+        AgentCounts counts = assertSameAsJaxb("agents-nested.xml");
+        assertEquals("Total agents should match", 3, counts.getTotal());
+        assertEquals("Busy agents should match", 1, counts.getBusy());
+    }
+
+    @Test
+    public void testVisitorSeesEveryAgentLikeJaxb() throws Exception {
+        List<String> streamed = new ArrayList<>();
+        try (InputStream input = openFixture("agents-mixed.xml")) {
+            parser.parse(input, (id, enabled, connected, busy) -> streamed.add(id + ":" + enabled + ":" + connected + ":" + busy));
+        }
+        List<String> unmarshalled = new ArrayList<>();
+        try (InputStream input = openFixture("agents-mixed.xml")) {
+            Agents agents = (Agents) JAXBContext.newInstance(Agents.class).createUnmarshaller().unmarshal(input);
+            AgentCounts.fromAgents(agents, (id, enabled, connected, busy) -> unmarshalled.add(id + ":" + enabled + ":" + connected + ":" + busy));
+        }
+
+        assertEquals("Both paths should report the same agents", unmarshalled, streamed);
+        assertEquals("1:true:true:true", streamed.get(0));
+        assertEquals("3:false:true:false", streamed.get(2));
+        assertEquals("6:false:false:false", streamed.get(5));
+    }
+
+    @Test
+    public void testAgentWithoutIdIsReportedWithoutId() throws Exception {
+        String xml = "<agents count=\"2\"><agent enabled=\"true\" connected=\"true\"/>"
+                + "<agent id=\"0\" enabled=\"true\" connected=\"false\"/></agents>";
+        List<Integer> ids = new ArrayList<>();
+        parser.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), (id, enabled, connected, busy) -> ids.add(id));
+
+        assertEquals("A missing id should not be taken for agent 0", Arrays.asList(AgentVisitor.NO_ID, 0), ids);
+    }
+
+    @Test
+    public void testDimensionsMatchJaxb() throws Exception {
+        String xml = "<agents count=\"3\">"
+                + "<agent id=\"1\" enabled=\"true\" connected=\"true\"><build id=\"10\"/>"
+                + "<pool id=\"0\" name=\"Default\"/><environment osType=\"Linux\"/></agent>"
+                + "<agent id=\"2\" enabled=\"true\" connected=\"true\"><pool name=\"GPU\"/></agent>"
+                + "<agent id=\"3\" enabled=\"true\" connected=\"true\"/>"
+                + "</agents>";
+        List<String> streamed = new ArrayList<>();
+        parser.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), dimensionRecorder(streamed));
+        List<String> unmarshalled = new ArrayList<>();
+        Agents agents = (Agents) JAXBContext.newInstance(Agents.class).createUnmarshaller()
+                .unmarshal(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        AgentCounts.fromAgents(agents, dimensionRecorder(unmarshalled));
+
+        assertEquals(List.of("Default/Linux", "1", "GPU/null", "2", "3"), streamed);
+        assertEquals("Both paths should report the same dimensions", unmarshalled, streamed);
+    }
+
+    private static AgentVisitor dimensionRecorder(List<String> events) {
+        return new AgentVisitor() {
+            @Override
+            public void visitDimensions(String pool, String os) {
+                events.add(pool + "/" + os);
+            }
+
+            @Override
+            public void visit(int id, boolean enabled, boolean connected, boolean busy) {
+                events.add(String.valueOf(id));
+            }
+        };
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedResponse() throws Exception {
+        parser.parse(new ByteArrayInputStream("<agents count=\"1\"><agent".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Parses a fixture with both the StAX parser and JAXB and checks that the counters agree
+     */
+    private AgentCounts assertSameAsJaxb(String fixture) throws Exception {
+        AgentCounts streamed;
+        try (InputStream input = openFixture(fixture)) {
+            streamed = parser.parse(input);
+        }
+
+        AgentCounts unmarshalled;
+        try (InputStream input = openFixture(fixture)) {
+            Agents agents = (Agents) JAXBContext.newInstance(Agents.class).createUnmarshaller().unmarshal(input);
+            unmarshalled = AgentCounts.fromAgents(agents);
+        }
+
+        assertEquals("Total should match JAXB", unmarshalled.getTotal(), streamed.getTotal());
+        assertEquals("Enabled should match JAXB", unmarshalled.getEnabled(), streamed.getEnabled());
+        assertEquals("Connected should match JAXB", unmarshalled.getConnected(), streamed.getConnected());
+        assertEquals("Busy should match JAXB", unmarshalled.getBusy(), streamed.getBusy());
+        return streamed;
+    }
+
+    private InputStream openFixture(String name) {
+        InputStream input = getClass().getResourceAsStream("/fixtures/" + name);
+        assertNotNull("Fixture should exist: " + name, input);
+        return input;
+    }
+}
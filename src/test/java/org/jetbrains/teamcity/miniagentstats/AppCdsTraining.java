@@ -0,0 +1,70 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the AppCDS archive of AgentStats.jar from one training run against FakeTeamCityServer
+ *
+ * Run by the appcds profile after the jar is packaged. The jar is launched exactly as it is later
+ * started with the archive, for one tick of a 1000-agent fleet with gzip and ETags, so that the archive
+ * holds the classes of the HTTP client, the parsers and the output path. The archive is created
+ * dynamically on JDK 13 and later, and from a dumped class list on JDK 11 and 12.
+ *
+ * java -cp target/test-classes:target/classes org.jetbrains.teamcity.miniagentstats.AppCdsTraining
+ *     [target/AgentStats.jar] [target/AgentStats.jsa]
+ */
+public class AppCdsTraining {
+
+    public static void main(String[] args) throws Exception {
+        String jar = args.length > 0 ? args[0] : "target/AgentStats.jar";
+        String archive = args.length > 1 ? args[1] : "target/AgentStats.jsa";
+        if (!new File(jar).isFile()) {
+            throw new IllegalArgumentException(jar + " not found, build it with mvn package first");
+        }
+        try (FakeTeamCityServer server = new FakeTeamCityServer()) {
+            server.setFleet(1000, 50);
+            server.setGzip(true);
+            server.setEtags(true);
+            if (Runtime.version().feature() >= 13) {
+                run(jar, server.getUrl(), "-XX:ArchiveClassesAtExit=" + archive);
+            } else {
+                String classList = archive + ".classlist";
+                run(jar, server.getUrl(), "-Xshare:off", "-XX:DumpLoadedClassList=" + classList);
+                exec(Arrays.asList(javaExecutable(), "-Xshare:dump", "-XX:SharedClassListFile=" + classList,
+                        "-XX:SharedArchiveFile=" + archive, "-cp", jar));
+            }
+        }
+        System.out.println("Created " + archive + "; start the monitor with java -XX:SharedArchiveFile=" + archive + " -jar " + jar);
+    }
+
+    /**
+     * Launches the jar for one tick of the fake server with the given JVM options
+     */
+    private static void run(String jar, String url, String... jvmOptions) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        command.addAll(Arrays.asList(jvmOptions));
+        command.addAll(Arrays.asList("-jar", jar, "--ticks=1", "--skip-unchanged", "1", url, "training-token"));
+        exec(command);
+    }
+
+    private static void exec(List<String> command) throws Exception {
+        Process process = new ProcessBuilder(command).inheritIO().redirectInput(ProcessBuilder.Redirect.PIPE).start();
+        if (!process.waitFor(2, TimeUnit.MINUTES)) {
+            process.destroyForcibly();
+            throw new IOException("Timed out: " + command);
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException("Failed with exit code " + process.exitValue() + ": " + command);
+        }
+    }
+
+    private static String javaExecutable() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+}
@@ -0,0 +1,336 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BufferedCsvSinkTest {
+
+    /**
+     * File channel whose writes can be made to fail and which counts forces
+     */
+    private static class FaultyFileChannel extends FileChannel {
+        private final FileChannel delegate;
+        volatile boolean failWrites;
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger forces = new AtomicInteger();
+
+        FaultyFileChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (failWrites) {
+                failures.incrementAndGet();
+                throw new IOException("No space left on device");
+            }
+            return delegate.write(source);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            forces.incrementAndGet();
+            delegate.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            return delegate.read(target);
+        }
+
+        @Override
+        public long read(ByteBuffer[] targets, int offset, int length) throws IOException {
+            return delegate.read(targets, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel source, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer target, long position) throws IOException {
+            return delegate.read(target, position);
+        }
+
+        @Override
+        public int write(ByteBuffer source, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+
+    private Path outputFile;
+
+    @Before
+    public void setUp() throws Exception {
+        outputFile = Files.createTempFile("agent-stats", ".csv");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(outputFile);
+    }
+
+    @Test
+    public void testCloseDrainsAllLines() throws Exception {
+        CsvSinkSettings settings = new CsvSinkSettings();
+        settings.setBatchLines(16);
+        settings.setFsyncPolicy(CsvSinkSettings.FsyncPolicy.PER_BATCH);
+        settings.setQueueCapacity(8);
+
+        try (BufferedCsvSink sink = new BufferedCsvSink(outputFile, false, settings)) {
+            for (int i = 0; i < 1000; i++) {
+                sink.write("line," + i);
+            }
+        }
+
+        List<String> lines = Files.readAllLines(outputFile);
+        assertEquals("Every queued line should be written", 1000, lines.size());
+        assertEquals("Lines should keep their order", "line,999", lines.get(999));
+    }
+
+    @Test
+    public void testByteLinesAreCopiedBeforeWriteReturns() throws Exception {
+        CsvSinkSettings settings = new CsvSinkSettings();
+        settings.setQueueCapacity(4);
+        byte[] buffer = new byte[100_000];
+
+        try (BufferedCsvSink sink = new BufferedCsvSink(outputFile, false, settings)) {
+            for (int i = 0; i < 100; i++) {
+                // Longer lines than the pooled buffers and, once, than the write buffer
+                int length = i == 50 ? buffer.length - 1 : 1 + i * 3;
+                Arrays.fill(buffer, 1, length + 1, (byte) ('a' + i % 26));
+                sink.write(buffer, 1, length);
+                Arrays.fill(buffer, (byte) '-');
+            }
+        }
+
+        List<String> lines = Files.readAllLines(outputFile);
+        assertEquals(100, lines.size());
+        assertEquals("bbbb", lines.get(1));
+        assertEquals(buffer.length - 1, lines.get(50).length());
+        assertTrue(lines.get(50).chars().allMatch(c -> c == 'y'));
+        assertEquals(1 + 99 * 3, lines.get(99).length());
+    }
+
+    @Test
+    public void testPartialBatchIsFlushedAfterInterval() throws Exception {
+        CsvSinkSettings settings = new CsvSinkSettings();
+        settings.setBatchLines(100);
+        settings.setFlushIntervalMillis(50);
+
+        try (BufferedCsvSink sink = new BufferedCsvSink(outputFile, false, settings)) {
+            sink.write("first");
+            long deadline = System.currentTimeMillis() + 2000;
+            while (Files.size(outputFile) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("Line should be on disk before the sink is closed",
+                    Arrays.asList("first"), Files.readAllLines(outputFile));
+        }
+    }
+
+    @Test
+    public void testSinksShareTheExecutor() throws Exception {
+        CsvSinkSettings settings = new CsvSinkSettings();
+        settings.setBatchLines(16);
+        settings.setFlushIntervalMillis(20);
+        settings.setQueueCapacity(8);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        List<Path> files = new ArrayList<>();
+        try {
+            List<BufferedCsvSink> sinks = new ArrayList<>();
+            for (int s = 0; s < 10; s++) {
+                Path file = Files.createTempFile("agent-stats", ".csv");
+                files.add(file);
+                sinks.add(new BufferedCsvSink(file, false, settings, executor));
+            }
+            for (int i = 0; i < 500; i++) {
+                for (BufferedCsvSink sink : sinks) {
+                    sink.write("line," + i);
+                }
+            }
+            // A partial batch is flushed by its timer on the shared executor
+            sinks.get(0).write("partial");
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!Files.readAllLines(files.get(0)).contains("partial") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue("Line should be on disk before the sink is closed", Files.readAllLines(files.get(0)).contains("partial"));
+            for (BufferedCsvSink sink : sinks) {
+                sink.close();
+            }
+            assertFalse("Closing a sink leaves a shared executor running", executor.isShutdown());
+
+            for (int s = 0; s < files.size(); s++) {
+                List<String> lines = Files.readAllLines(files.get(s));
+                assertEquals(s == 0 ? 501 : 500, lines.size());
+                assertEquals("line,499", lines.get(499));
+            }
+        } finally {
+            executor.shutdown();
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testAppendKeepsExistingContent() throws Exception {
+        Files.write(outputFile, Arrays.asList("existing"));
+
+        try (BufferedCsvSink sink = new BufferedCsvSink(outputFile, true, new CsvSinkSettings())) {
+            sink.write("appended");
+        }
+        assertEquals(Arrays.asList("existing", "appended"), Files.readAllLines(outputFile));
+
+        try (BufferedCsvSink sink = new BufferedCsvSink(outputFile, false, new CsvSinkSettings())) {
+            sink.write("fresh");
+        }
+        assertEquals("Truncating sink should start a new file", Arrays.asList("fresh"), Files.readAllLines(outputFile));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteAfterCloseFails() throws Exception {
+        BufferedCsvSink sink = new BufferedCsvSink(outputFile, false, new CsvSinkSettings());
+        sink.close();
+        sink.write("late");
+    }
+
+    private FaultyFileChannel openFaulty() throws IOException {
+        return new FaultyFileChannel(FileChannel.open(outputFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.get() < value && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Timed out waiting for " + value + ", got " + counter.get(), counter.get() >= value);
+    }
+
+    /**
+     * Writes the line and returns 1 if the write reported a failed batch
+     */
+    private static int writeReporting(BufferedCsvSink sink, String line) {
+        try {
+            sink.write(line);
+            return 0;
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No space left on device"));
+            return 1;
+        }
+    }
+
+    @Test
+    public void testTransientWriteErrorIsReportedOnce() throws Exception {
+        CsvSinkSettings settings = new CsvSinkSettings();
+        settings.setBatchLines(1);
+        FaultyFileChannel channel = openFaulty();
+
+        int reported = 0;
+        try (BufferedCsvSink sink = new BufferedCsvSink(outputFile, channel, settings)) {
+            channel.failWrites = true;
+            // The batch may fail before this write returns, which then reports it
+            reported += writeReporting(sink, "lost");
+            waitFor(channel.failures, 1);
+            channel.failWrites = false;
+
+            reported += writeReporting(sink, "after");
+            reported += writeReporting(sink, "later");
+        }
+        assertEquals("The failed batch should be reported once", 1, reported);
+        assertEquals("Lines after the failure should be written",
+                Arrays.asList("after", "later"), Files.readAllLines(outputFile));
+    }
+
+    @Test
+    public void testIntervalFsyncHappensWhileIdle() throws Exception {
+        CsvSinkSettings settings = new CsvSinkSettings();
+        settings.setBatchLines(1);
+        settings.setFsyncPolicy(CsvSinkSettings.FsyncPolicy.PER_INTERVAL);
+        settings.setFsyncIntervalMillis(100);
+        FaultyFileChannel channel = openFaulty();
+
+        try (BufferedCsvSink sink = new BufferedCsvSink(outputFile, channel, settings)) {
+            // Each line is flushed within the interval of the last fsync, so only the idle wakeup forces it
+            sink.write("first");
+            waitFor(channel.forces, 1);
+            sink.write("second");
+            waitFor(channel.forces, 2);
+            assertEquals(Arrays.asList("first", "second"), Files.readAllLines(outputFile));
+        }
+    }
+}
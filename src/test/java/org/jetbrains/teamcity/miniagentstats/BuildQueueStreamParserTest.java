@@ -0,0 +1,80 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.model.BuildQueue;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the StAX build queue parser against the JAXB path
+ */
+public class BuildQueueStreamParserTest {
+
+    private static final String QUEUE = "<builds count=\"3\" href=\"/app/rest/buildQueue\">"
+            + "<build id=\"101\" buildTypeId=\"Project_Build\" state=\"queued\">"
+            + "<queuedDate>20240301T120000+0000</queuedDate><triggered type=\"vcs\"><queuedDate>ignored</queuedDate></triggered>"
+            + "</build>"
+            + "<build id=\"102\" buildTypeId=\"Project_Test\"/>"
+            + "<build id=\"103\" buildTypeId=\"Project_Deploy\"><queuedDate>20240301T120500+0000</queuedDate></build>"
+            + "</builds>";
+
+    private final BuildQueueStreamParser parser = new BuildQueueStreamParser();
+
+    @Test
+    public void testVisitorSeesEveryBuildLikeJaxb() throws Exception {
+        List<String> streamed = new ArrayList<>();
+        int count = parser.parse(open(QUEUE), (id, buildTypeId, queuedDate) -> streamed.add(id + ":" + buildTypeId + ":" + queuedDate));
+
+        List<String> unmarshalled = new ArrayList<>();
+        BuildQueue queue = (BuildQueue) JAXBContext.newInstance(BuildQueue.class).createUnmarshaller().unmarshal(open(QUEUE));
+        for (BuildQueue.QueuedBuild build : queue.getBuilds()) {
+            unmarshalled.add(build.getId() + ":" + build.getBuildTypeId() + ":" + build.getQueuedDate());
+        }
+
+        assertEquals("Both paths should report the same size", queue.getCount(), count);
+        assertEquals("Both paths should report the same builds", unmarshalled, streamed);
+        assertEquals("101:Project_Build:20240301T120000+0000", streamed.get(0));
+        assertEquals("Missing queued dates are null", "102:Project_Test:null", streamed.get(1));
+    }
+
+    @Test
+    public void testBuildWithoutIdIsReportedWithoutId() throws Exception {
+        String xml = "<builds count=\"2\"><build buildTypeId=\"A\"/><build id=\"0\" buildTypeId=\"B\"/></builds>";
+        List<Long> streamed = new ArrayList<>();
+        parser.parse(open(xml), (id, buildTypeId, queuedDate) -> streamed.add(id));
+
+        List<Long> unmarshalled = new ArrayList<>();
+        BuildQueue queue = (BuildQueue) JAXBContext.newInstance(BuildQueue.class).createUnmarshaller().unmarshal(open(xml));
+        for (BuildQueue.QueuedBuild build : queue.getBuilds()) {
+            unmarshalled.add(build.getId());
+        }
+
+        assertEquals(Arrays.asList(QueuedBuildVisitor.NO_ID, 0L), streamed);
+        assertEquals("Both paths should report a missing id alike", streamed, unmarshalled);
+    }
+
+    @Test
+    public void testCountFallsBackToBuilds() throws Exception {
+        assertEquals(2, parser.parse(open("<builds><build id=\"1\"/><build id=\"2\"/></builds>"), null));
+        assertEquals(0, parser.parse(open("<builds count=\"0\"/>"), null));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedResponse() throws Exception {
+        parser.parse(open("<builds count=\"1\"><build"), null);
+    }
+
+    private static InputStream open(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
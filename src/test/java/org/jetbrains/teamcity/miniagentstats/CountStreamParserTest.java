@@ -0,0 +1,30 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class CountStreamParserTest {
+
+    private final CountStreamParser parser = new CountStreamParser();
+
+    @Test
+    public void testAgentsAndBuildQueueCounts() throws Exception {
+        assertEquals(12, parser.parse(xml("<agents count=\"12\"/>")));
+        assertEquals(3, parser.parse(xml("<?xml version=\"1.0\"?><builds count=\"3\"></builds>")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testResponseWithoutCountIsRejected() throws Exception {
+        parser.parse(xml("<builds><build id=\"1\"/></builds>"));
+    }
+
+    private static InputStream xml(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
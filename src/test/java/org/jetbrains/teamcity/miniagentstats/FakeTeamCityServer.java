@@ -0,0 +1,369 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the TeamCity REST API, serving a synthetic agent fleet
+ *
+ * Serves /app/rest/agents and /app/rest/buildQueue, including the fields=count and busy-agent
+ * locator requests of counts mode and start:X,count:N pages. Bodies can be gzip-compressed and tagged with
+ * an ETag that is answered with 304 Not Modified. Latency, server errors, slowly dripped bodies and churn of
+ * the fleet between calls can be injected to exercise the real HTTP, parsing and scheduling path.
+ * The fleet is generated from a fixed seed, so runs are reproducible.
+ */
+class FakeTeamCityServer implements Closeable {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random(42);
+
+    // Fleet state, guarded by this
+    private int[] ids = new int[0];
+    private boolean[] enabled = new boolean[0];
+    private boolean[] connected = new boolean[0];
+    private boolean[] running = new boolean[0];
+    private int queuedBuilds;
+    private int churnPerRequest;
+    private int removalsPerPage;
+    private int nextId;
+    private AgentCounts lastServedCounts;
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile int dripChunkBytes;
+    private volatile long dripDelayMillis;
+    private volatile boolean gzip;
+    private volatile boolean etags;
+    private volatile boolean omitIds;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+
+    FakeTeamCityServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/app/rest/agents", this::handleAgents);
+        server.createContext("/app/rest/buildQueue", this::handleBuildQueue);
+        executor = Executors.newFixedThreadPool(8, runnable -> {
+            Thread thread = new Thread(runnable, "fake-teamcity");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Replaces the fleet with the given number of agents; roughly 90% are enabled,
+     * 95% connected and 60% running a build
+     */
+    synchronized void setFleet(int agents, int queuedBuilds) {
+        ids = new int[agents];
+        enabled = new boolean[agents];
+        connected = new boolean[agents];
+        running = new boolean[agents];
+        for (int i = 0; i < agents; i++) {
+            ids[i] = i + 1;
+            enabled[i] = random.nextInt(10) != 0;
+            connected[i] = random.nextInt(20) != 0;
+            running[i] = random.nextInt(10) < 6;
+        }
+        this.queuedBuilds = queuedBuilds;
+        nextId = agents + 1;
+    }
+
+    /**
+     * Number of agents that start or finish a build, and of queued builds added or removed,
+     * after every agents response
+     */
+    synchronized void setChurnPerRequest(int churnPerRequest) {
+        this.churnPerRequest = churnPerRequest;
+    }
+
+    /**
+     * Number of agents removed from the front of the fleet, and added at its end with new ids,
+     * after every paged agents response, so that agents shift between pages
+     */
+    synchronized void setRemovalsPerPage(int removalsPerPage) {
+        this.removalsPerPage = removalsPerPage;
+    }
+
+    /**
+     * Ids of the current fleet, in response order
+     */
+    synchronized int[] getAgentIds() {
+        return ids.clone();
+    }
+
+    /**
+     * Delay before every response
+     */
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Fraction of requests answered with HTTP 500
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sends response bodies in chunks of the given size with a pause after each one; 0 sends them at once
+     */
+    void setDrip(int chunkBytes, long delayMillis) {
+        this.dripChunkBytes = chunkBytes;
+        this.dripDelayMillis = delayMillis;
+    }
+
+    /**
+     * Compresses bodies of clients that accept gzip
+     */
+    void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Sends an ETag derived from the body and answers requests with a matching If-None-Match with 304
+     */
+    void setEtags(boolean etags) {
+        this.etags = etags;
+    }
+
+    /**
+     * Leaves the id attribute out of every agent, as some proxies and old servers do
+     */
+    void setOmitIds(boolean omitIds) {
+        this.omitIds = omitIds;
+    }
+
+    /**
+     * Counters of the fleet as sent in the last full agents response
+     */
+    synchronized AgentCounts getLastServedCounts() {
+        return lastServedCounts;
+    }
+
+    synchronized int getQueuedBuilds() {
+        return queuedBuilds;
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    int getErrors() {
+        return errors.get();
+    }
+
+    private void handleAgents(HttpExchange exchange) throws IOException {
+        if (!beforeResponse(exchange)) {
+            return;
+        }
+        String query = exchange.getRequestURI().getQuery();
+        byte[] body;
+        synchronized (this) {
+            if (query != null && query.contains("running:true") && query.contains("fields=count")) {
+                body = ("<agents count=\"" + countBusy() + "\"/>").getBytes(StandardCharsets.UTF_8);
+            } else if ("fields=count".equals(query)) {
+                body = ("<agents count=\"" + enabled.length + "\"/>").getBytes(StandardCharsets.UTF_8);
+            } else if (query != null && query.contains("locator=start:")) {
+                String locator = query.substring(query.indexOf("start:"), query.indexOf('&'));
+                int start = Integer.parseInt(locator.substring("start:".length(), locator.indexOf(',')));
+                int count = Integer.parseInt(locator.substring(locator.indexOf("count:") + "count:".length()));
+                body = renderAgents(Math.min(start, ids.length), Math.min(start + count, ids.length));
+                replaceFront(removalsPerPage);
+            } else {
+                body = renderAgents(0, ids.length);
+                lastServedCounts = new AgentCounts(enabled.length, count(enabled), count(connected), countBusy());
+                churn();
+            }
+        }
+        send(exchange, body);
+    }
+
+    private void handleBuildQueue(HttpExchange exchange) throws IOException {
+        if (!beforeResponse(exchange)) {
+            return;
+        }
+        String query = exchange.getRequestURI().getQuery();
+        byte[] body;
+        synchronized (this) {
+            if ("fields=count".equals(query)) {
+                body = ("<builds count=\"" + queuedBuilds + "\"/>").getBytes(StandardCharsets.UTF_8);
+            } else {
+                StringBuilder xml = new StringBuilder(64 + queuedBuilds * 64);
+                xml.append("<builds count=\"").append(queuedBuilds).append("\">");
+                for (int i = 0; i < queuedBuilds; i++) {
+                    xml.append("<build id=\"").append(2_000_000 + i).append("\" state=\"queued\"/>");
+                }
+                xml.append("</builds>");
+                body = xml.toString().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        send(exchange, body);
+    }
+
+    /**
+     * Applies the injected latency and errors; returns false if an error response was sent
+     */
+    private boolean beforeResponse(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        long latency = latencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        boolean fail;
+        synchronized (this) {
+            fail = errorRate > 0 && random.nextDouble() < errorRate;
+        }
+        if (fail) {
+            errors.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return false;
+        }
+        return true;
+    }
+
+    private void send(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        if (etags) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + body.length + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (gzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            // A response keeps the drip it started with, also when the drip is turned off meanwhile
+            int chunk = dripChunkBytes;
+            long delay = dripDelayMillis;
+            if (chunk <= 0) {
+                os.write(body);
+                return;
+            }
+            for (int offset = 0; offset < body.length; offset += chunk) {
+                os.write(body, offset, Math.min(chunk, body.length - offset));
+                os.flush();
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client gave up on the response, e.g. after its deadline
+        }
+    }
+
+    private byte[] renderAgents(int from, int to) {
+        StringBuilder xml = new StringBuilder(64 + (to - from) * 100);
+        xml.append("<agents count=\"").append(to - from).append("\">");
+        for (int i = from; i < to; i++) {
+            xml.append("<agent");
+            if (!omitIds) {
+                xml.append(" id=\"").append(ids[i]).append('"');
+            }
+            xml.append(" enabled=\"").append(enabled[i])
+                    .append("\" connected=\"").append(connected[i]).append('"');
+            if (running[i]) {
+                xml.append("><build id=\"").append(1_000_000 + i).append("\" state=\"running\"/></agent>");
+            } else {
+                xml.append("/>");
+            }
+        }
+        xml.append("</agents>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void replaceFront(int n) {
+        int keep = ids.length - Math.min(n, ids.length);
+        int removed = ids.length - keep;
+        System.arraycopy(ids, removed, ids, 0, keep);
+        System.arraycopy(enabled, removed, enabled, 0, keep);
+        System.arraycopy(connected, removed, connected, 0, keep);
+        System.arraycopy(running, removed, running, 0, keep);
+        for (int i = keep; i < ids.length; i++) {
+            ids[i] = nextId++;
+        }
+    }
+
+    private void churn() {
+        if (enabled.length == 0) {
+            return;
+        }
+        for (int i = 0; i < churnPerRequest; i++) {
+            int agent = random.nextInt(enabled.length);
+            running[agent] = !running[agent];
+        }
+        queuedBuilds = Math.max(0, queuedBuilds + random.nextInt(2 * churnPerRequest + 1) - churnPerRequest);
+    }
+
+    private int countBusy() {
+        int busy = 0;
+        for (int i = 0; i < enabled.length; i++) {
+            if (enabled[i] && connected[i] && running[i]) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    private static int count(boolean[] values) {
+        int count = 0;
+        for (boolean value : values) {
+            if (value) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
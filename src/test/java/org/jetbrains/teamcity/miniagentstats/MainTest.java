@@ -0,0 +1,43 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MainTest {
+
+    @Test
+    public void testMaxConnectionsRaisesTheTotal() {
+        HttpClientSettings settings = Main.parseHttpClientSettings(Collections.singletonMap("max-connections", "50"));
+        assertEquals(50, settings.getMaxConnectionsPerRoute());
+        assertEquals("The pool should allow every connection of the server", 50, settings.getMaxConnectionsTotal());
+
+        settings = Main.parseHttpClientSettings(Collections.singletonMap("max-connections", "5"));
+        assertEquals(5, settings.getMaxConnectionsPerRoute());
+        assertEquals("A lower limit keeps the default total", 20, settings.getMaxConnectionsTotal());
+    }
+
+    @Test
+    public void testHistoryWithoutCapacityKeepsTheDefault() {
+        assertEquals(AgentStats.DEFAULT_HISTORY_CAPACITY, Main.parseHistoryCapacity(Collections.singletonMap("history", "true")));
+        assertEquals(100, Main.parseHistoryCapacity(Collections.singletonMap("history", "100")));
+    }
+
+    @Test
+    public void testMetricsEndpointOnATakenPortFailsToStart() throws IOException {
+        try (ServerSocket taken = new ServerSocket(0)) {
+            Map<String, String> options = Collections.singletonMap("metrics-port", String.valueOf(taken.getLocalPort()));
+            assertEquals("0.0.0.0:" + taken.getLocalPort(), Main.formatAddress(Main.metricsAddress(options)));
+            try {
+                Main.startMetricsEndpoint(options).close();
+                fail("The port is already bound");
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
@@ -17,22 +17,43 @@ public class MockTeamCityClient implements TeamCityClient {
     private int queuedBuildsCount = 0;
     private int totalAgentsCount = 0;
     private List<Agent> agents = new ArrayList<>();
+    private long delayMillis = 0;
     
     @Override
     public int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) 
             throws IOException, JAXBException {
+        simulateLatency();
         return queuedBuildsCount;
     }
     
     @Override
     public Agents getAgentStats(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) 
             throws IOException, JAXBException {
+        simulateLatency();
         Agents agentsObj = new Agents();
         agentsObj.setCount(totalAgentsCount);
         agentsObj.setAgents(agents);
         return agentsObj;
     }
     
+    /**
+     * Sets the delay each call waits before returning, to simulate server round-trip time
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+    
+    private void simulateLatency() throws IOException {
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+    
     /**
      * Sets the number of queued builds to return
      */
@@ -0,0 +1,178 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.sink.RotationSettings;
+import org.jetbrains.teamcity.miniagentstats.sink.SinkPipelineSettings;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MultiServerMonitorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MultiServerMonitor monitor;
+
+    @After
+    public void tearDown() {
+        if (monitor != null) {
+            monitor.stop();
+        }
+    }
+
+    @Test
+    public void testSlowServerDoesNotDelayOthers() throws Exception {
+        MockTeamCityClient fastClient = new MockTeamCityClient();
+        fastClient.setQueuedBuildsCount(1);
+        MockTeamCityClient slowClient = new MockTeamCityClient();
+        slowClient.setQueuedBuildsCount(2);
+        slowClient.setDelayMillis(3000);
+
+        Map<String, TeamCityClient> clients = new HashMap<>();
+        clients.put("fast", fastClient);
+        clients.put("slow", slowClient);
+
+        List<String> output = Collections.synchronizedList(new ArrayList<>());
+        monitor = new MultiServerMonitor(Arrays.asList(
+                new ServerConfig("fast", "http://fast-teamcity", "token", 1, null),
+                new ServerConfig("slow", "http://slow-teamcity", "token", 1, null)),
+                output::add, server -> clients.get(server.getName()));
+        monitor.start();
+
+        Thread.sleep(2500);
+
+        List<String> lines;
+        synchronized (output) {
+            lines = new ArrayList<>(output);
+        }
+        long fastLines = lines.stream().filter(line -> line.startsWith("fast,")).count();
+        long slowLines = lines.stream().filter(line -> line.startsWith("slow,")).count();
+        assertTrue("Fast server should keep ticking while the slow one is busy: " + lines, fastLines >= 2);
+        assertEquals("Slow server should not have finished a tick yet", 0, slowLines);
+
+        String[] parts = lines.get(0).split(",");
+        assertEquals("Line should be tagged with the server and carry 4 stats", 5, parts.length);
+        assertEquals("Queued builds count should match", "1", parts[2]);
+    }
+
+    @Test
+    public void testOutputOfEveryServerRunsOnSharedThreads() throws Exception {
+        Path directory = temporaryFolder.getRoot().toPath();
+        List<ServerConfig> servers = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            servers.add(new ServerConfig("s" + i, "http://teamcity-" + i, "token", 1, directory.resolve("s" + i + ".csv").toString()));
+        }
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        RotationSettings rotation = new RotationSettings();
+        rotation.setMaxBytes(1024 * 1024);
+        monitor = new MultiServerMonitor(servers, line -> { }, server -> new MockTeamCityClient());
+        monitor.setSinkPipelineSettings(new SinkPipelineSettings());
+        monitor.setRotationSettings(rotation);
+        monitor.start();
+
+        Thread.sleep(1500);
+        List<String> started = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!before.contains(thread)) {
+                started.add(thread.getName());
+            }
+        }
+        monitor.stop();
+        monitor = null;
+
+        // Sinks, CSV writers and segment archivers used to start threads of their own for every server;
+        // now only the bounded shared pools and the evictor of the shared HTTP client start threads
+        assertTrue("Only the shared pools should start threads: " + started,
+                started.stream().allMatch(name -> name.startsWith("poll-") || name.equals("Connection evictor")));
+        for (ServerConfig server : servers) {
+            assertFalse(server.getName() + " should have written samples",
+                    Files.readAllLines(Paths.get(server.getOutputFilePath())).isEmpty());
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testMonitoringOptionsApplyToEveryServer() throws Exception {
+        List<String> output = Collections.synchronizedList(new ArrayList<>());
+        monitor = new MultiServerMonitor(Arrays.asList(
+                new ServerConfig("a", "http://a-teamcity", "token", 1, null),
+                new ServerConfig("b", "http://b-teamcity", "token", 1, null)),
+                output::add, server -> new MockTeamCityClient());
+        monitor.setTickLimit(2);
+        monitor.setReportBytes(true);
+        monitor.setTimestampFormat(SampleLineFormatter.TimestampFormat.EPOCH_MILLIS);
+        monitor.setUtilization(true);
+        monitor.setHistoryCapacity(16);
+        monitor.start();
+        monitor.awaitTickLimit();
+        monitor.stop();
+
+        for (AgentStats agentStats : monitor.getMonitors()) {
+            assertNotNull(agentStats.getUtilizationTracker());
+            assertEquals(16, agentStats.getHistory().getCapacity());
+            assertEquals(2, agentStats.getHistory().size());
+        }
+        List<String> lines;
+        synchronized (output) {
+            lines = new ArrayList<>(output);
+        }
+        assertEquals("Each server should stop after two ticks: " + lines, 4, lines.size());
+        for (String line : lines) {
+            String[] parts = line.split(",");
+            assertEquals("Line should carry the server, 4 stats and the bytes: " + line, 6, parts.length);
+            assertTrue("Timestamp should be epoch millis: " + line, parts[1].chars().allMatch(Character::isDigit));
+        }
+        monitor = null;
+    }
+
+    @Test
+    public void testParseConfiguration() {
+        Properties properties = new Properties();
+        properties.setProperty("servers", "main, linux");
+        properties.setProperty("interval", "20");
+        properties.setProperty("server.main.url", "https://teamcity.example.com/");
+        properties.setProperty("server.main.token", "abc");
+        properties.setProperty("server.main.output", "main.csv");
+        properties.setProperty("server.linux.url", "https://linux-ci.example.com");
+        properties.setProperty("server.linux.token", "def");
+        properties.setProperty("server.linux.interval", "5");
+
+        List<ServerConfig> servers = ServerConfig.parse(properties);
+
+        assertEquals("Both servers should be loaded", 2, servers.size());
+        assertEquals("main", servers.get(0).getName());
+        assertEquals("Trailing slash should be removed", "https://teamcity.example.com", servers.get(0).getUrl());
+        assertEquals("Default interval should apply", 20, servers.get(0).getIntervalSeconds());
+        assertEquals("main.csv", servers.get(0).getOutputFilePath());
+        assertEquals("Server interval should override the default", 5, servers.get(1).getIntervalSeconds());
+        assertNull("Output is optional", servers.get(1).getOutputFilePath());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSharedOutputFileIsRejected() {
+        Properties properties = new Properties();
+        properties.setProperty("servers", "a,b");
+        properties.setProperty("server.a.url", "https://a.example.com");
+        properties.setProperty("server.a.token", "x");
+        properties.setProperty("server.a.output", "stats.csv");
+        properties.setProperty("server.b.url", "https://b.example.com");
+        properties.setProperty("server.b.token", "y");
+        properties.setProperty("server.b.output", "stats.csv");
+
+        ServerConfig.parse(properties);
+    }
+}
@@ -0,0 +1,97 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the polling policy with explicit timestamps instead of a real clock
+ */
+public class PollingPolicyTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private PollingPolicy createPolicy(PollingSettings settings) {
+        return new PollingPolicy(10_000, settings, new Random(42));
+    }
+
+    @Test
+    public void testSuccessfulTicksStayOnGrid() {
+        PollingPolicy policy = createPolicy(new PollingSettings());
+
+        assertEquals("Next tick should be one interval after the previous start",
+                10 * SECOND, policy.nextTickStart(0, 2 * SECOND, PollingPolicy.Outcome.CHANGED));
+    }
+
+    @Test
+    public void testMissedTicksAreSkipped() {
+        PollingPolicy policy = createPolicy(new PollingSettings());
+
+        // The tick started at 0 and finished at 35s: ticks at 10, 20 and 30 are dropped
+        assertEquals("Next tick should be the first grid point after now",
+                40 * SECOND, policy.nextTickStart(0, 35 * SECOND, PollingPolicy.Outcome.UNCHANGED));
+    }
+
+    @Test
+    public void testBackoffDoublesWithJitterAndIsCapped() {
+        PollingSettings settings = new PollingSettings();
+        settings.setMaxBackoffMillis(60_000);
+        PollingPolicy policy = createPolicy(settings);
+
+        long now = 100 * SECOND;
+        long expected = 20 * SECOND;
+        for (int i = 0; i < 2; i++) {
+            long delay = policy.nextTickStart(now - SECOND, now, PollingPolicy.Outcome.FAILED) - now;
+            assertTrue("Backoff should be within jitter of " + expected + ": " + delay,
+                    delay >= expected * 0.8 && delay <= expected * 1.2);
+            expected *= 2;
+        }
+
+        long capped = policy.nextTickStart(now - SECOND, now, PollingPolicy.Outcome.SLOW) - now;
+        assertTrue("Backoff should not exceed the maximum plus jitter: " + capped, capped <= 60 * SECOND * 1.2);
+        assertEquals("Failures should be counted", 3, policy.getConsecutiveFailures());
+    }
+
+    @Test
+    public void testSuccessResetsBackoff() {
+        PollingPolicy policy = createPolicy(new PollingSettings());
+        policy.nextTickStart(0, SECOND, PollingPolicy.Outcome.FAILED);
+        policy.nextTickStart(0, SECOND, PollingPolicy.Outcome.FAILED);
+
+        long next = policy.nextTickStart(50 * SECOND, 51 * SECOND, PollingPolicy.Outcome.UNCHANGED);
+
+        assertEquals("Failures should be reset", 0, policy.getConsecutiveFailures());
+        assertEquals("Polling should return to the grid", 60 * SECOND, next);
+    }
+
+    @Test
+    public void testAdaptiveIntervalFollowsQueueActivity() {
+        PollingSettings settings = new PollingSettings();
+        settings.setAdaptive(true);
+        PollingPolicy policy = createPolicy(settings);
+
+        policy.nextTickStart(0, SECOND, PollingPolicy.Outcome.CHANGED);
+        assertEquals("Interval should halve while the queue changes", 5 * SECOND, policy.getIntervalNanos());
+        for (int i = 0; i < 10; i++) {
+            policy.nextTickStart(0, SECOND, PollingPolicy.Outcome.CHANGED);
+        }
+        assertEquals("Interval should not drop below a quarter", 2500 * 1_000_000L, policy.getIntervalNanos());
+
+        for (int i = 0; i < 20; i++) {
+            policy.nextTickStart(0, SECOND, PollingPolicy.Outcome.UNCHANGED);
+        }
+        assertEquals("Interval should not grow beyond four times", 40 * SECOND, policy.getIntervalNanos());
+    }
+
+    @Test
+    public void testDeadlineDefaultsToInterval() {
+        assertEquals(10 * SECOND, createPolicy(new PollingSettings()).getDeadlineNanos());
+
+        PollingSettings settings = new PollingSettings();
+        settings.setDeadlineMillis(2_000);
+        assertEquals(2 * SECOND, createPolicy(settings).getDeadlineNanos());
+    }
+}
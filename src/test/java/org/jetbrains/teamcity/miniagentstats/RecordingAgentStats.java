@@ -0,0 +1,29 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps every sample that is written, fresh or stale
+ */
+class RecordingAgentStats extends AgentStats {
+    final List<Sample> samples = Collections.synchronizedList(new ArrayList<>());
+
+    RecordingAgentStats(TeamCityClient teamCity) {
+        super(line -> {}, teamCity);
+    }
+
+    @Override
+    protected void writeSample(Sample sample, String outputFilePath) throws IOException {
+        super.writeSample(sample, outputFilePath);
+        samples.add(sample);
+    }
+
+    List<Sample> snapshot() {
+        synchronized (samples) {
+            return new ArrayList<>(samples);
+        }
+    }
+}
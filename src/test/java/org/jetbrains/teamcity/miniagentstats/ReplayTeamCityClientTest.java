@@ -0,0 +1,114 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseArchive;
+import org.jetbrains.teamcity.miniagentstats.replay.ResponseRecorder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records responses from FakeTeamCityServer and replays them through AgentStats
+ */
+public class ReplayTeamCityClientTest {
+
+    private FakeTeamCityServer server;
+    private RecordingAgentStats agentStats;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeTeamCityServer();
+    }
+
+    @After
+    public void tearDown() {
+        if (agentStats != null) {
+            agentStats.stopMonitoring();
+        }
+        server.close();
+    }
+
+    @Test
+    public void testRecordedResponsesReplayToTheSameSamples() throws Exception {
+        server.setFleet(2_000, 30);
+        server.setChurnPerRequest(20);
+        server.setGzip(true);
+        Path archive = Files.createTempFile("responses", ".tcra.gz");
+        try {
+            TeamCityClientImpl client = new TeamCityClientImpl();
+            client.setSkipUnchanged(true);
+            List<Sample> recorded = new ArrayList<>();
+            try (ResponseRecorder recorder = new ResponseRecorder(archive)) {
+                client.setRecorder(recorder);
+                agentStats = new RecordingAgentStats(client);
+                agentStats.setResponseRecorder(recorder);
+                for (int i = 0; i < 10; i++) {
+                    if (i == 5) {
+                        // The fleet stops changing: the rest are recorded as unchanged responses
+                        server.setChurnPerRequest(0);
+                    }
+                    recorded.add(agentStats.collectSample(server.getUrl(), "Bearer test-token"));
+                }
+                agentStats.stopMonitoring();
+            }
+            assertTrue("Some responses should be recorded as unchanged", client.getUnchangedResponses() > 0);
+
+            try (ReplayTeamCityClient replayClient = new ReplayTeamCityClient(archive)) {
+                RecordingAgentStats replay = new RecordingAgentStats(replayClient);
+                assertEquals(10, replay.replay(null, 0));
+                List<Sample> replayed = replay.snapshot();
+                assertEquals(10, replayed.size());
+                for (int i = 0; i < 10; i++) {
+                    Sample expected = recorded.get(i);
+                    Sample actual = replayed.get(i);
+                    assertEquals(expected.getQueuedBuilds(), actual.getQueuedBuilds());
+                    assertEquals(expected.getTotalAgents(), actual.getTotalAgents());
+                    assertEquals(expected.getBusyAgents(), actual.getBusyAgents());
+                }
+                assertTrue("The replayed samples carry the recorded times",
+                        replayed.get(0).getTimestampMillis() <= recorded.get(0).getTimestampMillis());
+                replay.stopMonitoring();
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    @Test
+    public void testReplaySpeedFollowsTheRecordedPace() throws Exception {
+        Path archive = Files.createTempFile("responses", ".tcra");
+        byte[] queue = "<builds count=\"1\"/>".getBytes(StandardCharsets.UTF_8);
+        byte[] agents = "<agents count=\"0\"/>".getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.delete(archive);
+            try (ResponseRecorder recorder = new ResponseRecorder(archive)) {
+                for (int i = 0; i < 5; i++) {
+                    // One tick every 10 seconds
+                    recorder.beginTick(1_700_000_000_000L + i * 10_000L);
+                    recorder.record(ResponseArchive.BUILD_QUEUE, queue, queue.length);
+                    recorder.record(ResponseArchive.AGENTS, agents, agents.length);
+                }
+            }
+            try (ReplayTeamCityClient replayClient = new ReplayTeamCityClient(archive)) {
+                RecordingAgentStats replay = new RecordingAgentStats(replayClient);
+                long start = System.nanoTime();
+                // 40 recorded seconds at 100x take 400 ms
+                assertEquals(5, replay.replay(null, 100));
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 390);
+                assertEquals(1_700_000_040_000L, replay.snapshot().get(4).getTimestampMillis());
+                replay.stopMonitoring();
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+}
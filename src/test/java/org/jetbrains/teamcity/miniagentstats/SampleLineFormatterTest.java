@@ -0,0 +1,120 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SampleLineFormatterTest {
+
+    private static Sample sample(long timestampMillis, int queued, int total, int busy) {
+        Sample sample = new Sample();
+        sample.setTimestampMillis(timestampMillis);
+        sample.setQueuedBuilds(queued);
+        sample.setTotalAgents(total);
+        sample.setBusyAgents(busy);
+        return sample;
+    }
+
+    @Test
+    public void testIsoTimestampsMatchLocalDateTime() {
+        Random random = new Random(42);
+        for (ZoneId zone : new ZoneId[]{ZoneOffset.UTC, ZoneId.of("Europe/Berlin"), ZoneId.of("America/St_Johns")}) {
+            SampleLineFormatter formatter = new SampleLineFormatter(zone, SampleLineFormatter.TimestampFormat.ISO);
+            for (int i = 0; i < 20_000; i++) {
+                long millis = random.nextLong() % 4_000_000_000_000L;
+                // Whole minutes and seconds are printed shorter, so hit them often
+                if (i % 3 == 0) {
+                    millis -= Math.floorMod(millis, i % 2 == 0 ? 60_000L : 1000L);
+                }
+                formatter.format(sample(millis, 1, 2, 3), false);
+                String expected = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone) + ",1,2,3";
+                assertEquals(zone + " at " + millis, expected, formatter.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testDaylightSavingTransitions() {
+        ZoneId zone = ZoneId.of("Europe/Berlin");
+        SampleLineFormatter formatter = new SampleLineFormatter(zone, SampleLineFormatter.TimestampFormat.ISO);
+        // Samples every 10 minutes across the spring and autumn transitions of 2024
+        for (long start : new long[]{1711846800_000L, 1729990800_000L}) {
+            for (long millis = start - 7_200_000; millis < start + 7_200_000; millis += 600_000) {
+                formatter.format(sample(millis, 0, 0, 0), false);
+                assertEquals(LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone) + ",0,0,0", formatter.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testColumns() {
+        SampleLineFormatter formatter = new SampleLineFormatter(ZoneOffset.UTC, SampleLineFormatter.TimestampFormat.EPOCH_MILLIS);
+        Sample sample = sample(1_700_000_000_123L, 0, Integer.MAX_VALUE, -5);
+        sample.setBytesReceived(Long.MIN_VALUE);
+        sample.setStale(true);
+        int length = formatter.format(sample, true);
+        assertEquals("1700000000123,0,2147483647,-5,-9223372036854775808,stale", formatter.toString());
+        assertEquals(formatter.toString().length(), length);
+        // Years LocalDateTime prints with more digits or a sign fall back to its own formatting
+        SampleLineFormatter iso = new SampleLineFormatter(ZoneOffset.UTC, SampleLineFormatter.TimestampFormat.ISO);
+        long farFuture = 300_000_000_000_000L;
+        iso.format(sample(farFuture, 1, 1, 1), false);
+        assertEquals(LocalDateTime.ofInstant(Instant.ofEpochMilli(farFuture), ZoneOffset.UTC) + ",1,1,1", iso.toString());
+    }
+
+    @Test
+    public void testSteadyStateSamplesAllocateNothing() throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeAllocationsMeasurable(threads);
+        Path output = Files.createTempFile("agent-stats", ".csv");
+        long[] written = new long[1];
+        AgentStats agentStats = new AgentStats(line -> fail("Sample lines go to the line sink"), new MockTeamCityClient());
+        agentStats.setLineSink((bytes, offset, length) -> written[0] += length);
+        agentStats.setReportBytes(true);
+        try {
+            Sample sample = sample(1_700_000_000_000L, 3, 100, 42);
+            // Warm up, which also fills the pool of queued lines
+            for (int i = 0; i < 20_000; i++) {
+                sample.setTimestampMillis(sample.getTimestampMillis() + 1001);
+                agentStats.writeSample(sample, output.toString());
+            }
+            long threadId = Thread.currentThread().getId();
+            int samples = 200;
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < samples; i++) {
+                sample.setTimestampMillis(sample.getTimestampMillis() + 1001);
+                sample.setBusyAgents(i);
+                agentStats.writeSample(sample, output.toString());
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            assertEquals("Bytes allocated by " + samples + " samples", 0, allocated);
+        } finally {
+            agentStats.stopMonitoring();
+        }
+        List<String> lines = Files.readAllLines(output);
+        Files.delete(output);
+        assertEquals(20_200, lines.size());
+        assertEquals("The console got the same lines as the file", lines.stream().mapToLong(String::length).sum(), written[0]);
+        assertTrue(lines.get(20_199), lines.get(20_199).endsWith(",3,100,199,0"));
+    }
+
+    private static void assumeAllocationsMeasurable(com.sun.management.ThreadMXBean threads) {
+        org.junit.Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        // The measurement itself must not allocate, which holds once it is warmed up
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 1000; i++) {
+            threads.getThreadAllocatedBytes(threadId);
+        }
+    }
+}
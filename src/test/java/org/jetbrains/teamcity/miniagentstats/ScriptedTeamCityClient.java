@@ -0,0 +1,125 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+import org.jetbrains.teamcity.miniagentstats.model.Agents;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * TeamCityClient that answers each request with the next scripted response, after its own delay,
+ * so that a test can let one tick's responses arrive while the next tick is running
+ *
+ * Agents are reported to the visitor only after the delay, as a parser reading a slow response would.
+ */
+class ScriptedTeamCityClient implements TeamCityClient {
+
+    /**
+     * Agent ids with their state, in response order
+     */
+    static class AgentsResponse {
+        final long delayMillis;
+        final int[] ids;
+        final boolean[] connected;
+        final boolean[] busy;
+
+        AgentsResponse(long delayMillis, int[] ids, boolean[] connected, boolean[] busy) {
+            this.delayMillis = delayMillis;
+            this.ids = ids;
+            this.connected = connected;
+            this.busy = busy;
+        }
+    }
+
+    private final Deque<AgentsResponse> agentResponses = new ArrayDeque<>();
+    private final Deque<long[]> queueResponses = new ArrayDeque<>();
+    private final Deque<Long> queueDelays = new ArrayDeque<>();
+
+    synchronized void addAgents(long delayMillis, int[] ids, boolean[] connected, boolean[] busy) {
+        agentResponses.add(new AgentsResponse(delayMillis, ids, connected, busy));
+    }
+
+    /**
+     * Adds an agents response that fails with an IOException
+     */
+    synchronized void addAgentsFailure() {
+        agentResponses.add(new AgentsResponse(0, null, null, null));
+    }
+
+    synchronized void addQueue(long delayMillis, long... buildIds) {
+        queueResponses.add(buildIds);
+        queueDelays.add(delayMillis);
+    }
+
+    @Override
+    public int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException {
+        return getQueuedBuildsCount(httpClient, teamCityUrl, authHeader, null);
+    }
+
+    @Override
+    public int getQueuedBuildsCount(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                    QueuedBuildVisitor visitor) throws IOException {
+        long[] builds;
+        long delay;
+        synchronized (this) {
+            builds = queueResponses.isEmpty() ? new long[0] : queueResponses.poll();
+            delay = queueDelays.isEmpty() ? 0 : queueDelays.poll();
+        }
+        sleep(delay);
+        if (visitor != null) {
+            for (long id : builds) {
+                visitor.visitQueuedBuild(id, "bt", null);
+            }
+        }
+        return builds.length;
+    }
+
+    @Override
+    public Agents getAgentStats(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) {
+        throw new UnsupportedOperationException("Only counts are scripted");
+    }
+
+    @Override
+    public AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader) throws IOException {
+        return getAgentCounts(httpClient, teamCityUrl, authHeader, null);
+    }
+
+    @Override
+    public AgentCounts getAgentCounts(CloseableHttpClient httpClient, String teamCityUrl, String authHeader,
+                                      AgentVisitor visitor) throws IOException {
+        AgentsResponse response;
+        synchronized (this) {
+            response = agentResponses.poll();
+        }
+        if (response == null) {
+            throw new IOException("No agents response scripted");
+        }
+        if (response.ids == null) {
+            throw new IOException("Scripted failure");
+        }
+        sleep(response.delayMillis);
+        int connectedCount = 0;
+        int busyCount = 0;
+        for (int i = 0; i < response.ids.length; i++) {
+            if (visitor != null) {
+                visitor.visit(response.ids[i], true, response.connected[i], response.busy[i]);
+            }
+            connectedCount += response.connected[i] ? 1 : 0;
+            busyCount += response.busy[i] ? 1 : 0;
+        }
+        return new AgentCounts(response.ids.length, response.ids.length, connectedCount, busyCount);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.jetbrains.teamcity.miniagentstats;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.teamcity.miniagentstats.model.AgentCounts;
+import org.jetbrains.teamcity.miniagentstats.model.AgentVisitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fetches from FakeTeamCityServer over real HTTP: paged requests, compression and unchanged responses
+ */
+public class TeamCityClientImplTest {
+
+    private FakeTeamCityServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeTeamCityServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testPagedFetchMatchesSingleResponse() throws Exception {
+        server.setFleet(10_000, 0);
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        try (CloseableHttpClient httpClient = new HttpClientSettings().createHttpClient()) {
+            AgentCounts full = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token");
+            int requests = server.getRequests();
+
+            client.setPageSize(1000);
+            AgentCounts paged = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token");
+
+            assertEquals(full.toString(), paged.toString());
+            assertEquals(server.getLastServedCounts().toString(), paged.toString());
+            // Ten full pages, then the rest of the wave of four comes back empty
+            assertEquals(12, server.getRequests() - requests);
+        }
+    }
+
+    @Test
+    public void testPagedFetchCountsAgentsThatShiftBetweenPagesOnce() throws Exception {
+        server.setFleet(10_000, 0);
+        server.setRemovalsPerPage(5);
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        client.setPageSize(500);
+        client.setPageConcurrency(3);
+        Set<Integer> visited = ConcurrentHashMap.newKeySet();
+        List<Integer> duplicates = Collections.synchronizedList(new ArrayList<>());
+        try (CloseableHttpClient httpClient = new HttpClientSettings().createHttpClient()) {
+            AgentCounts counts = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token",
+                    (id, enabled, connected, busy) -> {
+                        if (!visited.add(id)) {
+                            duplicates.add(id);
+                        }
+                    });
+
+            assertTrue("Every agent should be visited once: " + duplicates, duplicates.isEmpty());
+            assertEquals(visited.size(), counts.getTotal());
+            for (int id : server.getAgentIds()) {
+                if (id <= 10_000) {
+                    assertTrue("Agent " + id + " was in the fleet throughout and should not be skipped", visited.contains(id));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPagedFetchCountsAgentsWithoutIdOnce() throws Exception {
+        server.setFleet(10_000, 0);
+        server.setOmitIds(true);
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        try (CloseableHttpClient httpClient = new HttpClientSettings().createHttpClient()) {
+            AgentCounts full = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token");
+
+            client.setPageSize(1000);
+            List<Integer> ids = Collections.synchronizedList(new ArrayList<>());
+            AgentCounts paged = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token",
+                    (id, enabled, connected, busy) -> ids.add(id));
+
+            assertEquals("Agents without an id should neither collapse nor be counted twice", full.toString(), paged.toString());
+            assertEquals(10_000, ids.size());
+            assertTrue(ids.stream().allMatch(id -> id == AgentVisitor.NO_ID));
+
+            // Closing stops the page threads; a later paged request starts them again
+            client.close();
+            assertEquals(full.toString(), client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token").toString());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testGzipResponsesAreCountedCompressed() throws Exception {
+        server.setFleet(10_000, 100);
+        server.setGzip(true);
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        try (CloseableHttpClient httpClient = new HttpClientSettings().createHttpClient()) {
+            AgentCounts counts = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token");
+            assertEquals(server.getLastServedCounts().toString(), counts.toString());
+            long compressed = client.getBytesReceived();
+            long decoded = client.getBytesDecoded();
+            assertTrue("Compressed " + compressed + " of " + decoded + " bytes", compressed * 5 < decoded);
+
+            client.setCompression(false);
+            client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token");
+            assertEquals("Uncompressed responses count the same on the wire and decoded",
+                    client.getBytesReceived() - compressed, client.getBytesDecoded() - decoded);
+        }
+    }
+
+    @Test
+    public void testUnchangedResponsesWithEtagAreNotParsed() throws Exception {
+        server.setEtags(true);
+        checkUnchangedResponsesAreNotParsed();
+    }
+
+    @Test
+    public void testUnchangedResponsesWithoutEtagAreNotParsed() throws Exception {
+        checkUnchangedResponsesAreNotParsed();
+    }
+
+    private void checkUnchangedResponsesAreNotParsed() throws Exception {
+        server.setFleet(1_000, 20);
+        server.setGzip(true);
+        TeamCityClientImpl client = new TeamCityClientImpl();
+        client.setSkipUnchanged(true);
+        List<Integer> visits = new ArrayList<>();
+        List<Long> queuedBuilds = new ArrayList<>();
+        try (CloseableHttpClient httpClient = new HttpClientSettings().createHttpClient()) {
+            AgentCounts first = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token",
+                    (id, enabled, connected, busy) -> visits.add(busy ? -id : id));
+            client.getQueuedBuildsCount(httpClient, server.getUrl(), "Bearer test-token",
+                    (id, buildTypeId, queuedDate) -> queuedBuilds.add(id));
+            List<Integer> firstVisits = new ArrayList<>(visits);
+            visits.clear();
+            queuedBuilds.clear();
+            long received = client.getBytesReceived();
+
+            AgentCounts second = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token",
+                    (id, enabled, connected, busy) -> visits.add(busy ? -id : id));
+            int queued = client.getQueuedBuildsCount(httpClient, server.getUrl(), "Bearer test-token",
+                    (id, buildTypeId, queuedDate) -> queuedBuilds.add(id));
+
+            assertEquals(4, client.getResponses());
+            assertEquals(2, client.getUnchangedResponses());
+            assertSame("The previous result should be reused", first, second);
+            assertEquals("The visits should be replayed", firstVisits, visits);
+            assertEquals(20, queued);
+            assertEquals(20, queuedBuilds.size());
+            assertTrue("Bytes are still counted for a body that is compared", client.getBytesReceived() >= received);
+
+            // The fleet changes after this response
+            server.setChurnPerRequest(50);
+            client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token");
+            server.setChurnPerRequest(0);
+            AgentCounts changed = client.getAgentCounts(httpClient, server.getUrl(), "Bearer test-token");
+            assertEquals("A changed response should be parsed", 3, client.getUnchangedResponses());
+            assertEquals(server.getLastServedCounts().getTotal(), changed.getTotal());
+        }
+    }
+}
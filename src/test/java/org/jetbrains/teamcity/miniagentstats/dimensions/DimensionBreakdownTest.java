@@ -0,0 +1,72 @@
+package org.jetbrains.teamcity.miniagentstats.dimensions;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DimensionBreakdownTest {
+
+    private static void agent(DimensionBreakdown breakdown, int id, String pool, String os, boolean busy) {
+        breakdown.visitDimensions(pool, os);
+        breakdown.visit(id, true, true, busy);
+    }
+
+    @Test
+    public void testCountsPerPoolOsAndBuildType() {
+        DimensionBreakdown breakdown = new DimensionBreakdown();
+        breakdown.beginTick(0);
+        agent(breakdown, 1, "Default", "Linux", true);
+        agent(breakdown, 2, "Default", "Windows", false);
+        agent(breakdown, 3, "GPU", "Linux", true);
+        agent(breakdown, 4, "GPU", null, false);
+        breakdown.visit(5, true, true, false);
+        breakdown.visitQueuedBuild(101, "Project_Build", null);
+        breakdown.visitQueuedBuild(102, "Project_Build", null);
+        breakdown.visitQueuedBuild(103, "Project_Test", null);
+        breakdown.endTick();
+
+        DimensionBreakdown.Snapshot snapshot = breakdown.snapshot();
+        assertEquals(2, snapshot.getPools().getTotal("Default"));
+        assertEquals(1, snapshot.getPools().getBusy("Default"));
+        assertEquals(2, snapshot.getPools().getTotal("GPU"));
+        assertEquals("Agents without dimensions are counted as unknown", 1,
+                snapshot.getPools().getTotal(DimensionBreakdown.UNKNOWN));
+        assertEquals(2, snapshot.getOperatingSystems().getBusy("Linux"));
+        assertEquals(2, snapshot.getOperatingSystems().getTotal(DimensionBreakdown.UNKNOWN));
+        assertEquals(2, snapshot.getBuildTypes().getTotal("Project_Build"));
+        assertEquals(1, snapshot.getBuildTypes().getTotal("Project_Test"));
+    }
+
+    @Test
+    public void testEachTickStartsFromZeroAndDropsEmptyRows() {
+        DimensionBreakdown breakdown = new DimensionBreakdown();
+        breakdown.beginTick(0);
+        agent(breakdown, 1, "Default", "Linux", true);
+        agent(breakdown, 2, "Retired", "Linux", false);
+        breakdown.visitQueuedBuild(104, "Project_Build", null);
+        breakdown.endTick();
+        DimensionBreakdown.Snapshot first = breakdown.snapshot();
+
+        breakdown.beginTick(1000);
+        agent(breakdown, 1, "Default", "Linux", false);
+        breakdown.endTick();
+        DimensionBreakdown.Snapshot second = breakdown.snapshot();
+
+        assertEquals("Snapshots should not change with later ticks", 1, first.getPools().getBusy("Default"));
+        assertEquals(1, second.getPools().size());
+        assertEquals(0, second.getPools().getBusy("Default"));
+        assertEquals("Values missing from a tick have no row", 0, second.getPools().getTotal("Retired"));
+        assertEquals(0, second.getBuildTypes().size());
+    }
+
+    @Test
+    public void testDictionaryStoresEachValueOnce() {
+        DimensionDictionary dictionary = new DimensionDictionary();
+        String first = new String("Linux");
+        assertEquals(0, dictionary.encode(first));
+        assertEquals(1, dictionary.encode("Windows"));
+        assertEquals(0, dictionary.encode(new String("Linux")));
+        assertSame("The first instance should be kept", first, dictionary.decode(0));
+        assertEquals(2, dictionary.size());
+    }
+}
@@ -0,0 +1,104 @@
+package org.jetbrains.teamcity.miniagentstats.events;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AgentTransitionDetectorTest {
+
+    private static List<String> drain(AgentTransitionDetector detector) {
+        List<String> events = new ArrayList<>();
+        detector.drain((timestampMillis, agentId, transition) ->
+                events.add(timestampMillis + ":" + agentId + ":" + transition.getLabel()));
+        return events;
+    }
+
+    @Test
+    public void testFirstTickIsTheBaseline() {
+        AgentTransitionDetector detector = new AgentTransitionDetector();
+        detector.beginTick(1000);
+        detector.visit(1, true, true, true);
+        detector.visit(2, true, true, false);
+        detector.endTick();
+
+        assertTrue("The baseline should report nothing", drain(detector).isEmpty());
+
+        detector.beginTick(2000);
+        detector.visit(1, true, true, true);
+        detector.visit(2, true, true, false);
+        detector.endTick();
+        assertTrue("An unchanged fleet should report nothing", drain(detector).isEmpty());
+    }
+
+    @Test
+    public void testTransitionsInAgentOrder() {
+        AgentTransitionDetector detector = new AgentTransitionDetector();
+        detector.beginTick(1000);
+        detector.visit(1, true, true, true);
+        detector.visit(2, true, true, false);
+        detector.visit(3, true, true, false);
+        detector.visit(70, true, false, false);
+        detector.endTick();
+
+        detector.beginTick(2000);
+        detector.visit(1, true, true, false);
+        detector.visit(2, true, true, true);
+        detector.visit(3, false, true, false);
+        detector.visit(70, true, true, false);
+        detector.visit(200, true, true, false);
+        detector.endTick();
+
+        List<String> events = drain(detector);
+        assertEquals(List.of(
+                "2000:1:build_finished",
+                "2000:2:build_started",
+                "2000:3:disabled",
+                "2000:70:connected",
+                "2000:200:connected"), events);
+        assertTrue("Draining should empty the buffer", drain(detector).isEmpty());
+    }
+
+    @Test
+    public void testMissingAgentsDisconnect() {
+        AgentTransitionDetector detector = new AgentTransitionDetector();
+        detector.beginTick(1000);
+        detector.visit(5, true, true, true);
+        detector.visit(6, true, true, false);
+        detector.endTick();
+
+        detector.beginTick(2000);
+        detector.visit(6, true, true, false);
+        detector.endTick();
+
+        detector.beginTick(3000);
+        detector.visit(5, true, true, true);
+        detector.visit(6, true, true, false);
+        detector.endTick();
+
+        // A busy agent that drops out is disconnected, not finished; it comes back busy without a new build event
+        assertEquals(List.of("2000:5:disconnected", "3000:5:connected"), drain(detector));
+    }
+
+    @Test
+    public void testLargeFleet() {
+        int agents = 50_000;
+        AgentTransitionDetector detector = new AgentTransitionDetector();
+        for (int t = 0; t < 3; t++) {
+            detector.beginTick(t);
+            for (int id = 0; id < agents; id++) {
+                // Every 1000th agent toggles its build each tick
+                boolean busy = id % 1000 == 0 && t % 2 == 1;
+                detector.visit(id, true, true, busy);
+            }
+            detector.endTick();
+        }
+
+        List<String> events = drain(detector);
+        assertEquals(100, events.size());
+        assertEquals("1:0:build_started", events.get(0));
+        assertEquals("2:49000:build_finished", events.get(99));
+    }
+}
@@ -0,0 +1,119 @@
+package org.jetbrains.teamcity.miniagentstats.history;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SampleHistoryTest {
+
+    @Test
+    public void testRollupsMatchBruteForce() {
+        int capacity = 500;
+        long[] windows = {10_000, 60_000, 300_000};
+        SampleHistory history = new SampleHistory(capacity, windows);
+        Random random = new Random(7);
+
+        long[] timestamps = new long[2000];
+        int[] busy = new int[2000];
+        long time = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            time += 500 + random.nextInt(1000);
+            timestamps[i] = time;
+            busy[i] = random.nextInt(200);
+            history.add(time, i, 1000, busy[i]);
+
+            if (i % 97 == 0) {
+                for (int w = 0; w < windows.length; w++) {
+                    assertWindow(history, w, windows[w], timestamps, busy, i, capacity);
+                }
+            }
+        }
+    }
+
+    private void assertWindow(SampleHistory history, int windowIndex, long windowMillis,
+                              long[] timestamps, int[] busy, int last, int capacity) {
+        int first = Math.max(0, last - capacity + 1);
+        while (first < last && timestamps[first] <= timestamps[last] - windowMillis) {
+            first++;
+        }
+        int[] inWindow = Arrays.copyOfRange(busy, first, last + 1);
+        Arrays.sort(inWindow);
+        double mean = Arrays.stream(inWindow).average().orElse(0);
+        int p95 = inWindow[(int) Math.ceil(0.95 * inWindow.length) - 1];
+
+        WindowStats stats = history.getWindowStats(SampleHistory.Metric.BUSY_AGENTS, windowIndex);
+        String message = "window " + windowMillis + " at sample " + last;
+        assertEquals(message, inWindow.length, stats.getCount());
+        assertEquals(message, inWindow[0], stats.getMin());
+        assertEquals(message, inWindow[inWindow.length - 1], stats.getMax());
+        assertEquals(message, mean, stats.getMean(), 1e-9);
+        // Values below 256 have exact buckets
+        assertEquals(message, p95, stats.getP95());
+    }
+
+    @Test
+    public void testCopyRecentReturnsNewestSamples() {
+        SampleHistory history = new SampleHistory(4);
+        for (int i = 1; i <= 6; i++) {
+            history.add(i * 1000L, i, 10 + i, 20 + i);
+        }
+
+        long[] timestamps = new long[10];
+        int[] queued = new int[10];
+        int[] total = new int[10];
+        int[] busy = new int[10];
+        int n = history.copyRecent(timestamps, queued, total, busy);
+
+        assertEquals("Only capacity samples are kept", 4, n);
+        assertEquals(4, history.size());
+        assertArrayEquals(new int[]{3, 4, 5, 6}, Arrays.copyOf(queued, n));
+        assertEquals(6000L, timestamps[3]);
+        assertEquals(16, total[3]);
+    }
+
+    @Test
+    public void testLargeValuesUseLogBuckets() {
+        SampleHistory history = new SampleHistory(100);
+        for (int i = 0; i < 100; i++) {
+            history.add(i, 0, 0, 50_000 + i);
+        }
+        long p95 = history.getWindowStats(SampleHistory.Metric.BUSY_AGENTS, 0).getP95();
+        assertTrue("p95 should be within the bucket precision: " + p95, p95 >= 50_094 && p95 < 50_094 * 1.07);
+    }
+
+    @Test
+    public void testReadersSeeConsistentWindows() throws Exception {
+        SampleHistory history = new SampleHistory(1000, 50_000);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                WindowStats stats = history.getWindowStats(SampleHistory.Metric.QUEUED_BUILDS, 0);
+                // Every sample has queued == total, so a torn read would show up as a mismatch
+                WindowStats total = history.getWindowStats(SampleHistory.Metric.TOTAL_AGENTS, 0);
+                if (stats.getCount() > 0 && (stats.getMin() > stats.getMean() || stats.getMean() > stats.getMax())) {
+                    failure.set("Inconsistent window: " + stats);
+                }
+                if (stats.getCount() > 0 && total.getMin() > total.getMax()) {
+                    failure.set("Inconsistent window: " + total);
+                }
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < 200_000; i++) {
+            int value = (i * 31) % 1000;
+            history.add(i, value, value, value);
+        }
+        running.set(false);
+        reader.join();
+
+        assertNull(failure.get(), failure.get());
+    }
+}
@@ -0,0 +1,136 @@
+package org.jetbrains.teamcity.miniagentstats.metrics;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.dimensions.DimensionBreakdown;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class OpenMetricsEndpointTest {
+
+    private OpenMetricsEndpoint endpoint;
+
+    @Before
+    public void setUp() throws Exception {
+        endpoint = new OpenMetricsEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        endpoint.start();
+    }
+
+    @After
+    public void tearDown() {
+        endpoint.close();
+    }
+
+    private static Sample sample(int queued, int total, int busy, long latencyNanos) {
+        Sample sample = new Sample();
+        sample.setTimestampMillis(1_700_000_000_000L);
+        sample.setQueuedBuilds(queued);
+        sample.setTotalAgents(total);
+        sample.setBusyAgents(busy);
+        sample.setTickLatencyNanos(latencyNanos);
+        return sample;
+    }
+
+    private String scrape() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + endpoint.getPort() + OpenMetricsEndpoint.PATH);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            assertEquals("Scrape should succeed", 200, connection.getResponseCode());
+            assertEquals("Content type should be OpenMetrics", OpenMetricsEndpoint.CONTENT_TYPE,
+                    connection.getContentType());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                in.transferTo(bytes);
+            }
+            return bytes.toString(StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void testServesLatestSample() throws Exception {
+        CollectorMetrics metrics = new CollectorMetrics("main");
+        endpoint.register(metrics);
+        metrics.recordSample(sample(1, 2, 1, 250_000_000L));
+        metrics.recordSample(sample(4, 3, 2, 250_000_000L));
+        metrics.recordError(CollectorMetrics.ErrorKind.DEADLINE);
+
+        String text = scrape();
+        assertTrue(text, text.contains("# TYPE teamcity_queued_builds gauge\n"));
+        assertTrue(text, text.contains("teamcity_queued_builds{server=\"main\"} 4\n"));
+        assertTrue(text, text.contains("teamcity_agents{server=\"main\"} 3\n"));
+        assertTrue(text, text.contains("teamcity_busy_agents{server=\"main\"} 2\n"));
+        assertTrue(text, text.contains("agentstats_fetch_latency_seconds_count{server=\"main\"} 2\n"));
+        assertTrue(text, text.contains("agentstats_fetch_latency_seconds_sum{server=\"main\"} 0.5\n"));
+        assertTrue(text, text.contains("agentstats_fetch_errors_total{server=\"main\",reason=\"deadline\"} 1\n"));
+        assertTrue(text, text.contains("agentstats_fetch_errors_total{server=\"main\",reason=\"error\"} 0\n"));
+        assertTrue(text, text.contains("agentstats_responses_total{server=\"main\",result=\"unchanged\"} 0\n"));
+        assertTrue("Exposition should end with EOF", text.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void testBreakdownIsPublishedAsLabels() throws Exception {
+        CollectorMetrics metrics = new CollectorMetrics("main");
+        endpoint.register(metrics);
+        assertFalse("Families without a breakdown should be left out", scrape().contains("teamcity_pool_agents"));
+
+        DimensionBreakdown breakdown = new DimensionBreakdown();
+        breakdown.beginTick(0);
+        breakdown.visitDimensions("GPU \"large\"", "Linux");
+        breakdown.visit(1, true, true, true);
+        breakdown.visitQueuedBuild(101, "Project_Build", null);
+        breakdown.endTick();
+        Sample sample = sample(1, 1, 1, 1_000_000);
+        sample.setBreakdown(breakdown.snapshot());
+        metrics.recordSample(sample);
+
+        String body = scrape();
+        assertTrue(body, body.contains("# TYPE teamcity_pool_agents gauge\n"));
+        assertTrue(body, body.contains("teamcity_pool_busy_agents{server=\"main\",pool=\"GPU \\\"large\\\"\"} 1\n"));
+        assertTrue(body, body.contains("teamcity_os_agents{server=\"main\",os=\"Linux\"} 1\n"));
+        assertTrue(body, body.contains("teamcity_build_type_queued_builds{server=\"main\",build_type=\"Project_Build\"} 1\n"));
+        assertTrue(body, body.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void testBodyIsRenderedOncePerUpdate() {
+        CollectorMetrics metrics = new CollectorMetrics("main");
+        endpoint.register(metrics);
+        metrics.recordSample(sample(1, 2, 1, 1_000_000L));
+
+        byte[] body = endpoint.getBody();
+        assertSame("Scrapes between ticks should share one buffer", body, endpoint.getBody());
+        metrics.recordSample(sample(2, 2, 1, 1_000_000L));
+        assertNotSame("Each tick should publish a new buffer", body, endpoint.getBody());
+    }
+
+    @Test
+    public void testGroupsSamplesOfSeveralServersByFamily() throws Exception {
+        CollectorMetrics first = new CollectorMetrics("first");
+        CollectorMetrics second = new CollectorMetrics("quote\"d");
+        endpoint.register(first);
+        endpoint.register(second);
+        second.recordSample(sample(7, 1, 0, 1_000_000L));
+
+        String text = scrape();
+        assertFalse("Servers without a sample should have no gauges", text.contains("teamcity_agents{server=\"first\"}"));
+        assertTrue(text, text.contains("teamcity_queued_builds{server=\"quote\\\"d\"} 7\n"));
+        assertTrue("Counters should be present before the first sample",
+                text.contains("agentstats_fetch_latency_seconds_count{server=\"first\"} 0\n"));
+        // Every family is declared once and its samples directly follow the declaration
+        assertEquals(text.indexOf("# TYPE teamcity_agents"), text.lastIndexOf("# TYPE teamcity_agents"));
+        assertTrue(text.indexOf("teamcity_queued_builds{") < text.indexOf("# TYPE teamcity_agents"));
+    }
+}
@@ -0,0 +1,89 @@
+package org.jetbrains.teamcity.miniagentstats.metrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StageMetricsTest {
+
+    @Test
+    public void testQuantilesAndMax() {
+        ConcurrentHistogram histogram = new ConcurrentHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        ConcurrentHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1_000_000, snapshot.getMax());
+        assertEquals("p50 should be within bucket accuracy", 500_000, snapshot.quantile(0.5), 500_000 * 0.07);
+        assertEquals("p99 should be within bucket accuracy", 990_000, snapshot.quantile(0.99), 990_000 * 0.07);
+        assertEquals("Quantiles never exceed the maximum", 1_000_000, snapshot.quantile(1.0));
+        assertEquals("A snapshot should reset the histogram", 0, histogram.snapshotAndReset().getCount());
+    }
+
+    @Test
+    public void testConcurrentRecordsAreNotLost() throws Exception {
+        ConcurrentHistogram histogram = new ConcurrentHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long offset = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i % 5000 + offset);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        long drained = 0;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                drained += histogram.snapshotAndReset().getCount();
+            }
+            thread.join();
+        }
+        drained += histogram.snapshotAndReset().getCount();
+
+        assertEquals("Every value should land in exactly one snapshot", 400_000, drained);
+    }
+
+    @Test
+    public void testDisabledMetricsRecordNothing() {
+        StageMetrics disabled = StageMetrics.DISABLED;
+        assertEquals("Disabled metrics should not read the clock", 0, disabled.start());
+        disabled.record(StageMetrics.Stage.PARSE, 1000);
+        List<String> reports = new ArrayList<>();
+        disabled.reportIfDue(reports::add);
+
+        assertTrue(reports.isEmpty());
+        assertTrue(disabled.summary().contains("parse n=0"));
+    }
+
+    @Test
+    public void testSummaryAndReportInterval() {
+        StageMetrics metrics = new StageMetrics(0);
+        metrics.record(StageMetrics.Stage.PARSE, 2_000_000);
+        metrics.record(StageMetrics.Stage.PARSE, 4_000_000);
+        metrics.recordSince(StageMetrics.Stage.FORMAT, metrics.start());
+
+        List<String> reports = new ArrayList<>();
+        metrics.reportIfDue(reports::add);
+
+        assertEquals(1, reports.size());
+        String summary = reports.get(0);
+        assertTrue(summary, summary.startsWith("stages: connect n=0;"));
+        // p50 is the upper bound of the 2 ms bucket; p99 and max are exact because quantiles are capped at the maximum
+        assertTrue(summary, summary.contains("parse n=2 p50=2.0"));
+        assertTrue(summary, summary.contains("p99=4.000ms max=4.000ms;"));
+        assertTrue(summary, summary.contains("format n=1 "));
+        assertTrue("The report should start a new period", metrics.summary().contains("parse n=0"));
+
+        StageMetrics hourly = new StageMetrics(3_600_000);
+        hourly.reportIfDue(reports::add);
+        assertEquals("Nothing should be reported before the interval passes", 1, reports.size());
+    }
+}
@@ -0,0 +1,213 @@
+package org.jetbrains.teamcity.miniagentstats.query;
+
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleFormat;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SampleQueryTest {
+    private static final ZoneId UTC = ZoneOffset.UTC;
+    // 2024-03-01T00:00Z
+    private static final long START = 1_709_251_200_000L;
+    private static final long MINUTE = 60_000L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static int queued(int i) {
+        return i % 17;
+    }
+
+    private static int busy(int i) {
+        return (i * 7) % 50;
+    }
+
+    private static boolean stale(int i) {
+        return i % 13 == 5;
+    }
+
+    /**
+     * One sample per minute for the given number of minutes, in the format written by the monitor
+     */
+    private Path writeCsv(int samples, boolean epoch) throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < samples; i++) {
+            long time = START + i * MINUTE + (i % 3) * 250;
+            csv.append(epoch ? String.valueOf(time) : LocalDateTime.ofInstant(Instant.ofEpochMilli(time), UTC).toString())
+                    .append(',').append(queued(i)).append(",50,").append(busy(i));
+            if (i % 2 == 0) {
+                // Bytes column of --report-bytes
+                csv.append(',').append(1000 + i);
+            }
+            csv.append(stale(i) ? ",stale\n" : "\n");
+        }
+        Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private Path writeBinary(int samples) throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("samples.bin");
+        try (BinarySampleWriter writer = new BinarySampleWriter(file, false, 64)) {
+            for (int i = 0; i < samples; i++) {
+                writer.append(START + i * MINUTE + (i % 3) * 250, queued(i), 50, busy(i),
+                        stale(i) ? BinarySampleFormat.FLAG_STALE : 0);
+            }
+        }
+        return file;
+    }
+
+    private static SampleQuery hourlyQuery() {
+        SampleQuery query = new SampleQuery();
+        query.setZone(UTC);
+        query.setBucketMillis(60 * MINUTE);
+        query.setAggregations(Arrays.asList(Aggregation.MIN, Aggregation.MAX, Aggregation.AVG, Aggregation.parse("p50")));
+        return query;
+    }
+
+    private static List<String> lines(SampleQuery query, QueryResult result) {
+        List<String> lines = new ArrayList<>();
+        result.write(query.getColumns(), query.getAggregations(), lines::add);
+        return lines;
+    }
+
+    @Test
+    public void testHourlyBucketsMatchASequentialScan() throws Exception {
+        Path csv = writeCsv(600, false);
+        SampleQuery query = hourlyQuery();
+        query.setParallelism(1);
+        List<String> sequential = lines(query, query.run(Collections.singletonList(csv)));
+
+        // Tiny chunks put chunk boundaries inside most lines
+        query.setCsvChunkBytes(37);
+        query.setParallelism(4);
+        QueryResult result = query.run(Collections.singletonList(csv));
+        assertEquals(sequential, lines(query, result));
+
+        List<BucketStats> buckets = result.getBuckets();
+        assertEquals(10, buckets.size());
+        BucketStats first = buckets.get(0);
+        // Samples 0..59, of which 5, 18, 31, 44 and 57 are stale
+        assertEquals(55, first.getSamples());
+        assertEquals(0, first.get(SampleColumn.BUSY, Aggregation.MIN), 0);
+        assertEquals(49, first.get(SampleColumn.BUSY, Aggregation.MAX), 0);
+        assertEquals(50, first.get(SampleColumn.TOTAL, Aggregation.AVG), 0);
+        assertEquals(16, first.get(SampleColumn.QUEUED, Aggregation.MAX), 0);
+        // 46 of the 600 samples are stale
+        assertEquals(600 - 46, result.getSamples());
+        assertEquals(Files.size(csv), result.getBytesScanned());
+        assertEquals("bucket,samples,queued_min,queued_max,queued_avg,queued_p50,total_min,total_max,total_avg,total_p50,"
+                + "busy_min,busy_max,busy_avg,busy_p50", sequential.get(0));
+        assertTrue(sequential.get(1), sequential.get(1).startsWith("2024-03-01T00:00,55,0,16,"));
+    }
+
+    @Test
+    public void testBinaryAndEpochFilesMatchCsv() throws Exception {
+        SampleQuery query = hourlyQuery();
+        query.setCsvChunkBytes(101);
+        query.setBinaryChunkRecords(7);
+        List<String> iso = lines(query, query.run(Collections.singletonList(writeCsv(600, false))));
+
+        assertEquals(iso, lines(query, query.run(Collections.singletonList(writeCsv(600, true)))));
+        assertEquals(iso, lines(query, query.run(Collections.singletonList(writeBinary(600)))));
+    }
+
+    @Test
+    public void testTimeRangeAndStaleSamples() throws Exception {
+        Path csv = writeCsv(600, false);
+        Path binary = writeBinary(600);
+        SampleQuery query = new SampleQuery();
+        query.setZone(UTC);
+        query.setFromMillis(START + 10 * MINUTE);
+        query.setToMillis(START + 20 * MINUTE);
+        query.setIncludeStale(true);
+        query.setCsvChunkBytes(64);
+
+        QueryResult result = query.run(Arrays.asList(csv, binary));
+        List<BucketStats> buckets = result.getBuckets();
+        assertEquals(1, buckets.size());
+        assertEquals("Ten samples from each file", 20, result.getSamples());
+        // Busy agents of samples 10..19 are 20, 27, 34, 41, 48, 5, 12, 19, 26 and 33
+        assertEquals(5, buckets.get(0).get(SampleColumn.BUSY, Aggregation.MIN), 0);
+        assertEquals(48, buckets.get(0).get(SampleColumn.BUSY, Aggregation.MAX), 0);
+        assertEquals("all", lines(query, result).get(1).split(",")[0]);
+    }
+
+    @Test
+    public void testDailyBucketsFollowLocalDays() throws Exception {
+        ZoneId berlin = ZoneId.of("Europe/Berlin");
+        StringBuilder csv = new StringBuilder("\r\n");
+        // Hourly samples from 2024-03-30T00:00 to 2024-04-01T23:00 local time; 2024-03-31 has 23 hours
+        for (long time = LocalDateTime.parse("2024-03-30T00:00").atZone(berlin).toInstant().toEpochMilli();
+             time < LocalDateTime.parse("2024-04-02T00:00").atZone(berlin).toInstant().toEpochMilli();
+             time += 60 * MINUTE) {
+            csv.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), berlin)).append(",1,2,3\r\n");
+        }
+        Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        SampleQuery query = new SampleQuery();
+        query.setZone(berlin);
+        query.setBucketMillis(24 * 60 * MINUTE);
+        query.setCsvChunkBytes(50);
+        QueryResult result = query.run(Collections.singletonList(file));
+
+        List<String> lines = lines(query, result);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(1), lines.get(1).startsWith("2024-03-30T00:00,24,"));
+        assertTrue(lines.get(2), lines.get(2).startsWith("2024-03-31T00:00,23,"));
+        assertTrue(lines.get(3), lines.get(3).startsWith("2024-04-01T00:00,24,"));
+    }
+
+    @Test
+    public void testIncompleteLastLineIsSkipped() throws Exception {
+        Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, "2024-03-01T00:00,1,2,3\n2024-03-01T00:01,4,5".getBytes(StandardCharsets.UTF_8));
+        SampleQuery query = new SampleQuery();
+        query.setZone(UTC);
+        assertEquals(1, query.run(Collections.singletonList(file)).getSamples());
+    }
+
+    @Test
+    public void testMalformedLine() throws Exception {
+        Path file = temporaryFolder.newFile().toPath();
+        Files.write(file, "2024-03-01T00:00,1,2,3\nnot a sample\n".getBytes(StandardCharsets.UTF_8));
+        SampleQuery query = new SampleQuery();
+        query.setCsvChunkBytes(8);
+        try {
+            query.run(Collections.singletonList(file));
+            fail("Malformed lines should be reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("malformed line at byte 23"));
+        }
+    }
+
+    @Test
+    public void testAggregationNames() {
+        assertEquals("p99.9", Aggregation.parse("P99.9").getLabel());
+        assertEquals(0.5, Aggregation.parse("p50").getQuantile(), 0);
+        assertSame(Aggregation.AVG, Aggregation.parse("avg"));
+        try {
+            Aggregation.parse("median");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("median"));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.jetbrains.teamcity.miniagentstats.queue;
+
+import org.jetbrains.teamcity.miniagentstats.model.BuildQueue;
+import org.jetbrains.teamcity.miniagentstats.model.QueuedBuildVisitor;
+import org.junit.Test;
+
+import javax.xml.bind.JAXBContext;
+import java.io.StringReader;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class QueueWaitTrackerTest {
+    private static final long T0 = Instant.parse("2024-01-15T10:00:00Z").toEpochMilli();
+
+    private static void tick(QueueWaitTracker tracker, long nowMillis, long... ids) {
+        tracker.beginTick(nowMillis);
+        for (long id : ids) {
+            tracker.visitQueuedBuild(id, "Project_Build", null);
+        }
+        tracker.endTick();
+    }
+
+    @Test
+    public void testWaitEndsWhenBuildLeavesTheQueue() {
+        QueueWaitTracker tracker = new QueueWaitTracker(60_000);
+        tracker.beginTick(T0);
+        tracker.visitQueuedBuild(1, "Project_Build", "20240115T095930+0000");
+        tracker.visitQueuedBuild(2, "Project_Build", null);
+        tracker.endTick();
+        tick(tracker, T0 + 10_000, 2);
+        tick(tracker, T0 + 20_000);
+
+        assertEquals(2, tracker.getDepartures());
+        WaitTimeStats stats = tracker.getStats().get(0);
+        assertEquals(2, stats.getCount());
+        // Build 1 was queued 30s before the first tick and left by the second one: 40s.
+        // Build 2 has no queued date, so its wait starts at the first tick that saw it: 20s.
+        assertEquals(20_000, stats.getP50Millis(), 20_000 * 0.07);
+        assertEquals("p99 is capped at the longest wait", 40_000, stats.getP99Millis());
+    }
+
+    @Test
+    public void testBuildsWithoutIdAreNotTracked() {
+        QueueWaitTracker tracker = new QueueWaitTracker(60_000);
+        tracker.beginTick(T0);
+        tracker.visitQueuedBuild(QueuedBuildVisitor.NO_ID, "Project_Build", "20240115T095000+0000");
+        tracker.visitQueuedBuild(QueuedBuildVisitor.NO_ID, "Project_Build", "20240115T095900+0000");
+        tracker.visitQueuedBuild(3, "Project_Build", null);
+        tracker.endTick();
+        tick(tracker, T0 + 10_000);
+
+        assertEquals("Only the build with an id can be seen leaving", 1, tracker.getDepartures());
+        assertEquals(10_000, tracker.getStats().get(0).getP99Millis());
+    }
+
+    @Test
+    public void testQueuedDateIsKeptFromTheFirstSighting() {
+        QueueWaitTracker tracker = new QueueWaitTracker(60_000);
+        tracker.beginTick(T0);
+        tracker.visitQueuedBuild(7, null, "20240115T100000+0000");
+        tracker.endTick();
+        tracker.beginTick(T0 + 5_000);
+        // A later response with a different date does not move the start of the wait
+        tracker.visitQueuedBuild(7, null, "20240115T100004+0000");
+        tracker.endTick();
+        tick(tracker, T0 + 9_000);
+
+        assertEquals(9_000, tracker.getStats().get(0).getP99Millis());
+    }
+
+    @Test
+    public void testFailedTickDoesNotEndWaits() {
+        QueueWaitTracker tracker = new QueueWaitTracker(60_000);
+        tick(tracker, T0, 1, 2);
+        // The request of this tick failed after one build was visited; endTick is never called
+        tracker.beginTick(T0 + 1_000);
+        tracker.visitQueuedBuild(1, null, null);
+        tick(tracker, T0 + 2_000, 1, 2);
+
+        assertEquals(0, tracker.getDepartures());
+    }
+
+    @Test
+    public void testWindowsSlide() {
+        QueueWaitTracker tracker = new QueueWaitTracker(60_000, 3_600_000);
+        tick(tracker, T0, 1);
+        tick(tracker, T0 + 1_000);
+        tick(tracker, T0 + 120_000, 2);
+
+        List<WaitTimeStats> stats = tracker.getStats();
+        assertEquals("The departure left the 1 minute window", 0, stats.get(0).getCount());
+        assertEquals(0, stats.get(0).getP50Millis());
+        assertEquals(1, stats.get(1).getCount());
+        assertEquals(1_000, stats.get(1).getP50Millis());
+    }
+
+    @Test
+    public void testSketchMemoryIsFixed() {
+        WaitTimeSketch sketch = new WaitTimeSketch(60_000, 12);
+        for (int i = 0; i < 1_000_000; i++) {
+            sketch.record(T0 + i / 100, i % 10_000);
+        }
+        long now = T0 + 10_000;
+        assertEquals(1_000_000, sketch.count(now));
+        assertEquals(5_000, sketch.quantile(now, 0.5), 5_000 * 0.07);
+        assertEquals(9_900, sketch.quantile(now, 0.99), 9_900 * 0.07);
+        assertEquals("Everything expires once the window has passed", 0, sketch.count(now + 70_000));
+    }
+
+    @Test
+    public void testBuildIdMap() {
+        BuildIdMap map = new BuildIdMap(2);
+        for (long id = 1; id <= 10_000; id++) {
+            map.put(id * 1_000_003L, id);
+        }
+        assertEquals(10_000, map.size());
+        assertEquals(500, map.get(500 * 1_000_003L, -1));
+        assertEquals(-1, map.get(5, -1));
+        map.put(1_000_003L, 42);
+        assertEquals("Putting an existing key replaces its value", 42, map.get(1_000_003L, -1));
+        assertEquals(10_000, map.size());
+
+        int entries = 0;
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            if (map.keyAt(slot) >= 0) {
+                entries++;
+            }
+        }
+        assertEquals(10_000, entries);
+        map.clear();
+        assertFalse(map.contains(1_000_003L));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testQueuedDateIsUnmarshalled() throws Exception {
+        String xml = "<builds count=\"1\"><build id=\"42\" buildTypeId=\"Project_Build\">"
+                + "<queuedDate>20240115T095930+0000</queuedDate></build></builds>";
+        BuildQueue queue = (BuildQueue) JAXBContext.newInstance(BuildQueue.class).createUnmarshaller()
+                .unmarshal(new StringReader(xml));
+
+        BuildQueue.QueuedBuild build = queue.getBuilds().get(0);
+        assertEquals(42, build.getId());
+        assertEquals(T0 - 30_000, QueueWaitTracker.parseQueuedDate(build.getQueuedDate(), -1));
+        assertEquals("Malformed dates fall back", -1, QueueWaitTracker.parseQueuedDate("yesterday", -1));
+    }
+}
@@ -0,0 +1,104 @@
+package org.jetbrains.teamcity.miniagentstats.replay;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ResponseArchiveTest {
+    private static final byte[] AGENTS = "<agents count=\"0\"/>".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] QUEUE = "<builds count=\"2\"/>".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void recordTicks(Path file, long firstTickMillis) throws IOException {
+        try (ResponseRecorder recorder = new ResponseRecorder(file)) {
+            recorder.beginTick(firstTickMillis);
+            recorder.record(ResponseArchive.BUILD_QUEUE, QUEUE, QUEUE.length);
+            recorder.record(ResponseArchive.AGENTS, AGENTS, AGENTS.length);
+            recorder.beginTick(firstTickMillis + 1000);
+            recorder.recordUnchanged(ResponseArchive.AGENTS);
+            assertEquals(2, recorder.getTicks());
+            assertEquals(3, recorder.getResponses());
+        }
+    }
+
+    private static void assertTicks(ResponseArchiveReader reader, long firstTickMillis) throws IOException {
+        assertEquals(ResponseArchive.TICK, reader.next());
+        assertEquals(firstTickMillis, reader.getTickMillis());
+        assertEquals(ResponseArchive.BUILD_QUEUE, reader.next());
+        assertArrayEquals(QUEUE, Arrays.copyOf(reader.getBody(), reader.getLength()));
+        assertEquals(ResponseArchive.AGENTS, reader.next());
+        assertArrayEquals(AGENTS, Arrays.copyOf(reader.getBody(), reader.getLength()));
+        assertEquals(ResponseArchive.TICK, reader.next());
+        assertEquals(firstTickMillis + 1000, reader.getTickMillis());
+        assertEquals((ResponseArchive.AGENTS | ResponseArchive.UNCHANGED) & 0xff, reader.next());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("responses.tcra");
+        recordTicks(file, 1_000_000);
+
+        try (ResponseArchiveReader reader = new ResponseArchiveReader(file)) {
+            assertTicks(reader, 1_000_000);
+            assertEquals(ResponseArchiveReader.END, reader.next());
+        }
+    }
+
+    @Test
+    public void testCompressedArchiveIsAppendedTo() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("responses.tcra.gz");
+        recordTicks(file, 1_000_000);
+        assertTrue(ResponseArchive.isGzip(file));
+        // A restarted recording adds a gzip member without a second header
+        recordTicks(file, 2_000_000);
+
+        try (ResponseArchiveReader reader = new ResponseArchiveReader(file)) {
+            assertTicks(reader, 1_000_000);
+            assertTicks(reader, 2_000_000);
+            assertEquals(ResponseArchiveReader.END, reader.next());
+        }
+    }
+
+    @Test
+    public void testTruncatedRecordEndsTheArchive() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("responses.tcra");
+        recordTicks(file, 1_000_000);
+        byte[] bytes = Files.readAllBytes(file);
+        // Cut into the agents body of the first tick
+        Files.write(file, Arrays.copyOf(bytes, 6 + 9 + 5 + QUEUE.length + 5 + 4));
+
+        try (ResponseArchiveReader reader = new ResponseArchiveReader(file)) {
+            assertEquals(ResponseArchive.TICK, reader.next());
+            assertEquals(ResponseArchive.BUILD_QUEUE, reader.next());
+            assertEquals(ResponseArchiveReader.END, reader.next());
+        }
+    }
+
+    @Test
+    public void testOtherFilesAreRejected() throws Exception {
+        Path file = temporaryFolder.newFile("samples.csv").toPath();
+        Files.write(file, "2024-01-15T10:00,1,2,3\n".getBytes(StandardCharsets.UTF_8));
+        try {
+            new ResponseArchiveReader(file).close();
+            fail("A CSV file should not be read as an archive");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not a response archive"));
+        }
+        try {
+            new ResponseRecorder(file).close();
+            fail("A CSV file should not be appended to");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not a response archive"));
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.BufferedCsvSink;
+import org.jetbrains.teamcity.miniagentstats.CsvSinkSettings;
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.jetbrains.teamcity.miniagentstats.SampleLineFormatter;
+import org.jetbrains.teamcity.miniagentstats.metrics.StageMetrics;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleReader;
+import org.jetbrains.teamcity.miniagentstats.store.BinarySampleWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class RotatingFileSinkTest {
+    private static final ZoneId UTC = ZoneOffset.UTC;
+    // 2024-03-01T00:00Z
+    private static final long START = 1_709_251_200_000L;
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static FileSink openCsv(Path file, boolean append) throws IOException {
+        return new CsvFileSink(new BufferedCsvSink(file, append, new CsvSinkSettings()),
+                new SampleLineFormatter(UTC, SampleLineFormatter.TimestampFormat.ISO), false, StageMetrics.DISABLED);
+    }
+
+    private static Sample sample(long time, int value) {
+        Sample sample = new Sample();
+        sample.setTimestampMillis(time);
+        sample.setQueuedBuilds(value);
+        sample.setTotalAgents(50);
+        sample.setBusyAgents(value % 50);
+        return sample;
+    }
+
+    private List<String> fileNames() throws IOException {
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static String read(Path file) throws IOException {
+        if (!file.getFileName().toString().endsWith(".gz")) {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        }
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(file))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            input.transferTo(bytes);
+            return bytes.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testSizeRolloverKeepsEverySampleInOrder() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("stats.csv");
+        RotationSettings settings = new RotationSettings();
+        settings.setMaxBytes(1024);
+        SegmentArchiver archiver = new SegmentArchiver(file, settings, UTC);
+        SampleLineFormatter formatter = new SampleLineFormatter(UTC, SampleLineFormatter.TimestampFormat.ISO);
+        StringBuilder expected = new StringBuilder();
+        try (RotatingFileSink sink = new RotatingFileSink(file, append -> openCsv(file, append), settings, archiver, UTC)) {
+            assertEquals("csv", sink.getName());
+            for (int i = 0; i < 200; i++) {
+                Sample sample = sample(START + i * 1000, i);
+                sink.write(sample);
+                formatter.format(sample, false);
+                expected.append(formatter).append('\n');
+            }
+        }
+        archiver.close();
+
+        List<String> names = fileNames();
+        assertEquals("stats.csv", names.get(names.size() - 1));
+        StringBuilder actual = new StringBuilder();
+        for (String name : names.subList(0, names.size() - 1)) {
+            assertTrue(name, name.matches("stats\\.20240301-0\\d{5}\\.csv\\.gz"));
+            String segment = read(file.resolveSibling(name));
+            assertTrue(name + " holds " + segment.length() + " bytes", segment.length() >= 1024 && segment.length() < 1024 + 40);
+            actual.append(segment);
+        }
+        assertTrue(names.size() > 3);
+        assertEquals(expected.toString(), actual.append(read(file)).toString());
+    }
+
+    @Test
+    public void testArchiversShareTheExecutor() throws Exception {
+        RotationSettings settings = new RotationSettings();
+        settings.setMaxBytes(1024);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (String name : new String[]{"first.csv", "second.csv"}) {
+                Path file = temporaryFolder.getRoot().toPath().resolve(name);
+                SegmentArchiver archiver = new SegmentArchiver(file, settings, UTC, executor);
+                try (RotatingFileSink sink = new RotatingFileSink(file, append -> openCsv(file, append), settings, archiver, UTC)) {
+                    for (int i = 0; i < 100; i++) {
+                        sink.write(sample(START + i * 1000, i));
+                    }
+                }
+                // Waits for the compressions of this archiver only
+                archiver.close();
+            }
+            assertFalse("Closing an archiver leaves a shared executor running", executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+
+        List<String> names = fileNames();
+        assertTrue(names.contains("first.csv"));
+        assertTrue(names.contains("second.csv"));
+        assertTrue(names.toString(), names.stream().filter(name -> name.startsWith("first.")).count() > 2);
+        assertTrue(names.toString(), names.stream().filter(name -> name.startsWith("second.")).count() > 2);
+        assertTrue("Every segment should be compressed once the archiver is closed: " + names,
+                names.stream().allMatch(name -> name.endsWith(".gz") || name.equals("first.csv") || name.equals("second.csv")));
+    }
+
+    @Test
+    public void testDailyRolloverOfBinaryFileRenamesTheIndex() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("stats.bin");
+        RotationSettings settings = new RotationSettings();
+        settings.setPeriod(RotationSettings.Period.DAILY);
+        settings.setCompression(RotationSettings.Compression.NONE);
+        SegmentArchiver archiver = new SegmentArchiver(file, settings, UTC);
+        try (RotatingFileSink sink = new RotatingFileSink(file,
+                append -> new BinaryFileSink(new BinarySampleWriter(file, append), StageMetrics.DISABLED), settings, archiver, UTC)) {
+            // From 2024-03-01T10:00 to 2024-03-03T09:00
+            for (int i = 0; i < 48; i++) {
+                sink.write(sample(START + (10 + i) * HOUR, i));
+            }
+        }
+        archiver.close();
+
+        assertEquals(Arrays.asList("stats.20240301-100000.bin", "stats.20240301-100000.bin.idx",
+                "stats.20240302-000000.bin", "stats.20240302-000000.bin.idx", "stats.bin", "stats.bin.idx"), fileNames());
+        try (BinarySampleReader first = new BinarySampleReader(file.resolveSibling("stats.20240301-100000.bin"));
+             BinarySampleReader second = new BinarySampleReader(file.resolveSibling("stats.20240302-000000.bin"));
+             BinarySampleReader current = new BinarySampleReader(file)) {
+            assertEquals(14, first.size());
+            assertEquals(24, second.size());
+            assertEquals(10, current.size());
+            assertEquals(START + 2 * 24 * HOUR, current.timestampMillis(0));
+        }
+    }
+
+    @Test
+    public void testRestartAppendsToTheCurrentSegment() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("stats.csv");
+        RotationSettings settings = new RotationSettings();
+        settings.setPeriod(RotationSettings.Period.HOURLY);
+        long time = START + 10 * HOUR + 30 * MINUTE;
+        for (int run = 0; run < 2; run++) {
+            SegmentArchiver archiver = new SegmentArchiver(file, settings, UTC);
+            try (RotatingFileSink sink = new RotatingFileSink(file, append -> openCsv(file, append), settings, archiver, UTC)) {
+                sink.write(sample(time, run));
+            }
+            archiver.close();
+            // The hour of the segment is taken from the last modification of the file
+            Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+        }
+        assertEquals(Arrays.asList("stats.csv"), fileNames());
+        assertEquals(2, read(file).split("\n").length);
+
+        // A restart in a later hour finishes the segment before writing
+        SegmentArchiver archiver = new SegmentArchiver(file, settings, UTC);
+        try (RotatingFileSink sink = new RotatingFileSink(file, append -> openCsv(file, append), settings, archiver, UTC)) {
+            sink.write(sample(time + HOUR, 2));
+        }
+        archiver.close();
+        List<String> names = fileNames();
+        assertEquals(2, names.size());
+        assertEquals(2, read(file.resolveSibling(names.get(0))).split("\n").length);
+        assertEquals(1, read(file).split("\n").length);
+    }
+
+    @Test
+    public void testRetentionAndResume() throws Exception {
+        Path directory = temporaryFolder.getRoot().toPath();
+        Path file = directory.resolve("stats.csv");
+        long now = START + 100 * 24 * HOUR;
+        // Expired, recent but never compressed, and an interrupted compression
+        Path expired = Files.write(directory.resolve("stats.20240101-000000.csv.gz"), new byte[]{1});
+        Files.setLastModifiedTime(expired, FileTime.fromMillis(now - TimeUnit.DAYS.toMillis(31)));
+        Path uncompressed = Files.write(directory.resolve("stats.20240301-000000.csv"), "line\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(uncompressed, FileTime.fromMillis(now - TimeUnit.DAYS.toMillis(1)));
+        Path temporary = Files.write(directory.resolve("stats.20240302-000000.csv.gz.tmp"), new byte[]{1});
+        Files.setLastModifiedTime(temporary, FileTime.fromMillis(now));
+        // Not a segment of this output file
+        Files.write(directory.resolve("other.20240101-000000.csv"), new byte[]{1});
+
+        RotationSettings settings = new RotationSettings();
+        settings.setMaxBytes(1024);
+        settings.setRetainMillis(TimeUnit.DAYS.toMillis(30));
+        SegmentArchiver archiver = new SegmentArchiver(file, settings, UTC, () -> now);
+        archiver.resume();
+        archiver.close();
+        assertEquals(Arrays.asList("other.20240101-000000.csv", "stats.20240301-000000.csv.gz"), fileNames());
+        assertEquals("line\n", read(directory.resolve("stats.20240301-000000.csv.gz")));
+
+        // Only the two newest finished segments are kept
+        settings.setRetainMillis(0);
+        settings.setRetainSegments(2);
+        archiver = new SegmentArchiver(file, settings, UTC, () -> now);
+        try (RotatingFileSink sink = new RotatingFileSink(file, append -> openCsv(file, append), settings, archiver, UTC)) {
+            for (int i = 0; i < 200; i++) {
+                sink.write(sample(now + i * MINUTE, i));
+            }
+        }
+        archiver.close();
+        List<String> segments = new ArrayList<>(fileNames());
+        assertTrue(segments.remove("other.20240101-000000.csv"));
+        assertTrue(segments.remove("stats.csv"));
+        assertEquals(segments.toString(), 2, segments.size());
+        assertTrue(segments.get(0), segments.get(0).startsWith("stats.20240609-"));
+    }
+}
@@ -0,0 +1,308 @@
+package org.jetbrains.teamcity.miniagentstats.sink;
+
+import org.jetbrains.teamcity.miniagentstats.Sample;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class SinkPipelineTest {
+
+    /**
+     * Keeps the queued builds of every sample; optionally holds the first write until released
+     */
+    private static class RecordingSink implements SampleSink {
+        private final String name;
+        private final List<Integer> received = new ArrayList<>();
+        private final CountDownLatch release;
+        // Counted down once the sink is held in its first write
+        private final CountDownLatch waiting = new CountDownLatch(1);
+        private volatile boolean closed;
+        private volatile String inconsistency;
+
+        RecordingSink(String name, CountDownLatch release) {
+            this.name = name;
+            this.release = release;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void write(Sample sample) {
+            if (release != null) {
+                waiting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int value = sample.getQueuedBuilds();
+            if (sample.getTotalAgents() != value || sample.getBusyAgents() != value || sample.getTimestampMillis() != value) {
+                inconsistency = "torn sample " + value + "/" + sample.getTotalAgents() + "/" + sample.getBusyAgents();
+            }
+            received.add(value);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static Sample sample(int value) {
+        Sample sample = new Sample();
+        sample.setTimestampMillis(value);
+        sample.setQueuedBuilds(value);
+        sample.setTotalAgents(value);
+        sample.setBusyAgents(value);
+        return sample;
+    }
+
+    @Test
+    public void testBlockingSinksReceiveEverySampleInOrder() throws Exception {
+        RecordingSink fast = new RecordingSink("fast", null);
+        RecordingSink slow = new RecordingSink("slow", null) {
+            @Override
+            public void write(Sample sample) {
+                if (sample.getQueuedBuilds() % 500 == 0) {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.write(sample);
+            }
+        };
+        SinkPipeline pipeline = new SinkPipeline(8);
+        pipeline.add(fast, LagPolicy.BLOCK);
+        pipeline.add(slow, LagPolicy.BLOCK);
+        Sample sample = new Sample();
+        for (int i = 0; i < 5000; i++) {
+            // The published sample is copied, so the caller may reuse it
+            sample.set(sample(i));
+            pipeline.publish(sample);
+        }
+        pipeline.close();
+
+        for (RecordingSink sink : new RecordingSink[]{fast, slow}) {
+            assertEquals(5000, sink.received.size());
+            for (int i = 0; i < 5000; i++) {
+                assertEquals(i, (int) sink.received.get(i));
+            }
+            assertTrue("Closing the pipeline closes the sinks", sink.closed);
+            assertEquals(0, pipeline.getSkipped(sink.getName()));
+        }
+        try {
+            pipeline.publish(sample(0));
+            fail("Publishing to a closed pipeline should fail");
+        } catch (java.io.IOException expected) {
+        }
+    }
+
+    @Test
+    public void testPipelinesShareTheExecutorThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<SinkPipeline> pipelines = new ArrayList<>();
+        List<RecordingSink> sinks = new ArrayList<>();
+        try {
+            for (int p = 0; p < 10; p++) {
+                SinkPipeline pipeline = new SinkPipeline(8, executor);
+                for (String name : new String[]{"console", "csv"}) {
+                    RecordingSink sink = new RecordingSink(name, null) {
+                        @Override
+                        public void write(Sample sample) {
+                            threads.add(Thread.currentThread().getName());
+                            super.write(sample);
+                        }
+                    };
+                    pipeline.add(sink, LagPolicy.BLOCK);
+                    sinks.add(sink);
+                }
+                pipelines.add(pipeline);
+            }
+            for (int i = 0; i < 1000; i++) {
+                for (SinkPipeline pipeline : pipelines) {
+                    pipeline.publish(sample(i));
+                }
+            }
+            for (SinkPipeline pipeline : pipelines) {
+                pipeline.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue("Every sink should run on the two executor threads: " + threads, threads.size() <= 2);
+        for (RecordingSink sink : sinks) {
+            assertNull(sink.inconsistency);
+            assertEquals(1000, sink.received.size());
+            assertEquals(999, (int) sink.received.get(999));
+            assertTrue("Closing the pipeline closes the sinks", sink.closed);
+        }
+    }
+
+    @Test
+    public void testDroppingSinkDoesNotStallPublishing() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink stuck = new RecordingSink("csv", release);
+        SinkPipeline pipeline = new SinkPipeline(8);
+        pipeline.add(stuck, LagPolicy.DROP);
+        pipeline.publish(sample(0));
+        assertTrue(stuck.waiting.await(5, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        for (int i = 1; i < 100; i++) {
+            pipeline.publish(sample(i));
+        }
+        assertTrue("Publishing should not wait for a stuck sink", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        release.countDown();
+        pipeline.close();
+
+        // The sample it was stuck on, then the oldest ones left in the ring
+        List<Integer> received = stuck.received;
+        assertEquals(0, (int) received.get(0));
+        assertEquals(99, (int) received.get(received.size() - 1));
+        assertTrue(received.toString(), received.size() <= 1 + 8);
+        for (int i = 2; i < received.size(); i++) {
+            assertEquals("Consecutive once caught up", received.get(i - 1) + 1, (int) received.get(i));
+        }
+        assertEquals(100, received.size() + pipeline.getSkipped("csv"));
+    }
+
+    @Test
+    public void testSamplingSinkContinuesWithTheNewestSample() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink stuck = new RecordingSink("console", release);
+        RecordingSink blocking = new RecordingSink("metrics", null);
+        SinkPipeline pipeline = new SinkPipeline(16);
+        pipeline.add(stuck, LagPolicy.SAMPLE);
+        pipeline.add(blocking, LagPolicy.BLOCK);
+        pipeline.publish(sample(0));
+        assertTrue(stuck.waiting.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < 10; i++) {
+            pipeline.publish(sample(i));
+        }
+        release.countDown();
+        pipeline.close();
+
+        assertEquals("[0, 9]", stuck.received.toString());
+        assertEquals(8, pipeline.getSkipped("console"));
+        assertEquals(10, blocking.received.size());
+    }
+
+    @Test
+    public void testOvertakenReadsAreNeverTorn() throws Exception {
+        RecordingSink dropping = new RecordingSink("drop", null);
+        RecordingSink sampling = new RecordingSink("sample", null);
+        SinkPipeline pipeline = new SinkPipeline(2);
+        pipeline.add(dropping, LagPolicy.DROP);
+        pipeline.add(sampling, LagPolicy.SAMPLE);
+        Sample sample = new Sample();
+        for (int i = 0; i < 200_000; i++) {
+            sample.setTimestampMillis(i);
+            sample.setQueuedBuilds(i);
+            sample.setTotalAgents(i);
+            sample.setBusyAgents(i);
+            pipeline.publish(sample);
+        }
+        pipeline.close();
+
+        for (RecordingSink sink : new RecordingSink[]{dropping, sampling}) {
+            assertNull(sink.inconsistency);
+            List<Integer> received = sink.received;
+            for (int i = 1; i < received.size(); i++) {
+                assertTrue("Samples stay in order", received.get(i) > received.get(i - 1));
+            }
+            assertEquals(199_999, (int) received.get(received.size() - 1));
+            assertEquals(200_000, received.size() + pipeline.getSkipped(sink.getName()));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testOverlappingPublishesFailTheAssertion() throws Exception {
+        boolean assertions = false;
+        assert assertions = true;
+        assumeTrue("Needs assertions enabled", assertions);
+        SampleRingBuffer ring = new SampleRingBuffer(1);
+        SampleRingBuffer.Cursor cursor = ring.addCursor(LagPolicy.BLOCK);
+        ring.publish(sample(0));
+        // Waits for the blocking cursor, which is a whole ring behind
+        Thread producer = new Thread(() -> ring.publish(sample(1)));
+        producer.start();
+        while (producer.getState() != Thread.State.TIMED_WAITING && producer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        try {
+            ring.publish(sample(2));
+            fail("A second producer should fail the assertion");
+        } catch (AssertionError expected) {
+        }
+        Sample target = new Sample();
+        assertTrue(cursor.poll(target));
+        producer.join();
+        assertTrue(cursor.poll(target));
+        assertEquals(1, target.getQueuedBuilds());
+    }
+
+    @Test(timeout = 10_000)
+    public void testStalledConsoleDoesNotHoldUpPublishingByDefault() throws Exception {
+        SinkPipelineSettings settings = new SinkPipelineSettings();
+        settings.setRingCapacity(8);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink stalled = new RecordingSink("console", release);
+        SinkPipeline pipeline = new SinkPipeline(settings.getRingCapacity());
+        pipeline.add(stalled, settings.getPolicy(stalled.getName()));
+        // Twelve rings' worth of samples while the sink is stuck in its first write
+        for (int i = 0; i < 100; i++) {
+            pipeline.publish(sample(i));
+        }
+        release.countDown();
+        pipeline.close();
+        assertTrue("The stalled sink should have lost samples", pipeline.getSkipped("console") > 0);
+        assertEquals(100, stalled.received.size() + pipeline.getSkipped("console"));
+    }
+
+    @Test(timeout = 10_000)
+    public void testOutputFileGetsEverySampleByDefault() throws Exception {
+        SinkPipelineSettings settings = new SinkPipelineSettings();
+        settings.setRingCapacity(8);
+        RecordingSink csv = new RecordingSink("csv", null);
+        SinkPipeline pipeline = new SinkPipeline(settings.getRingCapacity());
+        pipeline.add(csv, settings.getPolicy(csv.getName()));
+        for (int i = 0; i < 100; i++) {
+            pipeline.publish(sample(i));
+        }
+        pipeline.close();
+        assertEquals(0, pipeline.getSkipped("csv"));
+        assertEquals(100, csv.received.size());
+    }
+
+    @Test
+    public void testOutputFilesBlockAndOtherSinksDropByDefault() {
+        SinkPipelineSettings settings = new SinkPipelineSettings();
+        assertEquals(LagPolicy.BLOCK, settings.getPolicy("csv"));
+        assertEquals(LagPolicy.BLOCK, settings.getPolicy("binary"));
+        assertEquals(LagPolicy.BLOCK, settings.getPolicy("events"));
+        assertEquals(LagPolicy.DROP, settings.getPolicy("console"));
+        assertEquals(LagPolicy.DROP, settings.getPolicy("metrics"));
+
+        settings.setDefaultPolicy(LagPolicy.SAMPLE);
+        settings.setPolicy("console", LagPolicy.BLOCK);
+        assertEquals(LagPolicy.SAMPLE, settings.getPolicy("csv"));
+        assertEquals(LagPolicy.BLOCK, settings.getPolicy("console"));
+    }
+}
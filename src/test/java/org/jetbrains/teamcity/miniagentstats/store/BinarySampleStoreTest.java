@@ -0,0 +1,143 @@
+package org.jetbrains.teamcity.miniagentstats.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BinarySampleStoreTest {
+
+    private Path directory;
+    private Path dataFile;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("binary-store");
+        dataFile = directory.resolve("stats.bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Writes one record per second starting at 1000 s, with small segments so the index is exercised
+     */
+    private void writeRecords(int count) throws Exception {
+        try (BinarySampleWriter writer = new BinarySampleWriter(dataFile, false, 16)) {
+            for (int i = 0; i < count; i++) {
+                writer.append(1_000_000L + i * 1000L, i, 100, i % 100, i % 7 == 0 ? BinarySampleFormat.FLAG_STALE : 0);
+            }
+        }
+    }
+
+    @Test
+    public void testRecordsAreReadBack() throws Exception {
+        writeRecords(100);
+
+        assertEquals("File should hold header and fixed-width records",
+                BinarySampleFormat.HEADER_SIZE + 100 * BinarySampleFormat.RECORD_SIZE, Files.size(dataFile));
+        try (BinarySampleReader reader = new BinarySampleReader(dataFile)) {
+            assertEquals(100, reader.size());
+            assertEquals(1_000_000L + 42_000L, reader.timestampMillis(42));
+            assertEquals(42, reader.queuedBuilds(42));
+            assertEquals(100, reader.totalAgents(42));
+            assertEquals(42, reader.busyAgents(42));
+            assertEquals(BinarySampleFormat.FLAG_STALE, reader.flags(42));
+        }
+    }
+
+    @Test
+    public void testRangeScanUsesHalfOpenInterval() throws Exception {
+        writeRecords(1000);
+
+        // Several small mappings make the scan cross mapping boundaries
+        try (BinarySampleReader reader = new BinarySampleReader(dataFile, 37)) {
+            List<Integer> queued = new ArrayList<>();
+            long visited = reader.scan(1_000_000L + 500_000L, 1_000_000L + 510_000L,
+                    (timestamp, queuedBuilds, totalAgents, busyAgents, flags) -> queued.add(queuedBuilds));
+
+            assertEquals("Ten records fall in the range", 10, visited);
+            assertEquals(Integer.valueOf(500), queued.get(0));
+            assertEquals(Integer.valueOf(509), queued.get(9));
+            assertEquals("Range before the data starts at the first record", 0, reader.lowerBound(0));
+            assertEquals("Range after the data is empty", 1000, reader.lowerBound(Long.MAX_VALUE));
+            assertEquals("Timestamps between records round up", 1, reader.lowerBound(1_000_001L));
+        }
+    }
+
+    @Test
+    public void testFileOfTheFormerLayoutIsRejected() throws Exception {
+        writeRecords(1);
+        // Version 1 with its 24-byte records
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 1, 0, 24}), 4);
+        }
+        try (BinarySampleReader reader = new BinarySampleReader(dataFile)) {
+            fail("Records of another size should not be read as 21-byte records");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("unsupported version 1"));
+        }
+    }
+
+    @Test
+    public void testAppendRecoversFromTornRecordAndMissingIndex() throws Exception {
+        writeRecords(40);
+        // Simulate a crash in the middle of a record and a lost index
+        try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        Files.delete(BinarySampleFormat.indexFile(dataFile));
+
+        try (BinarySampleWriter writer = new BinarySampleWriter(dataFile, true)) {
+            assertEquals("Torn record should be dropped", 39, writer.getRecordCount());
+            writer.append(2_000_000L, 1, 2, 3, 0);
+        }
+
+        try (BinarySampleReader reader = new BinarySampleReader(dataFile)) {
+            assertEquals(40, reader.size());
+            assertEquals(2_000_000L, reader.timestampMillis(39));
+            assertEquals("Rebuilt index should find records", 20, reader.lowerBound(1_020_000L));
+        }
+    }
+
+    @Test
+    public void testConvertCsv() throws Exception {
+        Path csvFile = directory.resolve("stats.csv");
+        Files.write(csvFile, Arrays.asList(
+                "2024-03-01T10:00:00.123,5,10,3",
+                "2024-03-01T10:00:30,6,10,4,1234",
+                "",
+                "2024-03-01T10:01:00.5,6,10,4,stale"));
+
+        long records = new CsvToBinaryConverter(ZoneOffset.UTC).convert(csvFile, dataFile);
+
+        assertEquals(3, records);
+        try (BinarySampleReader reader = new BinarySampleReader(dataFile)) {
+            assertEquals(1709287200123L, reader.timestampMillis(0));
+            assertEquals(5, reader.queuedBuilds(0));
+            assertEquals(4, reader.busyAgents(1));
+            assertEquals("Stale column should set the flag", BinarySampleFormat.FLAG_STALE, reader.flags(2));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.jetbrains.teamcity.miniagentstats.utilization;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AgentUtilizationTrackerTest {
+
+    private static void tick(AgentUtilizationTracker tracker, long nowMillis, int... busyIds) {
+        tracker.beginTick(nowMillis);
+        for (int id = 1; id <= 4; id++) {
+            boolean busy = false;
+            for (int busyId : busyIds) {
+                busy |= busyId == id;
+            }
+            tracker.visit(id, true, true, busy);
+        }
+        tracker.endTick();
+    }
+
+    @Test
+    public void testTimeIsCreditedToThePreviousState() {
+        AgentUtilizationTracker tracker = new AgentUtilizationTracker(4);
+        tick(tracker, 0, 1);
+        tick(tracker, 10_000, 1, 2);
+        tick(tracker, 30_000, 2);
+
+        AgentUtilization first = tracker.get(1);
+        assertEquals("Busy from 0 to 30s", 30, first.getBusySeconds());
+        assertEquals(0, first.getIdleSeconds());
+        assertEquals("Became idle at the last tick", AgentUtilization.State.IDLE, first.getState());
+        assertEquals(30_000, first.getLastStateChangeMillis());
+
+        AgentUtilization second = tracker.get(2);
+        assertEquals("Idle until 10s, then busy", 10, second.getIdleSeconds());
+        assertEquals(20, second.getBusySeconds());
+        assertEquals(2.0 / 3, second.getUtilization(), 1e-9);
+        assertNull("Unknown agents have no record", tracker.get(99));
+    }
+
+    @Test
+    public void testMissingAgentsCountAsDisconnects() {
+        AgentUtilizationTracker tracker = new AgentUtilizationTracker(4);
+        tick(tracker, 0, 1);
+        tracker.beginTick(5_000);
+        tracker.visit(2, true, true, false);
+        tracker.visit(3, true, false, false);
+        tracker.endTick();
+        tick(tracker, 8_000);
+
+        AgentUtilization missing = tracker.get(1);
+        assertEquals("Busy until it disappeared", 5, missing.getBusySeconds());
+        assertEquals(1, missing.getDisconnects());
+        assertEquals(AgentUtilization.State.IDLE, missing.getState());
+        assertEquals(1, tracker.get(3).getDisconnects());
+        // Idle until it disconnected at 5s; the 3s while disconnected count as neither
+        assertEquals(5, tracker.get(3).getIdleSeconds());
+        assertEquals(0, tracker.get(3).getBusySeconds());
+    }
+
+    @Test
+    public void testTopN() {
+        AgentUtilizationTracker tracker = new AgentUtilizationTracker(4);
+        tick(tracker, 0, 1, 2, 3);
+        tick(tracker, 10_000, 1, 2);
+        tick(tracker, 20_000, 1);
+        tick(tracker, 30_000);
+
+        List<AgentUtilization> most = tracker.mostUtilized(2);
+        assertEquals(2, most.size());
+        assertEquals(1, most.get(0).getId());
+        assertEquals(2, most.get(1).getId());
+
+        List<AgentUtilization> least = tracker.leastUtilized(3);
+        assertEquals(4, least.get(0).getId());
+        assertEquals(3, least.get(1).getId());
+        assertEquals(2, least.get(2).getId());
+        assertEquals("n larger than the fleet returns every agent", 4, tracker.mostUtilized(10).size());
+    }
+
+    @Test
+    public void testLargeFleet() {
+        int agents = 60_000;
+        AgentUtilizationTracker tracker = new AgentUtilizationTracker(16);
+        for (int t = 0; t < 3; t++) {
+            tracker.beginTick(t * 1000L);
+            for (int id = 1; id <= agents; id++) {
+                // Sparse ids, as left behind by deleted agents
+                tracker.visit(id * 7, true, true, id % 10 == 0);
+            }
+            tracker.endTick();
+        }
+
+        assertEquals(agents, tracker.size());
+        assertEquals(2, tracker.get(70).getBusySeconds());
+        assertEquals(2, tracker.get(7).getIdleSeconds());
+        assertEquals(1.0, tracker.mostUtilized(1).get(0).getUtilization(), 0);
+        assertEquals(0.0, tracker.leastUtilized(1).get(0).getUtilization(), 0);
+    }
+
+    @Test
+    public void testIntIndexMap() {
+        IntIndexMap map = new IntIndexMap(2);
+        assertEquals(0, map.getOrAdd(0));
+        assertEquals(1, map.getOrAdd(Integer.MAX_VALUE));
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(i + 1, map.getOrAdd(i * 31));
+        }
+        assertEquals(0, map.get(0));
+        assertEquals(1, map.get(Integer.MAX_VALUE));
+        assertEquals(501, map.get(500 * 31));
+        assertEquals(-1, map.get(5));
+        assertEquals("Adding an existing key returns its index", 501, map.getOrAdd(500 * 31));
+        assertEquals(1002, map.size());
+    }
+}